@@ -1,6 +1,8 @@
 package ch.cmbntr.modulizer.bootstrap;
 
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
@@ -10,8 +12,18 @@ public interface BootstrapContext extends Map<String, String> {
 
   public static final String CONFIG_NAME = "/bootstrap-config.xml";
 
+  public static final String CONFIG_NAME_COMPACT = "/bootstrap-config.properties";
+
   public static final String CONFIG_KEY_LOGGING = "modulizer.logging";
 
+  public static final String CONFIG_KEY_JMX = "modulizer.jmx";
+
+  public static final String CONFIG_KEY_JMX_RETAIN_MILLIS = "modulizer.jmx.retain-millis";
+
+  public static final String CONFIG_KEY_EXECUTOR = "modulizer.bootstrap.executor";
+
+  public static final String CONFIG_KEY_CONTEXT = "modulizer.bootstrap.context";
+
   public static final String CONFIG_KEY_UUID = "modulizer.bootstrap.uuid";
 
   public static final String CONFIG_KEY_APP_ID = "modulizer.bootstrap.app.id";
@@ -28,8 +40,41 @@ public interface BootstrapContext extends Map<String, String> {
 
   public static final String CONFIG_KEY_PRELOAD_GUI = "modulizer.bootstrap.preload-gui";
 
+  public static final String CONFIG_KEY_PRELOAD_PROFILE = "modulizer.bootstrap.preload-profile";
+
+  public static final String CONFIG_KEY_PRELOAD_PROFILE_MILLIS = "modulizer.bootstrap.preload-profile.millis";
+
+  public static final String CONFIG_KEY_TRACE = "modulizer.bootstrap.trace";
+
+  public static final String CONFIG_KEY_CDS_TRAINING_MILLIS = "modulizer.bootstrap.cds.training-millis";
+
+  public static final String CONFIG_KEY_HASH_CACHE = "modulizer.bootstrap.hash-cache";
+
+  /**
+   * Whether integrity checks of content addressed files hash the whole content even if the hash cache holds a digest
+   * for the unchanged file status, {@code false} by default.
+   */
+  public static final String CONFIG_KEY_HASH_CACHE_VERIFY_CONTENT = "modulizer.bootstrap.hash-cache.verify-content";
+
   public static final String CONFIG_KEY_GC_DELAY = "modulizer.bootstrap.gc.delay-millis";
 
+  public static final String CONFIG_KEY_GC_TRIM_THRESHOLD = "modulizer.bootstrap.gc.trim-threshold-bytes";
+
+  public static final String CONFIG_KEY_STANDBY = "modulizer.bootstrap.standby";
+
+  public static final String CONFIG_KEY_STANDBY_IDLE_MILLIS = "modulizer.bootstrap.standby.idle-millis";
+
+  public static final String CONFIG_KEY_STANDBY_MAX_HEAP_PERCENT = "modulizer.bootstrap.standby.max-heap-percent";
+
+  /**
+   * Whether a standby installs a security manager turning {@code System.exit} of a hand-off into the exit status of its
+   * client, {@code false} by default. Security managers are deprecated and can not be installed on JDK 18 and later
+   * unless {@code -Djava.security.manager=allow} is given.
+   */
+  public static final String CONFIG_KEY_STANDBY_EXIT_TRAP = "modulizer.bootstrap.standby.exit-trap";
+
+  public static final String CONFIG_KEY_HOST = "modulizer.bootstrap.host";
+
   public static final String CONFIG_KEY_SECURITY_SKIP = "modulizer.bootstrap.security.skip";
 
   public static final String CONFIG_KEY_LAUNCH_PLUGINS = "modulizer.bootstrap.launch.plugins";
@@ -38,33 +83,106 @@ public interface BootstrapContext extends Map<String, String> {
 
   public static final String CONFIG_KEY_MAIN_MODULE = "modulizer.jboss-modules.main";
 
+  public static final String CONFIG_KEY_SHARED_MODULES = "modulizer.jboss-modules.shared";
+
+  public static final String CONFIG_KEY_MODULES_ARCHIVE = "modulizer.jboss-modules.archive";
+
   public static final String CONFIG_KEY_BUNDLE_ID = "modulizer.filetree.bundle.id";
 
   public static final String CONFIG_KEY_BUNDLE_REF = "modulizer.filetree.bundle.ref";
 
   public static final String CONFIG_KEY_BUNDLE_URI = "modulizer.filetree.bundle.uri";
 
+  public static final String CONFIG_KEY_BUNDLE_DELTA_BASE = "modulizer.filetree.bundle.delta.base";
+
+  public static final String CONFIG_KEY_BUNDLE_DELTA_URI = "modulizer.filetree.bundle.delta.uri";
+
+  public static final String CONFIG_KEY_BUNDLE_SPLIT = "modulizer.filetree.bundle.split";
+
   public static final String CONFIG_KEY_IGNORE_EXISTING = "modulizer.filetree.ignore-existing";
 
   public static final String CONFIG_KEY_FILETREE_CLEANUP = "modulizer.filetree.cleanup";
 
+  public static final String CONFIG_KEY_FILETREE_VERIFY = "modulizer.filetree.verify";
+
+  public static final String CONFIG_KEY_FILETREE_VERIFY_BYTES_PER_SECOND = "modulizer.filetree.verify.bytes-per-second";
+
+  /**
+   * The system property the background file tree verification reports its outcome in, {@code ok} or
+   * {@code repair-pending:<count>}.
+   */
+  public static final String FILETREE_VERIFY_RESULT = "modulizer.filetree.verify.result";
+
   public static final String DEFAULT_BUNDLE_REF = "refs/heads/master";
 
   public static final String DEFAULT_BUNDLE_URI = "/filetree.dat";
 
+  public static final String DEFAULT_BUNDLE_DELTA_URI = "/filetree-delta.dat";
+
+  public static final String FILETREE_VERIFY_BLOCKING = "blocking";
+
+  public static final String FILETREE_VERIFY_BACKGROUND = "background";
+
+  public static final long DEFAULT_FILETREE_VERIFY_BYTES_PER_SECOND = 16L * 1024L * 1024L;
+
+  public static final long DEFAULT_JMX_RETAIN_MS = 5L * 60L * 1000L;
+
+  public static final String EXECUTOR_POOLS = "pools";
+
+  public static final String EXECUTOR_FORK_JOIN = "forkjoin";
+
+  public static final String EXECUTOR_VIRTUAL = "virtual";
+
+  public static final String CONTEXT_LAYERED = "layered";
+
+  public static final String CONTEXT_PROPERTIES = "properties";
+
+  public static final String DEFAULT_TRACE = "app.dir";
+
+  public static final String DEFAULT_HASH_CACHE = "app.dir";
+
+  public static final String DEFAULT_PRELOAD_PROFILE = "none";
+
+  public static final long DEFAULT_PRELOAD_PROFILE_MS = 10000L;
+
   public static final long DEFAULT_GC_DELAY_MS = 8000L;
 
+  public static final long DEFAULT_GC_TRIM_THRESHOLD = 16L * 1024L * 1024L;
+
+  public static final String DEFAULT_STANDBY = "none";
+
+  public static final long DEFAULT_STANDBY_IDLE_MS = 30L * 60L * 1000L;
+
+  public static final int DEFAULT_STANDBY_MAX_HEAP_PERCENT = 75;
+
   public static final AtomicReference<String[]> ARGS = new AtomicReference<String[]>();
 
+  /**
+   * The loader of the config, bundle and plugin resources of the app being bootstrapped, {@code null} for the
+   * launcher itself. Set by {@link Host} for each hosted app.
+   */
+  public static final AtomicReference<ClassLoader> RESOURCES = new AtomicReference<ClassLoader>();
+
   public static final AtomicReference<BootstrapContext> CURRENT = new AtomicReference<BootstrapContext>();
 
   /**
-   * Performs a {@link #get(Object)} and replaces ${propName}/%{propName} with its value.
-   * Each reference is replaced once, left to right.
+   * Performs a {@link #get(Object)} and replaces ${propName}/%{propName} with its interpolated value.
+   * Each reference is expanded once, left to right, cyclic references are left as is.
    *
    * @param key the lookup key
    * @return the interpolated value {@code null} if absent
    */
   public String getInterpolated(String key);
 
+  /**
+   * @param prefix the key prefix, e.g. {@code modulizer.filetree.copy.}
+   * @return the sorted keys starting with the prefix
+   */
+  public SortedSet<String> keysWithPrefix(String prefix);
+
+  /**
+   * @return an immutable, sorted copy of the current entries
+   */
+  public SortedMap<String, String> snapshot();
+
 }
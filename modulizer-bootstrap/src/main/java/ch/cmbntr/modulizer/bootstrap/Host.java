@@ -0,0 +1,80 @@
+package ch.cmbntr.modulizer.bootstrap;
+
+import static ch.cmbntr.modulizer.bootstrap.Operations.defaultLoader;
+import static ch.cmbntr.modulizer.bootstrap.Operations.invokeOperations;
+import static ch.cmbntr.modulizer.bootstrap.util.ModulizerLog.log;
+import static ch.cmbntr.modulizer.bootstrap.util.ModulizerLog.warn;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Hosts several modulized apps in one JVM. Usage: {@code java -cp launcher.jar ch.cmbntr.modulizer.bootstrap.Host
+ * app1-launcher.jar [app2-launcher.jar...]}. The apps are bootstrapped one after the other, each with its own context
+ * read from its launcher (and the modules jar on its {@code Class-Path}), so the process wide
+ * {@link BootstrapContext#CURRENT}, {@link BootstrapContext#ARGS} and {@link BootstrapContext#RESOURCES} belong to
+ * one app at a time. The system properties a bootstrap exports, e.g. {@link BootstrapContext#CONFIG_KEY_APP_DIR}, stay
+ * set for the apps already running, but do not override the config of the apps bootstrapped after it. The main modules
+ * run concurrently on their own threads afterwards. Identical bootstrap plugins
+ * are loaded once, which lets the jboss-modules launch share the modules listed in
+ * {@link BootstrapContext#CONFIG_KEY_SHARED_MODULES} between the apps.
+ */
+public class Host {
+
+  private Host() {
+    super();
+  }
+
+  public static void main(final String[] args) {
+    if (args == null || args.length == 0) {
+      System.err.format("Usage: java %s launcher.jar [launcher.jar...]%n", Host.class.getName());
+      System.exit(1);
+      return;
+    }
+    System.setProperty(BootstrapContext.CONFIG_KEY_HOST, "true");
+    Operations.sharePluginLoaders();
+    for (final String app : args) {
+      host(app);
+    }
+  }
+
+  private static void host(final String app) {
+    final long start = System.nanoTime();
+    BootstrapContext.ARGS.set(new String[0]);
+    BootstrapContext.RESOURCES.set(new URLClassLoader(new URL[] { toURL(app) }, null));
+    try {
+      invokeOperations(false, Bootstrap.class, defaultLoader());
+    } catch (final RuntimeException e) {
+      warn("failed to host %s: %s", app, e);
+    } finally {
+      BootstrapContext.RESOURCES.set(null);
+      BootstrapContext.ARGS.set(null);
+      log("hosted %s, bootstrap time: %dms", app, MILLISECONDS.convert(System.nanoTime() - start, NANOSECONDS));
+    }
+  }
+
+  private static URL toURL(final String app) {
+    try {
+      final URI uri = URI.create(app);
+      return uri.isAbsolute() ? uri.toURL() : new File(app).toURI().toURL();
+    } catch (final IllegalArgumentException e) {
+      return toFileURL(app);
+    } catch (final MalformedURLException e) {
+      return toFileURL(app);
+    }
+  }
+
+  private static URL toFileURL(final String app) {
+    try {
+      return new File(app).toURI().toURL();
+    } catch (final MalformedURLException e) {
+      throw new IllegalArgumentException(app, e);
+    }
+  }
+
+}
@@ -10,6 +10,7 @@ import static ch.cmbntr.modulizer.bootstrap.util.SystemPropertyHelper.snapshotPr
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
@@ -21,9 +22,12 @@ import java.util.List;
 import java.util.Properties;
 import java.util.ServiceLoader;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 
 import ch.cmbntr.modulizer.bootstrap.util.Resources;
+import ch.cmbntr.modulizer.bootstrap.util.StartupTrace;
 
 public class Operations {
 
@@ -36,6 +40,29 @@ public class Operations {
     return tcl == null ? Operations.class.getClassLoader() : tcl;
   }
 
+  /**
+   * Looks up a resource of the app being bootstrapped, see {@link BootstrapContext#RESOURCES}.
+   *
+   * @param owner the class whose loader provides the resources of a launcher running a single app
+   * @param name the absolute resource name, e.g. {@code /filetree.dat}
+   */
+  public static URL appResource(final Class<?> owner, final String name) {
+    final ClassLoader resources = BootstrapContext.RESOURCES.get();
+    if (resources == null) {
+      return owner.getResource(name);
+    }
+    return resources.getResource(name.startsWith("/") ? name.substring(1) : name);
+  }
+
+  public static InputStream appResourceAsStream(final Class<?> owner, final String name) {
+    final URL url = appResource(owner, name);
+    try {
+      return url == null ? null : url.openStream();
+    } catch (final IOException e) {
+      return null;
+    }
+  }
+
   public static <S extends Operation> void invokeOperations(final boolean restoreSystemProps,
       final Class<S> operationType, final Future<ClassLoader> loader) {
     invokeOperations(restoreSystemProps, operationType, Resources.get(loader, "failed to get classloader"));
@@ -55,7 +82,12 @@ public class Operations {
         final ClassLoader opLoader = operationClass.getClassLoader();
         log("invoke %s from %s", operationClass.getName(), classLoaderInfo(opLoader));
         currentThread.setContextClassLoader(opLoader);
-        op.run();
+        final int span = StartupTrace.begin(StartupTrace.CATEGORY_OPERATION, operationClass.getName());
+        try {
+          op.run();
+        } finally {
+          StartupTrace.end(span);
+        }
       }
     } finally {
       currentThread.setContextClassLoader(origCCL);
@@ -76,8 +108,18 @@ public class Operations {
     }
   }
 
+  /**
+   * Lets apps bootstrapped by the same {@link Host} reuse the plugin loaders of identical plugin specs, which are made
+   * of content-named jars.
+   */
+  static void sharePluginLoaders() {
+    PluginLoader.shared = new ConcurrentHashMap<String, ClassLoader>();
+  }
+
   public static final class PluginLoader implements Callable<ClassLoader> {
 
+    private static volatile ConcurrentMap<String, ClassLoader> shared;
+
     private final File dir;
     private final String spec;
 
@@ -92,7 +134,25 @@ public class Operations {
 
     @Override
     public ClassLoader call() throws Exception {
-      return pluginLoader(defaultLoader(), this.dir, this.spec);
+      final int span = StartupTrace.begin(StartupTrace.CATEGORY_BOOTSTRAP, "pluginLoader " + this.spec);
+      try {
+        final ClassLoader parent = defaultLoader();
+        final ConcurrentMap<String, ClassLoader> loaders = shared;
+        if (loaders == null || this.spec == null) {
+          return pluginLoader(parent, this.dir, this.spec);
+        }
+        final String key = System.identityHashCode(parent) + ":" + this.spec;
+        final ClassLoader existing = loaders.get(key);
+        if (existing != null) {
+          log("shared plugin loader: %s", this.spec);
+          return existing;
+        }
+        final ClassLoader created = pluginLoader(parent, this.dir, this.spec);
+        final ClassLoader raced = loaders.putIfAbsent(key, created);
+        return raced == null ? created : raced;
+      } finally {
+        StartupTrace.end(span);
+      }
     }
 
     private static ClassLoader pluginLoader(final ClassLoader parent, final File pluginDir, final String pluginSpec) {
@@ -116,7 +176,8 @@ public class Operations {
             if (verifySHA1Named(pluginDest)) {
               plugins.add(pluginDest.toURI().toURL());
             } else {
-              final URL jar = parent.getResource(jarPath);
+              final URL jar = BootstrapContext.RESOURCES.get() == null ? parent.getResource(jarPath)
+                  : appResource(PluginLoader.class, jarPath);
               if (jar == null) {
                 warn("could not find plugin jar:  %s", jarPath);
               } else {
@@ -0,0 +1,135 @@
+package ch.cmbntr.modulizer.bootstrap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import ch.cmbntr.modulizer.bootstrap.util.StandbyProtocol;
+import ch.cmbntr.modulizer.bootstrap.util.StandbyProtocol.Endpoint;
+import ch.cmbntr.modulizer.bootstrap.util.StandbyProtocol.Request;
+
+/**
+ * Hands a launch off to a warm standby, see {@link BootstrapContext#CONFIG_KEY_STANDBY}, and streams its standard
+ * streams and exit status. Usage: {@code java -cp launcher.jar ch.cmbntr.modulizer.bootstrap.StandbyClient portFile
+ * [args...]}. If no standby answers, the launch is bootstrapped in this JVM as by {@link Main}.
+ */
+public class StandbyClient {
+
+  private static final int CONNECT_MILLIS = 500;
+
+  private StandbyClient() {
+    super();
+  }
+
+  public static void main(final String[] args) {
+    if (args == null || args.length < 1) {
+      System.err.format("Usage: java %s portFile [args...]%n", StandbyClient.class.getName());
+      System.exit(1);
+      return;
+    }
+    final String[] appArgs = new String[args.length - 1];
+    System.arraycopy(args, 1, appArgs, 0, appArgs.length);
+
+    final Endpoint endpoint = StandbyProtocol.readPortFile(new File(args[0]));
+    final Socket socket = endpoint == null ? null : connect(endpoint);
+    if (socket == null) {
+      Main.main(appArgs);
+      return;
+    }
+    System.exit(handOff(socket, endpoint, appArgs));
+  }
+
+  private static Socket connect(final Endpoint endpoint) {
+    final Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(InetAddress.getByName(null), endpoint.port), CONNECT_MILLIS);
+      socket.setTcpNoDelay(true);
+      return socket;
+    } catch (final IOException e) {
+      close(socket);
+      return null;
+    }
+  }
+
+  private static int handOff(final Socket socket, final Endpoint endpoint, final String[] appArgs) {
+    try {
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      final Request request = new Request(System.getProperty("user.dir"), System.getenv(), appArgs);
+      StandbyProtocol.writeRequest(out, endpoint.secret, request);
+      startStdinPump(out);
+      return streamOutput(in);
+    } catch (final IOException e) {
+      System.err.println("standby hand-off failed: " + e);
+      return 1;
+    } finally {
+      System.out.flush();
+      System.err.flush();
+      close(socket);
+    }
+  }
+
+  private static int streamOutput(final DataInputStream in) throws IOException {
+    byte[] buf = new byte[8192];
+    for (;;) {
+      final int type = in.read();
+      if (type < 0) {
+        System.err.println("standby closed the connection");
+        return 1;
+      }
+      if (type == StandbyProtocol.EXIT) {
+        return in.readInt();
+      }
+      final int len = in.readInt();
+      if (len < 0) {
+        throw new IOException("invalid frame length " + len);
+      }
+      if (len > buf.length) {
+        buf = new byte[len];
+      }
+      in.readFully(buf, 0, len);
+      final PrintStream target = type == StandbyProtocol.STDERR ? System.err : System.out;
+      target.write(buf, 0, len);
+      target.flush();
+    }
+  }
+
+  private static void startStdinPump(final DataOutputStream out) {
+    final Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final InputStream stdin = System.in;
+        final byte[] buf = new byte[8192];
+        try {
+          for (int n; (n = stdin.read(buf)) >= 0;) {
+            if (n > 0) {
+              StandbyProtocol.writeFrame(out, StandbyProtocol.STDIN, buf, 0, n);
+            }
+          }
+          StandbyProtocol.writeFrame(out, StandbyProtocol.STDIN, buf, 0, 0);
+        } catch (final IOException e) {
+          // the hand-off is over
+        }
+      }
+    }, "standby stdin");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private static void close(final Socket socket) {
+    try {
+      socket.close();
+    } catch (final IOException e) {
+      // ignore
+    }
+  }
+
+}
@@ -24,10 +24,17 @@ public abstract class AbstractOperation implements Operation {
   }
 
   protected static List<String> findMatchingContextKeys(final Pattern check) {
+    return findMatchingContextKeys("", check);
+  }
+
+  /**
+   * @param prefix the literal prefix of all matching keys, narrows the candidates before the pattern is applied
+   */
+  protected static List<String> findMatchingContextKeys(final String prefix, final Pattern check) {
     final List<String> matches = new LinkedList<String>();
     final BootstrapContext ctx = BootstrapContext.CURRENT.get();
     if (ctx != null) {
-      for (final String k : ctx.keySet()) {
+      for (final String k : ctx.keysWithPrefix(prefix)) {
         if (check.matcher(k).matches()) {
           matches.add(k);
         }
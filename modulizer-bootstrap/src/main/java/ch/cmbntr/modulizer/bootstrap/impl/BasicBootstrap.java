@@ -1,16 +1,21 @@
 package ch.cmbntr.modulizer.bootstrap.impl;
 
+import static ch.cmbntr.modulizer.bootstrap.Operations.appResourceAsStream;
 import static ch.cmbntr.modulizer.bootstrap.util.ModulizerIO.closeQuietly;
 import static ch.cmbntr.modulizer.bootstrap.util.ModulizerIO.mkdir;
 import static ch.cmbntr.modulizer.bootstrap.util.ModulizerLog.initLogging;
+import static ch.cmbntr.modulizer.bootstrap.util.TaskGraph.keys;
 import static java.lang.Boolean.parseBoolean;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.lang.management.ManagementFactory;
 import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.UUID;
@@ -20,12 +25,49 @@ import ch.cmbntr.modulizer.bootstrap.Bootstrap;
 import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
 import ch.cmbntr.modulizer.bootstrap.Launch;
 import ch.cmbntr.modulizer.bootstrap.Prepare;
+import ch.cmbntr.modulizer.bootstrap.util.ClassDataSharing;
+import ch.cmbntr.modulizer.bootstrap.util.HashCache;
+import ch.cmbntr.modulizer.bootstrap.util.HeapTrimmer;
+import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog;
+import ch.cmbntr.modulizer.bootstrap.util.PreloadProfile;
 import ch.cmbntr.modulizer.bootstrap.util.Resources;
 import ch.cmbntr.modulizer.bootstrap.util.Resources.Pool;
+import ch.cmbntr.modulizer.bootstrap.util.StartupTrace;
 import ch.cmbntr.modulizer.bootstrap.util.SystemPropertyHelper;
+import ch.cmbntr.modulizer.bootstrap.util.TaskGraph;
 
 public class BasicBootstrap extends AbstractOperation implements Bootstrap {
 
+  private static final String CONTEXT = "context";
+
+  private static final String SECURITY = "security";
+
+  private static final String SYSTEM_PROPERTIES = "system-properties";
+
+  private static final String APP_DIR = "app.dir";
+
+  private static final String LOGGING = "logging";
+
+  private static final String HASH_CACHE = "hash-cache";
+
+  private static final String PRELOAD_PROFILE = "preload-profile";
+
+  private static final String EXPORTED = "exported";
+
+  private static final String PREPARE_LOADER = "prepare-loader";
+
+  private static final String LAUNCH_LOADER = "launch-loader";
+
+  private static final String PREPARED = "prepared";
+
+  private static final String LAUNCHED = "launched";
+
+  private volatile String appDir;
+
+  private volatile Future<ClassLoader> prepareLoader;
+
+  private volatile Future<ClassLoader> launchLoader;
+
   /**
    * {@inheritDoc}
    */
@@ -33,40 +75,149 @@ public class BasicBootstrap extends AbstractOperation implements Bootstrap {
   public void run() {
     final Pool handle = Resources.getPoolHandle();
     try {
-      establishInitialContext();
-      performSecuritySettings();
-      handleSystemProperties();
-      sanitizeContext();
-      initializeLogging();
-      exportProperties();
-      verboseLoading();
-      preloading();
-
-      final Future<ClassLoader> prepareLoader = preparePluginLoader(handle);
-      final Future<ClassLoader> launchLoader = launchPluginLoader(handle);
-
-      prepare(prepareLoader);
-      launch(launchLoader);
-      scheduleGC();
+      bootstrapGraph(handle).run();
     } finally {
+      writeTraceReport();
+      HashCache.uninstall();
+      PreloadProfile.uninstall();
       clearContext();
       Resources.dispose(handle);
+      ModulizerLog.flush();
     }
   }
 
+  /**
+   * The bootstrap steps, each declaring which inputs it needs and which outputs it provides. Writers of the shared
+   * context are chained, so the context evolves in the same order on every launch.
+   */
+  private TaskGraph bootstrapGraph(final Pool handle) {
+    final TaskGraph g = TaskGraph.create(StartupTrace.CATEGORY_BOOTSTRAP);
+    g.add("establishInitialContext", keys(), keys(CONTEXT), new Runnable() {
+      @Override
+      public void run() {
+        establishInitialContext();
+      }
+    });
+    g.add("performSecuritySettings", keys(CONTEXT), keys(SECURITY), new Runnable() {
+      @Override
+      public void run() {
+        performSecuritySettings();
+      }
+    });
+    g.add("handleSystemProperties", keys(SECURITY), keys(SYSTEM_PROPERTIES), new Runnable() {
+      @Override
+      public void run() {
+        handleSystemProperties();
+      }
+    });
+    g.add("sanitizeContext", keys(SYSTEM_PROPERTIES), keys(APP_DIR), new Runnable() {
+      @Override
+      public void run() {
+        sanitizeContext();
+      }
+    });
+    g.add("initializeLogging", keys(APP_DIR), keys(LOGGING), new Runnable() {
+      @Override
+      public void run() {
+        initializeLogging();
+      }
+    });
+    g.add("exportProperties", keys(LOGGING), keys(EXPORTED), new Runnable() {
+      @Override
+      public void run() {
+        exportProperties();
+      }
+    });
+    g.add("verboseLoading", keys(SYSTEM_PROPERTIES), keys(), new Runnable() {
+      @Override
+      public void run() {
+        verboseLoading();
+      }
+    });
+    g.add("preloading", keys(SYSTEM_PROPERTIES), keys(), new Runnable() {
+      @Override
+      public void run() {
+        preloading();
+      }
+    });
+    g.add("classDataSharing", keys(LOGGING), keys(), new Runnable() {
+      @Override
+      public void run() {
+        classDataSharing();
+      }
+    });
+    g.add("preloadProfile", keys(LOGGING), keys(PRELOAD_PROFILE), new Runnable() {
+      @Override
+      public void run() {
+        preloadProfile();
+      }
+    });
+    g.add("installHashCache", keys(APP_DIR), keys(HASH_CACHE), new Runnable() {
+      @Override
+      public void run() {
+        installHashCache();
+      }
+    });
+    g.add("preparePluginLoader", keys(HASH_CACHE), keys(PREPARE_LOADER), new Runnable() {
+      @Override
+      public void run() {
+        BasicBootstrap.this.prepareLoader = preparePluginLoader(handle);
+      }
+    });
+    g.add("launchPluginLoader", keys(HASH_CACHE), keys(LAUNCH_LOADER), new Runnable() {
+      @Override
+      public void run() {
+        BasicBootstrap.this.launchLoader = launchPluginLoader(handle);
+      }
+    });
+    // prepare may move the app dir, so both loaders must have picked up the original one
+    g.add("prepare", keys(EXPORTED, PREPARE_LOADER, LAUNCH_LOADER), keys(PREPARED), new Runnable() {
+      @Override
+      public void run() {
+        prepare(BasicBootstrap.this.prepareLoader);
+      }
+    });
+    // the app is launched from the thread running the bootstrap, not from a pool thread
+    g.addOnCaller("launch", keys(PREPARED, LAUNCH_LOADER, PRELOAD_PROFILE), keys(LAUNCHED), new Runnable() {
+      @Override
+      public void run() {
+        launch(BasicBootstrap.this.launchLoader);
+      }
+    });
+    g.addOnCaller("scheduleGC", keys(LAUNCHED), keys(), new Runnable() {
+      @Override
+      public void run() {
+        scheduleGC();
+      }
+    });
+    return g;
+  }
+
+  /**
+   * Prefers the compact config, which is read without loading any XML classes, and falls back to the XML config of
+   * launchers built before it existed.
+   */
   private void establishInitialContext() {
-    final InputStream config = BasicBootstrap.class.getResourceAsStream(BootstrapContext.CONFIG_NAME);
-    if (config == null) {
+    final InputStream compact = appResourceAsStream(BasicBootstrap.class, BootstrapContext.CONFIG_NAME_COMPACT);
+    final InputStream xml = compact == null ? appResourceAsStream(BasicBootstrap.class, BootstrapContext.CONFIG_NAME)
+        : null;
+    if (compact == null && xml == null) {
       warn("config not found: %s", BootstrapContext.CONFIG_NAME);
     }
     try {
-      final PropertiesContext ctx = PropertiesContext.empty().loadFromXML(config);
+      final BootstrapContext ctx;
+      if (BootstrapContext.CONTEXT_PROPERTIES.equals(System.getProperty(BootstrapContext.CONFIG_KEY_CONTEXT))) {
+        ctx = PropertiesContext.empty().load(compact).loadFromXML(xml);
+      } else {
+        ctx = LayeredContext.empty().load(compact).loadFromXML(xml);
+      }
       ctx.put(BootstrapContext.CONFIG_KEY_UUID, UUID.randomUUID().toString());
       BootstrapContext.CURRENT.set(ctx);
     } catch (final IOException e) {
       throw new RuntimeException(e);
     } finally {
-      closeQuietly(config);
+      closeQuietly(compact);
+      closeQuietly(xml);
     }
   }
 
@@ -84,7 +235,9 @@ public class BasicBootstrap extends AbstractOperation implements Bootstrap {
   private void handleSystemProperties() {
     setSystemPropertiesFromArgs();
     final BootstrapContext ctx = BootstrapContext.CURRENT.get();
-    if (ctx instanceof PropertiesContext) {
+    if (ctx instanceof LayeredContext) {
+      ((LayeredContext) ctx).addSystemProperties();
+    } else if (ctx instanceof PropertiesContext) {
       ((PropertiesContext) ctx).addSystemProperties();
     }
   }
@@ -93,7 +246,8 @@ public class BasicBootstrap extends AbstractOperation implements Bootstrap {
     final BootstrapContext ctx = BootstrapContext.CURRENT.get();
     ctx.put(BootstrapContext.CONFIG_KEY_APP_ID, sanitizeAppId(ctx));
     try {
-      ctx.put(BootstrapContext.CONFIG_KEY_APP_DIR, sanitizeAppDir(ctx));
+      this.appDir = sanitizeAppDir(ctx);
+      ctx.put(BootstrapContext.CONFIG_KEY_APP_DIR, this.appDir);
     } catch (final IOException e) {
       warn("failed to sanitize %s: %s", BootstrapContext.CONFIG_KEY_APP_DIR, e);
     }
@@ -108,6 +262,35 @@ public class BasicBootstrap extends AbstractOperation implements Bootstrap {
     initLogging(loggingConfig);
   }
 
+  private void installHashCache() {
+    final String config = lookupContext(BootstrapContext.CONFIG_KEY_HASH_CACHE);
+    final String target = config == null ? BootstrapContext.DEFAULT_HASH_CACHE : config.trim();
+    if ("none".equals(target) || this.appDir == null) {
+      return;
+    }
+    final File index = "app.dir".equals(target) ? new File(this.appDir, "hash-cache.dat") : new File(target);
+    final HashCache cache = HashCache.open(index);
+    cache.setVerifyContent(parseBoolean(lookupContext(BootstrapContext.CONFIG_KEY_HASH_CACHE_VERIFY_CONTENT)));
+    HashCache.install(cache);
+    log("hash cache: %s", cache);
+  }
+
+  private void preloadProfile() {
+    final String config = lookupContext(BootstrapContext.CONFIG_KEY_PRELOAD_PROFILE);
+    final String target = config == null ? BootstrapContext.DEFAULT_PRELOAD_PROFILE : config.trim();
+    if ("none".equals(target) || this.appDir == null) {
+      return;
+    }
+    final File file = "app.dir".equals(target) ? new File(this.appDir, "preload-profile.txt") : new File(target);
+    final PreloadProfile profile = PreloadProfile.open(file);
+    PreloadProfile.install(profile);
+    profile.preloadBuiltin();
+    final String val = lookupContext(BootstrapContext.CONFIG_KEY_PRELOAD_PROFILE_MILLIS);
+    final long millis = val == null ? BootstrapContext.DEFAULT_PRELOAD_PROFILE_MS : Long.parseLong(val.trim());
+    final boolean recording = millis > 0L && profile.record(millis);
+    log("preload profile: %s, recording=%s", profile, recording);
+  }
+
   private void exportProperties() {
     final BootstrapContext ctx = BootstrapContext.CURRENT.get();
     export(ctx, BootstrapContext.CONFIG_KEY_UUID);
@@ -141,6 +324,22 @@ public class BasicBootstrap extends AbstractOperation implements Bootstrap {
     }
   }
 
+  private void classDataSharing() {
+    log("class data sharing: %s", ClassDataSharing.describe());
+    final String val = lookupContext(BootstrapContext.CONFIG_KEY_CDS_TRAINING_MILLIS);
+    final long trainingMillis = val == null ? -1L : Long.parseLong(val.trim());
+    if (trainingMillis >= 0L) {
+      log("class data sharing training, exit in %dms", trainingMillis);
+      Resources.delay(trainingMillis, new Runnable() {
+        @Override
+        public void run() {
+          // the archive is dumped on exit
+          System.exit(0);
+        }
+      });
+    }
+  }
+
   private void preloading() {
     preload(false, lookupContext(BootstrapContext.CONFIG_KEY_PRELOAD));
     preload(true, lookupContext(BootstrapContext.CONFIG_KEY_PRELOAD_GUI));
@@ -192,23 +391,39 @@ public class BasicBootstrap extends AbstractOperation implements Bootstrap {
   private void scheduleGC() {
     final String val = lookupContext(BootstrapContext.CONFIG_KEY_GC_DELAY);
     final long delay = val == null ? BootstrapContext.DEFAULT_GC_DELAY_MS : Long.parseLong(val);
-    delayedGC(delay);
+    final String threshold = lookupContext(BootstrapContext.CONFIG_KEY_GC_TRIM_THRESHOLD);
+    final long trimThreshold = threshold == null ? BootstrapContext.DEFAULT_GC_TRIM_THRESHOLD : Long
+        .parseLong(threshold.trim());
+    HeapTrimmer.start(delay, trimThreshold);
   }
 
-  private static void delayedGC(final long delay) {
-    if (delay >= 0L) {
-      Resources.delay(delay, new Runnable() {
-        @Override
-        public void run() {
-          ManagementFactory.getMemoryMXBean().gc();
-        }
-      });
+  private void writeTraceReport() {
+    final BootstrapContext ctx = BootstrapContext.CURRENT.get();
+    if (ctx == null || this.appDir == null) {
+      return;
+    }
+    final String config = ctx.get(BootstrapContext.CONFIG_KEY_TRACE);
+    final String target = config == null ? BootstrapContext.DEFAULT_TRACE : config.trim();
+    if ("none".equals(target)) {
+      return;
+    }
+    final File report = "app.dir".equals(target) ? new File(this.appDir, "startup-trace.json") : new File(target);
+    try {
+      final Map<String, String> info = new LinkedHashMap<String, String>();
+      info.put(BootstrapContext.CONFIG_KEY_UUID, ctx.get(BootstrapContext.CONFIG_KEY_UUID));
+      info.put(BootstrapContext.CONFIG_KEY_APP_ID, ctx.get(BootstrapContext.CONFIG_KEY_APP_ID));
+      info.put("jfr", String.valueOf(StartupTrace.isJfrEnabled()));
+      info.put("cds", ClassDataSharing.describe());
+      StartupTrace.writeReport(report, info);
+      log("startup trace written to %s", report);
+    } catch (final IOException e) {
+      warn("failed to write startup trace %s: %s", report, e);
     }
   }
 
   private void clearContext() {
     final BootstrapContext ctxt = BootstrapContext.CURRENT.getAndSet(null);
-    log("final context: %s", ctxt);
+    log("final context: %s", ctxt == null ? null : ctxt.snapshot());
   }
 
   private static void setSystemPropertiesFromArgs() {
@@ -224,10 +439,17 @@ public class BasicBootstrap extends AbstractOperation implements Bootstrap {
     }
   }
 
+  /**
+   * Decodes url encoded properties, in the XML format if they start with a tag, in the plain format otherwise.
+   */
   private static Properties decodeProperties(final String encoded) {
     final Properties p = new Properties();
     try {
-      final String dec = URLDecoder.decode(encoded.trim(), "UTF-8");
+      final String dec = URLDecoder.decode(encoded.trim(), "UTF-8").trim();
+      if (!dec.startsWith("<")) {
+        p.load(new StringReader(dec));
+        return p;
+      }
       final InputStream is = new ByteArrayInputStream(dec.getBytes("UTF-8"));
       try {
         p.loadFromXML(is);
@@ -0,0 +1,148 @@
+package ch.cmbntr.modulizer.bootstrap.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Single pass interpolation of ${key}/%{key} references. Every value is compiled once into literal and reference
+ * segments, the template is cached per key until the value changes. Within one lookup each reference is expanded once
+ * and reused, a reference to a key that is still being expanded (a cycle) or nested deeper than {@link #MAX_DEPTH}
+ * stays as is.
+ */
+final class Interpolator {
+
+  static final int MAX_DEPTH = 32;
+
+  private static final String IN_PROGRESS = new String("<in progress>");
+
+  private final Map<String, String> source;
+
+  private final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+
+  Interpolator(final Map<String, String> source) {
+    this.source = source;
+  }
+
+  /**
+   * @return the interpolated value, {@code null} if absent
+   */
+  String interpolate(final String key) {
+    final Template t = template(key);
+    if (t == null) {
+      return null;
+    }
+    if (t.refs.length == 0) {
+      return t.value;
+    }
+    final StringBuilder out = new StringBuilder(t.value.length() + 64);
+    final Map<String, String> expanded = new HashMap<String, String>();
+    expanded.put(key, IN_PROGRESS);
+    append(t, expanded, 1, out);
+    return out.toString();
+  }
+
+  private Template template(final String key) {
+    final String value = this.source.get(key);
+    if (value == null) {
+      return null;
+    }
+    final Template cached = this.templates.get(key);
+    if (cached != null && cached.value.equals(value)) {
+      return cached;
+    }
+    final Template compiled = Template.compile(value);
+    this.templates.put(key, compiled);
+    return compiled;
+  }
+
+  private void append(final Template t, final Map<String, String> expanded, final int depth, final StringBuilder out) {
+    final int refCount = t.refs.length;
+    for (int i = 0; i < refCount; i++) {
+      out.append(t.literals[i]);
+      final String ref = t.refs[i];
+      final String done = expanded.get(ref);
+      if (done == IN_PROGRESS) {
+        out.append(t.markers[i]);
+      } else if (done != null) {
+        out.append(done);
+      } else {
+        final Template nested = depth < MAX_DEPTH ? template(ref) : null;
+        if (nested == null) {
+          out.append(t.markers[i]);
+        } else if (nested.refs.length == 0) {
+          expanded.put(ref, nested.value);
+          out.append(nested.value);
+        } else {
+          expanded.put(ref, IN_PROGRESS);
+          final int start = out.length();
+          append(nested, expanded, depth + 1, out);
+          expanded.put(ref, out.substring(start));
+        }
+      }
+    }
+    out.append(t.literals[refCount]);
+  }
+
+  /**
+   * A value split at its references: {@code literals[0] refs[0] literals[1] ... refs[n-1] literals[n]}.
+   */
+  static final class Template {
+
+    private static final String[] NONE = {};
+
+    final String value;
+    final String[] literals;
+    final String[] refs;
+    final String[] markers;
+
+    private Template(final String value, final String[] literals, final String[] refs, final String[] markers) {
+      this.value = value;
+      this.literals = literals;
+      this.refs = refs;
+      this.markers = markers;
+    }
+
+    /**
+     * Splits like {@link ch.cmbntr.modulizer.bootstrap.BootstrapContext#INTERPOLATION}, i.e. a {@code $} or
+     * {@code %} followed by {@code {}, up to the next {@code }}.
+     */
+    static Template compile(final String value) {
+      final int len = value.length();
+      int count = 0;
+      final String[] found = new String[len / 3 * 2 + 2];
+      int literalStart = 0;
+      int i = 0;
+      while (i + 2 < len) {
+        final char c = value.charAt(i);
+        if ((c == '$' || c == '%') && value.charAt(i + 1) == '{') {
+          final int end = value.indexOf('}', i + 2);
+          if (end < 0) {
+            break;
+          }
+          found[2 * count] = value.substring(literalStart, i);
+          found[2 * count + 1] = value.substring(i, end + 1);
+          count++;
+          literalStart = end + 1;
+          i = literalStart;
+        } else {
+          i++;
+        }
+      }
+      if (count == 0) {
+        return new Template(value, new String[] { value }, NONE, NONE);
+      }
+      final String[] literals = new String[count + 1];
+      final String[] refs = new String[count];
+      final String[] markers = new String[count];
+      for (int r = 0; r < count; r++) {
+        literals[r] = found[2 * r];
+        markers[r] = found[2 * r + 1];
+        refs[r] = markers[r].substring(2, markers[r].length() - 1);
+      }
+      literals[count] = value.substring(literalStart);
+      return new Template(value, literals, refs, markers);
+    }
+  }
+
+}
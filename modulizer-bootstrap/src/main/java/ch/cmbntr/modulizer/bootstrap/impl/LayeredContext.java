@@ -0,0 +1,196 @@
+package ch.cmbntr.modulizer.bootstrap.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
+import ch.cmbntr.modulizer.bootstrap.util.SystemPropertyHelper;
+
+/**
+ * Context with lock-free reads, resolving each key through three layers without copying them: the values put
+ * explicitly, the live system properties (once {@link #addSystemProperties()} was called, except the values exported
+ * by an earlier bootstrap, see {@link SystemPropertyHelper#isExported(String, String)}) and the loaded config. The
+ * small top layer is copied on write, a sorted index over the config and put keys together with a scan of the live
+ * system property keys serves {@link #keysWithPrefix(String)} and {@link #snapshot()} merges the layers on demand.
+ * <p>
+ * Unlike {@link PropertiesContext}, where {@code addSystemProperties()} copies the system properties over the values put
+ * before, an explicitly put value always wins over the system property of the same key, whenever it was put.
+ */
+public class LayeredContext extends AbstractMap<String, String> implements BootstrapContext {
+
+  /**
+   * Masks the lower layers of a removed key, compared by identity.
+   */
+  private static final String REMOVED = new String("<removed>");
+
+  private final ConcurrentSkipListSet<String> index = new ConcurrentSkipListSet<String>();
+
+  private final Interpolator interpolator = new Interpolator(this);
+
+  private volatile Map<String, String> config = Collections.emptyMap();
+
+  private volatile Map<String, String> overrides = Collections.emptyMap();
+
+  private volatile boolean systemLayer;
+
+  private LayeredContext() {
+    super();
+  }
+
+  public static LayeredContext empty() {
+    return new LayeredContext();
+  }
+
+  public LayeredContext addSystemProperties() {
+    this.systemLayer = true;
+    return this;
+  }
+
+  public LayeredContext load(final InputStream properties) throws IOException {
+    if (properties != null) {
+      final Properties p = new Properties();
+      p.load(properties);
+      addConfig(p);
+    }
+    return this;
+  }
+
+  public LayeredContext loadFromXML(final InputStream xml) throws IOException {
+    if (xml != null) {
+      final Properties p = new Properties();
+      p.loadFromXML(xml);
+      addConfig(p);
+    }
+    return this;
+  }
+
+  private synchronized void addConfig(final Properties p) {
+    final Map<String, String> merged = new HashMap<String, String>(this.config);
+    for (final String k : p.stringPropertyNames()) {
+      merged.put(k, p.getProperty(k));
+    }
+    this.index.addAll(merged.keySet());
+    this.config = merged;
+  }
+
+  @Override
+  public String get(final Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    final String k = (String) key;
+    final String explicit = this.overrides.get(k);
+    if (explicit != null) {
+      return explicit == REMOVED ? null : explicit;
+    }
+    if (this.systemLayer) {
+      final String sys = System.getProperty(k);
+      if (sys != null && !SystemPropertyHelper.isExported(k, sys)) {
+        return sys;
+      }
+    }
+    return this.config.get(k);
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public synchronized String put(final String key, final String value) {
+    if (key == null || value == null) {
+      throw new NullPointerException();
+    }
+    final String previous = get(key);
+    final Map<String, String> updated = new HashMap<String, String>(this.overrides);
+    updated.put(key, value);
+    this.index.add(key);
+    this.overrides = updated;
+    return previous;
+  }
+
+  @Override
+  public synchronized String remove(final Object key) {
+    final String previous = get(key);
+    if (previous != null) {
+      final Map<String, String> updated = new HashMap<String, String>(this.overrides);
+      updated.put((String) key, REMOVED);
+      this.overrides = updated;
+    }
+    return previous;
+  }
+
+  @Override
+  public String getInterpolated(final String key) {
+    return this.interpolator.interpolate(key);
+  }
+
+  /**
+   * {@inheritDoc} The system properties are not indexed, as they can change in place, their keys are scanned on every
+   * call.
+   */
+  @Override
+  public SortedSet<String> keysWithPrefix(final String prefix) {
+    final SortedSet<String> keys = new TreeSet<String>();
+    for (final String k : this.index.tailSet(prefix)) {
+      if (!k.startsWith(prefix)) {
+        break;
+      }
+      if (get(k) != null) {
+        keys.add(k);
+      }
+    }
+    if (this.systemLayer) {
+      for (final String k : System.getProperties().stringPropertyNames()) {
+        if (k.startsWith(prefix) && get(k) != null) {
+          keys.add(k);
+        }
+      }
+    }
+    return keys;
+  }
+
+  @Override
+  public SortedMap<String, String> snapshot() {
+    final Map<String, String> explicit = this.overrides;
+    final SortedMap<String, String> merged = new TreeMap<String, String>(this.config);
+    if (this.systemLayer) {
+      final Properties sys = System.getProperties();
+      for (final String k : sys.stringPropertyNames()) {
+        final String v = sys.getProperty(k);
+        if (v != null && !SystemPropertyHelper.isExported(k, v)) {
+          merged.put(k, v);
+        }
+      }
+    }
+    for (final Entry<String, String> e : explicit.entrySet()) {
+      if (e.getValue() == REMOVED) {
+        merged.remove(e.getKey());
+      } else {
+        merged.put(e.getKey(), e.getValue());
+      }
+    }
+    return Collections.unmodifiableSortedMap(merged);
+  }
+
+  /**
+   * {@inheritDoc} The entries are those of a {@link #snapshot()}.
+   */
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    return snapshot().entrySet();
+  }
+
+}
@@ -3,18 +3,24 @@ package ch.cmbntr.modulizer.bootstrap.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.AbstractMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.InvalidPropertiesFormatException;
 import java.util.Properties;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
+import ch.cmbntr.modulizer.bootstrap.util.SystemPropertyHelper;
 
 public class PropertiesContext extends AbstractMap<String, String> implements BootstrapContext {
 
   private final Properties props = new Properties();
 
+  private final Interpolator interpolator = new Interpolator(this);
+
   private PropertiesContext() {
     super();
   }
@@ -24,7 +30,14 @@ public class PropertiesContext extends AbstractMap<String, String> implements Bo
   }
 
   public synchronized PropertiesContext addSystemProperties() {
-    this.props.putAll(System.getProperties());
+    final Properties sys = System.getProperties();
+    for (final String k : sys.stringPropertyNames()) {
+      final String v = sys.getProperty(k);
+      // values exported by the bootstrap of an app hosted before must not replace the config of this one
+      if (v != null && !SystemPropertyHelper.isExported(k, v)) {
+        this.props.put(k, v);
+      }
+    }
     return this;
   }
 
@@ -36,6 +49,13 @@ public class PropertiesContext extends AbstractMap<String, String> implements Bo
     return this;
   }
 
+  public synchronized PropertiesContext load(final InputStream properties) throws IOException {
+    if (properties != null) {
+      this.props.load(properties);
+    }
+    return this;
+  }
+
   @Override
   public synchronized String put(final String key, final String value) {
     return (String) this.props.put(key, value);
@@ -49,27 +69,23 @@ public class PropertiesContext extends AbstractMap<String, String> implements Bo
 
   @Override
   public String getInterpolated(final String key) {
-    final String v = get(key);
-    return v == null ? null : interpolate(v, new HashSet<String>());
+    return this.interpolator.interpolate(key);
   }
 
-  private String interpolate(final String expr, final Set<String> done) {
-    final String resolved = interpolateFirstReferenceOrNull(expr, done);
-    return resolved == null ? expr : interpolate(resolved, done);
-  }
-
-  private String interpolateFirstReferenceOrNull(final String expr, final Set<String> done) {
-    final Matcher markers = INTERPOLATION.matcher(expr);
-    while (markers.find()) {
-      final String ref = markers.group(1);
-      if (done.add(ref)) {
-        final String replacement = get(ref);
-        if (replacement != null) {
-          return expr.replace(markers.group(0), replacement);
-        }
+  @Override
+  public synchronized SortedSet<String> keysWithPrefix(final String prefix) {
+    final SortedSet<String> keys = new TreeSet<String>();
+    for (final String k : this.props.stringPropertyNames()) {
+      if (k.startsWith(prefix)) {
+        keys.add(k);
       }
     }
-    return null;
+    return keys;
+  }
+
+  @Override
+  public synchronized SortedMap<String, String> snapshot() {
+    return Collections.unmodifiableSortedMap(new TreeMap<String, String>(this));
   }
 
   @Override
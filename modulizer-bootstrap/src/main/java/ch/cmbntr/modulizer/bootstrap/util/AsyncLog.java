@@ -0,0 +1,213 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Asynchronous handlers of {@link ModulizerLog}. A caller formats the message, as its arguments may change once the
+ * caller moves on, and copies the record (level, message, timestamp, thread) into a preallocated ring per handler, a
+ * single daemon thread writes them. When a ring is full, the record is either dropped or the caller blocks until there
+ * is space, as configured per handler. Should the writer die nevertheless, callers write synchronously instead. Pending
+ * records are flushed by {@link #flush(long)} and on JVM exit.
+ */
+final class AsyncLog implements Runnable {
+
+  static final int CAPACITY = 1024;
+
+  private static final int MASK = CAPACITY - 1;
+
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50L);
+
+  private static final long FULL_NANOS = TimeUnit.MICROSECONDS.toNanos(100L);
+
+  private static final long EXIT_FLUSH_MILLIS = 2000L;
+
+  private final List<Ring> rings = new CopyOnWriteArrayList<Ring>();
+
+  private final Thread writer;
+
+  AsyncLog() {
+    this.writer = new Thread(this, "modulizer log writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        flush(EXIT_FLUSH_MILLIS);
+      }
+    }, "modulizer log flush"));
+  }
+
+  void add(final Handler handler, final boolean dropWhenFull) {
+    this.rings.add(new Ring(handler, dropWhenFull));
+  }
+
+  void publish(final Level level, final String msg) {
+    final long millis = System.currentTimeMillis();
+    final long thread = Thread.currentThread().getId();
+    for (final Ring r : this.rings) {
+      if (!r.offer(level, msg, millis, thread, this.writer)) {
+        r.write(level, msg, millis, thread);
+      }
+    }
+    LockSupport.unpark(this.writer);
+  }
+
+  /**
+   * Waits until the pending records are written, at most the given time, and flushes the handlers.
+   */
+  void flush(final long timeoutMillis) {
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (hasPending() && System.nanoTime() < deadline && this.writer.isAlive()) {
+      LockSupport.unpark(this.writer);
+      LockSupport.parkNanos(FULL_NANOS);
+    }
+    for (final Ring r : this.rings) {
+      r.handler.flush();
+    }
+  }
+
+  private boolean hasPending() {
+    for (final Ring r : this.rings) {
+      if (r.pending() > 0L) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void run() {
+    for (;;) {
+      boolean written = false;
+      for (final Ring r : this.rings) {
+        try {
+          written |= r.drain();
+        } catch (final Throwable t) {
+          // a dead writer would block the callers of a full ring forever
+          report(t);
+        }
+      }
+      if (!written) {
+        LockSupport.parkNanos(this, IDLE_NANOS);
+      }
+    }
+  }
+
+  static void report(final Throwable t) {
+    try {
+      System.err.println("modulizer log writer: " + t);
+    } catch (final Throwable ignored) {
+      assert ignored != null;
+    }
+  }
+
+  static String formatMessage(final String template, final Object[] args) {
+    try {
+      return String.format(template, args);
+    } catch (final RuntimeException e) {
+      return template + ' ' + Arrays.toString(args);
+    }
+  }
+
+  /**
+   * Multi producer, single consumer ring. A slot is published by storing its sequence number after the fields.
+   */
+  private static final class Ring {
+
+    private final Handler handler;
+    private final boolean dropWhenFull;
+
+    private final Level[] levels = new Level[CAPACITY];
+    private final String[] messages = new String[CAPACITY];
+    private final long[] millis = new long[CAPACITY];
+    private final long[] threads = new long[CAPACITY];
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long consumed;
+
+    Ring(final Handler handler, final boolean dropWhenFull) {
+      this.handler = handler;
+      this.dropWhenFull = dropWhenFull;
+      for (int i = 0; i < CAPACITY; i++) {
+        this.published.set(i, -1L);
+      }
+    }
+
+    long pending() {
+      return this.claimed.get() - this.consumed;
+    }
+
+    /**
+     * @return {@code false} if the record was neither queued nor dropped because the writer is gone
+     */
+    boolean offer(final Level level, final String msg, final long ms, final long thread, final Thread writer) {
+      long seq;
+      for (;;) {
+        seq = this.claimed.get();
+        if (seq - this.consumed >= CAPACITY) {
+          if (this.dropWhenFull) {
+            this.dropped.incrementAndGet();
+            return true;
+          }
+          if (!writer.isAlive()) {
+            return false;
+          }
+          LockSupport.parkNanos(FULL_NANOS);
+        } else if (this.claimed.compareAndSet(seq, seq + 1L)) {
+          break;
+        }
+      }
+      final int i = (int) seq & MASK;
+      this.levels[i] = level;
+      this.messages[i] = msg;
+      this.millis[i] = ms;
+      this.threads[i] = thread;
+      this.published.set(i, seq);
+      return true;
+    }
+
+    boolean drain() {
+      long seq = this.consumed;
+      boolean written = false;
+      for (int i = (int) seq & MASK; this.published.get(i) == seq; i = (int) seq & MASK) {
+        final long lost = this.dropped.getAndSet(0L);
+        if (lost > 0L) {
+          write(Level.WARNING, String.format("dropped %d log records", lost), System.currentTimeMillis(),
+              Thread.currentThread().getId());
+        }
+        final Level level = this.levels[i];
+        final String msg = this.messages[i];
+        this.messages[i] = null;
+        try {
+          write(level, msg, this.millis[i], this.threads[i]);
+        } catch (final Throwable t) {
+          report(t);
+        } finally {
+          // the slot is released only after the write, so flush sees it as pending until then
+          this.consumed = ++seq;
+        }
+        written = true;
+      }
+      return written;
+    }
+
+    void write(final Level level, final String msg, final long ms, final long thread) {
+      final LogRecord r = new LogRecord(level, msg);
+      r.setMillis(ms);
+      r.setThreadID((int) thread);
+      this.handler.publish(r);
+    }
+  }
+
+}
@@ -0,0 +1,228 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Size-classed pool of direct buffers behind {@link Resources}. Every thread caches a few buffers per size class in its
+ * own magazine, which is refilled from and spills into a lock-free shared depot. The bytes held idle by the pool are
+ * bounded by {@link #MAX_IDLE_BYTES}, surplus buffers are freed eagerly instead of waiting for the collector.
+ */
+final class BufferPool {
+
+  static final int[] SIZE_CLASSES = { 8 * 1024, 32 * 1024, 128 * 1024, 512 * 1024, 1024 * 1024 };
+
+  static final int DEFAULT_SIZE = 32 * 1024;
+
+  static final long MAX_IDLE_BYTES = 16L * 1024L * 1024L;
+
+  private static final int MAGAZINE_SIZE = 2;
+
+  private final AtomicLong idleBytes = new AtomicLong();
+
+  private final StripedCounter hits = new StripedCounter();
+
+  private final StripedCounter misses = new StripedCounter();
+
+  private final Queue<ByteBuffer>[] depots;
+
+  private final Queue<Magazine> magazines = new ConcurrentLinkedQueue<Magazine>();
+
+  private final ThreadLocal<Magazine> local = new ThreadLocal<Magazine>() {
+    @Override
+    protected Magazine initialValue() {
+      return register(new Magazine(Thread.currentThread()));
+    }
+  };
+
+  private volatile boolean disposed;
+
+  @SuppressWarnings("unchecked")
+  BufferPool() {
+    this.depots = new Queue[SIZE_CLASSES.length];
+    for (int i = 0; i < SIZE_CLASSES.length; i++) {
+      this.depots[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+  }
+
+  /**
+   * @param sizeHint the expected number of bytes to transfer, non-positive if unknown
+   * @return a cleared direct buffer of the smallest size class fitting the hint, capped at the largest class
+   */
+  ByteBuffer aquire(final int sizeHint) {
+    final int cls = classFor(sizeHint);
+    ByteBuffer b = this.local.get().take(cls);
+    if (b == null) {
+      b = this.depots[cls].poll();
+    }
+    if (b == null) {
+      this.misses.increment();
+      return ByteBuffer.allocateDirect(SIZE_CLASSES[cls]);
+    }
+    this.hits.increment();
+    this.idleBytes.addAndGet(-b.capacity());
+    b.clear();
+    return b;
+  }
+
+  void release(final ByteBuffer buf) {
+    if (buf == null) {
+      return;
+    }
+    final int cls = exactClassOf(buf);
+    if (cls < 0 || this.disposed) {
+      return;
+    }
+    final int size = buf.capacity();
+    if (this.idleBytes.addAndGet(size) > MAX_IDLE_BYTES) {
+      this.idleBytes.addAndGet(-size);
+      free(buf);
+      return;
+    }
+    buf.clear();
+    if (!this.local.get().put(cls, buf)) {
+      this.depots[cls].offer(buf);
+    }
+  }
+
+  /**
+   * Frees all idle buffers, including those cached by other threads. Buffers released afterwards are dropped.
+   */
+  void dispose() {
+    this.disposed = true;
+    for (final Magazine m : this.magazines) {
+      drain(m);
+    }
+    this.magazines.clear();
+    for (final Queue<ByteBuffer> depot : this.depots) {
+      ByteBuffer b;
+      while ((b = depot.poll()) != null) {
+        this.idleBytes.addAndGet(-b.capacity());
+        free(b);
+      }
+    }
+  }
+
+  long idleBytes() {
+    return this.idleBytes.get();
+  }
+
+  long hits() {
+    return this.hits.sum();
+  }
+
+  long misses() {
+    return this.misses.sum();
+  }
+
+  static int classFor(final int sizeHint) {
+    if (sizeHint <= 0) {
+      return classFor(DEFAULT_SIZE);
+    }
+    for (int i = 0; i < SIZE_CLASSES.length; i++) {
+      if (sizeHint <= SIZE_CLASSES[i]) {
+        return i;
+      }
+    }
+    return SIZE_CLASSES.length - 1;
+  }
+
+  private static int exactClassOf(final ByteBuffer buf) {
+    if (!buf.isDirect() || buf.isReadOnly()) {
+      return -1;
+    }
+    final int size = buf.capacity();
+    for (int i = 0; i < SIZE_CLASSES.length; i++) {
+      if (size == SIZE_CLASSES[i]) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private Magazine register(final Magazine m) {
+    // hand the buffers cached by terminated threads back to the depot
+    for (final Iterator<Magazine> i = this.magazines.iterator(); i.hasNext();) {
+      final Magazine other = i.next();
+      if (other.isOrphaned()) {
+        i.remove();
+        spill(other);
+      }
+    }
+    this.magazines.add(m);
+    return m;
+  }
+
+  private void spill(final Magazine m) {
+    for (int cls = 0; cls < SIZE_CLASSES.length; cls++) {
+      ByteBuffer b;
+      while ((b = m.take(cls)) != null) {
+        this.depots[cls].offer(b);
+      }
+    }
+  }
+
+  private void drain(final Magazine m) {
+    for (int cls = 0; cls < SIZE_CLASSES.length; cls++) {
+      ByteBuffer b;
+      while ((b = m.take(cls)) != null) {
+        this.idleBytes.addAndGet(-b.capacity());
+        free(b);
+      }
+    }
+  }
+
+  private static void free(final ByteBuffer buf) {
+    Hashing.Unmapper.unmap(buf);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("[idleBytes=%d, threads=%d]", this.idleBytes.get(), this.magazines.size());
+  }
+
+  /**
+   * Per thread cache. Slots are only swapped atomically, so other threads may drain a magazine while it is in use.
+   */
+  private static final class Magazine {
+
+    private final WeakReference<Thread> owner;
+
+    private final AtomicReferenceArray<ByteBuffer> slots = new AtomicReferenceArray<ByteBuffer>(SIZE_CLASSES.length
+        * MAGAZINE_SIZE);
+
+    Magazine(final Thread owner) {
+      this.owner = new WeakReference<Thread>(owner);
+    }
+
+    ByteBuffer take(final int cls) {
+      for (int i = cls * MAGAZINE_SIZE, end = i + MAGAZINE_SIZE; i < end; i++) {
+        final ByteBuffer b = this.slots.get(i);
+        if (b != null && this.slots.compareAndSet(i, b, null)) {
+          return b;
+        }
+      }
+      return null;
+    }
+
+    boolean put(final int cls, final ByteBuffer buf) {
+      for (int i = cls * MAGAZINE_SIZE, end = i + MAGAZINE_SIZE; i < end; i++) {
+        if (this.slots.get(i) == null && this.slots.compareAndSet(i, null, buf)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    boolean isOrphaned() {
+      final Thread t = this.owner.get();
+      return t == null || !t.isAlive();
+    }
+  }
+
+}
@@ -0,0 +1,69 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Class data sharing (AppCDS) status of the running JVM, as far as it is visible from within: the archive requested
+ * on the command line and whether the JVM reports sharing as active. The JVM does not tell whether a dynamic archive
+ * was rejected and only the base archive mapped, so an archive counts as used if it exists and sharing is on.
+ */
+public class ClassDataSharing {
+
+  private static final String SHARED_ARCHIVE = "-XX:SharedArchiveFile=";
+
+  private static final String ARCHIVE_AT_EXIT = "-XX:ArchiveClassesAtExit=";
+
+  private ClassDataSharing() {
+    super();
+  }
+
+  public static boolean isSharing() {
+    return System.getProperty("java.vm.info", "").contains("sharing");
+  }
+
+  /**
+   * @return the archive given by {@code -XX:SharedArchiveFile}, {@code null} if none
+   */
+  public static File requestedArchive() {
+    return option(SHARED_ARCHIVE);
+  }
+
+  /**
+   * @return the archive given by {@code -XX:ArchiveClassesAtExit}, {@code null} if this is no training run
+   */
+  public static File trainingArchive() {
+    return option(ARCHIVE_AT_EXIT);
+  }
+
+  public static boolean isArchiveUsed() {
+    final File archive = requestedArchive();
+    return archive != null && archive.isFile() && isSharing();
+  }
+
+  public static String describe() {
+    final File training = trainingArchive();
+    if (training != null) {
+      return "training, dumping to " + training;
+    }
+    final File archive = requestedArchive();
+    if (archive == null) {
+      return isSharing() ? "default archive" : "off";
+    }
+    return (isArchiveUsed() ? "using " : "not using ") + archive;
+  }
+
+  private static File option(final String prefix) {
+    final List<String> args = ManagementFactory.getRuntimeMXBean().getInputArguments();
+    File result = null;
+    for (final String a : args) {
+      if (a.startsWith(prefix)) {
+        // the last occurrence wins, as for the JVM
+        result = new File(a.substring(prefix.length()));
+      }
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,33 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * Minimal agent giving {@link PreloadProfile} access to the loaded classes. It is started via the
+ * {@code Launcher-Agent-Class} manifest entry of the launcher (Java 9 and later) or {@code -javaagent}, and does not
+ * transform anything.
+ */
+public final class ClassLoadAgent {
+
+  private static volatile Instrumentation instrumentation;
+
+  private ClassLoadAgent() {
+    super();
+  }
+
+  public static void premain(final String args, final Instrumentation inst) {
+    instrumentation = inst;
+  }
+
+  public static void agentmain(final String args, final Instrumentation inst) {
+    instrumentation = inst;
+  }
+
+  /**
+   * @return the instrumentation, {@code null} if the agent was not started
+   */
+  static Instrumentation get() {
+    return instrumentation;
+  }
+
+}
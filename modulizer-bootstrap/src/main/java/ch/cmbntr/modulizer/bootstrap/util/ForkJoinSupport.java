@@ -0,0 +1,53 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Work-stealing backend for {@link Resources}, only loaded once {@link ForkJoinPool} was found (Java 7 and later).
+ */
+final class ForkJoinSupport {
+
+  private static final AtomicInteger THREAD_NUMBER = new AtomicInteger(1);
+
+  private ForkJoinSupport() {
+    super();
+  }
+
+  /**
+   * @return a pool in async (FIFO) mode, which suits independent event-style tasks like hashing files
+   */
+  static ExecutorService create(final int parallelism) {
+    return new ForkJoinPool(parallelism, new WorkerFactory(), null, true);
+  }
+
+  static int queueDepth(final ExecutorService exec) {
+    final ForkJoinPool fjp = (ForkJoinPool) exec;
+    return fjp.getQueuedSubmissionCount() + (int) Math.min(Integer.MAX_VALUE, fjp.getQueuedTaskCount());
+  }
+
+  static int activeThreads(final ExecutorService exec) {
+    return ((ForkJoinPool) exec).getActiveThreadCount();
+  }
+
+  static int poolSize(final ExecutorService exec) {
+    return ((ForkJoinPool) exec).getPoolSize();
+  }
+
+  private static final class WorkerFactory implements ForkJoinWorkerThreadFactory {
+
+    @Override
+    public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+      final ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {
+        // subclassed for the protected constructor
+      };
+      t.setName("modulizer fork-join thread - " + THREAD_NUMBER.getAndIncrement());
+      t.setDaemon(false);
+      return t;
+    }
+  }
+
+}
@@ -0,0 +1,330 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static ch.cmbntr.modulizer.bootstrap.util.ModulizerIO.closeQuietly;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Persistent index of verified SHA-1 digests, keyed on the absolute path and validated against size, modification time
+ * and (where the JRE exposes it) the file key, i.e. device and inode. A digest is only trusted while all of these
+ * still match the file on disk.
+ */
+public class HashCache {
+
+  private static final String HEADER = "# modulizer hash cache v1";
+
+  private static final int MAX_ENTRIES = 16 * 1024;
+
+  private static final AtomicReference<HashCache> CURRENT = new AtomicReference<HashCache>();
+
+  private final File index;
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  private volatile boolean dirty;
+
+  private volatile boolean verifyContent;
+
+  private HashCache(final File index) {
+    this.index = index;
+  }
+
+  public static HashCache open(final File index) {
+    final HashCache cache = new HashCache(index);
+    cache.load();
+    return cache;
+  }
+
+  /**
+   * Makes the cache the one consulted by {@link ModulizerIO} by default, saving and replacing the previously installed
+   * one. Meant for the bootstrap, which owns its JVM; callers sharing a JVM pass their cache to {@link ModulizerIO}
+   * explicitly instead.
+   */
+  public static void install(final HashCache cache) {
+    save(CURRENT.getAndSet(cache));
+  }
+
+  /**
+   * Saves and removes the installed cache.
+   */
+  public static void uninstall() {
+    save(CURRENT.getAndSet(null));
+  }
+
+  public static HashCache current() {
+    return CURRENT.get();
+  }
+
+  private static void save(final HashCache cache) {
+    if (cache != null) {
+      try {
+        cache.save();
+      } catch (final IOException e) {
+        ModulizerLog.warn("failed to save hash cache %s: %s", cache.index, e);
+      }
+    }
+  }
+
+  /**
+   * @return the current file status, {@code null} if the file does not exist
+   */
+  public static Stat stat(final File f) {
+    return Stat.of(f);
+  }
+
+  /**
+   * @return the cached digest if the file is unchanged since it was hashed, {@code null} otherwise
+   */
+  public String lookup(final File f, final Stat current) {
+    if (current == null) {
+      return null;
+    }
+    final Entry e = this.entries.get(key(f));
+    return e != null && e.stat.equals(current) ? e.sha1 : null;
+  }
+
+  /**
+   * Remembers the digest of a file, computed while it had the given status.
+   */
+  public void store(final File f, final Stat hashed, final String sha1) {
+    if (hashed == null || sha1 == null) {
+      return;
+    }
+    final String k = key(f);
+    final Entry prev = this.entries.put(k, new Entry(hashed, sha1));
+    if (prev == null || !prev.sha1.equals(sha1) || !prev.stat.equals(hashed)) {
+      this.dirty = true;
+    }
+  }
+
+  /**
+   * @param verifyContent whether integrity checks ignore the cached digests and hash the whole content
+   */
+  public void setVerifyContent(final boolean verifyContent) {
+    this.verifyContent = verifyContent;
+  }
+
+  public boolean isVerifyContent() {
+    return this.verifyContent;
+  }
+
+  public int size() {
+    return this.entries.size();
+  }
+
+  private static String key(final File f) {
+    return f.getAbsolutePath();
+  }
+
+  private void load() {
+    if (!this.index.isFile()) {
+      return;
+    }
+    BufferedReader in = null;
+    try {
+      in = new BufferedReader(new InputStreamReader(new FileInputStream(this.index), "UTF-8"));
+      if (!HEADER.equals(in.readLine())) {
+        return;
+      }
+      String line;
+      while ((line = in.readLine()) != null) {
+        final String[] cols = line.split("\t", 5);
+        if (cols.length == 5) {
+          final Stat s = new Stat(Long.parseLong(cols[1]), Long.parseLong(cols[2]), cols[3]);
+          this.entries.put(cols[4], new Entry(s, cols[0]));
+        }
+      }
+    } catch (final IOException e) {
+      ModulizerLog.warn("ignore unreadable hash cache %s: %s", this.index, e);
+      this.entries.clear();
+    } catch (final NumberFormatException e) {
+      ModulizerLog.warn("ignore corrupt hash cache %s: %s", this.index, e);
+      this.entries.clear();
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  public synchronized void save() throws IOException {
+    if (!this.dirty) {
+      return;
+    }
+    this.dirty = false;
+    final File tmp = new File(this.index.getPath() + ".tmp");
+    final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+    try {
+      out.write(HEADER);
+      out.write('\n');
+      int remaining = MAX_ENTRIES;
+      for (final Map.Entry<String, Entry> e : this.entries.entrySet()) {
+        final String path = e.getKey();
+        if (remaining-- <= 0 || !new File(path).exists()) {
+          continue;
+        }
+        final Entry v = e.getValue();
+        out.write(v.sha1);
+        out.write('\t');
+        out.write(Long.toString(v.stat.size));
+        out.write('\t');
+        out.write(Long.toString(v.stat.modified));
+        out.write('\t');
+        out.write(v.stat.fileKey);
+        out.write('\t');
+        out.write(path);
+        out.write('\n');
+      }
+    } finally {
+      closeQuietly(out);
+    }
+    if (!tmp.renameTo(this.index) && !(this.index.delete() && tmp.renameTo(this.index))) {
+      throw new IOException("could not replace " + this.index);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s[index=%s, entries=%d]", super.toString(), this.index, this.entries.size());
+  }
+
+  private static final class Entry {
+
+    private final Stat stat;
+    private final String sha1;
+
+    Entry(final Stat stat, final String sha1) {
+      this.stat = stat;
+      this.sha1 = sha1;
+    }
+  }
+
+  /**
+   * The file status a digest is validated against.
+   */
+  public static final class Stat {
+
+    private final long size;
+    private final long modified;
+    private final String fileKey;
+
+    Stat(final long size, final long modified, final String fileKey) {
+      this.size = size;
+      this.modified = modified;
+      this.fileKey = fileKey;
+    }
+
+    static Stat of(final File f) {
+      if (Attributes.AVAILABLE) {
+        return Attributes.read(f);
+      }
+      if (!f.isFile()) {
+        return null;
+      }
+      return new Stat(f.length(), TimeUnit.MILLISECONDS.toNanos(f.lastModified()), "");
+    }
+
+    public long getSize() {
+      return this.size;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof Stat)) {
+        return false;
+      }
+      final Stat o = (Stat) obj;
+      return this.size == o.size && this.modified == o.modified && this.fileKey.equals(o.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (this.size ^ this.modified) * 31 + this.fileKey.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("[size=%d, modified=%d, key=%s]", this.size, this.modified, this.fileKey);
+    }
+  }
+
+  /**
+   * Reads size, nanosecond modification time and file key in one go through NIO.2, if the JRE has it.
+   */
+  private static final class Attributes {
+
+    private static final Method TO_PATH;
+    private static final Method READ_ATTRIBUTES;
+    private static final Method SIZE;
+    private static final Method MODIFIED;
+    private static final Method FILE_KEY;
+    private static final Method TO_UNIT;
+    private static final Class<?> BASIC_ATTRIBUTES;
+    private static final Object NO_LINK_OPTIONS;
+    private static final boolean AVAILABLE;
+
+    static {
+      Method toPath = null;
+      Method readAttributes = null;
+      Method size = null;
+      Method modified = null;
+      Method fileKey = null;
+      Method toUnit = null;
+      Class<?> basic = null;
+      Object noOptions = null;
+      boolean available = false;
+      try {
+        final Class<?> path = Class.forName("java.nio.file.Path");
+        final Class<?> linkOptions = Class.forName("[Ljava.nio.file.LinkOption;");
+        basic = Class.forName("java.nio.file.attribute.BasicFileAttributes");
+        toPath = File.class.getMethod("toPath");
+        readAttributes = Class.forName("java.nio.file.Files").getMethod("readAttributes", path, Class.class,
+            linkOptions);
+        size = basic.getMethod("size");
+        modified = basic.getMethod("lastModifiedTime");
+        fileKey = basic.getMethod("fileKey");
+        toUnit = Class.forName("java.nio.file.attribute.FileTime").getMethod("to", TimeUnit.class);
+        noOptions = Array.newInstance(linkOptions.getComponentType(), 0);
+        available = true;
+      } catch (final Exception e) {
+        available = false;
+      }
+      TO_PATH = toPath;
+      READ_ATTRIBUTES = readAttributes;
+      SIZE = size;
+      MODIFIED = modified;
+      FILE_KEY = fileKey;
+      TO_UNIT = toUnit;
+      BASIC_ATTRIBUTES = basic;
+      NO_LINK_OPTIONS = noOptions;
+      AVAILABLE = available;
+    }
+
+    static Stat read(final File f) {
+      try {
+        final Object attrs = READ_ATTRIBUTES.invoke(null, TO_PATH.invoke(f), BASIC_ATTRIBUTES, NO_LINK_OPTIONS);
+        final long size = ((Long) SIZE.invoke(attrs)).longValue();
+        final long modified = ((Long) TO_UNIT.invoke(MODIFIED.invoke(attrs), TimeUnit.NANOSECONDS)).longValue();
+        final Object key = FILE_KEY.invoke(attrs);
+        return new Stat(size, modified, key == null ? "" : key.toString());
+      } catch (final Exception e) {
+        // missing file or unsupported attributes
+        return null;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,170 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static ch.cmbntr.modulizer.bootstrap.util.ModulizerIO.closeQuietly;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+import ch.cmbntr.modulizer.bootstrap.util.Resources.Pool;
+
+/**
+ * SHA-1 engine behind {@link ModulizerIO}. Local files above {@link #MAP_THRESHOLD} are hashed through read-only memory
+ * mapped windows of at most {@link #MAP_WINDOW} bytes, each unmapped eagerly so the address space stays bounded even
+ * for files larger than 2 GB. Smaller files and all other channels are streamed through a pooled buffer.
+ */
+final class Hashing {
+
+  static final long MAP_THRESHOLD = 1024L * 1024L;
+
+  static final long MAP_WINDOW = 64L * 1024L * 1024L;
+
+  private static final int FF_BITMASK = 0xFF;
+
+  private Hashing() {
+    super();
+  }
+
+  static StringBuilder sha1(final File f) throws IOException {
+    final PoolStats stats = Resources.getPoolHandle().getStats();
+    final long start = System.nanoTime();
+    final FileInputStream in = new FileInputStream(f);
+    try {
+      final FileChannel ch = in.getChannel();
+      final long size = ch.size();
+      return size < MAP_THRESHOLD ? stream(ch, size) : mapped(ch, size);
+    } finally {
+      closeQuietly(in);
+      stats.recordHash(true, System.nanoTime() - start);
+    }
+  }
+
+  static StringBuilder sha1(/* @WillClose */final ReadableByteChannel src) throws IOException {
+    final PoolStats stats = Resources.getPoolHandle().getStats();
+    final long start = System.nanoTime();
+    try {
+      return stream(src, -1L);
+    } finally {
+      closeQuietly(src);
+      stats.recordHash(false, System.nanoTime() - start);
+    }
+  }
+
+  private static StringBuilder mapped(final FileChannel ch, final long size) throws IOException {
+    final Pool pool = Resources.getPoolHandle();
+    final MessageDigest digest = pool.aquireDigest();
+    try {
+      long pos = 0L;
+      while (pos < size) {
+        final long len = Math.min(MAP_WINDOW, size - pos);
+        final MappedByteBuffer window = ch.map(MapMode.READ_ONLY, pos, len);
+        try {
+          digest.update(window);
+        } finally {
+          Unmapper.unmap(window);
+        }
+        pos += len;
+      }
+      pool.getStats().recordHashedBytes(size);
+      return formatAsHex(digest.digest());
+    } finally {
+      pool.releaseDigest(digest);
+    }
+  }
+
+  private static StringBuilder stream(final ReadableByteChannel src, final long sizeHint) throws IOException {
+    final Pool pool = Resources.getPoolHandle();
+    final ByteBuffer buf = pool.aquireBuffer((int) Math.min(sizeHint, Integer.MAX_VALUE));
+    try {
+      final MessageDigest digest = pool.aquireDigest();
+      try {
+        long hashed = 0L;
+        while (src.read(buf) >= 0) {
+          buf.flip();
+          hashed += buf.remaining();
+          digest.update(buf);
+          buf.clear();
+        }
+        pool.getStats().recordHashedBytes(hashed);
+        return formatAsHex(digest.digest());
+      } finally {
+        pool.releaseDigest(digest);
+      }
+    } finally {
+      pool.releaseBuffer(buf);
+    }
+  }
+
+  static StringBuilder formatAsHex(final byte[] digestBytes) {
+    final StringBuilder result = new StringBuilder(44);
+    for (final byte b : digestBytes) {
+      final String next = Integer.toHexString(b & FF_BITMASK);
+      if (next.length() < 2) {
+        result.append('0');
+      }
+      result.append(next);
+    }
+    return result;
+  }
+
+  /**
+   * Releases mappings and direct buffers without waiting for the garbage collector: via {@code Unsafe.invokeCleaner} on
+   * Java 9 and later, via the buffer's {@code cleaner()} before. If neither is accessible the memory is left to the
+   * collector.
+   */
+  static final class Unmapper {
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    private static final boolean LEGACY;
+
+    static {
+      Object unsafe = null;
+      Method invokeCleaner = null;
+      try {
+        final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        unsafe = theUnsafe.get(null);
+      } catch (final Exception e) {
+        invokeCleaner = null;
+        unsafe = null;
+      }
+      UNSAFE = unsafe;
+      INVOKE_CLEANER = invokeCleaner;
+      LEGACY = invokeCleaner == null;
+    }
+
+    private Unmapper() {
+      super();
+    }
+
+    static void unmap(final ByteBuffer buffer) {
+      try {
+        if (LEGACY) {
+          final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+          cleanerMethod.setAccessible(true);
+          final Object cleaner = cleanerMethod.invoke(buffer);
+          if (cleaner != null) {
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+          }
+        } else {
+          INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        }
+      } catch (final Exception e) {
+        // leave it to the garbage collector
+        assert e != null;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,227 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Collects the garbage left behind by the bootstrap once it is worth it. After a settle delay the old generation pools
+ * are watched for a limited time: a collection is only requested when the old generation holds at least the threshold
+ * above its occupancy after the last major collection (the upper bound of what a full collection could reclaim, all of
+ * it while none was seen) and the application looks idle, i.e. no collection ran and the heap barely changed since the
+ * previous check. Usage thresholds and collection notifications wake the watcher early. If the JVM collects the old
+ * generation itself, the estimate drops below the threshold and no collection is requested.
+ */
+public final class HeapTrimmer implements Runnable, NotificationListener {
+
+  static final long IDLE_ALLOCATION_BYTES = 1024L * 1024L;
+
+  private static final long CHECK_MILLIS = 1000L;
+
+  private static final long WATCH_MILLIS = TimeUnit.MINUTES.toMillis(2L);
+
+  private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+  private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+  private final long settleMillis;
+
+  private final long thresholdBytes;
+
+  private final List<MemoryPoolMXBean> oldPools = new ArrayList<MemoryPoolMXBean>();
+
+  private final List<MemoryPoolMXBean> armedPools = new ArrayList<MemoryPoolMXBean>();
+
+  private final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+
+  /**
+   * Old generation bytes after the last major collection, zero while none was seen.
+   */
+  private volatile long baseline;
+
+  private HeapTrimmer(final long settleMillis, final long thresholdBytes) {
+    this.settleMillis = settleMillis;
+    this.thresholdBytes = thresholdBytes;
+  }
+
+  /**
+   * Starts the trimmer, at most once per JVM.
+   *
+   * @param settleMillis the delay before watching starts, negative to disable trimming
+   * @param thresholdBytes the minimal reclaimable old generation bytes worth a collection
+   */
+  public static void start(final long settleMillis, final long thresholdBytes) {
+    if (settleMillis < 0L || !STARTED.compareAndSet(false, true)) {
+      // apps sharing a JVM share its heap as well
+      return;
+    }
+    final Thread t = Resources.newThread("modulizer heap trimmer", new HeapTrimmer(settleMillis, thresholdBytes));
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
+  }
+
+  @Override
+  public void run() {
+    try {
+      Thread.sleep(this.settleMillis);
+      arm();
+      try {
+        watch();
+      } finally {
+        disarm();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void watch() throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + WATCH_MILLIS;
+    Sample prev = null;
+    Sample s = sample();
+    while (System.currentTimeMillis() < deadline) {
+      if (s.reclaimable() >= this.thresholdBytes && s.isIdleSince(prev)) {
+        trim(s);
+        return;
+      }
+      prev = s;
+      synchronized (this) {
+        wait(CHECK_MILLIS);
+      }
+      s = sample();
+    }
+    ModulizerLog.log("heap trim skipped, reclaimable=%dKiB (threshold=%dKiB), idle=%s", s.reclaimable() / 1024L,
+        this.thresholdBytes / 1024L, s.isIdleSince(prev));
+  }
+
+  private static void trim(final Sample before) {
+    final long start = System.nanoTime();
+    ManagementFactory.getMemoryMXBean().gc();
+    final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    final long after = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    ModulizerLog.log("heap trimmed in %dms: reclaimed %dKiB (estimated %dKiB), heap %dKiB -> %dKiB", millis,
+        (before.heapUsed - after) / 1024L, before.reclaimable() / 1024L, before.heapUsed / 1024L, after / 1024L);
+  }
+
+  private void arm() {
+    for (final MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+      // eden and survivor spaces never support usage thresholds
+      if (p.getType() == MemoryType.HEAP && p.isUsageThresholdSupported()) {
+        this.oldPools.add(p);
+        if (p.getUsageThreshold() == 0L) {
+          try {
+            p.setUsageThreshold(p.getUsage().getUsed() + this.thresholdBytes);
+            this.armedPools.add(p);
+          } catch (final RuntimeException e) {
+            ModulizerLog.log("no usage threshold for %s: %s", p.getName(), e);
+          }
+        }
+      }
+    }
+    listenTo(ManagementFactory.getMemoryMXBean());
+    for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      listenTo(gc);
+    }
+  }
+
+  private void listenTo(final Object bean) {
+    if (bean instanceof NotificationEmitter) {
+      final NotificationEmitter emitter = (NotificationEmitter) bean;
+      emitter.addNotificationListener(this, null, null);
+      this.emitters.add(emitter);
+    }
+  }
+
+  private void disarm() {
+    for (final NotificationEmitter e : this.emitters) {
+      try {
+        e.removeNotificationListener(this);
+      } catch (final ListenerNotFoundException ex) {
+        // already gone
+      }
+    }
+    for (final MemoryPoolMXBean p : this.armedPools) {
+      p.setUsageThreshold(0L);
+    }
+  }
+
+  /**
+   * Threshold and collection notifications trigger an early check, major collections also reset the baseline.
+   */
+  @Override
+  public synchronized void handleNotification(final Notification notification, final Object handback) {
+    if (isMajorCollection(notification)) {
+      long live = 0L;
+      for (final MemoryPoolMXBean p : this.oldPools) {
+        live += afterCollection(p);
+      }
+      this.baseline = live;
+    }
+    notifyAll();
+  }
+
+  static boolean isMajorCollection(final Notification n) {
+    if (!GC_NOTIFICATION.equals(n.getType()) || !(n.getUserData() instanceof CompositeData)) {
+      return false;
+    }
+    final CompositeData info = (CompositeData) n.getUserData();
+    final Object action = info.containsKey("gcAction") ? info.get("gcAction") : null;
+    return action != null && action.toString().contains("major");
+  }
+
+  private Sample sample() {
+    long used = 0L;
+    for (final MemoryPoolMXBean p : this.oldPools) {
+      used += p.getUsage().getUsed();
+    }
+    long collections = 0L;
+    for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      collections += Math.max(0L, gc.getCollectionCount());
+    }
+    final long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    return new Sample(used, this.baseline, collections, heapUsed);
+  }
+
+  private static long afterCollection(final MemoryPoolMXBean p) {
+    final MemoryUsage u = p.getCollectionUsage();
+    return u == null ? 0L : u.getUsed();
+  }
+
+  static final class Sample {
+
+    final long oldUsed;
+    final long oldBaseline;
+    final long collections;
+    final long heapUsed;
+
+    Sample(final long oldUsed, final long oldBaseline, final long collections, final long heapUsed) {
+      this.oldUsed = oldUsed;
+      this.oldBaseline = oldBaseline;
+      this.collections = collections;
+      this.heapUsed = heapUsed;
+    }
+
+    long reclaimable() {
+      return Math.max(0L, this.oldUsed - this.oldBaseline);
+    }
+
+    boolean isIdleSince(final Sample prev) {
+      return prev != null && prev.collections == this.collections
+          && Math.abs(this.heapUsed - prev.heapUsed) < IDLE_ALLOCATION_BYTES;
+    }
+  }
+
+}
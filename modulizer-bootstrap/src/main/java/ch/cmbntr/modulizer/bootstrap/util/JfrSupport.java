@@ -0,0 +1,109 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Flight recorder bridge for {@link StartupTrace}. The event type is defined at runtime through
+ * {@code jdk.jfr.EventFactory}, reflectively, so the bootstrap compiles and loads on JREs without the JFR API.
+ */
+final class JfrSupport {
+
+  private static final JfrSupport INSTANCE = lookup();
+
+  private final Object factory;
+  private final Method newEvent;
+  private final Method isEnabled;
+  private final Method set;
+  private final Method begin;
+  private final Method end;
+  private final Method commit;
+
+  private JfrSupport(final Object factory, final Class<?> eventClass) throws NoSuchMethodException {
+    this.factory = factory;
+    this.newEvent = factory.getClass().getMethod("newEvent");
+    this.isEnabled = eventClass.getMethod("isEnabled");
+    this.set = eventClass.getMethod("set", int.class, Object.class);
+    this.begin = eventClass.getMethod("begin");
+    this.end = eventClass.getMethod("end");
+    this.commit = eventClass.getMethod("commit");
+  }
+
+  /**
+   * @return the bridge, {@code null} if the JRE has no usable flight recorder
+   */
+  static JfrSupport get() {
+    return INSTANCE;
+  }
+
+  private static JfrSupport lookup() {
+    try {
+      final Class<?> recorder = Class.forName("jdk.jfr.FlightRecorder");
+      if (!Boolean.TRUE.equals(recorder.getMethod("isAvailable").invoke(null))) {
+        return null;
+      }
+      final Class<?> annotation = Class.forName("jdk.jfr.AnnotationElement");
+      final Constructor<?> element = annotation.getConstructor(Class.class, Object.class);
+      final Class<?> descriptor = Class.forName("jdk.jfr.ValueDescriptor");
+      final Constructor<?> field = descriptor.getConstructor(Class.class, String.class, List.class);
+
+      final List<Object> eventAnnotations = Arrays.asList(
+          element.newInstance(Class.forName("jdk.jfr.Name"), "ch.cmbntr.modulizer.StartupSpan"),
+          element.newInstance(Class.forName("jdk.jfr.Label"), "Startup Span"),
+          element.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "Modulizer" }),
+          element.newInstance(Class.forName("jdk.jfr.StackTrace"), Boolean.FALSE));
+      final Class<?> label = Class.forName("jdk.jfr.Label");
+      final List<Object> fields = Arrays.asList(
+          field.newInstance(String.class, "category", Arrays.asList(element.newInstance(label, "Category"))),
+          field.newInstance(String.class, "span", Arrays.asList(element.newInstance(label, "Span"))));
+
+      final Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+      final Object factory = eventFactory.getMethod("create", List.class, List.class).invoke(null,
+          typedList(annotation, eventAnnotations), typedList(descriptor, fields));
+      return new JfrSupport(factory, Class.forName("jdk.jfr.Event"));
+    } catch (final Exception e) {
+      return null;
+    } catch (final LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   * Copies the elements into an array backed list, checked against the element type like a list of that type.
+   */
+  private static List<Object> typedList(final Class<?> type, final List<Object> elements) {
+    final Object[] array = (Object[]) Array.newInstance(type, elements.size());
+    return Arrays.asList(elements.toArray(array));
+  }
+
+  /**
+   * @return the started event, {@code null} if the event is not enabled
+   */
+  Object begin(final String category, final String name) {
+    try {
+      final Object event = this.newEvent.invoke(this.factory);
+      if (!Boolean.TRUE.equals(this.isEnabled.invoke(event))) {
+        return null;
+      }
+      this.set.invoke(event, 0, category);
+      this.set.invoke(event, 1, name);
+      this.begin.invoke(event);
+      return event;
+    } catch (final Exception e) {
+      return null;
+    }
+  }
+
+  void end(final Object event) {
+    try {
+      this.end.invoke(event);
+      this.commit.invoke(event);
+    } catch (final Exception e) {
+      // tracing must not fail the bootstrap
+    }
+  }
+
+}
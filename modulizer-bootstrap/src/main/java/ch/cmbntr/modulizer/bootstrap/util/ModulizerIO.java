@@ -11,11 +11,11 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.security.MessageDigest;
 import java.util.LinkedHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
@@ -25,19 +25,18 @@ import ch.cmbntr.modulizer.bootstrap.util.Resources.Pool;
 
 public class ModulizerIO {
 
-  private static final int FF_BITMASK = 0xFF;
-
   private ModulizerIO() {
     super();
   }
 
   public static URL copyStream(final URL src, final File dest) throws IOException, FileNotFoundException,
       MalformedURLException {
-    final InputStream in = src.openStream();
+    final URLConnection conn = src.openConnection();
+    final InputStream in = conn.getInputStream();
     try {
       final FileOutputStream out = new FileOutputStream(dest);
       try {
-        copy(in, out);
+        copy(in, out, conn.getContentLength());
       } finally {
         closeQuietly(out);
       }
@@ -59,17 +58,20 @@ public class ModulizerIO {
     return idx >= 0 ? name.substring(idx + 1) : ifNone;
   }
 
-  private static void copy(final InputStream input, final OutputStream output) throws IOException {
+  private static void copy(final InputStream input, final OutputStream output, final int sizeHint) throws IOException {
     final ReadableByteChannel in = inChannel(input);
     final WritableByteChannel out = outChannel(output);
     final Pool pool = Resources.getPoolHandle();
-    final ByteBuffer buffer = pool.aquireBuffer();
+    final ByteBuffer buffer = pool.aquireBuffer(sizeHint);
+    final long start = System.nanoTime();
+    long copied = 0L;
     try {
       while (true) {
         if (in.read(buffer) == -1) {
           break;
         }
         buffer.flip();
+        copied += buffer.remaining();
         while (buffer.hasRemaining()) {
           final int n = out.write(buffer);
           if (n < 1) {
@@ -80,6 +82,7 @@ public class ModulizerIO {
       }
     } finally {
       pool.releaseBuffer(buffer);
+      pool.getStats().recordCopy(copied, System.nanoTime() - start);
     }
   }
 
@@ -127,16 +130,34 @@ public class ModulizerIO {
   }
 
   public static boolean verifySHA1Named(final File f) throws IOException {
-    final StringBuilder sha1 = sha1(f);
+    return verifySHA1Named(f, HashCache.current());
+  }
+
+  /**
+   * Checks that a content addressed file is named after its digest. A digest cached for the unchanged file status is
+   * trusted, unless the cache is set to verify the content, then the whole file is hashed.
+   *
+   * @param cache the digests to consult and update, may be {@code null}
+   */
+  public static boolean verifySHA1Named(final File f, final HashCache cache) throws IOException {
+    final StringBuilder sha1 = sha1(f, cache == null || cache.isVerifyContent() ? null : cache);
     return sha1 != null && baseName(f.getName()).equals(sha1.toString());
   }
 
   public static String sha1Name(final File f) throws IOException {
-    final StringBuilder sha1 = sha1(f);
+    return sha1Name(f, HashCache.current());
+  }
+
+  public static String sha1Name(final File f, final HashCache cache) throws IOException {
+    final StringBuilder sha1 = sha1(f, cache);
     return sha1 == null ? null : sha1.append('.').append(extension(f.getName(), "dat")).toString();
   }
 
   public static LinkedHashMap<File, Future<String>> sha1async(final Iterable<File> files) {
+    return sha1async(files, HashCache.current());
+  }
+
+  public static LinkedHashMap<File, Future<String>> sha1async(final Iterable<File> files, final HashCache cache) {
     final LinkedHashMap<File, Future<String>> result = new LinkedHashMap<File, Future<String>>();
     final Pool pool = Resources.getPoolHandle();
     final ExecutorService exec = pool.aquireExec();
@@ -145,7 +166,7 @@ public class ModulizerIO {
         result.put(f, exec.submit(new Callable<String>() {
           @Override
           public String call() throws Exception {
-            final StringBuilder sha1 = sha1(f);
+            final StringBuilder sha1 = sha1(f, cache);
             return sha1 == null ? null : sha1.toString();
           }
         }));
@@ -157,10 +178,30 @@ public class ModulizerIO {
   }
 
   public static StringBuilder sha1(final File f) throws IOException {
+    return sha1(f, HashCache.current());
+  }
+
+  /**
+   * @param cache the digests to consult and update, may be {@code null}
+   */
+  public static StringBuilder sha1(final File f, final HashCache cache) throws IOException {
     if (f == null || !f.exists()) {
       return null;
     }
-    return sha1(new FileInputStream(f).getChannel());
+    if (cache == null) {
+      return Hashing.sha1(f);
+    }
+    final HashCache.Stat before = HashCache.stat(f);
+    final String cached = cache.lookup(f, before);
+    if (cached != null) {
+      Resources.getPoolHandle().getStats().recordHashCacheHit();
+      return new StringBuilder(cached);
+    }
+    final StringBuilder sha1 = Hashing.sha1(f);
+    if (before != null && before.equals(HashCache.stat(f))) {
+      cache.store(f, before, sha1.toString());
+    }
+    return sha1;
   }
 
   public static LinkedHashMap<URI, Future<String>> sha1URIasync(final Iterable<URI> uris) {
@@ -188,48 +229,14 @@ public class ModulizerIO {
       return null;
     }
     if ("file".equals(uri.getScheme())) {
-      return sha1(new FileInputStream(new File(uri)).getChannel());
+      return sha1(new File(uri));
     } else {
       return sha1(Channels.newChannel(uri.toURL().openStream()));
     }
   }
 
   private static StringBuilder sha1(/* @WillClose */final ReadableByteChannel src) throws IOException {
-    try {
-      final Pool pool = Resources.getPoolHandle();
-      final ByteBuffer buf = pool.aquireBuffer();
-      try {
-        final MessageDigest digest = pool.aquireDigest();
-        try {
-          int cnt = 0;
-          while (cnt >= 0) {
-            cnt = src.read(buf);
-            buf.flip();
-            digest.update(buf);
-            buf.clear();
-          }
-          return formatAsHex(digest.digest());
-        } finally {
-          pool.releaseDigest(digest);
-        }
-      } finally {
-        pool.releaseBuffer(buf);
-      }
-    } finally {
-      closeQuietly(src);
-    }
-  }
-
-  private static StringBuilder formatAsHex(final byte[] digestBytes) {
-    final StringBuilder result = new StringBuilder(44);
-    for (final byte b : digestBytes) {
-      final String next = Integer.toHexString(b & FF_BITMASK);
-      if (next.length() < 2) {
-        result.append('0');
-      }
-      result.append(next);
-    }
-    return result;
+    return Hashing.sha1(src);
   }
 
 }
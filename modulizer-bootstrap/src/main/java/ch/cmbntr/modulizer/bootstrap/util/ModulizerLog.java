@@ -18,10 +18,26 @@ import java.util.logging.StreamHandler;
 
 import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
 
+/**
+ * Bootstrap logging, configured by {@link BootstrapContext#CONFIG_KEY_LOGGING} as {@code |} separated handlers:
+ * {@code console}, {@code file}, {@code file:<pattern>} or {@code socket://<host>:<port>}. A handler prefixed with
+ * {@code async:} is written by a background thread, blocking callers while its buffer is full, one prefixed with
+ * {@code async-drop:} drops records instead, e.g. {@code console|async-drop:socket://logs:4560}.
+ */
 public class ModulizerLog {
 
   private static final Logger LOG = createLogger();
 
+  private static final String ASYNC_BLOCK = "async:";
+
+  private static final String ASYNC_DROP = "async-drop:";
+
+  private static final long FLUSH_MILLIS = 2000L;
+
+  private static volatile AsyncLog async;
+
+  private static volatile boolean syncHandlers;
+
   static {
     initLogging(System.getProperty(BootstrapContext.CONFIG_KEY_LOGGING));
   }
@@ -53,8 +69,31 @@ public class ModulizerLog {
   }
 
   private static void emit(final Level level, final String msg, final Object... args) {
-    if (LOG.isLoggable(level)) {
-      LOG.log(level, String.format(msg, args));
+    if (!LOG.isLoggable(level)) {
+      return;
+    }
+    final AsyncLog a = async;
+    final String formatted = AsyncLog.formatMessage(msg, args);
+    if (a != null) {
+      a.publish(level, formatted);
+    }
+    if (a == null || syncHandlers || isLoggableByParent(level)) {
+      LOG.log(level, formatted);
+    }
+  }
+
+  private static boolean isLoggableByParent(final Level level) {
+    final Logger parent = LOG.getParent();
+    return parent != null && LOG.getUseParentHandlers() && parent.isLoggable(level);
+  }
+
+  /**
+   * Writes the records pending in asynchronous handlers, waiting at most a few seconds.
+   */
+  public static void flush() {
+    final AsyncLog a = async;
+    if (a != null) {
+      a.flush(FLUSH_MILLIS);
     }
   }
 
@@ -78,7 +117,7 @@ public class ModulizerLog {
       final PrintWriter pw = new PrintWriter(sw, true);
       e.printStackTrace(pw);
       msg.append(sw.getBuffer().toString());
-      LOG.severe(msg.toString());
+      emit(Level.SEVERE, "%s", msg.toString());
     }
   }
 
@@ -88,7 +127,10 @@ public class ModulizerLog {
 
     @Override
     public String format(final LogRecord r) {
-      return String.format("MODULIZER: %s,T%s,%s,%s\n", r.getMillis(), r.getThreadID(), r.getLevel(), r.getMessage());
+      final String msg = r.getMessage();
+      final StringBuilder sb = new StringBuilder(msg == null ? 48 : msg.length() + 48);
+      sb.append("MODULIZER: ").append(r.getMillis()).append(",T").append(r.getThreadID()).append(',');
+      return sb.append(r.getLevel()).append(',').append(msg).append('\n').toString();
     }
   }
 
@@ -100,15 +142,30 @@ public class ModulizerLog {
       log.setLevel(Level.ALL);
       for (final String h : config.split("\\|")) {
         if (!ACTIVE.contains(h)) {
-          final StreamHandler handler = configureHandler(log, h);
+          final boolean drop = h.startsWith(ASYNC_DROP);
+          final boolean asynchronous = drop || h.startsWith(ASYNC_BLOCK);
+          final String spec = asynchronous ? h.substring(drop ? ASYNC_DROP.length() : ASYNC_BLOCK.length()) : h;
+          final StreamHandler handler = configureHandler(log, spec);
           if (handler != null) {
-            log.addHandler(handler);
+            if (asynchronous) {
+              asyncLog().add(handler, drop);
+            } else {
+              log.addHandler(handler);
+              syncHandlers = true;
+            }
             ACTIVE.add(h);
           }
         }
       }
     }
 
+    private static AsyncLog asyncLog() {
+      if (async == null) {
+        async = new AsyncLog();
+      }
+      return async;
+    }
+
     private static StreamHandler createHandler(final Logger log, final String config) {
       try {
         if (config.startsWith("console")) {
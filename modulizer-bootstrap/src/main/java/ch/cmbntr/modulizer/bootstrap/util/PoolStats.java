@@ -0,0 +1,284 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
+
+/**
+ * Runtime counters of a {@link Resources.Pool}, exposed as a platform MBean. The bean of the last disposed pool stays
+ * registered, so its final numbers can still be scraped once the launched application is up. It is removed when
+ * another pool is disposed, or when a pool is registered after the retention delay
+ * ({@value BootstrapContext#CONFIG_KEY_JMX_RETAIN_MILLIS} system property) has passed.
+ */
+public class PoolStats implements PoolStatsMBean {
+
+  public static final String DOMAIN = "ch.cmbntr.modulizer";
+
+  private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
+
+  private static final List<PoolStats> REGISTERED = new LinkedList<PoolStats>();
+
+  private final String name = "pool-" + NEXT_ID.getAndIncrement();
+
+  private final StripedCounter digestHits = new StripedCounter();
+  private final StripedCounter digestMisses = new StripedCounter();
+  private final StripedCounter copies = new StripedCounter();
+  private final StripedCounter bytesCopied = new StripedCounter();
+  private final StripedCounter copyNanos = new StripedCounter();
+  private final StripedCounter filesHashed = new StripedCounter();
+  private final StripedCounter bytesHashed = new StripedCounter();
+  private final StripedCounter hashNanos = new StripedCounter();
+  private final StripedCounter hashCacheHits = new StripedCounter();
+
+  private final BufferPool buffers;
+
+  private volatile ExecutorService exec;
+
+  private volatile ExecutorService blockableExec;
+
+  private volatile boolean disposed;
+
+  private volatile long disposedNanos;
+
+  private volatile ObjectName objectName;
+
+  PoolStats(final BufferPool buffers) {
+    this.buffers = buffers;
+  }
+
+  static void register(final PoolStats stats) {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      synchronized (REGISTERED) {
+        final long retainNanos = TimeUnit.MILLISECONDS.toNanos(retainMillis());
+        final long now = System.nanoTime();
+        for (final Iterator<PoolStats> i = REGISTERED.iterator(); i.hasNext();) {
+          final PoolStats old = i.next();
+          if (old.disposed && now - old.disposedNanos >= retainNanos) {
+            i.remove();
+            server.unregisterMBean(old.objectName);
+          }
+        }
+        if (stats.disposed) {
+          return;
+        }
+        stats.objectName = new ObjectName(DOMAIN + ":type=ResourcesPool,name=" + stats.name);
+        server.registerMBean(stats, stats.objectName);
+        REGISTERED.add(stats);
+      }
+    } catch (final Exception e) {
+      ModulizerLog.warn("failed to register pool statistics: %s", e);
+    } catch (final LinkageError e) {
+      ModulizerLog.warn("no management support for pool statistics: %s", e);
+    }
+  }
+
+  /**
+   * Unregisters the beans of the pools disposed before this one, keeping this one's final numbers.
+   */
+  private static void retire(final PoolStats stats) {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      synchronized (REGISTERED) {
+        for (final Iterator<PoolStats> i = REGISTERED.iterator(); i.hasNext();) {
+          final PoolStats old = i.next();
+          if (old != stats && old.disposed) {
+            i.remove();
+            server.unregisterMBean(old.objectName);
+          }
+        }
+      }
+    } catch (final Exception e) {
+      ModulizerLog.warn("failed to unregister pool statistics: %s", e);
+    } catch (final LinkageError e) {
+      ModulizerLog.warn("no management support for pool statistics: %s", e);
+    }
+  }
+
+  private static long retainMillis() {
+    final String val = System.getProperty(BootstrapContext.CONFIG_KEY_JMX_RETAIN_MILLIS);
+    try {
+      return val == null ? BootstrapContext.DEFAULT_JMX_RETAIN_MS : Long.parseLong(val.trim());
+    } catch (final NumberFormatException e) {
+      return BootstrapContext.DEFAULT_JMX_RETAIN_MS;
+    }
+  }
+
+  ObjectName getObjectName() {
+    return this.objectName;
+  }
+
+  void setExecutors(final ExecutorService exec, final ExecutorService blockableExec) {
+    this.exec = exec;
+    this.blockableExec = blockableExec;
+  }
+
+  void dispose() {
+    this.disposedNanos = System.nanoTime();
+    this.disposed = true;
+    if (this.objectName != null) {
+      retire(this);
+    }
+  }
+
+  void recordDigest(final boolean hit) {
+    (hit ? this.digestHits : this.digestMisses).increment();
+  }
+
+  public void recordCopy(final long bytes, final long nanos) {
+    this.copies.increment();
+    this.bytesCopied.add(bytes);
+    this.copyNanos.add(nanos);
+  }
+
+  public void recordHashedBytes(final long bytes) {
+    this.bytesHashed.add(bytes);
+  }
+
+  public void recordHash(final boolean file, final long nanos) {
+    if (file) {
+      this.filesHashed.increment();
+    }
+    this.hashNanos.add(nanos);
+  }
+
+  public void recordHashCacheHit() {
+    this.hashCacheHits.increment();
+  }
+
+  @Override
+  public boolean isDisposed() {
+    return this.disposed;
+  }
+
+  @Override
+  public int getNonBlockableQueueDepth() {
+    return queueDepth(this.exec);
+  }
+
+  @Override
+  public int getNonBlockableActiveThreads() {
+    return activeThreads(this.exec);
+  }
+
+  @Override
+  public int getNonBlockableLargestThreads() {
+    return largestThreads(this.exec);
+  }
+
+  @Override
+  public int getBlockableQueueDepth() {
+    return queueDepth(this.blockableExec);
+  }
+
+  @Override
+  public int getBlockableActiveThreads() {
+    return activeThreads(this.blockableExec);
+  }
+
+  @Override
+  public int getBlockableLargestThreads() {
+    return largestThreads(this.blockableExec);
+  }
+
+  static int queueDepth(final ExecutorService e) {
+    if (e instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) e).getQueue().size();
+    }
+    return e == null ? 0 : ForkJoinSupport.queueDepth(e);
+  }
+
+  static int activeThreads(final ExecutorService e) {
+    if (e instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) e).getActiveCount();
+    }
+    return e == null ? 0 : ForkJoinSupport.activeThreads(e);
+  }
+
+  /**
+   * @return the largest pool size for thread pools, the current one for fork-join pools which do not track it
+   */
+  static int largestThreads(final ExecutorService e) {
+    if (e instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) e).getLargestPoolSize();
+    }
+    return e == null ? 0 : ForkJoinSupport.poolSize(e);
+  }
+
+  @Override
+  public long getBufferHits() {
+    return this.buffers.hits();
+  }
+
+  @Override
+  public long getBufferMisses() {
+    return this.buffers.misses();
+  }
+
+  @Override
+  public long getIdleBufferBytes() {
+    return this.buffers.idleBytes();
+  }
+
+  @Override
+  public long getDigestHits() {
+    return this.digestHits.sum();
+  }
+
+  @Override
+  public long getDigestMisses() {
+    return this.digestMisses.sum();
+  }
+
+  @Override
+  public long getCopies() {
+    return this.copies.sum();
+  }
+
+  @Override
+  public long getBytesCopied() {
+    return this.bytesCopied.sum();
+  }
+
+  @Override
+  public long getCopyNanos() {
+    return this.copyNanos.sum();
+  }
+
+  @Override
+  public long getFilesHashed() {
+    return this.filesHashed.sum();
+  }
+
+  @Override
+  public long getBytesHashed() {
+    return this.bytesHashed.sum();
+  }
+
+  @Override
+  public long getHashNanos() {
+    return this.hashNanos.sum();
+  }
+
+  @Override
+  public long getHashCacheHits() {
+    return this.hashCacheHits.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s[buffers=%s/%s, digests=%s/%s, copied=%s, hashed=%s]", this.name, this.buffers.hits(),
+        this.buffers.misses(), this.digestHits, this.digestMisses, this.bytesCopied, this.bytesHashed);
+  }
+
+}
@@ -0,0 +1,46 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+/**
+ * Management interface of {@link PoolStats}. Byte and time counters are cumulative over the lifetime of the pool.
+ */
+public interface PoolStatsMBean {
+
+  public boolean isDisposed();
+
+  public int getNonBlockableQueueDepth();
+
+  public int getNonBlockableActiveThreads();
+
+  public int getNonBlockableLargestThreads();
+
+  public int getBlockableQueueDepth();
+
+  public int getBlockableActiveThreads();
+
+  public int getBlockableLargestThreads();
+
+  public long getBufferHits();
+
+  public long getBufferMisses();
+
+  public long getIdleBufferBytes();
+
+  public long getDigestHits();
+
+  public long getDigestMisses();
+
+  public long getCopies();
+
+  public long getBytesCopied();
+
+  public long getCopyNanos();
+
+  public long getFilesHashed();
+
+  public long getBytesHashed();
+
+  public long getHashNanos();
+
+  public long getHashCacheHits();
+
+}
@@ -0,0 +1,434 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static ch.cmbntr.modulizer.bootstrap.util.ModulizerIO.closeQuietly;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A self-training preload list. While recording, the loaded classes are sampled in {@link #SLICES} snapshots through
+ * the {@link ClassLoadAgent}, each class ranked by the snapshot it first appeared in and keyed by its defining loader.
+ * On the next start the slices are preloaded in parallel, earliest first within each slice, skipping classes whose
+ * preload failed before. Classes are loaded and linked but not initialized, so no static initializer runs early. New
+ * preload failures are written back once a preload completes, also when nothing is recorded.
+ */
+public class PreloadProfile {
+
+  public static final String LOADER_BOOT = "boot";
+
+  public static final String LOADER_PLATFORM = "platform";
+
+  public static final String LOADER_SYSTEM = "system";
+
+  public static final String LOADER_MODULE_PREFIX = "module:";
+
+  static final int SLICES = 8;
+
+  static final int MAX_CLASSES = 4096;
+
+  private static final String HEADER = "# modulizer preload profile v1";
+
+  private static final String FAILED = "!";
+
+  private static final String JBOSS_MODULE_LOADER = "org.jboss.modules.ModuleClassLoader";
+
+  private static final AtomicReference<PreloadProfile> CURRENT = new AtomicReference<PreloadProfile>();
+
+  private final File file;
+
+  private final List<List<String[]>> slices = new ArrayList<List<String[]>>();
+
+  private final Set<String> failed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private volatile boolean newFailures;
+
+  private volatile boolean recording;
+
+  private PreloadProfile(final File file) {
+    this.file = file;
+  }
+
+  public static PreloadProfile open(final File file) {
+    final PreloadProfile profile = new PreloadProfile(file);
+    profile.load();
+    return profile;
+  }
+
+  /**
+   * Makes the profile available to the launch plugins, see {@link #current()}.
+   */
+  public static void install(final PreloadProfile profile) {
+    CURRENT.set(profile);
+  }
+
+  public static void uninstall() {
+    CURRENT.set(null);
+  }
+
+  public static PreloadProfile current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Resolves the loader keys of a profile to class loaders.
+   */
+  public static interface LoaderResolver {
+
+    /**
+     * @param loaderKey the loader key, e.g. {@code module:org.example:main}
+     * @return the class loader, {@code null} to skip the classes of this loader
+     * @throws Exception if the loader can not be created, which marks its classes as failed
+     */
+    public ClassLoader resolve(String loaderKey) throws Exception;
+
+  }
+
+  public int size() {
+    int size = 0;
+    for (final List<String[]> slice : this.slices) {
+      size += slice.size();
+    }
+    return size;
+  }
+
+  /**
+   * Preloads the classes of the boot, platform and system class loaders.
+   */
+  public void preloadBuiltin() {
+    preload(null, null);
+  }
+
+  /**
+   * Preloads the classes of all loaders whose key starts with the given prefix, one pool task per slice.
+   */
+  public void preload(final String keyPrefix, final LoaderResolver resolver) {
+    final List<List<String[]>> selection = new ArrayList<List<String[]>>();
+    for (final List<String[]> slice : this.slices) {
+      final List<String[]> selected = select(slice, keyPrefix);
+      if (!selected.isEmpty()) {
+        selection.add(selected);
+      }
+    }
+    final AtomicInteger pending = new AtomicInteger(selection.size());
+    for (final List<String[]> selected : selection) {
+      Resources.delay(0L, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            preloadSlice(selected, resolver);
+          } finally {
+            if (pending.decrementAndGet() == 0) {
+              saveFailures();
+            }
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Preloads like {@link #preload(String, LoaderResolver)}, but slice by slice in the calling thread.
+   */
+  public void preloadInline(final String keyPrefix, final LoaderResolver resolver) {
+    for (final List<String[]> slice : this.slices) {
+      preloadSlice(select(slice, keyPrefix), resolver);
+    }
+    saveFailures();
+  }
+
+  private static List<String[]> select(final List<String[]> slice, final String keyPrefix) {
+    final List<String[]> selected = new ArrayList<String[]>();
+    for (final String[] e : slice) {
+      if (keyPrefix == null ? isBuiltin(e[0]) : e[0].startsWith(keyPrefix)) {
+        selected.add(e);
+      }
+    }
+    return selected;
+  }
+
+  private static boolean isBuiltin(final String loaderKey) {
+    return LOADER_BOOT.equals(loaderKey) || LOADER_PLATFORM.equals(loaderKey) || LOADER_SYSTEM.equals(loaderKey);
+  }
+
+  void preloadSlice(final List<String[]> slice, final LoaderResolver resolver) {
+    final Map<String, ClassLoader> loaders = new ConcurrentHashMap<String, ClassLoader>();
+    for (final String[] e : slice) {
+      final String key = e[0];
+      try {
+        final ClassLoader loader;
+        if (resolver == null) {
+          loader = builtinLoader(key);
+        } else if (loaders.containsKey(key)) {
+          loader = loaders.get(key);
+        } else {
+          loader = resolver.resolve(key);
+          if (loader == null) {
+            continue;
+          }
+          loaders.put(key, loader);
+        }
+        Class.forName(e[1], false, loader);
+      } catch (final Exception ex) {
+        fail(e, ex);
+      } catch (final LinkageError ex) {
+        fail(e, ex);
+      }
+    }
+  }
+
+  boolean hasFailed(final String loaderKey, final String className) {
+    return this.failed.contains(loaderKey + '\t' + className);
+  }
+
+  List<String[]> slice(final int rank) {
+    return this.slices.get(rank);
+  }
+
+  private void fail(final String[] entry, final Throwable cause) {
+    if (this.failed.add(entry[0] + '\t' + entry[1])) {
+      this.newFailures = true;
+    }
+    ModulizerLog.log("profile preload of %s from %s failed: %s", entry[1], entry[0], cause);
+  }
+
+  private static ClassLoader builtinLoader(final String key) {
+    if (LOADER_BOOT.equals(key)) {
+      return null;
+    }
+    final ClassLoader system = ClassLoader.getSystemClassLoader();
+    return LOADER_PLATFORM.equals(key) ? system.getParent() : system;
+  }
+
+  /**
+   * Samples the loaded classes over the given period, then replaces the profile on disk.
+   *
+   * @return {@code false} if the agent is not available and nothing is recorded
+   */
+  public boolean record(final long millis) {
+    final Instrumentation inst = ClassLoadAgent.get();
+    if (inst == null) {
+      return false;
+    }
+    this.recording = true;
+    final Recording recording = new Recording(inst);
+    for (int i = 0; i < SLICES; i++) {
+      final boolean last = i == SLICES - 1;
+      Resources.delay(millis * (i + 1) / SLICES, new Runnable() {
+        @Override
+        public void run() {
+          recording.snapshot();
+          if (last) {
+            save(recording.slices);
+          }
+        }
+      });
+    }
+    return true;
+  }
+
+  private void load() {
+    if (!this.file.isFile()) {
+      return;
+    }
+    BufferedReader in = null;
+    try {
+      in = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+      if (!HEADER.equals(in.readLine())) {
+        return;
+      }
+      final List<String[]> entries = new ArrayList<String[]>();
+      final List<Integer> ranks = new ArrayList<Integer>();
+      String line;
+      while ((line = in.readLine()) != null) {
+        final String[] cols = line.split("\t", 3);
+        if (cols.length != 3) {
+          continue;
+        }
+        if (FAILED.equals(cols[0])) {
+          this.failed.add(cols[1] + '\t' + cols[2]);
+        } else {
+          ranks.add(Integer.valueOf(cols[0]));
+          entries.add(new String[] { cols[1], cols[2] });
+        }
+      }
+      for (int i = 0; i < entries.size(); i++) {
+        final String[] e = entries.get(i);
+        if (this.failed.contains(e[0] + '\t' + e[1])) {
+          continue;
+        }
+        final int rank = Math.min(ranks.get(i).intValue(), SLICES - 1);
+        while (this.slices.size() <= rank) {
+          this.slices.add(new ArrayList<String[]>());
+        }
+        this.slices.get(rank).add(e);
+      }
+    } catch (final IOException e) {
+      ModulizerLog.warn("ignore unreadable preload profile %s: %s", this.file, e);
+      this.slices.clear();
+    } catch (final NumberFormatException e) {
+      ModulizerLog.warn("ignore corrupt preload profile %s: %s", this.file, e);
+      this.slices.clear();
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  /**
+   * Writes the profile back with the failures of the preloads so far, unless a recording will replace it anyway.
+   */
+  void saveFailures() {
+    if (this.recording || !this.newFailures) {
+      return;
+    }
+    final List<List<String>> kept = new ArrayList<List<String>>();
+    for (final List<String[]> slice : this.slices) {
+      final List<String> entries = new ArrayList<String>();
+      for (final String[] e : slice) {
+        final String entry = e[0] + '\t' + e[1];
+        if (!this.failed.contains(entry)) {
+          entries.add(entry);
+        }
+      }
+      kept.add(entries);
+    }
+    save(kept);
+  }
+
+  private synchronized void save(final List<List<String>> recorded) {
+    this.newFailures = false;
+    final File tmp = new File(this.file.getPath() + ".tmp");
+    Writer out = null;
+    try {
+      out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+      out.write(HEADER);
+      out.write('\n');
+      final Set<String> seen = new HashSet<String>();
+      for (int rank = 0; rank < recorded.size(); rank++) {
+        for (final String e : recorded.get(rank)) {
+          seen.add(e);
+          out.write(Integer.toString(rank));
+          out.write('\t');
+          out.write(e);
+          out.write('\n');
+        }
+      }
+      int remaining = MAX_CLASSES;
+      for (final String f : this.failed) {
+        // a class loaded since is not broken anymore
+        if (!seen.contains(f) && remaining-- > 0) {
+          out.write(FAILED);
+          out.write('\t');
+          out.write(f);
+          out.write('\n');
+        }
+      }
+      out.close();
+      out = null;
+      if (!tmp.renameTo(this.file) && !(this.file.delete() && tmp.renameTo(this.file))) {
+        throw new IOException("could not replace " + this.file);
+      }
+      ModulizerLog.log("preload profile written to %s", this.file);
+    } catch (final IOException e) {
+      ModulizerLog.warn("failed to save preload profile %s: %s", this.file, e);
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s[file=%s, classes=%d, slices=%d, failed=%d]", super.toString(), this.file, size(),
+        this.slices.size(), this.failed.size());
+  }
+
+  /**
+   * The classes seen so far, as {@code loaderKey<TAB>className} per snapshot.
+   */
+  private static final class Recording {
+
+    private final Instrumentation inst;
+    private final Set<String> seen = new LinkedHashSet<String>();
+    private final List<List<String>> slices = new ArrayList<List<String>>();
+    private final Map<ClassLoader, String> keys = new IdentityHashMap<ClassLoader, String>();
+
+    Recording(final Instrumentation inst) {
+      this.inst = inst;
+    }
+
+    synchronized void snapshot() {
+      final List<String> slice = new ArrayList<String>();
+      for (final Class<?> c : this.inst.getAllLoadedClasses()) {
+        if (this.seen.size() >= MAX_CLASSES) {
+          break;
+        }
+        final String name = c.getName();
+        if (c.isArray() || c.isPrimitive() || name.indexOf('/') >= 0) {
+          // hidden classes can not be looked up by name
+          continue;
+        }
+        final String key = loaderKey(c.getClassLoader());
+        if (key != null) {
+          final String entry = key + '\t' + name;
+          if (this.seen.add(entry)) {
+            slice.add(entry);
+          }
+        }
+      }
+      this.slices.add(slice);
+    }
+
+    private String loaderKey(final ClassLoader loader) {
+      if (loader == null) {
+        return LOADER_BOOT;
+      }
+      if (this.keys.containsKey(loader)) {
+        return this.keys.get(loader);
+      }
+      final String key = determineLoaderKey(loader);
+      this.keys.put(loader, key);
+      return key;
+    }
+
+    private static String determineLoaderKey(final ClassLoader loader) {
+      final ClassLoader system = ClassLoader.getSystemClassLoader();
+      if (loader == system) {
+        return LOADER_SYSTEM;
+      }
+      if (loader == system.getParent()) {
+        return LOADER_PLATFORM;
+      }
+      for (Class<?> c = loader.getClass(); c != null; c = c.getSuperclass()) {
+        if (JBOSS_MODULE_LOADER.equals(c.getName())) {
+          try {
+            final Object module = c.getMethod("getModule").invoke(loader);
+            return LOADER_MODULE_PREFIX + module.getClass().getMethod("getIdentifier").invoke(module);
+          } catch (final Exception e) {
+            return null;
+          }
+        }
+      }
+      // plugin loaders are created anew on every start and can not be resolved by key
+      return null;
+    }
+  }
+
+}
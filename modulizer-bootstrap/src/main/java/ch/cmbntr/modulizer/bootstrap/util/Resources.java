@@ -24,6 +24,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
+
 public class Resources {
 
   private static final ThreadFactory THREAD_FACTORY = new ModulizerThreadFactory();
@@ -43,13 +45,31 @@ public class Resources {
   public static synchronized Pool getPoolHandle() {
     Pool p = pool == null ? null : pool.get();
     if (p == null) {
-      p = new BasicPool();
+      final BasicPool basic = new BasicPool();
+      p = basic;
       pool = new WeakReference<Pool>(p);
       log("init resources pool: %s", p);
+      if (!"false".equals(System.getProperty(BootstrapContext.CONFIG_KEY_JMX))) {
+        registerStats(basic);
+      }
     }
     return p;
   }
 
+  private static void registerStats(final BasicPool p) {
+    // the platform MBean server is slow to initialize, keep it off the caller's path; not on the pool itself, whose
+    // executors are only built once the bootstrap config has chosen their backend
+    final PoolStats stats = p.getStats();
+    final Thread t = newThread("modulizer pool stats", new Runnable() {
+      @Override
+      public void run() {
+        PoolStats.register(stats);
+      }
+    });
+    t.setDaemon(true);
+    t.start();
+  }
+
   public static synchronized void dispose(final Pool handle) {
     pool = null;
     log("dispose pool: %s", handle);
@@ -70,29 +90,60 @@ public class Resources {
 
     public ByteBuffer aquireBuffer();
 
+    /**
+     * @param sizeHint the expected number of bytes to transfer, non-positive if unknown
+     * @return a cleared buffer sized for the hint, possibly smaller than the hint for large transfers
+     */
+    public ByteBuffer aquireBuffer(int sizeHint);
+
     public void releaseBuffer(ByteBuffer buf);
 
     public MessageDigest aquireDigest();
 
     public void releaseDigest(MessageDigest digest);
 
+    public PoolStats getStats();
+
   }
 
   private static class BasicPool implements Pool {
 
     private static final int POOL_SIZE = max(2, Runtime.getRuntime().availableProcessors());
 
-    private static final int BUFFER_SIZE = 32 * 1024;
+    private final BufferPool buffers = new BufferPool();
 
-    private final BlockingDeque<ByteBuffer> buffers = new LinkedBlockingDeque<ByteBuffer>(POOL_SIZE);
+    private final PoolStats stats = new PoolStats(this.buffers);
 
     private final BlockingDeque<MessageDigest> digests = new LinkedBlockingDeque<MessageDigest>(POOL_SIZE);
 
-    private ThreadPoolExecutor exec;
+    private static final int VIRTUAL_POOL_SIZE = 256;
+
+    private ExecutorService exec;
 
     private ScheduledThreadPoolExecutor blockableExec;
 
-    private static ThreadPoolExecutor buildNonBlockableExecutor() {
+    private volatile String backend;
+
+    /**
+     * Read when an executor is first built rather than with the pool, so {@value BootstrapContext#CONFIG_KEY_EXECUTOR}
+     * from the bootstrap config applies to work submitted after the config is loaded. Executors built earlier only see
+     * the system property.
+     */
+    private static String executorBackend() {
+      final BootstrapContext ctx = BootstrapContext.CURRENT.get();
+      final String configured = ctx == null ? null : ctx.get(BootstrapContext.CONFIG_KEY_EXECUTOR);
+      final String backend = configured == null ? System.getProperty(BootstrapContext.CONFIG_KEY_EXECUTOR) : configured;
+      return backend == null ? BootstrapContext.EXECUTOR_POOLS : backend.trim();
+    }
+
+    private ExecutorService buildNonBlockableExecutor() {
+      this.backend = executorBackend();
+      if (BootstrapContext.EXECUTOR_FORK_JOIN.equals(this.backend)) {
+        if (isForkJoinAvailable()) {
+          return ForkJoinSupport.create(POOL_SIZE);
+        }
+        log("no fork-join support, falling back to thread pools");
+      }
       final BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>();
       final ThreadPoolExecutor tpe = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 15L, TimeUnit.SECONDS, workQueue,
           THREAD_FACTORY);
@@ -101,8 +152,30 @@ public class Resources {
       return tpe;
     }
 
-    private static ScheduledThreadPoolExecutor buildBlockableExecutor() {
-      final ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(POOL_SIZE, THREAD_FACTORY);
+    private static boolean isForkJoinAvailable() {
+      try {
+        Class.forName("java.util.concurrent.ForkJoinPool");
+        return true;
+      } catch (final ClassNotFoundException e) {
+        return false;
+      }
+    }
+
+    private ScheduledThreadPoolExecutor buildBlockableExecutor() {
+      ThreadFactory factory = THREAD_FACTORY;
+      int size = POOL_SIZE;
+      this.backend = executorBackend();
+      if (BootstrapContext.EXECUTOR_VIRTUAL.equals(this.backend)) {
+        final ThreadFactory virtual = VirtualThreads.factory();
+        if (virtual == null) {
+          log("no virtual threads, falling back to thread pools");
+        } else {
+          // virtual threads are cheap, so blocking work is not throttled to the processor count
+          factory = virtual;
+          size = VIRTUAL_POOL_SIZE;
+        }
+      }
+      final ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(size, factory);
       stpe.setKeepAliveTime(15L, TimeUnit.SECONDS);
       stpe.allowCoreThreadTimeOut(true);
       return stpe;
@@ -115,14 +188,16 @@ public class Resources {
       if (this.blockableExec != null) {
         this.blockableExec.shutdown();
       }
-      this.buffers.clear();
+      this.buffers.dispose();
       this.digests.clear();
+      this.stats.dispose();
     }
 
     @Override
     public synchronized ExecutorService aquireExec() {
       if (this.exec == null) {
         this.exec = buildNonBlockableExecutor();
+        this.stats.setExecutors(this.exec, this.blockableExec);
       }
       return Executors.unconfigurableExecutorService(this.exec);
     }
@@ -136,6 +211,7 @@ public class Resources {
     public synchronized ScheduledExecutorService aquireBlockableExec() {
       if (this.blockableExec == null) {
         this.blockableExec = buildBlockableExecutor();
+        this.stats.setExecutors(this.exec, this.blockableExec);
       }
       return Executors.unconfigurableScheduledExecutorService(this.blockableExec);
     }
@@ -147,23 +223,23 @@ public class Resources {
 
     @Override
     public ByteBuffer aquireBuffer() {
-      final ByteBuffer b = pop(this.buffers);
-      if (b == null) {
-        return ByteBuffer.allocate(BUFFER_SIZE);
-      } else {
-        b.clear();
-        return b;
-      }
+      return this.buffers.aquire(BufferPool.DEFAULT_SIZE);
+    }
+
+    @Override
+    public ByteBuffer aquireBuffer(final int sizeHint) {
+      return this.buffers.aquire(sizeHint);
     }
 
     @Override
     public void releaseBuffer(final ByteBuffer buf) {
-      push(this.buffers, buf);
+      this.buffers.release(buf);
     }
 
     @Override
     public MessageDigest aquireDigest() {
       final MessageDigest d = pop(this.digests);
+      this.stats.recordDigest(d != null);
       if (d == null) {
         try {
           return MessageDigest.getInstance("SHA-1");
@@ -181,6 +257,11 @@ public class Resources {
       push(this.digests, digest);
     }
 
+    @Override
+    public PoolStats getStats() {
+      return this.stats;
+    }
+
     private static <T> T pop(final BlockingDeque<T> lifo) {
       return lifo.pollFirst();
     }
@@ -191,12 +272,13 @@ public class Resources {
 
     @Override
     public String toString() {
-      return String.format("%s[buffers=%d, digests=%d, nonblockableThreads=%s, blockableThreads=%s]", super.toString(),
-          this.buffers.size(), this.digests.size(), threadCount(this.exec), threadCount(this.blockableExec));
+      return String.format("%s[backend=%s, buffers=%s, digests=%d, nonblockableThreads=%s, blockableThreads=%s]",
+          super.toString(), this.backend, this.buffers, this.digests.size(), threadCount(this.exec),
+          threadCount(this.blockableExec));
     }
 
-    private static String threadCount(final ThreadPoolExecutor e) {
-      return e == null ? "NA" : e.getActiveCount() + "/" + e.getLargestPoolSize();
+    private static String threadCount(final ExecutorService e) {
+      return e == null ? "NA" : PoolStats.activeThreads(e) + "/" + PoolStats.largestThreads(e);
     }
 
   }
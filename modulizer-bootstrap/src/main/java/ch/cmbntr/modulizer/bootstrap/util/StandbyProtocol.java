@@ -0,0 +1,223 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static ch.cmbntr.modulizer.bootstrap.util.ModulizerIO.closeQuietly;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Wire format between {@link ch.cmbntr.modulizer.bootstrap.StandbyClient} and a warm standby launcher. The client
+ * sends the magic, the secret of the port file, its working directory, environment and arguments, followed by stdin
+ * frames. The standby answers with stdout and stderr frames and a final exit frame. A frame is a type byte followed by
+ * a length prefixed payload, an empty stdin frame marks the end of input, an exit frame carries the status instead.
+ */
+public final class StandbyProtocol {
+
+  public static final String MAGIC = "modulizer-standby-1";
+
+  public static final int STDIN = 0;
+
+  public static final int STDOUT = 1;
+
+  public static final int STDERR = 2;
+
+  public static final int EXIT = 3;
+
+  public static final String PORT_FILE = "standby.port";
+
+  static final int MAX_STRING_BYTES = 1024 * 1024;
+
+  private StandbyProtocol() {
+    super();
+  }
+
+  /**
+   * What a client hands off: the working directory, the environment and the arguments of its invocation.
+   */
+  public static final class Request {
+
+    public final String workingDir;
+    public final Map<String, String> env;
+    public final String[] args;
+
+    public Request(final String workingDir, final Map<String, String> env, final String... args) {
+      this.workingDir = workingDir;
+      this.env = env;
+      this.args = args == null ? new String[0] : args;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s[cwd=%s, env=%d, args=%s]", super.toString(), this.workingDir, this.env.size(),
+          Arrays.toString(this.args));
+    }
+  }
+
+  /**
+   * Where a standby listens, as published in its port file.
+   */
+  public static final class Endpoint {
+
+    public final int port;
+    public final String secret;
+
+    public Endpoint(final int port, final String secret) {
+      this.port = port;
+      this.secret = secret;
+    }
+  }
+
+  public static void writeRequest(final DataOutputStream out, final String secret, final Request r)
+      throws IOException {
+    writeString(out, MAGIC);
+    writeString(out, secret);
+    writeString(out, r.workingDir);
+    out.writeInt(r.env.size());
+    for (final Entry<String, String> e : r.env.entrySet()) {
+      writeString(out, e.getKey());
+      writeString(out, e.getValue());
+    }
+    out.writeInt(r.args.length);
+    for (final String a : r.args) {
+      writeString(out, a);
+    }
+    out.flush();
+  }
+
+  /**
+   * @throws IOException if the magic or the secret do not match, or the request is malformed
+   */
+  public static Request readRequest(final DataInputStream in, final String secret) throws IOException {
+    if (!MAGIC.equals(readString(in))) {
+      throw new IOException("not a standby request");
+    }
+    if (!MessageDigest.isEqual(secret.getBytes("UTF-8"), readString(in).getBytes("UTF-8"))) {
+      throw new IOException("standby secret mismatch");
+    }
+    final String workingDir = readString(in);
+    final int envCount = readCount(in);
+    final Map<String, String> env = new LinkedHashMap<String, String>();
+    for (int i = 0; i < envCount; i++) {
+      env.put(readString(in), readString(in));
+    }
+    final String[] args = new String[readCount(in)];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = readString(in);
+    }
+    return new Request(workingDir, env, args);
+  }
+
+  /**
+   * Writes and flushes one frame, frames of concurrent writers do not interleave.
+   */
+  public static void writeFrame(final DataOutputStream out, final int type, final byte[] b, final int off,
+      final int len) throws IOException {
+    synchronized (out) {
+      out.writeByte(type);
+      out.writeInt(len);
+      out.write(b, off, len);
+      out.flush();
+    }
+  }
+
+  public static void writeExit(final DataOutputStream out, final int status) throws IOException {
+    synchronized (out) {
+      out.writeByte(EXIT);
+      out.writeInt(status);
+      out.flush();
+    }
+  }
+
+  /**
+   * Publishes the endpoint, the file is made readable by its owner only before the secret is written.
+   */
+  public static void writePortFile(final File file, final Endpoint endpoint) throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    if (tmp.exists() && !tmp.delete()) {
+      throw new IOException("could not delete " + tmp);
+    }
+    Writer out = null;
+    try {
+      if (!tmp.createNewFile()) {
+        throw new IOException("could not create " + tmp);
+      }
+      tmp.setReadable(false, false);
+      tmp.setWritable(false, false);
+      tmp.setReadable(true, true);
+      tmp.setWritable(true, true);
+      out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+      out.write(endpoint.port + " " + endpoint.secret + "\n");
+      out.close();
+      out = null;
+      if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+        throw new IOException("could not replace " + file);
+      }
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  /**
+   * @return the endpoint, {@code null} if the file is missing, unreadable or malformed
+   */
+  public static Endpoint readPortFile(final File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    Reader in = null;
+    try {
+      in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+      final char[] buf = new char[256];
+      int len = 0;
+      for (int n; len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0;) {
+        len += n;
+      }
+      final String[] parts = new String(buf, 0, len).trim().split(" ");
+      return parts.length == 2 ? new Endpoint(Integer.parseInt(parts[0]), parts[1]) : null;
+    } catch (final IOException e) {
+      return null;
+    } catch (final NumberFormatException e) {
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  private static void writeString(final DataOutputStream out, final String s) throws IOException {
+    final byte[] b = s.getBytes("UTF-8");
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private static String readString(final DataInputStream in) throws IOException {
+    final int len = in.readInt();
+    if (len < 0 || len > MAX_STRING_BYTES) {
+      throw new IOException("invalid string length " + len);
+    }
+    final byte[] b = new byte[len];
+    in.readFully(b);
+    return new String(b, "UTF-8");
+  }
+
+  private static int readCount(final DataInputStream in) throws IOException {
+    final int count = in.readInt();
+    if (count < 0 || count > MAX_STRING_BYTES) {
+      throw new IOException("invalid count " + count);
+    }
+    return count;
+  }
+
+}
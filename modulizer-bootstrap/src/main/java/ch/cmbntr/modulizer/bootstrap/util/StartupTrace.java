@@ -0,0 +1,200 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static ch.cmbntr.modulizer.bootstrap.util.ModulizerIO.closeQuietly;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the startup critical path as nanosecond spans into a fixed, preallocated buffer. Spans are mirrored as JFR
+ * events when the flight recorder is available and can be written as a Chrome trace (about://tracing) report.
+ */
+public class StartupTrace {
+
+  public static final String CATEGORY_BOOTSTRAP = "bootstrap";
+
+  public static final String CATEGORY_OPERATION = "operation";
+
+  public static final String CATEGORY_FILETREE = "filetree";
+
+  private static final int CAPACITY = 1024;
+
+  private static final long NANOS_PER_MICRO = 1000L;
+
+  private static final long ORIGIN = System.nanoTime();
+
+  private static final AtomicInteger NEXT = new AtomicInteger();
+
+  private static final String[] CATEGORIES = new String[CAPACITY];
+
+  private static final String[] NAMES = new String[CAPACITY];
+
+  private static final String[] THREADS = new String[CAPACITY];
+
+  private static final long[] THREAD_IDS = new long[CAPACITY];
+
+  private static final long[] BEGIN = new long[CAPACITY];
+
+  private static final AtomicLongArray END = new AtomicLongArray(CAPACITY);
+
+  private static final Object[] EVENTS = new Object[CAPACITY];
+
+  private StartupTrace() {
+    super();
+  }
+
+  /**
+   * Starts a span on the current thread.
+   *
+   * @param category the span category
+   * @param name the span name
+   * @return the span handle, negative if the buffer is exhausted
+   */
+  public static int begin(final String category, final String name) {
+    final int span = NEXT.getAndIncrement();
+    if (span >= CAPACITY) {
+      return -1;
+    }
+    final Thread t = Thread.currentThread();
+    CATEGORIES[span] = category;
+    NAMES[span] = name;
+    THREADS[span] = t.getName();
+    THREAD_IDS[span] = t.getId();
+    EVENTS[span] = Jfr.begin(category, name);
+    BEGIN[span] = System.nanoTime();
+    return span;
+  }
+
+  /**
+   * Ends the given span, ignores invalid or already ended handles.
+   *
+   * @param span the handle returned by {@link #begin(String, String)}
+   */
+  public static void end(final int span) {
+    if (span < 0 || span >= CAPACITY) {
+      return;
+    }
+    final long now = System.nanoTime();
+    if (END.compareAndSet(span, 0L, now)) {
+      Jfr.end(EVENTS[span]);
+      EVENTS[span] = null;
+    }
+  }
+
+  /**
+   * Ends the given span and begins the next one, convenient for sequential phases.
+   */
+  public static int next(final int span, final String category, final String name) {
+    end(span);
+    return begin(category, name);
+  }
+
+  public static boolean isJfrEnabled() {
+    return Jfr.SUPPORT != null;
+  }
+
+  public static void writeReport(final File report, final Map<String, String> info) throws IOException {
+    final Writer out = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+    try {
+      out.write(report(info));
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  static String report(final Map<String, String> info) {
+    final long now = System.nanoTime();
+    final int count = Math.min(NEXT.get(), CAPACITY);
+    final Map<Long, String> threads = new LinkedHashMap<Long, String>();
+    final StringBuilder json = new StringBuilder(128 + count * 128);
+    json.append("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[");
+    for (int i = 0; i < count; i++) {
+      final long end = END.get(i);
+      final long begin = BEGIN[i];
+      if (begin == 0L) {
+        continue;
+      }
+      final long tid = THREAD_IDS[i];
+      threads.put(tid, THREADS[i]);
+      json.append("\n{\"ph\":\"X\",\"pid\":1,\"tid\":").append(tid);
+      json.append(",\"cat\":");
+      quote(json, CATEGORIES[i]);
+      json.append(",\"name\":");
+      quote(json, NAMES[i]);
+      json.append(",\"ts\":").append(micros(begin - ORIGIN));
+      json.append(",\"dur\":").append(micros((end == 0L ? now : end) - begin));
+      json.append(",\"args\":{\"nanos\":").append((end == 0L ? now : end) - begin);
+      if (end == 0L) {
+        json.append(",\"unfinished\":true");
+      }
+      json.append("}},");
+    }
+    for (final Entry<Long, String> t : threads.entrySet()) {
+      json.append("\n{\"ph\":\"M\",\"pid\":1,\"tid\":").append(t.getKey());
+      json.append(",\"name\":\"thread_name\",\"args\":{\"name\":");
+      quote(json, t.getValue());
+      json.append("}},");
+    }
+    if (json.charAt(json.length() - 1) == ',') {
+      json.setLength(json.length() - 1);
+    }
+    json.append("\n],\"otherData\":{\"dropped\":").append(Math.max(0, NEXT.get() - CAPACITY));
+    if (info != null) {
+      for (final Entry<String, String> e : info.entrySet()) {
+        json.append(',');
+        quote(json, e.getKey());
+        json.append(':');
+        quote(json, e.getValue());
+      }
+    }
+    return json.append("}}\n").toString();
+  }
+
+  private static String micros(final long nanos) {
+    return String.valueOf(nanos / NANOS_PER_MICRO) + '.' + String.valueOf(1000L + nanos % NANOS_PER_MICRO).substring(1);
+  }
+
+  private static void quote(final StringBuilder json, final String s) {
+    json.append('"');
+    if (s != null) {
+      for (int i = 0; i < s.length(); i++) {
+        final char c = s.charAt(i);
+        if (c == '"' || c == '\\') {
+          json.append('\\').append(c);
+        } else if (c < ' ') {
+          json.append(String.format("\\u%04x", (int) c));
+        } else {
+          json.append(c);
+        }
+      }
+    }
+    json.append('"');
+  }
+
+  /**
+   * Defers the flight recorder lookup to the first span.
+   */
+  private static final class Jfr {
+
+    private static final JfrSupport SUPPORT = JfrSupport.get();
+
+    static Object begin(final String category, final String name) {
+      return SUPPORT == null ? null : SUPPORT.begin(category, name);
+    }
+
+    static void end(final Object event) {
+      if (event != null) {
+        SUPPORT.end(event);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,47 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A cheap statistics counter for Java 6: updates go to one of several cells chosen by thread id, each cell padded to
+ * its own cache line, so concurrent writers rarely contend. Reads sum up all cells and are not atomic.
+ */
+final class StripedCounter {
+
+  private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  private static int stripes(final int cpus) {
+    int n = 1;
+    while (n < 2 * cpus && n < 64) {
+      n <<= 1;
+    }
+    return n;
+  }
+
+  void increment() {
+    add(1L);
+  }
+
+  void add(final long delta) {
+    final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+    this.cells.getAndAdd(stripe * PADDING, delta);
+  }
+
+  long sum() {
+    long sum = 0L;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += this.cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(sum());
+  }
+
+}
@@ -1,13 +1,28 @@
 package ch.cmbntr.modulizer.bootstrap.util;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
 
 public class SystemPropertyHelper {
 
   private static final Map<String, String> EXPORT = new HashMap<String, String>();
 
+  /**
+   * The last value exported per key, kept for the lifetime of the JVM.
+   */
+  private static final ConcurrentMap<String, String> EXPORTED = new ConcurrentHashMap<String, String>();
+
+  /**
+   * The system properties before the first export, i.e. the ones given on the command line.
+   */
+  private static volatile Map<String, String> commandLine = Collections.emptyMap();
+
   private SystemPropertyHelper() {
     super();
   }
@@ -19,14 +34,47 @@ public class SystemPropertyHelper {
   }
 
   public static synchronized void export(final String key, final String value) {
+    if (EXPORTED.isEmpty()) {
+      commandLine = snapshotCommandLine();
+    }
     try {
       EXPORT.put(key, value);
-      System.setProperty(key, value);
+      EXPORTED.put(key, value);
+      final String previous = System.setProperty(key, value);
+      if (previous != null && !previous.equals(value) && Boolean.getBoolean(BootstrapContext.CONFIG_KEY_HOST)) {
+        // system properties are shared by all hosted apps, the last one wins
+        ModulizerLog.warn("hosted apps disagree on property %s: %s replaces %s", key, value, previous);
+      }
     } catch (final SecurityException e) {
       ModulizerLog.warn("could not set property %s to %s", key, value);
     }
   }
 
+  private static Map<String, String> snapshotCommandLine() {
+    final Map<String, String> snapshot = new HashMap<String, String>();
+    try {
+      final Properties sys = System.getProperties();
+      for (final String k : sys.stringPropertyNames()) {
+        snapshot.put(k, sys.getProperty(k));
+      }
+    } catch (final SecurityException e) {
+      ModulizerLog.warn("could not read the command line properties");
+    }
+    return snapshot;
+  }
+
+  /**
+   * Tells the values a bootstrap exported apart from the ones given on the command line, so the contexts of apps
+   * hosted later in the same JVM resolve such keys from their own config rather than from the app exporting them. A
+   * key given on the command line is not exported as long as it keeps its command line value, even if an app exported
+   * the same value.
+   *
+   * @return whether the value is the one last exported for the key
+   */
+  public static boolean isExported(final String key, final String value) {
+    return value != null && value.equals(EXPORTED.get(key)) && !value.equals(commandLine.get(key));
+  }
+
   public static synchronized void restoreProps(final Properties origProps) {
     if (origProps == null) {
       return;
@@ -0,0 +1,285 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.cmbntr.modulizer.bootstrap.util.Resources.Pool;
+
+/**
+ * A small dependency graph of named tasks. Each task declares the inputs it requires and the outputs it provides, and
+ * is started as soon as all its inputs are available. Tasks which become ready at the same time are started in
+ * declaration order, tasks depending on a failed task are skipped.
+ * <p>
+ * The tasks run on threads of their own, at most one per task, so tasks blocking on other work of the {@link Pool}
+ * never starve each other. Tasks added by {@link #addOnCaller} run on the thread calling {@link #run()} instead, e.g.
+ * to launch an application from the thread the bootstrap was started on.
+ */
+public class TaskGraph {
+
+  private static final long KEEP_ALIVE_SECONDS = 15L;
+
+  private static final Runnable NOOP = new Runnable() {
+    @Override
+    public void run() {
+      // wakes up the caller
+    }
+  };
+
+  private final String category;
+
+  private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+
+  private TaskGraph(final String category) {
+    this.category = category;
+  }
+
+  public static TaskGraph create(final String traceCategory) {
+    return new TaskGraph(traceCategory);
+  }
+
+  public static Collection<String> keys(final String... keys) {
+    return Arrays.asList(keys);
+  }
+
+  public synchronized TaskGraph add(final String name, final Collection<String> requires,
+      final Collection<String> provides, final Runnable work) {
+    return add(name, requires, provides, work, false);
+  }
+
+  /**
+   * Like {@link #add}, but the task runs on the thread calling {@link #run()}.
+   */
+  public synchronized TaskGraph addOnCaller(final String name, final Collection<String> requires,
+      final Collection<String> provides, final Runnable work) {
+    return add(name, requires, provides, work, true);
+  }
+
+  private TaskGraph add(final String name, final Collection<String> requires, final Collection<String> provides,
+      final Runnable work, final boolean onCaller) {
+    if (this.nodes.containsKey(name)) {
+      throw new IllegalArgumentException("duplicate task: " + name);
+    }
+    this.nodes.put(name, new Node(name, requires, provides, work, onCaller));
+    return this;
+  }
+
+  /**
+   * Runs all tasks and waits for their completion, running the tasks added by {@link #addOnCaller} meanwhile.
+   *
+   * @throws RuntimeException the failure of the first failed task, in declaration order
+   */
+  public synchronized void run() {
+    final List<Node> all = link();
+    final CountDownLatch done = new CountDownLatch(all.size());
+    final BlockingQueue<Runnable> callerQueue = new LinkedBlockingQueue<Runnable>();
+    final ThreadPoolExecutor exec = new ThreadPoolExecutor(0, Math.max(1, all.size()), KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable r) {
+            return Resources.newThread("modulizer task graph - " + TaskGraph.this.category, r);
+          }
+        });
+    try {
+      for (final Node n : all) {
+        n.done = done;
+        n.wakeUp = callerQueue;
+        n.exec = n.onCaller ? new Executor() {
+          @Override
+          public void execute(final Runnable command) {
+            callerQueue.add(command);
+          }
+        } : exec;
+      }
+      for (final Node n : all) {
+        if (n.pending.get() == 0) {
+          n.start();
+        }
+      }
+      runOnCaller(done, callerQueue);
+    } finally {
+      exec.shutdown();
+    }
+    for (final Node n : all) {
+      if (n.failure != null) {
+        throw propagate(n.name, n.failure);
+      }
+    }
+  }
+
+  private List<Node> link() {
+    final Map<String, Node> providers = new HashMap<String, Node>();
+    for (final Node n : this.nodes.values()) {
+      for (final String p : n.provides) {
+        final Node other = providers.put(p, n);
+        if (other != null) {
+          throw new IllegalStateException(String.format("'%s' provided by %s and %s", p, other.name, n.name));
+        }
+      }
+    }
+    for (final Node n : this.nodes.values()) {
+      n.dependents.clear();
+      n.failure = null;
+      final Set<Node> deps = new LinkedHashSet<Node>();
+      for (final String r : n.requires) {
+        final Node provider = providers.get(r);
+        if (provider == null) {
+          throw new IllegalStateException(String.format("'%s' required by %s is never provided", r, n.name));
+        }
+        deps.add(provider);
+      }
+      n.pending.set(deps.size());
+      n.upstream = deps;
+    }
+    for (final Node n : this.nodes.values()) {
+      for (final Node d : n.upstream) {
+        d.dependents.add(n);
+      }
+    }
+    checkAcyclic();
+    return new ArrayList<Node>(this.nodes.values());
+  }
+
+  private void checkAcyclic() {
+    final Map<Node, Integer> indegree = new HashMap<Node, Integer>();
+    final LinkedList<Node> ready = new LinkedList<Node>();
+    for (final Node n : this.nodes.values()) {
+      indegree.put(n, n.upstream.size());
+      if (n.upstream.isEmpty()) {
+        ready.add(n);
+      }
+    }
+    int visited = 0;
+    while (!ready.isEmpty()) {
+      final Node n = ready.removeFirst();
+      visited++;
+      for (final Node d : n.dependents) {
+        final int remaining = indegree.get(d) - 1;
+        indegree.put(d, remaining);
+        if (remaining == 0) {
+          ready.add(d);
+        }
+      }
+    }
+    if (visited != this.nodes.size()) {
+      throw new IllegalStateException("cyclic task dependencies: " + this.nodes.keySet());
+    }
+  }
+
+  /**
+   * Runs the caller tasks as they become ready until all tasks completed, the last task to complete wakes the caller
+   * up with an empty task.
+   */
+  private static void runOnCaller(final CountDownLatch done, final BlockingQueue<Runnable> callerQueue) {
+    try {
+      while (done.getCount() > 0L) {
+        callerQueue.take().run();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("task graph interrupted", e);
+    }
+  }
+
+  private static RuntimeException propagate(final String name, final Throwable failure) {
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else {
+      throw new RuntimeException("task failed: " + name, failure);
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%s[%s]", super.toString(), this.nodes.values());
+  }
+
+  private final class Node implements Runnable {
+
+    private final String name;
+    private final Collection<String> requires;
+    private final Collection<String> provides;
+    private final Runnable work;
+    private final boolean onCaller;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final List<Node> dependents = new ArrayList<Node>();
+    private Set<Node> upstream;
+    private volatile Throwable failure;
+    private volatile boolean blocked;
+    private CountDownLatch done;
+    private BlockingQueue<Runnable> wakeUp;
+    private Executor exec;
+
+    Node(final String name, final Collection<String> requires, final Collection<String> provides,
+        final Runnable work, final boolean onCaller) {
+      this.name = name;
+      this.requires = new ArrayList<String>(requires);
+      this.provides = new ArrayList<String>(provides);
+      this.work = work;
+      this.onCaller = onCaller;
+    }
+
+    void start() {
+      if (this.blocked) {
+        ModulizerLog.log("skip task %s", this.name);
+        complete();
+      } else {
+        this.exec.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      final int span = StartupTrace.begin(TaskGraph.this.category, this.name);
+      try {
+        this.work.run();
+      } catch (final Throwable t) {
+        this.failure = t;
+        ModulizerLog.warn("task %s failed: %s", this.name, t);
+      } finally {
+        StartupTrace.end(span);
+        complete();
+      }
+    }
+
+    private void complete() {
+      final boolean failed = this.blocked || this.failure != null;
+      for (final Node d : this.dependents) {
+        if (failed) {
+          d.blocked = true;
+        }
+        if (d.pending.decrementAndGet() == 0) {
+          d.start();
+        }
+      }
+      this.done.countDown();
+      if (this.done.getCount() == 0L) {
+        this.wakeUp.add(NOOP);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s%s->%s", this.name, this.requires, this.provides);
+    }
+  }
+
+}
@@ -0,0 +1,38 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Looks up a virtual thread factory reflectively, so the bootstrap keeps running on JREs without Loom.
+ */
+final class VirtualThreads {
+
+  private static final ThreadFactory FACTORY = lookup();
+
+  private VirtualThreads() {
+    super();
+  }
+
+  /**
+   * @return a factory for virtual threads, {@code null} if the JRE has none or they are a disabled preview feature
+   */
+  static ThreadFactory factory() {
+    return FACTORY;
+  }
+
+  private static ThreadFactory lookup() {
+    try {
+      final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      final Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+      final Method name = ofVirtual.getMethod("name", String.class, long.class);
+      final Object named = name.invoke(builder, "modulizer virtual thread - ", 1L);
+      return (ThreadFactory) ofVirtual.getMethod("factory").invoke(named);
+    } catch (final Exception e) {
+      return null;
+    } catch (final LinkageError e) {
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,64 @@
+package ch.cmbntr.modulizer.bootstrap;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.cmbntr.modulizer.bootstrap.util.SystemPropertyHelper;
+
+public class HostTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Properties origProps;
+
+  @Before
+  public void snapshot() {
+    this.origProps = SystemPropertyHelper.snapshotProps();
+  }
+
+  @After
+  public void restore() {
+    System.setProperties(this.origProps);
+  }
+
+  @Test
+  public void testEachHostedAppGetsItsOwnAppDir() throws Exception {
+    final File dirA = new File(this.tmp.getRoot(), "dir-a");
+    final File dirB = new File(this.tmp.getRoot(), "dir-b");
+    final File appA = launcher("app-a", dirA);
+    final File appB = launcher("app-b", dirB);
+
+    Host.main(new String[] { appA.getPath(), appB.getPath() });
+
+    assertTrue(dirA.isDirectory());
+    assertTrue(dirB.isDirectory());
+  }
+
+  private File launcher(final String appId, final File appDir) throws IOException {
+    final File dir = this.tmp.newFolder(appId);
+    final Properties config = new Properties();
+    config.setProperty(BootstrapContext.CONFIG_KEY_APP_ID, appId);
+    config.setProperty(BootstrapContext.CONFIG_KEY_APP_DIR, appDir.getPath());
+    config.setProperty(BootstrapContext.CONFIG_KEY_HASH_CACHE, "none");
+    config.setProperty(BootstrapContext.CONFIG_KEY_PRELOAD_PROFILE, "none");
+    final FileOutputStream out = new FileOutputStream(new File(dir, BootstrapContext.CONFIG_NAME_COMPACT.substring(1)));
+    try {
+      config.store(out, null);
+    } finally {
+      out.close();
+    }
+    return dir;
+  }
+
+}
@@ -0,0 +1,41 @@
+package ch.cmbntr.modulizer.bootstrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OperationsTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @After
+  public void unbind() {
+    BootstrapContext.RESOURCES.set(null);
+  }
+
+  @Test
+  public void testAppResourcesOfHostedApp() throws Exception {
+    final File config = new File(this.tmp.getRoot(), "bootstrap-config.properties");
+    final FileOutputStream out = new FileOutputStream(config);
+    out.write("a=b\n".getBytes("UTF-8"));
+    out.close();
+
+    assertNull(Operations.appResource(OperationsTest.class, BootstrapContext.CONFIG_NAME_COMPACT));
+
+    BootstrapContext.RESOURCES.set(new URLClassLoader(new URL[] { this.tmp.getRoot().toURI().toURL() }, null));
+    assertEquals(config.toURI().toURL(), Operations.appResource(OperationsTest.class,
+        BootstrapContext.CONFIG_NAME_COMPACT));
+    assertNull(Operations.appResource(OperationsTest.class, "/ch/cmbntr/modulizer/bootstrap/OperationsTest.class"));
+  }
+
+}
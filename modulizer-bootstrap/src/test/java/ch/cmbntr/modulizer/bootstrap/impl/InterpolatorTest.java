@@ -0,0 +1,70 @@
+package ch.cmbntr.modulizer.bootstrap.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class InterpolatorTest {
+
+  @Test
+  public void testCompile() {
+    final Interpolator.Template t = Interpolator.Template.compile("a${b}c%{d}${}e${f");
+    assertEquals(3, t.refs.length);
+    assertEquals("b", t.refs[0]);
+    assertEquals("d", t.refs[1]);
+    assertEquals("", t.refs[2]);
+    assertEquals("e${f", t.literals[3]);
+    assertEquals(0, Interpolator.Template.compile("plain $ % {x}").refs.length);
+  }
+
+  @Test
+  public void testNested() {
+    final Map<String, String> m = new HashMap<String, String>();
+    m.put("home", "/home/${user}");
+    m.put("user", "duke");
+    m.put("path", "${home}/a:${home}/b:%{missing}");
+    final Interpolator i = new Interpolator(m);
+    assertEquals("/home/duke/a:/home/duke/b:%{missing}", i.interpolate("path"));
+    assertNull(i.interpolate("missing"));
+  }
+
+  @Test
+  public void testCycles() {
+    final Map<String, String> m = new HashMap<String, String>();
+    m.put("self", "x ${self}");
+    m.put("a", "${b}");
+    m.put("b", "${a} and ${c}");
+    m.put("c", "c");
+    final Interpolator i = new Interpolator(m);
+    assertEquals("x ${self}", i.interpolate("self"));
+    assertEquals("${a} and c", i.interpolate("a"));
+  }
+
+  @Test
+  public void testDepthLimit() {
+    final Map<String, String> m = new HashMap<String, String>();
+    for (int d = 0; d < 2 * Interpolator.MAX_DEPTH; d++) {
+      m.put("k" + d, "${k" + (d + 1) + "}");
+    }
+    assertEquals("${k" + Interpolator.MAX_DEPTH + "}", new Interpolator(m).interpolate("k0"));
+  }
+
+  @Test
+  public void testTemplateFollowsValue() {
+    final Map<String, String> m = new HashMap<String, String>();
+    m.put("v", "plain");
+    final Interpolator i = new Interpolator(m);
+    assertSame(m.get("v"), i.interpolate("v"));
+    m.put("w", "1");
+    m.put("v", "${w}${w}");
+    assertEquals("11", i.interpolate("v"));
+    m.put("w", "2");
+    assertEquals("22", i.interpolate("v"));
+  }
+
+}
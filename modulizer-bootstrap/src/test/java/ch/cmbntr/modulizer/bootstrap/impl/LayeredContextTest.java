@@ -0,0 +1,112 @@
+package ch.cmbntr.modulizer.bootstrap.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class LayeredContextTest {
+
+  private static LayeredContext load(final String config) throws IOException {
+    return LayeredContext.empty().load(new ByteArrayInputStream(config.getBytes("ISO-8859-1")));
+  }
+
+  @Test
+  public void testLayers() throws IOException {
+    final String sysKey = "modulizer.test.layered";
+    System.setProperty(sysKey, "system");
+    try {
+      final LayeredContext ctx = load(sysKey + "=config\nplain=config\n");
+      assertEquals("config", ctx.get(sysKey));
+
+      ctx.addSystemProperties();
+      assertEquals("system", ctx.get(sysKey));
+      assertEquals(System.getProperty("java.home"), ctx.get("java.home"));
+
+      assertEquals("system", ctx.put(sysKey, "explicit"));
+      assertEquals("explicit", ctx.get(sysKey));
+      assertEquals("config", ctx.remove("plain"));
+      assertNull(ctx.get("plain"));
+      assertFalse(ctx.containsKey("plain"));
+      ctx.put("plain", "back");
+      assertEquals("back", ctx.get("plain"));
+    } finally {
+      System.clearProperty(sysKey);
+    }
+  }
+
+  @Test
+  public void testKeysWithPrefix() throws IOException {
+    final LayeredContext ctx = load("modulizer.filetree.copy.a.src=x\nmodulizer.filetree.copy.a.dest=y\n"
+        + "modulizer.filetree.copyx=z\nother=o\n");
+    ctx.put("modulizer.filetree.copy.b.src", "w");
+    ctx.remove("modulizer.filetree.copy.a.dest");
+    assertEquals(Arrays.asList("modulizer.filetree.copy.a.src", "modulizer.filetree.copy.b.src"),
+        Arrays.asList(ctx.keysWithPrefix("modulizer.filetree.copy.").toArray()));
+  }
+
+  @Test
+  public void testKeysWithPrefixOfSystemProperties() throws IOException {
+    final String prefix = "modulizer.test.prefixed.";
+    System.setProperty(prefix + "a", "1");
+    System.setProperty(prefix + "b", "2");
+    try {
+      final LayeredContext ctx = load("").addSystemProperties();
+      System.setProperty(prefix + "c", "3");
+      ctx.remove(prefix + "b");
+      assertEquals(Arrays.asList(prefix + "a", prefix + "c"), Arrays.asList(ctx.keysWithPrefix(prefix).toArray()));
+
+      System.clearProperty(prefix + "a");
+      assertEquals(Arrays.asList(prefix + "c"), Arrays.asList(ctx.keysWithPrefix(prefix).toArray()));
+    } finally {
+      System.clearProperty(prefix + "a");
+      System.clearProperty(prefix + "b");
+      System.clearProperty(prefix + "c");
+    }
+  }
+
+  @Test
+  public void testKeysWithPrefixSeesSystemPropertiesReplacedAtTheSameCount() throws IOException {
+    final String prefix = "modulizer.test.replaced.";
+    System.setProperty(prefix + "a", "1");
+    try {
+      final LayeredContext ctx = load("").addSystemProperties();
+      assertEquals(Arrays.asList(prefix + "a"), Arrays.asList(ctx.keysWithPrefix(prefix).toArray()));
+
+      final int count = System.getProperties().size();
+      System.clearProperty(prefix + "a");
+      System.setProperty(prefix + "b", "2");
+      assertEquals(count, System.getProperties().size());
+      assertEquals(Arrays.asList(prefix + "b"), Arrays.asList(ctx.keysWithPrefix(prefix).toArray()));
+    } finally {
+      System.clearProperty(prefix + "a");
+      System.clearProperty(prefix + "b");
+    }
+  }
+
+  @Test
+  public void testSnapshot() throws IOException {
+    final LayeredContext ctx = load("a=1\nb=2\n");
+    ctx.put("c", "3");
+    final Map<String, String> snapshot = ctx.snapshot();
+    ctx.put("a", "changed");
+    assertEquals("{a=1, b=2, c=3}", snapshot.toString());
+    assertEquals(3, ctx.size());
+    assertTrue(ctx.entrySet().contains(new SimpleEntry<String, String>("a", "changed")));
+  }
+
+  @Test
+  public void testInterpolate() throws IOException {
+    final LayeredContext ctx = load("foo=42\ntest=the answer is ${foo}\n");
+    assertEquals("the answer is 42", ctx.getInterpolated("test"));
+  }
+
+}
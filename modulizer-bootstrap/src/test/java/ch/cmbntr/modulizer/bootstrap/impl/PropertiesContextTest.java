@@ -3,6 +3,11 @@ package ch.cmbntr.modulizer.bootstrap.impl;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
 import org.junit.Test;
 
 public class PropertiesContextTest {
@@ -45,4 +50,22 @@ public class PropertiesContextTest {
     assertEquals("${flop} ${flop} ${unknown} ${flop} ${flop}", pc.getInterpolated("flipper2"));
   }
 
+  @Test
+  public void testCompactAndXMLAgree() throws IOException {
+    final Properties config = new Properties();
+    config.setProperty("modulizer.bootstrap.app.id", "demo");
+    config.setProperty("unicode", "\u00e4 ${foo} = :#!");
+    final ByteArrayOutputStream xml = new ByteArrayOutputStream();
+    config.storeToXML(xml, null);
+    final ByteArrayOutputStream compact = new ByteArrayOutputStream();
+    config.store(compact, null);
+
+    final PropertiesContext fromXML = PropertiesContext.empty().loadFromXML(new ByteArrayInputStream(xml.toByteArray()));
+    final PropertiesContext fromCompact = PropertiesContext.empty().load(
+        new ByteArrayInputStream(compact.toByteArray()));
+    assertEquals(config, fromCompact);
+    assertEquals(fromXML, fromCompact);
+    assertTrue(PropertiesContext.empty().load(null).isEmpty());
+  }
+
 }
@@ -0,0 +1,120 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.Test;
+
+public class AsyncLogTest {
+
+  private static class Collecting extends Handler {
+
+    final List<LogRecord> records = new CopyOnWriteArrayList<LogRecord>();
+
+    final CountDownLatch open = new CountDownLatch(0);
+
+    @Override
+    public void publish(final LogRecord r) {
+      try {
+        this.open.await();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      this.records.add(r);
+    }
+
+    @Override
+    public void flush() {
+      // nothing buffered
+    }
+
+    @Override
+    public void close() {
+      // nothing to release
+    }
+  }
+
+  private static final class Gated extends Collecting {
+
+    final CountDownLatch gate = new CountDownLatch(1);
+
+    @Override
+    public void publish(final LogRecord r) {
+      try {
+        this.gate.await();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      super.publish(r);
+    }
+  }
+
+  @Test
+  public void testWritesInOrder() {
+    final AsyncLog log = new AsyncLog();
+    final Collecting h = new Collecting();
+    log.add(h, false);
+    for (int i = 0; i < 3 * AsyncLog.CAPACITY; i++) {
+      log.publish(Level.FINE, "record " + i + " of test");
+    }
+    log.flush(10000L);
+    assertEquals(3 * AsyncLog.CAPACITY, h.records.size());
+    final LogRecord last = h.records.get(h.records.size() - 1);
+    assertEquals("record " + (3 * AsyncLog.CAPACITY - 1) + " of test", last.getMessage());
+    assertEquals(Level.FINE, last.getLevel());
+    assertEquals(Thread.currentThread().getId(), last.getThreadID());
+  }
+
+  @Test
+  public void testDropWhenFull() {
+    final AsyncLog log = new AsyncLog();
+    final Gated h = new Gated();
+    log.add(h, true);
+    for (int i = 0; i < 2 * AsyncLog.CAPACITY; i++) {
+      log.publish(Level.FINE, Integer.toString(i));
+    }
+    h.gate.countDown();
+    log.flush(10000L);
+    assertTrue(h.records.size() <= AsyncLog.CAPACITY + 2);
+    assertTrue(h.records.get(1).getMessage().startsWith("dropped "));
+  }
+
+  @Test
+  public void testFailingHandlerKeepsWriterAlive() {
+    final AsyncLog log = new AsyncLog();
+    final Collecting h = new Collecting() {
+      @Override
+      public void publish(final LogRecord r) {
+        if ("fail".equals(r.getMessage())) {
+          throw new AssertionError("broken handler");
+        }
+        super.publish(r);
+      }
+    };
+    log.add(h, false);
+    log.publish(Level.FINE, "fail");
+    for (int i = 0; i < 2 * AsyncLog.CAPACITY; i++) {
+      log.publish(Level.FINE, Integer.toString(i));
+    }
+    log.flush(10000L);
+    assertEquals(2 * AsyncLog.CAPACITY, h.records.size());
+  }
+
+  @Test
+  public void testBrokenTemplate() {
+    assertEquals("%d [x]", AsyncLog.formatMessage("%d", new Object[] { "x" }));
+  }
+
+  @Test
+  public void testBrokenTemplateDoesNotReachCaller() {
+    ModulizerLog.warn("broken template %d", "x");
+  }
+
+}
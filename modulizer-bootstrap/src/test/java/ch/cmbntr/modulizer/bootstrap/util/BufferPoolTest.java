@@ -0,0 +1,67 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+  @Test
+  public void testSizeClasses() {
+    final BufferPool pool = new BufferPool();
+    assertEquals(BufferPool.DEFAULT_SIZE, pool.aquire(-1).capacity());
+    assertEquals(8 * 1024, pool.aquire(100).capacity());
+    assertEquals(128 * 1024, pool.aquire(32 * 1024 + 1).capacity());
+    assertEquals(1024 * 1024, pool.aquire(Integer.MAX_VALUE).capacity());
+    assertTrue(pool.aquire(0).isDirect());
+  }
+
+  @Test
+  public void testReuse() {
+    final BufferPool pool = new BufferPool();
+    final ByteBuffer b = pool.aquire(100);
+    b.putInt(42);
+    pool.release(b);
+    assertEquals(b.capacity(), pool.idleBytes());
+
+    final ByteBuffer again = pool.aquire(200);
+    assertSame(b, again);
+    assertEquals(0, again.position());
+    assertEquals(0L, pool.idleBytes());
+    assertNotSame(b, pool.aquire(200));
+  }
+
+  @Test
+  public void testForeignBuffersAreDropped() {
+    final BufferPool pool = new BufferPool();
+    pool.release(ByteBuffer.allocate(8 * 1024));
+    pool.release(ByteBuffer.allocateDirect(1000));
+    assertEquals(0L, pool.idleBytes());
+  }
+
+  @Test
+  public void testBoundedFootprint() {
+    final BufferPool pool = new BufferPool();
+    final List<ByteBuffer> held = new ArrayList<ByteBuffer>();
+    for (int i = 0; i < 24; i++) {
+      held.add(pool.aquire(1024 * 1024));
+    }
+    for (final ByteBuffer b : held) {
+      pool.release(b);
+    }
+    assertEquals(BufferPool.MAX_IDLE_BYTES, pool.idleBytes());
+
+    pool.dispose();
+    assertEquals(0L, pool.idleBytes());
+    pool.release(ByteBuffer.allocateDirect(8 * 1024));
+    assertEquals(0L, pool.idleBytes());
+  }
+
+}
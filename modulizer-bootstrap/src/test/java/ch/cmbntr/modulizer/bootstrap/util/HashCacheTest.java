@@ -0,0 +1,121 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HashCacheTest {
+
+  private static final String ZEROS_SHA1 = "75a289eec0a33499fbaa6e89081c0efa604fbdd4";
+
+  private static final long MODIFIED = 1000000000000L;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @After
+  public void uninstall() {
+    HashCache.uninstall();
+  }
+
+  @Test
+  public void testPersistentLookup() throws Exception {
+    final File index = new File(this.tmp.getRoot(), "hashes.dat");
+    final File f = this.tmp.newFile();
+    write(f, 8000);
+
+    HashCache.install(HashCache.open(index));
+    assertEquals(ZEROS_SHA1, ModulizerIO.sha1(f).toString());
+    assertEquals(1, HashCache.current().size());
+    HashCache.uninstall();
+    assertTrue(index.isFile());
+
+    final HashCache reopened = HashCache.open(index);
+    assertEquals(ZEROS_SHA1, reopened.lookup(f, HashCache.stat(f)));
+  }
+
+  @Test
+  public void testChangedFileIsRehashed() throws Exception {
+    final File f = this.tmp.newFile();
+    write(f, 8000);
+    final HashCache cache = HashCache.open(new File(this.tmp.getRoot(), "hashes.dat"));
+    HashCache.install(cache);
+    assertEquals(ZEROS_SHA1, ModulizerIO.sha1(f).toString());
+
+    write(f, 0);
+    assertNull(cache.lookup(f, HashCache.stat(f)));
+    assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", ModulizerIO.sha1(f).toString());
+  }
+
+  @Test
+  public void testExplicitCacheIsNotInstalled() throws Exception {
+    final File f = this.tmp.newFile();
+    write(f, 8000);
+    final HashCache cache = HashCache.open(new File(this.tmp.getRoot(), "hashes.dat"));
+    assertEquals(ZEROS_SHA1, ModulizerIO.sha1(f, cache).toString());
+    assertEquals(1, cache.size());
+    assertNull(HashCache.current());
+  }
+
+  @Test
+  public void testIntegrityCheckTrustsUnchangedStat() throws Exception {
+    final File f = new File(this.tmp.getRoot(), ZEROS_SHA1 + ".jar");
+    write(f, 8000);
+    assertTrue(f.setLastModified(MODIFIED));
+    final HashCache cache = HashCache.open(new File(this.tmp.getRoot(), "hashes.dat"));
+    HashCache.install(cache);
+    assertTrue(ModulizerIO.verifySHA1Named(f));
+    assertEquals(ZEROS_SHA1, cache.lookup(f, HashCache.stat(f)));
+
+    tamperKeepingStat(f);
+    assertTrue(ModulizerIO.verifySHA1Named(f));
+  }
+
+  @Test
+  public void testIntegrityCheckHashesContentIfRequested() throws Exception {
+    final File f = new File(this.tmp.getRoot(), ZEROS_SHA1 + ".jar");
+    write(f, 8000);
+    assertTrue(f.setLastModified(MODIFIED));
+    final HashCache cache = HashCache.open(new File(this.tmp.getRoot(), "hashes.dat"));
+    cache.setVerifyContent(true);
+    HashCache.install(cache);
+    assertEquals(ZEROS_SHA1, ModulizerIO.sha1(f).toString());
+    assertTrue(ModulizerIO.verifySHA1Named(f));
+
+    tamperKeepingStat(f);
+    assertEquals(ZEROS_SHA1, cache.lookup(f, HashCache.stat(f)));
+    assertFalse(ModulizerIO.verifySHA1Named(f));
+  }
+
+  private static void tamperKeepingStat(final File f) throws IOException {
+    final FileOutputStream fos = new FileOutputStream(f);
+    try {
+      final byte[] tampered = new byte[8000];
+      tampered[0] = 1;
+      fos.write(tampered);
+    } finally {
+      fos.close();
+    }
+    assertTrue(f.setLastModified(MODIFIED));
+  }
+
+  private static void write(final File f, final int numZeros) throws IOException {
+    final FileOutputStream fos = new FileOutputStream(f);
+    try {
+      fos.write(new byte[numZeros]);
+    } finally {
+      fos.close();
+    }
+  }
+
+}
@@ -0,0 +1,28 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.cmbntr.modulizer.bootstrap.util.HeapTrimmer.Sample;
+
+public class HeapTrimmerTest {
+
+  @Test
+  public void testReclaimable() {
+    assertEquals(300L, new Sample(1000L, 700L, 0L, 0L).reclaimable());
+    assertEquals(0L, new Sample(700L, 1000L, 0L, 0L).reclaimable());
+  }
+
+  @Test
+  public void testIdle() {
+    final Sample prev = new Sample(0L, 0L, 5L, 10000000L);
+    assertFalse(prev.isIdleSince(null));
+    assertTrue(new Sample(0L, 0L, 5L, 10000000L + HeapTrimmer.IDLE_ALLOCATION_BYTES / 2).isIdleSince(prev));
+    assertFalse(new Sample(0L, 0L, 5L, 10000000L + HeapTrimmer.IDLE_ALLOCATION_BYTES).isIdleSince(prev));
+    assertFalse(new Sample(0L, 0L, 6L, 10000000L).isIdleSince(prev));
+  }
+
+}
@@ -7,6 +7,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -29,6 +33,32 @@ public class ModulizerIOTest {
     assertEquals("75a289eec0a33499fbaa6e89081c0efa604fbdd4.tmp", ModulizerIO.sha1Name(someZeros));
   }
 
+  @Test
+  public void testSHA1Mapped() throws Exception {
+    final int size = (int) Hashing.MAP_THRESHOLD * 3 + 17;
+    final File large = tmpFile(null, size);
+    final MessageDigest reference = MessageDigest.getInstance("SHA-1");
+    reference.update(new byte[size]);
+    final String expected = Hashing.formatAsHex(reference.digest()).toString();
+
+    assertEquals(expected, ModulizerIO.sha1(large).toString());
+    assertEquals(expected, ModulizerIO.sha1URI(large.toURI()).toString());
+    assertEquals(expected, ModulizerIO.sha1URI(new URI("jar:" + zipped(large) + "!/entry")).toString());
+  }
+
+  private URI zipped(final File f) throws IOException {
+    final File zip = this.tmp.newFile();
+    final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+    try {
+      out.putNextEntry(new ZipEntry("entry"));
+      out.write(new byte[(int) f.length()]);
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+    return zip.toURI();
+  }
+
   private File tmpFile(final String name, final int numZeros) throws IOException, FileNotFoundException {
     final File f = name == null ? this.tmp.newFile() : this.tmp.newFile(name);
     if (numZeros > 0) {
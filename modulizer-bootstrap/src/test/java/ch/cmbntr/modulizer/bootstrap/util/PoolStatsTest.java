@@ -0,0 +1,84 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
+
+public class PoolStatsTest {
+
+  @Test
+  public void testStripedCounter() throws Exception {
+    final StripedCounter c = new StripedCounter();
+    final Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            c.increment();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (final Thread t : threads) {
+      t.join();
+    }
+    assertEquals(40000L, c.sum());
+  }
+
+  @Test
+  public void testRegistration() throws Exception {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    final PoolStats first = new PoolStats(new BufferPool());
+    PoolStats.register(first);
+    first.recordCopy(100L, 5L);
+    first.recordCopy(20L, 5L);
+    final ObjectName name = first.getObjectName();
+    assertTrue(server.isRegistered(name));
+    assertEquals(120L, server.getAttribute(name, "BytesCopied"));
+    assertEquals(2L, server.getAttribute(name, "Copies"));
+
+    first.dispose();
+    assertTrue(server.isRegistered(name));
+    assertEquals(Boolean.TRUE, server.getAttribute(name, "Disposed"));
+
+    final PoolStats second = new PoolStats(new BufferPool());
+    PoolStats.register(second);
+    assertTrue(server.isRegistered(name));
+    assertTrue(server.isRegistered(second.getObjectName()));
+
+    second.dispose();
+    assertFalse(server.isRegistered(name));
+    assertTrue(server.isRegistered(second.getObjectName()));
+  }
+
+  @Test
+  public void testRetentionDelay() throws Exception {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    System.setProperty(BootstrapContext.CONFIG_KEY_JMX_RETAIN_MILLIS, "0");
+    try {
+      final PoolStats first = new PoolStats(new BufferPool());
+      PoolStats.register(first);
+      first.dispose();
+
+      final PoolStats second = new PoolStats(new BufferPool());
+      PoolStats.register(second);
+      assertFalse(server.isRegistered(first.getObjectName()));
+      assertTrue(server.isRegistered(second.getObjectName()));
+      second.dispose();
+    } finally {
+      System.clearProperty(BootstrapContext.CONFIG_KEY_JMX_RETAIN_MILLIS);
+    }
+  }
+
+}
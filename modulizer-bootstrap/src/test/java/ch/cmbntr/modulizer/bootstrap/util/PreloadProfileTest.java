@@ -0,0 +1,78 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.junit.Test;
+
+public class PreloadProfileTest {
+
+  private static File write(final String... lines) throws IOException {
+    final File f = File.createTempFile("preload-profile", ".txt");
+    f.deleteOnExit();
+    final Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+    try {
+      for (final String l : lines) {
+        w.write(l);
+        w.write('\n');
+      }
+    } finally {
+      w.close();
+    }
+    return f;
+  }
+
+  @Test
+  public void testLoad() throws IOException {
+    final PreloadProfile profile = PreloadProfile.open(write("# modulizer preload profile v1",
+        "0\tboot\tjava.lang.String", "2\tsystem\torg.junit.Test", "99\tmodule:a.b:main\ta.b.C",
+        "1\tsystem\tgone.Before", "!\tsystem\tgone.Before", "garbage"));
+    assertEquals(3, profile.size());
+    assertEquals("java.lang.String", profile.slice(0).get(0)[1]);
+    assertEquals(0, profile.slice(1).size());
+    assertEquals("a.b.C", profile.slice(PreloadProfile.SLICES - 1).get(0)[1]);
+    assertTrue(profile.hasFailed("system", "gone.Before"));
+  }
+
+  @Test
+  public void testIgnoreForeignFormat() throws IOException {
+    assertEquals(0, PreloadProfile.open(write("0\tboot\tjava.lang.String")).size());
+    assertEquals(0, PreloadProfile.open(new File("does-not-exist.txt")).size());
+  }
+
+  @Test
+  public void testFailuresAreRemembered() throws IOException {
+    final PreloadProfile profile = PreloadProfile.open(write("# modulizer preload profile v1",
+        "0\tsystem\tjava.util.List", "0\tsystem\tno.such.Clazz", "0\tmodule:x:main\tx.Y"));
+    final PreloadProfile.LoaderResolver failing = new PreloadProfile.LoaderResolver() {
+      @Override
+      public ClassLoader resolve(final String loaderKey) throws Exception {
+        throw new IllegalStateException(loaderKey);
+      }
+    };
+    profile.preloadSlice(profile.slice(0).subList(0, 2), null);
+    profile.preloadSlice(profile.slice(0).subList(2, 3), failing);
+    assertFalse(profile.hasFailed("system", "java.util.List"));
+    assertTrue(profile.hasFailed("system", "no.such.Clazz"));
+    assertTrue(profile.hasFailed("module:x:main", "x.Y"));
+  }
+
+  @Test
+  public void testFailuresArePersistedWithoutRecording() throws IOException {
+    final File f = write("# modulizer preload profile v1", "0\tsystem\tjava.util.List", "1\tsystem\tno.such.Clazz");
+    PreloadProfile.open(f).preloadInline(null, null);
+
+    final PreloadProfile reopened = PreloadProfile.open(f);
+    assertEquals(1, reopened.size());
+    assertEquals("java.util.List", reopened.slice(0).get(0)[1]);
+    assertTrue(reopened.hasFailed("system", "no.such.Clazz"));
+  }
+
+}
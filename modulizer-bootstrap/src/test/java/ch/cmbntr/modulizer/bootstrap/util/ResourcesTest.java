@@ -0,0 +1,78 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
+import ch.cmbntr.modulizer.bootstrap.impl.PropertiesContext;
+import ch.cmbntr.modulizer.bootstrap.util.Resources.Pool;
+
+public class ResourcesTest {
+
+  @After
+  public void reset() {
+    System.clearProperty(BootstrapContext.CONFIG_KEY_EXECUTOR);
+    Resources.dispose(Resources.getPoolHandle());
+  }
+
+  @Test
+  public void testForkJoinBackend() throws Exception {
+    assertEquals("fork-join", runOn(BootstrapContext.EXECUTOR_FORK_JOIN, false));
+    assertTrue(runOn(BootstrapContext.EXECUTOR_FORK_JOIN, true).startsWith("modulizer thread"));
+  }
+
+  @Test
+  public void testUnavailableBackendFallsBack() throws Exception {
+    assertTrue(runOn("unknown", false).startsWith("modulizer thread"));
+    assertTrue(runOn(BootstrapContext.EXECUTOR_VIRTUAL, false).startsWith("modulizer thread"));
+  }
+
+  @Test
+  public void testBackendFromConfigLoadedAfterPool() throws Exception {
+    Resources.dispose(Resources.getPoolHandle());
+    final Pool pool = Resources.getPoolHandle();
+    final BootstrapContext ctx = PropertiesContext.empty();
+    ctx.put(BootstrapContext.CONFIG_KEY_EXECUTOR, BootstrapContext.EXECUTOR_FORK_JOIN);
+    BootstrapContext.CURRENT.set(ctx);
+    try {
+      assertTrue(Resources.submit(pool, new Callable<String>() {
+        @Override
+        public String call() {
+          return Thread.currentThread().getName();
+        }
+      }).get().startsWith("modulizer fork-join"));
+    } finally {
+      BootstrapContext.CURRENT.set(null);
+    }
+  }
+
+  private static String runOn(final String backend, final boolean blockable) throws Exception {
+    System.setProperty(BootstrapContext.CONFIG_KEY_EXECUTOR, backend);
+    Resources.dispose(Resources.getPoolHandle());
+    final Pool pool = Resources.getPoolHandle();
+    final Callable<String> threadName = new Callable<String>() {
+      @Override
+      public String call() {
+        final String name = Thread.currentThread().getName();
+        return name.startsWith("modulizer fork-join") ? "fork-join" : name;
+      }
+    };
+    if (blockable) {
+      final ScheduledExecutorService exec = pool.aquireBlockableExec();
+      try {
+        return exec.schedule(threadName, 1L, TimeUnit.MILLISECONDS).get();
+      } finally {
+        pool.releaseBlockableExec(exec);
+      }
+    }
+    return Resources.submit(pool, threadName).get();
+  }
+
+}
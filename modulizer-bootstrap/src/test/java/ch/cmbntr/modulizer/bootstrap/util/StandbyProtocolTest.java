@@ -0,0 +1,74 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.cmbntr.modulizer.bootstrap.util.StandbyProtocol.Endpoint;
+import ch.cmbntr.modulizer.bootstrap.util.StandbyProtocol.Request;
+
+public class StandbyProtocolTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testRequestRoundTrip() throws Exception {
+    final Map<String, String> env = new LinkedHashMap<String, String>();
+    env.put("HOME", "/home/\u00e4");
+    env.put("EMPTY", "");
+    final byte[] wire = write("s3cret", new Request("/work", env, "a", "b c"));
+
+    final Request r = read(wire, "s3cret");
+    assertEquals("/work", r.workingDir);
+    assertEquals(env, r.env);
+    assertArrayEquals(new String[] { "a", "b c" }, r.args);
+  }
+
+  @Test
+  public void testWrongSecretIsRejected() throws Exception {
+    final byte[] wire = write("guess", new Request("/", new LinkedHashMap<String, String>()));
+    try {
+      read(wire, "s3cret");
+      fail("accepted a wrong secret");
+    } catch (final IOException e) {
+      assertEquals("standby secret mismatch", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testPortFile() throws Exception {
+    final File f = new File(this.tmp.getRoot(), StandbyProtocol.PORT_FILE);
+    assertNull(StandbyProtocol.readPortFile(f));
+
+    StandbyProtocol.writePortFile(f, new Endpoint(4711, "s3cret"));
+    final Endpoint e = StandbyProtocol.readPortFile(f);
+    assertEquals(4711, e.port);
+    assertEquals("s3cret", e.secret);
+  }
+
+  private static byte[] write(final String secret, final Request r) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    StandbyProtocol.writeRequest(new DataOutputStream(bytes), secret, r);
+    return bytes.toByteArray();
+  }
+
+  private static Request read(final byte[] wire, final String secret) throws IOException {
+    return StandbyProtocol.readRequest(new DataInputStream(new ByteArrayInputStream(wire)), secret);
+  }
+
+}
@@ -0,0 +1,32 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class StartupTraceTest {
+
+  @Test
+  public void testReport() {
+    final int outer = StartupTrace.begin(StartupTrace.CATEGORY_BOOTSTRAP, "outer");
+    final int inner = StartupTrace.begin(StartupTrace.CATEGORY_OPERATION, "in\"ner");
+    StartupTrace.end(inner);
+    final int next = StartupTrace.next(outer, StartupTrace.CATEGORY_BOOTSTRAP, "next");
+
+    final String report = StartupTrace.report(Collections.singletonMap("app", "test"));
+    assertTrue(report, report.startsWith("{\"displayTimeUnit\":\"ns\",\"traceEvents\":["));
+    assertTrue(report, report.contains("\"cat\":\"bootstrap\",\"name\":\"outer\""));
+    assertTrue(report, report.contains("\"name\":\"in\\\"ner\""));
+    assertTrue(report, report.contains("\"name\":\"next\""));
+    assertTrue(report, report.contains("\"unfinished\":true"));
+    assertTrue(report, report.contains("\"name\":\"thread_name\""));
+    assertTrue(report, report.endsWith(",\"app\":\"test\"}}\n"));
+
+    StartupTrace.end(next);
+    StartupTrace.end(next);
+    StartupTrace.end(-1);
+  }
+
+}
@@ -0,0 +1,30 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SystemPropertyHelperTest {
+
+  @Test
+  public void testCommandLineValueIsNotExported() {
+    final String given = "modulizer.test.given";
+    final String added = "modulizer.test.added";
+    System.setProperty(given, "same");
+    try {
+      SystemPropertyHelper.export(given, "same");
+      SystemPropertyHelper.export(added, "value");
+      assertFalse(SystemPropertyHelper.isExported(given, "same"));
+      assertTrue(SystemPropertyHelper.isExported(added, "value"));
+      assertFalse(SystemPropertyHelper.isExported(added, "other"));
+
+      SystemPropertyHelper.export(given, "replaced");
+      assertTrue(SystemPropertyHelper.isExported(given, "replaced"));
+    } finally {
+      System.clearProperty(given);
+      System.clearProperty(added);
+    }
+  }
+
+}
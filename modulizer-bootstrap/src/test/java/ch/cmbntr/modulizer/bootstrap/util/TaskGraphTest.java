@@ -0,0 +1,131 @@
+package ch.cmbntr.modulizer.bootstrap.util;
+
+import static ch.cmbntr.modulizer.bootstrap.util.TaskGraph.keys;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class TaskGraphTest {
+
+  @Test
+  public void testDependencyOrder() {
+    final List<String> trail = new CopyOnWriteArrayList<String>();
+    final TaskGraph g = TaskGraph.create("test");
+    g.add("d", keys("b", "c"), keys(), record(trail, "d"));
+    g.add("b", keys("a"), keys("b"), record(trail, "b"));
+    g.add("c", keys("a"), keys("c"), record(trail, "c"));
+    g.add("a", keys(), keys("a"), record(trail, "a"));
+    g.run();
+
+    assertEquals(4, trail.size());
+    assertEquals("a", trail.get(0));
+    assertEquals("d", trail.get(3));
+  }
+
+  @Test
+  public void testFailureSkipsDependents() {
+    final List<String> trail = new CopyOnWriteArrayList<String>();
+    final TaskGraph g = TaskGraph.create("test");
+    g.add("a", keys(), keys("a"), new Runnable() {
+      @Override
+      public void run() {
+        throw new IllegalArgumentException("boom");
+      }
+    });
+    g.add("b", keys("a"), keys("b"), record(trail, "b"));
+    g.add("c", keys("b"), keys(), record(trail, "c"));
+    g.add("independent", keys(), keys(), record(trail, "independent"));
+    try {
+      g.run();
+      fail("expected failure");
+    } catch (final IllegalArgumentException e) {
+      assertEquals("boom", e.getMessage());
+    }
+    assertTrue(trail.contains("independent"));
+    assertFalse(trail.contains("b"));
+    assertFalse(trail.contains("c"));
+  }
+
+  @Test
+  public void testCallerTasksRunOnCaller() {
+    final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+    final TaskGraph g = TaskGraph.create("test");
+    g.add("a", keys(), keys("a"), recordThread(threads));
+    g.addOnCaller("b", keys("a"), keys("b"), recordThread(threads));
+    g.add("c", keys("b"), keys(), recordThread(threads));
+    g.run();
+
+    assertEquals(3, threads.size());
+    assertNotSame(Thread.currentThread(), threads.get(0));
+    assertSame(Thread.currentThread(), threads.get(1));
+    assertNotSame(Thread.currentThread(), threads.get(2));
+  }
+
+  @Test(timeout = 10000L)
+  public void testTasksBlockingOnEachOtherDoNotStarve() {
+    final int width = 4 * Runtime.getRuntime().availableProcessors() + 2;
+    final CountDownLatch all = new CountDownLatch(width);
+    final TaskGraph g = TaskGraph.create("test");
+    for (int i = 0; i < width; i++) {
+      g.add("t" + i, keys(), keys(), new Runnable() {
+        @Override
+        public void run() {
+          all.countDown();
+          try {
+            all.await();
+          } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+    }
+    g.run();
+    assertEquals(0L, all.getCount());
+  }
+
+  @Test
+  public void testEmpty() {
+    TaskGraph.create("test").run();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testMissingInput() {
+    TaskGraph.create("test").add("a", keys("missing"), keys(), record(null, "a")).run();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testCycle() {
+    final TaskGraph g = TaskGraph.create("test");
+    g.add("a", keys("b"), keys("a"), record(null, "a"));
+    g.add("b", keys("a"), keys("b"), record(null, "b"));
+    g.run();
+  }
+
+  private static Runnable recordThread(final List<Thread> threads) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        threads.add(Thread.currentThread());
+      }
+    };
+  }
+
+  private static Runnable record(final List<String> trail, final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        trail.add(name);
+      }
+    };
+  }
+
+}
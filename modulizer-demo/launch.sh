@@ -1,6 +1,7 @@
 #!/bin/bash
 
 L=target/modulizer-demo-1.0.0-SNAPSHOT-launcher.jar
+CDS=target/modulizer-demo-1.0.0-SNAPSHOT-launcher.jsa
 
 OPTS="-DNOmodulizer.logging=file:modulizer.log|socket://localhost:7777 -Dlogging.level=WARN"
 
@@ -15,5 +16,9 @@ case "$OSTYPE" in
     ;;
 esac
 
+# archive trained by 'mvn package modulizer:cds', needs JDK 13+
+if [ -f "$CDS" ]; then
+  OPTS="$OPTS -XX:SharedArchiveFile=$CDS -Xshare:auto"
+fi
 
 java $OPTS -jar "$L" $@
@@ -0,0 +1,134 @@
+package ch.cmbntr.modulizer.filetree;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
+import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog;
+import ch.cmbntr.modulizer.bootstrap.util.Resources;
+
+/**
+ * Hashes every file of a launched work tree against its {@link TreeManifest} on a daemon thread of minimal priority,
+ * throttled to a throughput cap so the app starting meanwhile keeps the disk. Mismatches are not repaired under the
+ * running app, they are recorded in a repair marker the next start repairs before launching, and reported in the
+ * {@link BootstrapContext#FILETREE_VERIFY_RESULT} system property.
+ */
+final class BackgroundVerifier implements Runnable {
+
+  static final String REPAIR_MARKER = "modulizer-repair";
+
+  private static final String UTF8 = "UTF-8";
+
+  private final File gitDir;
+  private final long bytesPerSecond;
+
+  private BackgroundVerifier(final File gitDir, final long bytesPerSecond) {
+    this.gitDir = gitDir;
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  static void start(final Repository repo, final long bytesPerSecond) {
+    final Thread t = Resources.newThread("modulizer filetree verifier", new BackgroundVerifier(repo.getDirectory(),
+        bytesPerSecond));
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
+  }
+
+  @Override
+  public void run() {
+    try {
+      final Repository repo = new FileRepositoryBuilder().setGitDir(this.gitDir).setMustExist(true).build();
+      try {
+        final TreeManifest manifest = TreeManifest.read(repo);
+        if (manifest == null) {
+          return;
+        }
+        final long start = System.currentTimeMillis();
+        final List<String> mismatches = manifest.findMismatches(repo.getWorkTree(), this.bytesPerSecond);
+        if (mismatches.isEmpty()) {
+          System.setProperty(BootstrapContext.FILETREE_VERIFY_RESULT, "ok");
+          ModulizerLog.log("verified %d files of %s in %dms", manifest.size(), repo.getWorkTree(),
+              System.currentTimeMillis() - start);
+        } else {
+          writeRepairMarker(this.gitDir, mismatches);
+          System.setProperty(BootstrapContext.FILETREE_VERIFY_RESULT, "repair-pending:" + mismatches.size());
+          ModulizerLog.warn("%d files of %s differ, repairing on the next start", mismatches.size(),
+              repo.getWorkTree());
+        }
+      } finally {
+        repo.close();
+      }
+    } catch (final IOException e) {
+      ModulizerLog.warn("failed to verify file tree: %s", e);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  static boolean hasRepairMarker(final Repository repo) {
+    return new File(repo.getDirectory(), REPAIR_MARKER).isFile();
+  }
+
+  /**
+   * @return the paths recorded by the last verification, empty if there is no marker
+   */
+  static List<String> readRepairMarker(final Repository repo) throws IOException {
+    final List<String> paths = new ArrayList<String>();
+    final File marker = new File(repo.getDirectory(), REPAIR_MARKER);
+    if (!marker.isFile()) {
+      return paths;
+    }
+    final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(marker), UTF8));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.length() > 0) {
+          paths.add(line);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return paths;
+  }
+
+  static void deleteRepairMarker(final Repository repo) throws IOException {
+    final File marker = new File(repo.getDirectory(), REPAIR_MARKER);
+    if (marker.exists() && !marker.delete()) {
+      throw new IOException("could not delete " + marker);
+    }
+  }
+
+  /**
+   * Writes the marker through a temporary file, a start never reads a partial list.
+   */
+  private static void writeRepairMarker(final File gitDir, final List<String> paths) throws IOException {
+    final File marker = new File(gitDir, REPAIR_MARKER);
+    final File tmp = new File(gitDir, REPAIR_MARKER + ".tmp");
+    final Writer out = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+    try {
+      for (final String p : paths) {
+        out.write(p);
+        out.write('\n');
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(marker) && !(marker.delete() && tmp.renameTo(marker))) {
+      throw new IOException("failed to write " + marker);
+    }
+  }
+
+}
@@ -0,0 +1,1161 @@
+package ch.cmbntr.modulizer.filetree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+
+import ch.cmbntr.modulizer.bootstrap.util.Resources;
+
+/**
+ * Imports a complete bundle into a repository, replacing the single-threaded pack indexing of a jgit fetch by a
+ * pipeline: a read-ahead thread reads the bundle while the pack is inflated and written to disk, the ids of whole
+ * objects are hashed on the pool as they arrive, and once the pack is complete its delta chains are resolved in
+ * parallel, one task per chain root. Objects above the stream threshold are never held in memory as a whole, they are
+ * hashed while inflating and, where deltas are based on them, spilled to temporary files next to the pack. The pack
+ * index is written in the version 2 format jgit reads. Thin bundles, i.e. bundles with prerequisites, are not
+ * supported.
+ */
+final class BundleImport {
+
+  private static final String BUNDLE_HEADER = "# v2 git bundle";
+
+  private static final int BUFFER_SIZE = 65536;
+
+  private static final int READ_AHEAD_CHUNKS = 16;
+
+  private static final int HASH_BATCH_BYTES = 1024 * 1024;
+
+  private static final int MIN_ROOT_BATCH = 64;
+
+  static final int STREAM_THRESHOLD = 4 * 1024 * 1024;
+
+  private static final int IDX_MAGIC = 0xff744f63;
+
+  private static final Comparator<Entry> BY_ID = new Comparator<Entry>() {
+    @Override
+    public int compare(final Entry a, final Entry b) {
+      return a.id.compareTo(b.id);
+    }
+  };
+
+  private final File packDir;
+  private final int streamThreshold;
+  private final List<Future<Void>> pending = new ArrayList<Future<Void>>();
+  private final Semaphore hashSlots = new Semaphore(2 * Runtime.getRuntime().availableProcessors() + 2);
+
+  private Entry[] entries;
+  private byte[] packChecksum;
+
+  BundleImport(final Repository repo, final int streamThreshold) {
+    this.packDir = new File(repo.getDirectory(), "objects/pack");
+    this.streamThreshold = streamThreshold;
+  }
+
+  /**
+   * @return the id the bundle provides for the given ref, all objects reachable from it are in the repository
+   */
+  static ObjectId fetch(final Repository repo, final URI bundle, final String refName) throws IOException {
+    return new BundleImport(repo, STREAM_THRESHOLD).run(bundle, refName);
+  }
+
+  ObjectId run(final URI bundle, final String refName) throws IOException {
+    final File tmp = File.createTempFile("incoming_", ".pack", mkdirs());
+    try {
+      final PackInput in = new PackInput(new ReadAhead(bundle.toURL().openStream()));
+      final ObjectId tip;
+      try {
+        tip = readHeader(in, refName, bundle);
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+        try {
+          in.out = out;
+          scan(in);
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+      awaitPending("failed to hash bundle objects");
+      final RandomAccessFile pack = new RandomAccessFile(tmp, "r");
+      try {
+        resolveDeltas(pack.getChannel());
+      } finally {
+        pack.close();
+      }
+      store(tmp);
+      return tip;
+    } finally {
+      if (tmp.exists() && !tmp.delete()) {
+        tmp.deleteOnExit();
+      }
+    }
+  }
+
+  /**
+   * @return the number of objects of the given pack type in the last imported pack
+   */
+  int count(final int kind) {
+    int n = 0;
+    for (final Entry e : this.entries) {
+      if (e.kind == kind) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  private File mkdirs() throws IOException {
+    if (!this.packDir.isDirectory() && !this.packDir.mkdirs()) {
+      throw new IOException("could not create " + this.packDir);
+    }
+    return this.packDir;
+  }
+
+  private static ObjectId readHeader(final PackInput in, final String refName, final URI bundle) throws IOException {
+    if (!BUNDLE_HEADER.equals(in.readLine())) {
+      throw new IOException("not a v2 bundle: " + bundle);
+    }
+    ObjectId tip = null;
+    for (String line = in.readLine(); line.length() > 0; line = in.readLine()) {
+      if (line.charAt(0) == '-') {
+        throw new IOException("thin bundle " + bundle + " requires " + line.substring(1));
+      }
+      final int sep = line.indexOf(' ');
+      if (sep == Constants.OBJECT_ID_STRING_LENGTH && refName.equals(line.substring(sep + 1))) {
+        tip = ObjectId.fromString(line.substring(0, sep));
+      }
+    }
+    if (tip == null) {
+      throw new IOException("missing ref " + refName + " in " + bundle);
+    }
+    return tip;
+  }
+
+  /**
+   * Writes the pack while inflating it object by object, the inflated whole objects are handed to the pool for
+   * hashing, or hashed right away while inflating if they are too large to hold. The deltas are only skipped, their
+   * bases may not be hashed yet.
+   */
+  private void scan(final PackInput in) throws IOException {
+    final byte[] hdr = new byte[12];
+    in.readFully(hdr, 12);
+    final ByteBuffer h = ByteBuffer.wrap(hdr);
+    final int version = h.getInt(4);
+    if (h.getInt(0) != 0x5041434b || version != 2 && version != 3) {
+      throw new IOException("unsupported pack header");
+    }
+    final long count = h.getInt(8) & 0xffffffffL;
+    if (count > Integer.MAX_VALUE) {
+      throw new IOException("too many objects: " + count);
+    }
+    this.entries = new Entry[(int) count];
+
+    final List<Entry> batch = new ArrayList<Entry>();
+    final List<byte[]> batchData = new ArrayList<byte[]>();
+    int batchBytes = 0;
+    for (int n = 0; n < this.entries.length; n++) {
+      final Entry e = new Entry(in.position());
+      in.crc.reset();
+      int c = in.readByte();
+      e.kind = (c >> 4) & 7;
+      long size = c & 15;
+      for (int shift = 4; (c & 0x80) != 0; shift += 7) {
+        c = in.readByte();
+        size += (long) (c & 0x7f) << shift;
+      }
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("object too large at offset " + e.offset);
+      }
+      e.size = (int) size;
+      switch (e.kind) {
+      case Constants.OBJ_COMMIT:
+      case Constants.OBJ_TREE:
+      case Constants.OBJ_BLOB:
+      case Constants.OBJ_TAG:
+        e.type = e.kind;
+        e.dataStart = in.position();
+        if (e.size > this.streamThreshold) {
+          final MessageDigest md = digestFor(e.type, e.size);
+          in.inflate(null, e.size, md);
+          e.id = ObjectId.fromRaw(md.digest());
+          break;
+        }
+        final byte[] data = new byte[e.size];
+        in.inflate(data, e.size, null);
+        batch.add(e);
+        batchData.add(data);
+        batchBytes += e.size;
+        break;
+      case Constants.OBJ_OFS_DELTA:
+        c = in.readByte();
+        long ofs = c & 127;
+        while ((c & 128) != 0) {
+          c = in.readByte();
+          ofs = ((ofs + 1) << 7) + (c & 127);
+        }
+        e.baseOffset = e.offset - ofs;
+        e.dataStart = in.position();
+        in.inflate(null, e.size, null);
+        break;
+      case Constants.OBJ_REF_DELTA:
+        final byte[] base = new byte[Constants.OBJECT_ID_LENGTH];
+        in.readFully(base, base.length);
+        e.baseId = ObjectId.fromRaw(base);
+        e.dataStart = in.position();
+        in.inflate(null, e.size, null);
+        break;
+      default:
+        throw new IOException("unknown object type " + e.kind + " at offset " + e.offset);
+      }
+      e.end = in.position();
+      e.crc = (int) in.crc.getValue();
+      this.entries[n] = e;
+      if (batchBytes >= HASH_BATCH_BYTES) {
+        hash(new ArrayList<Entry>(batch), new ArrayList<byte[]>(batchData));
+        batch.clear();
+        batchData.clear();
+        batchBytes = 0;
+      }
+    }
+    if (!batch.isEmpty()) {
+      hash(batch, batchData);
+    }
+    this.packChecksum = in.readTrailer();
+  }
+
+  private void hash(final List<Entry> batch, final List<byte[]> data) throws IOException {
+    try {
+      this.hashSlots.acquire();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted", e);
+    }
+    this.pending.add(Resources.submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        try {
+          final ObjectInserter.Formatter hasher = new ObjectInserter.Formatter();
+          for (int i = 0; i < batch.size(); i++) {
+            final Entry e = batch.get(i);
+            e.id = hasher.idFor(e.type, data.get(i));
+          }
+          return null;
+        } finally {
+          BundleImport.this.hashSlots.release();
+        }
+      }
+    }));
+  }
+
+  /**
+   * @return a digest primed with the object header, as the object id is computed
+   */
+  private static MessageDigest digestFor(final int type, final long size) {
+    final MessageDigest md = Constants.newMessageDigest();
+    md.update(Constants.encodedTypeString(type));
+    md.update((byte) ' ');
+    md.update(Constants.encodeASCII(size));
+    md.update((byte) 0);
+    return md;
+  }
+
+  private void awaitPending(final String errorMsg) {
+    for (final Future<Void> f : this.pending) {
+      Resources.get(f, errorMsg);
+    }
+    this.pending.clear();
+  }
+
+  /**
+   * Links each delta to its base, then resolves the chains below the whole objects in parallel batches.
+   */
+  private void resolveDeltas(final FileChannel pack) throws IOException {
+    final long[] offsets = new long[this.entries.length];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = this.entries[i].offset;
+    }
+    final Map<ObjectId, List<Entry>> refChildren = new HashMap<ObjectId, List<Entry>>();
+    int deltas = 0;
+    for (final Entry e : this.entries) {
+      if (e.kind == Constants.OBJ_OFS_DELTA) {
+        final int base = Arrays.binarySearch(offsets, e.baseOffset);
+        if (base < 0) {
+          throw new IOException("missing delta base at offset " + e.baseOffset);
+        }
+        this.entries[base].addChild(e);
+        deltas++;
+      } else if (e.kind == Constants.OBJ_REF_DELTA) {
+        List<Entry> children = refChildren.get(e.baseId);
+        if (children == null) {
+          children = new ArrayList<Entry>();
+          refChildren.put(e.baseId, children);
+        }
+        children.add(e);
+        deltas++;
+      }
+    }
+    if (deltas == 0) {
+      return;
+    }
+
+    final List<Entry> roots = new ArrayList<Entry>();
+    for (final Entry e : this.entries) {
+      if (e.type != 0 && (e.children != null || refChildren.containsKey(e.id))) {
+        roots.add(e);
+      }
+    }
+    final AtomicInteger resolved = new AtomicInteger();
+    final int batch = Math.max(MIN_ROOT_BATCH, roots.size() / (4 * Runtime.getRuntime().availableProcessors()) + 1);
+    for (int start = 0; start < roots.size(); start += batch) {
+      final List<Entry> slice = roots.subList(start, Math.min(roots.size(), start + batch));
+      this.pending.add(Resources.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          final Resolver r = new Resolver(pack, refChildren);
+          try {
+            for (final Entry root : slice) {
+              resolved.addAndGet(r.resolveRoot(root));
+            }
+          } finally {
+            r.release();
+          }
+          return null;
+        }
+      }));
+    }
+    awaitPending("failed to resolve deltas");
+    if (resolved.get() != deltas) {
+      throw new IOException(String.format("resolved %d of %d deltas, bases are missing", resolved.get(), deltas));
+    }
+  }
+
+  /**
+   * Moves the pack into place next to its index, both named after the sorted object ids like the packs jgit writes.
+   * jgit picks the pack up when it rescans the pack directory, which it does as soon as it misses an object. A pack of
+   * the same name holds the same objects, if it is complete it is kept and the incoming one dropped.
+   */
+  private void store(final File tmp) throws IOException {
+    final Entry[] sorted = this.entries.clone();
+    Arrays.sort(sorted, BY_ID);
+    final MessageDigest d = Constants.newMessageDigest();
+    final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+    for (int i = 0; i < sorted.length; i++) {
+      if (i > 0 && sorted[i - 1].id.equals(sorted[i].id)) {
+        throw new IOException("duplicate object " + sorted[i].id.name());
+      }
+      sorted[i].id.copyRawTo(raw, 0);
+      d.update(raw);
+    }
+    final String name = "pack-" + ObjectId.fromRaw(d.digest()).name();
+    final File idx = new File(this.packDir, name + ".idx");
+    final File pack = new File(this.packDir, name + ".pack");
+    if (pack.isFile() && idx.isFile()) {
+      return;
+    }
+    final File idxTmp = new File(this.packDir, tmp.getName().replace(".pack", ".idx"));
+    try {
+      writeIndex(idxTmp, sorted);
+      // a leftover of an interrupted import, it must not pair up with the new pack
+      if (idx.exists() && !idx.delete()) {
+        throw new IOException("failed to remove " + idx);
+      }
+      moveTo(tmp, pack);
+      moveTo(idxTmp, idx);
+    } finally {
+      if (idxTmp.exists() && !idxTmp.delete()) {
+        idxTmp.deleteOnExit();
+      }
+    }
+    pack.setReadOnly();
+    idx.setReadOnly();
+  }
+
+  private static void moveTo(final File src, final File dest) throws IOException {
+    if (!src.renameTo(dest) && !(dest.delete() && src.renameTo(dest))) {
+      throw new IOException("failed to store " + dest);
+    }
+  }
+
+  /**
+   * Writes a version 2 pack index: the fan-out table, the sorted ids, their crcs, their offsets with those beyond 2 GB
+   * in a 64 bit table of their own, the pack checksum and the checksum of the index itself.
+   */
+  private void writeIndex(final File f, final Entry[] sorted) throws IOException {
+    final MessageDigest d = Constants.newMessageDigest();
+    final DataOutputStream out = new DataOutputStream(new DigestOutputStream(new BufferedOutputStream(
+        new FileOutputStream(f), BUFFER_SIZE), d));
+    try {
+      out.writeInt(IDX_MAGIC);
+      out.writeInt(2);
+      final int[] fanout = new int[256];
+      for (final Entry e : sorted) {
+        fanout[e.id.getFirstByte()]++;
+      }
+      int total = 0;
+      for (final int n : fanout) {
+        total += n;
+        out.writeInt(total);
+      }
+      for (final Entry e : sorted) {
+        e.id.copyRawTo(out);
+      }
+      for (final Entry e : sorted) {
+        out.writeInt(e.crc);
+      }
+      int large = 0;
+      for (final Entry e : sorted) {
+        out.writeInt(e.offset > Integer.MAX_VALUE ? 0x80000000 | large++ : (int) e.offset);
+      }
+      for (final Entry e : sorted) {
+        if (e.offset > Integer.MAX_VALUE) {
+          out.writeLong(e.offset);
+        }
+      }
+      out.write(this.packChecksum);
+      out.flush();
+      out.write(d.digest());
+    } finally {
+      out.close();
+    }
+  }
+
+  private static final class Entry {
+
+    final long offset;
+    long dataStart;
+    long end;
+    int kind;
+    int type;
+    int size;
+    int crc;
+    long baseOffset;
+    ObjectId baseId;
+    ObjectId id;
+    List<Entry> children;
+
+    Entry(final long offset) {
+      this.offset = offset;
+    }
+
+    void addChild(final Entry e) {
+      if (this.children == null) {
+        this.children = new ArrayList<Entry>(2);
+      }
+      this.children.add(e);
+    }
+  }
+
+  /**
+   * Resolves delta chains depth first, reading the compressed objects from the written pack. Objects up to the stream
+   * threshold are resolved in memory, larger ones are streamed through the digest and, if they are bases themselves,
+   * into a temporary file the deltas below them copy from.
+   */
+  private final class Resolver {
+
+    private final FileChannel pack;
+    private final Map<ObjectId, List<Entry>> refChildren;
+    private final Inflater inflater = new Inflater();
+    private final Inflater streamInflater = new Inflater();
+    private final ObjectInserter.Formatter hasher = new ObjectInserter.Formatter();
+    private final byte[] buf = new byte[BUFFER_SIZE];
+
+    Resolver(final FileChannel pack, final Map<ObjectId, List<Entry>> refChildren) {
+      this.pack = pack;
+      this.refChildren = refChildren;
+    }
+
+    /**
+     * @return the number of deltas resolved below the given whole object
+     */
+    int resolveRoot(final Entry root) throws IOException {
+      final Content data = content(root);
+      try {
+        return resolve(root, data);
+      } finally {
+        data.release();
+      }
+    }
+
+    /**
+     * @return the number of deltas resolved below the given object
+     */
+    private int resolve(final Entry base, final Content data) throws IOException {
+      int count = 0;
+      if (base.children != null) {
+        count += resolve(base.children, base, data);
+      }
+      final List<Entry> byId = this.refChildren.get(base.id);
+      if (byId != null) {
+        count += resolve(byId, base, data);
+      }
+      return count;
+    }
+
+    private int resolve(final List<Entry> children, final Entry base, final Content data) throws IOException {
+      int count = 0;
+      for (final Entry child : children) {
+        child.type = base.type;
+        final Content result = apply(child, data);
+        if (result == null) {
+          // streamed and nothing can be based on it
+          count++;
+          continue;
+        }
+        try {
+          count += 1 + resolve(child, result);
+        } finally {
+          result.release();
+        }
+      }
+      return count;
+    }
+
+    private Content content(final Entry e) throws IOException {
+      if (e.size <= BundleImport.this.streamThreshold) {
+        return new Bytes(inflate(e));
+      }
+      final File f = File.createTempFile("resolve_", ".tmp", BundleImport.this.packDir);
+      boolean done = false;
+      try {
+        final InputStream in = stream(e);
+        try {
+          final OutputStream out = new FileOutputStream(f);
+          try {
+            int n;
+            while ((n = in.read(this.buf)) > 0) {
+              out.write(this.buf, 0, n);
+            }
+          } finally {
+            out.close();
+          }
+        } finally {
+          in.close();
+        }
+        final Content c = new Spilled(f, e.size);
+        done = true;
+        return c;
+      } finally {
+        if (!done) {
+          f.delete();
+        }
+      }
+    }
+
+    /**
+     * Applies the delta to its base and computes its id.
+     *
+     * @return the content of the result, {@code null} if it was streamed and cannot be a delta base
+     */
+    private Content apply(final Entry delta, final Content base) throws IOException {
+      final DeltaReader d = delta.size <= BundleImport.this.streamThreshold ? new DeltaReader(inflate(delta))
+          : new DeltaReader(stream(delta), delta.size);
+      try {
+        if (readSize(d) != base.size()) {
+          throw new IOException("delta base size mismatch at offset " + delta.offset);
+        }
+        final long size = readSize(d);
+        if (size <= BundleImport.this.streamThreshold) {
+          final byte[] result = new byte[(int) size];
+          apply(delta, d, base, new ArrayOutput(result), size);
+          delta.id = this.hasher.idFor(delta.type, result);
+          return new Bytes(result);
+        }
+        final MessageDigest md = digestFor(delta.type, size);
+        if (delta.children == null && this.refChildren.isEmpty()) {
+          apply(delta, d, base, new DigestOutputStream(new DiscardOutput(), md), size);
+          delta.id = ObjectId.fromRaw(md.digest());
+          return null;
+        }
+        final File f = File.createTempFile("resolve_", ".tmp", BundleImport.this.packDir);
+        boolean done = false;
+        try {
+          final OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(f),
+              BUFFER_SIZE), md);
+          try {
+            apply(delta, d, base, out, size);
+          } finally {
+            out.close();
+          }
+          delta.id = ObjectId.fromRaw(md.digest());
+          final Content c = new Spilled(f, size);
+          done = true;
+          return c;
+        } finally {
+          if (!done) {
+            f.delete();
+          }
+        }
+      } finally {
+        d.close();
+      }
+    }
+
+    /**
+     * Runs the copy and insert instructions of a git delta.
+     */
+    private void apply(final Entry delta, final DeltaReader d, final Content base, final OutputStream out,
+        final long size) throws IOException {
+      long written = 0;
+      while (d.remaining() > 0) {
+        final int cmd = d.readByte();
+        final int len;
+        if ((cmd & 0x80) != 0) {
+          long offset = 0;
+          int n = 0;
+          for (int i = 0; i < 4; i++) {
+            if ((cmd & (1 << i)) != 0) {
+              offset |= (long) d.readByte() << (8 * i);
+            }
+          }
+          for (int i = 0; i < 3; i++) {
+            if ((cmd & (0x10 << i)) != 0) {
+              n |= d.readByte() << (8 * i);
+            }
+          }
+          len = n == 0 ? 0x10000 : n;
+          if (offset + len > base.size() || written + len > size) {
+            throw new IOException("corrupt delta at offset " + delta.offset);
+          }
+          base.copyTo(out, offset, len, this.buf);
+        } else if (cmd != 0) {
+          len = cmd;
+          if (written + len > size) {
+            throw new IOException("corrupt delta at offset " + delta.offset);
+          }
+          d.read(this.buf, len);
+          out.write(this.buf, 0, len);
+        } else {
+          throw new IOException("corrupt delta at offset " + delta.offset);
+        }
+        written += len;
+      }
+      if (written != size) {
+        throw new IOException("corrupt delta at offset " + delta.offset);
+      }
+    }
+
+    private long readSize(final DeltaReader d) throws IOException {
+      long size = 0;
+      int shift = 0;
+      int c;
+      do {
+        c = d.readByte();
+        size |= (long) (c & 0x7f) << shift;
+        shift += 7;
+      } while ((c & 0x80) != 0);
+      return size;
+    }
+
+    private InputStream stream(final Entry e) {
+      this.streamInflater.reset();
+      return new InflaterInputStream(new PackStream(this.pack, e.dataStart, e.end), this.streamInflater, BUFFER_SIZE);
+    }
+
+    private byte[] inflate(final Entry e) throws IOException {
+      final ByteBuffer compressed = ByteBuffer.allocate((int) (e.end - e.dataStart));
+      while (compressed.hasRemaining()) {
+        if (this.pack.read(compressed, e.dataStart + compressed.position()) < 0) {
+          throw new EOFException("truncated pack at offset " + e.offset);
+        }
+      }
+      final byte[] data = new byte[e.size];
+      this.inflater.reset();
+      this.inflater.setInput(compressed.array());
+      try {
+        int n = 0;
+        while (n < data.length && !this.inflater.finished()) {
+          final int r = this.inflater.inflate(data, n, data.length - n);
+          if (r == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+            break;
+          }
+          n += r;
+        }
+        if (n != data.length) {
+          throw new IOException("corrupt object at offset " + e.offset);
+        }
+      } catch (final DataFormatException ex) {
+        throw new IOException("corrupt object at offset " + e.offset, ex);
+      }
+      return data;
+    }
+
+    void release() {
+      this.inflater.end();
+      this.streamInflater.end();
+    }
+  }
+
+  /**
+   * A resolved object a delta copies from.
+   */
+  private abstract static class Content {
+
+    abstract long size();
+
+    abstract void copyTo(OutputStream out, long offset, int len, byte[] buf) throws IOException;
+
+    abstract void release() throws IOException;
+  }
+
+  private static final class Bytes extends Content {
+
+    private final byte[] data;
+
+    Bytes(final byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    long size() {
+      return this.data.length;
+    }
+
+    @Override
+    void copyTo(final OutputStream out, final long offset, final int len, final byte[] buf) throws IOException {
+      out.write(this.data, (int) offset, len);
+    }
+
+    @Override
+    void release() {
+      // garbage
+    }
+  }
+
+  private static final class Spilled extends Content {
+
+    private final File file;
+    private final RandomAccessFile in;
+    private final long size;
+
+    Spilled(final File file, final long size) throws IOException {
+      this.file = file;
+      this.in = new RandomAccessFile(file, "r");
+      this.size = size;
+    }
+
+    @Override
+    long size() {
+      return this.size;
+    }
+
+    @Override
+    void copyTo(final OutputStream out, final long offset, final int len, final byte[] buf) throws IOException {
+      this.in.seek(offset);
+      for (int left = len; left > 0;) {
+        final int n = Math.min(left, buf.length);
+        this.in.readFully(buf, 0, n);
+        out.write(buf, 0, n);
+        left -= n;
+      }
+    }
+
+    @Override
+    void release() throws IOException {
+      try {
+        this.in.close();
+      } finally {
+        if (!this.file.delete()) {
+          this.file.deleteOnExit();
+        }
+      }
+    }
+  }
+
+  /**
+   * The inflated delta instructions, from memory or streamed from the pack.
+   */
+  private static final class DeltaReader {
+
+    private final InputStream in;
+    private final byte[] buf;
+    private int pos;
+    private int len;
+    private long remaining;
+
+    DeltaReader(final byte[] data) {
+      this.in = null;
+      this.buf = data;
+      this.len = data.length;
+      this.remaining = data.length;
+    }
+
+    DeltaReader(final InputStream in, final long size) {
+      this.in = in;
+      this.buf = new byte[BUFFER_SIZE];
+      this.remaining = size;
+    }
+
+    long remaining() {
+      return this.remaining;
+    }
+
+    int readByte() throws IOException {
+      if (this.pos == this.len) {
+        fill();
+      }
+      this.remaining--;
+      return this.buf[this.pos++] & 0xff;
+    }
+
+    void read(final byte[] dst, final int n) throws IOException {
+      int off = 0;
+      while (off < n) {
+        if (this.pos == this.len) {
+          fill();
+        }
+        final int k = Math.min(n - off, this.len - this.pos);
+        System.arraycopy(this.buf, this.pos, dst, off, k);
+        this.pos += k;
+        off += k;
+      }
+      this.remaining -= n;
+    }
+
+    private void fill() throws IOException {
+      final int n = this.in == null ? -1 : this.in.read(this.buf, 0, this.buf.length);
+      if (n <= 0) {
+        throw new EOFException("truncated delta");
+      }
+      this.pos = 0;
+      this.len = n;
+    }
+
+    void close() throws IOException {
+      if (this.in != null) {
+        this.in.close();
+      }
+    }
+  }
+
+  /**
+   * A range of the written pack, read with positional reads so the resolvers can share the channel.
+   */
+  private static final class PackStream extends InputStream {
+
+    private final FileChannel pack;
+    private final long end;
+    private long pos;
+
+    PackStream(final FileChannel pack, final long start, final long end) {
+      this.pack = pack;
+      this.pos = start;
+      this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (this.pos >= this.end) {
+        return -1;
+      }
+      final int n = this.pack.read(ByteBuffer.wrap(b, off, (int) Math.min(len, this.end - this.pos)), this.pos);
+      if (n < 0) {
+        throw new EOFException("truncated pack at offset " + this.pos);
+      }
+      this.pos += n;
+      return n;
+    }
+  }
+
+  private static final class ArrayOutput extends OutputStream {
+
+    private final byte[] dst;
+    private int pos;
+
+    ArrayOutput(final byte[] dst) {
+      this.dst = dst;
+    }
+
+    @Override
+    public void write(final int b) {
+      this.dst[this.pos++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+      System.arraycopy(b, off, this.dst, this.pos, len);
+      this.pos += len;
+    }
+  }
+
+  private static final class DiscardOutput extends OutputStream {
+
+    @Override
+    public void write(final int b) {
+      // only digested
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+      // only digested
+    }
+  }
+
+  /**
+   * The bundle stream, every byte of the pack read through it is written to the pack file, included in the pack
+   * checksum and in the crc of the current object.
+   */
+  private static final class PackInput {
+
+    private final InputStream in;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private final byte[] scratch = new byte[BUFFER_SIZE];
+    private final Inflater inflater = new Inflater();
+    private final MessageDigest digest = Constants.newMessageDigest();
+    final CRC32 crc = new CRC32();
+    OutputStream out;
+    private int pos;
+    private int len;
+    private long consumed;
+
+    PackInput(final InputStream in) {
+      this.in = in;
+    }
+
+    long position() {
+      return this.consumed;
+    }
+
+    String readLine() throws IOException {
+      final StringBuilder line = new StringBuilder();
+      while (true) {
+        if (this.pos == this.len) {
+          fill();
+        }
+        final char c = (char) (this.buf[this.pos++] & 0xff);
+        if (c == '\n') {
+          return line.toString();
+        }
+        line.append(c);
+      }
+    }
+
+    int readByte() throws IOException {
+      if (this.pos == this.len) {
+        fill();
+      }
+      final int c = this.buf[this.pos] & 0xff;
+      consume(1);
+      return c;
+    }
+
+    void readFully(final byte[] dst, final int n) throws IOException {
+      int off = 0;
+      while (off < n) {
+        if (this.pos == this.len) {
+          fill();
+        }
+        final int k = Math.min(n - off, this.len - this.pos);
+        System.arraycopy(this.buf, this.pos, dst, off, k);
+        consume(k);
+        off += k;
+      }
+    }
+
+    /**
+     * Inflates the next object into the given array, {@code null} to skip it or to only feed it to the given digest.
+     */
+    void inflate(final byte[] dst, final int size, final MessageDigest sink) throws IOException {
+      this.inflater.reset();
+      int total = 0;
+      try {
+        while (true) {
+          if (this.inflater.needsInput()) {
+            if (this.pos == this.len) {
+              fill();
+            }
+            this.inflater.setInput(this.buf, this.pos, this.len - this.pos);
+          }
+          final int r;
+          if (dst != null && total < size) {
+            r = this.inflater.inflate(dst, total, size - total);
+          } else {
+            r = this.inflater.inflate(this.scratch, 0, this.scratch.length);
+            if (sink != null) {
+              sink.update(this.scratch, 0, r);
+            }
+          }
+          total += r;
+          if (this.inflater.finished()) {
+            break;
+          }
+          if (this.inflater.needsInput()) {
+            consume(this.len - this.pos);
+          } else if (this.inflater.needsDictionary()) {
+            throw new IOException("corrupt object at offset " + this.consumed);
+          }
+        }
+      } catch (final DataFormatException e) {
+        throw new IOException("corrupt object at offset " + this.consumed, e);
+      }
+      consume(this.len - this.pos - this.inflater.getRemaining());
+      if (total != size) {
+        throw new IOException("object size mismatch at offset " + this.consumed);
+      }
+    }
+
+    /**
+     * @return the checksum at the end of the pack, verified against the content
+     */
+    byte[] readTrailer() throws IOException {
+      final byte[] actual = this.digest.digest();
+      final byte[] trailer = new byte[Constants.OBJECT_ID_LENGTH];
+      readFully(trailer, trailer.length);
+      if (!Arrays.equals(actual, trailer)) {
+        throw new IOException("pack checksum mismatch");
+      }
+      return trailer;
+    }
+
+    private void consume(final int n) throws IOException {
+      this.out.write(this.buf, this.pos, n);
+      this.digest.update(this.buf, this.pos, n);
+      this.crc.update(this.buf, this.pos, n);
+      this.pos += n;
+      this.consumed += n;
+    }
+
+    private void fill() throws IOException {
+      final int n = this.in.read(this.buf, 0, this.buf.length);
+      if (n <= 0) {
+        throw new EOFException("truncated bundle");
+      }
+      this.pos = 0;
+      this.len = n;
+    }
+
+    void close() throws IOException {
+      this.inflater.end();
+      this.in.close();
+    }
+  }
+
+  /**
+   * Reads the underlying stream on a thread of its own, so a slow download or disk overlaps with the processing of the
+   * chunks already read.
+   */
+  private static final class ReadAhead extends InputStream {
+
+    private static final byte[] EOF = new byte[0];
+
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(READ_AHEAD_CHUNKS);
+    private final Thread reader;
+    private volatile IOException failure;
+    private byte[] chunk;
+    private int pos;
+
+    ReadAhead(final InputStream in) {
+      this.reader = Resources.newThread("modulizer bundle read-ahead", new Runnable() {
+        @Override
+        public void run() {
+          pump(in);
+        }
+      });
+      this.reader.setDaemon(true);
+      this.reader.start();
+    }
+
+    private void pump(final InputStream in) {
+      try {
+        try {
+          while (true) {
+            final byte[] b = new byte[BUFFER_SIZE];
+            int n = 0;
+            int r;
+            while (n < b.length && (r = in.read(b, n, b.length - n)) >= 0) {
+              n += r;
+            }
+            if (n == 0) {
+              break;
+            }
+            this.chunks.put(n == b.length ? b : Arrays.copyOf(b, n));
+          }
+        } catch (final IOException e) {
+          this.failure = e;
+        } finally {
+          in.close();
+        }
+        this.chunks.put(EOF);
+      } catch (final IOException e) {
+        this.failure = e;
+      } catch (final InterruptedException e) {
+        // closed before the end
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (this.chunk == null || this.pos == this.chunk.length) {
+        if (this.chunk == EOF) {
+          return -1;
+        }
+        try {
+          this.chunk = this.chunks.take();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("interrupted", e);
+        }
+        this.pos = 0;
+        if (this.chunk == EOF) {
+          if (this.failure != null) {
+            throw this.failure;
+          }
+          return -1;
+        }
+      }
+      final int n = Math.min(len, this.chunk.length - this.pos);
+      System.arraycopy(this.chunk, this.pos, b, off, n);
+      this.pos += n;
+      return n;
+    }
+
+    @Override
+    public void close() {
+      this.reader.interrupt();
+    }
+  }
+
+}
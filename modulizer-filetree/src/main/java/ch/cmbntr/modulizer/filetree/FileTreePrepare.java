@@ -8,6 +8,7 @@ import static java.lang.String.format;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -17,6 +18,8 @@ import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -28,12 +31,17 @@ import java.util.regex.Pattern;
 import org.eclipse.jgit.api.errors.GitAPIException;
 
 import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
+import ch.cmbntr.modulizer.bootstrap.Operations;
 import ch.cmbntr.modulizer.bootstrap.impl.AbstractPrepare;
+import ch.cmbntr.modulizer.bootstrap.util.HashCache;
 import ch.cmbntr.modulizer.bootstrap.util.ModulizerIO;
+import ch.cmbntr.modulizer.bootstrap.util.StartupTrace;
 import ch.cmbntr.modulizer.filetree.Restore.CleanupMode;
 
 public class FileTreePrepare extends AbstractPrepare {
 
+  private static final String COPY_PREFIX = "modulizer.filetree.copy.";
+
   private static final Pattern COPY_SRC_PATTERN = Pattern.compile("modulizer\\.filetree\\.copy\\.([^.]*)\\.src");
 
   private static final String COPY_FALLBACK_TEMPLATE = "modulizer.filetree.copy.%s.fallback";
@@ -44,22 +52,47 @@ public class FileTreePrepare extends AbstractPrepare {
 
   private static final int NUM_ATTEMPTS = 3;
 
+  private static final String ARCHIVE_HASH_CACHE = "archive-hash-cache.dat";
+
   @Override
   public void run() {
     final File baseDir = determineWorkDirBase();
     final boolean ignoreExisting = determineIgnoreExisting();
     final CleanupMode cleanup = determineCleanupMode();
+    final String archive = lookupContext(BootstrapContext.CONFIG_KEY_MODULES_ARCHIVE);
+    if (archive != null) {
+      prepareArchive(baseDir, archive);
+      performExtraCopyJobs(findExtraCopyJobs());
+      return;
+    }
     int attempt = 1;
     while (attempt <= NUM_ATTEMPTS) {
       try {
-        final Future<URI> bundle = findBundle();
+        final String splitManifest = lookupContext(BootstrapContext.CONFIG_KEY_BUNDLE_SPLIT);
+        if (splitManifest != null) {
+          final File moduleRepo = determineDestination(baseDir, ignoreExisting || attempt != 1);
+          log("prepare split file tree at %s", moduleRepo);
+          Restore.restoreSplit(moduleRepo, loadSplitManifest(splitManifest), splitBundleLocator(),
+              determineBundleRef(), cleanup);
+          performExtraCopyJobs(findExtraCopyJobs());
+          return;
+        }
 
+        final Future<URI> bundle = findBundle(BootstrapContext.CONFIG_KEY_BUNDLE_URI,
+            BootstrapContext.DEFAULT_BUNDLE_URI);
+        final String deltaBase = determineDeltaBase();
+        final Future<URI> delta = deltaBase == null ? null : findBundle(BootstrapContext.CONFIG_KEY_BUNDLE_DELTA_URI,
+            BootstrapContext.DEFAULT_BUNDLE_DELTA_URI);
+
+        final int destSpan = StartupTrace.begin(StartupTrace.CATEGORY_FILETREE, "determineDestination");
         final File moduleRepo = determineDestination(baseDir, ignoreExisting || attempt != 1);
+        StartupTrace.end(destSpan);
         final String requiredRef = determineRequiredRef();
         final String bundleRef = determineBundleRef();
 
         log("prepare file tree at %s", moduleRepo);
-        Restore.restore(moduleRepo, "master", requiredRef, bundle, bundleRef, cleanup);
+        Restore.restore(moduleRepo, "master", requiredRef, bundle, bundleRef, deltaBase, delta, cleanup,
+            determineBackgroundVerifyRate());
 
         performExtraCopyJobs(findExtraCopyJobs());
         return;
@@ -76,6 +109,77 @@ public class FileTreePrepare extends AbstractPrepare {
     }
   }
 
+  /**
+   * Provides the modules archive as a file instead of restoring the file tree, an archive embedded in the application
+   * is copied to the base directory once and reused as long as its content matches its name. The content is judged by
+   * the file status through the hash cache, the archive is only hashed again if its status changed.
+   */
+  private void prepareArchive(final File baseDir, final String archive) {
+    final int span = StartupTrace.begin(StartupTrace.CATEGORY_FILETREE, "prepareArchive");
+    try {
+      final URL src = Operations.appResource(FileTreePrepare.class, archive);
+      if (src == null) {
+        throw new RuntimeException("could not find modules archive resource: " + archive);
+      }
+      final File dest;
+      if ("file".equals(src.getProtocol())) {
+        dest = new File(src.toURI());
+      } else {
+        ModulizerIO.mkdir(baseDir);
+        dest = new File(baseDir, new File(src.getPath()).getName());
+        if (!isArchiveIntact(dest)) {
+          log("copy modules archive %s to %s", src, dest);
+          copyArchive(src, dest);
+        }
+      }
+      log("launch from modules archive %s", dest);
+      putContext(BootstrapContext.CONFIG_KEY_MODULES_ARCHIVE, dest.getAbsolutePath());
+    } catch (final IOException e) {
+      throw new RuntimeException("failed to provide modules archive " + archive, e);
+    } catch (final URISyntaxException e) {
+      throw new RuntimeException("failed to provide modules archive " + archive, e);
+    } finally {
+      StartupTrace.end(span);
+    }
+  }
+
+  /**
+   * @return whether the archive is named after its digest, a digest cached for its unchanged status is trusted
+   */
+  private static boolean isArchiveIntact(final File archive) throws IOException {
+    if (!archive.isFile()) {
+      return false;
+    }
+    final HashCache installed = HashCache.current();
+    final HashCache cache = installed != null ? installed : HashCache.open(new File(archive.getParentFile(),
+        ARCHIVE_HASH_CACHE));
+    final boolean intact = archive.getName().equals(ModulizerIO.sha1Name(archive, cache));
+    if (cache != installed) {
+      try {
+        cache.save();
+      } catch (final IOException e) {
+        warn("failed to save hash cache %s: %s", cache, e);
+      }
+    }
+    return intact;
+  }
+
+  /**
+   * Copies the archive next to its destination and renames it into place, the destination may be mapped by a running
+   * launch.
+   */
+  private static void copyArchive(final URL src, final File dest) throws IOException {
+    final File tmp = File.createTempFile(dest.getName(), ".tmp", dest.getParentFile());
+    try {
+      ModulizerIO.copyStream(src, tmp);
+      if (!tmp.renameTo(dest) && !(dest.delete() && tmp.renameTo(dest)) && !isArchiveIntact(dest)) {
+        throw new IOException("failed to write " + dest);
+      }
+    } finally {
+      tmp.delete();
+    }
+  }
+
   private void failPrepare(final Throwable e, final int attempt) {
     warn("restoring file tree failed: %s", e);
     if (attempt >= NUM_ATTEMPTS) {
@@ -91,6 +195,23 @@ public class FileTreePrepare extends AbstractPrepare {
     return CleanupMode.valueOf(lookupContext(BootstrapContext.CONFIG_KEY_FILETREE_CLEANUP, "FULL"));
   }
 
+  /**
+   * @return the throughput of the background verification in bytes per second, 0 to verify before launching
+   */
+  private long determineBackgroundVerifyRate() {
+    final String verify = lookupContext(BootstrapContext.CONFIG_KEY_FILETREE_VERIFY,
+        BootstrapContext.FILETREE_VERIFY_BLOCKING);
+    if (BootstrapContext.FILETREE_VERIFY_BLOCKING.equals(verify)) {
+      return 0L;
+    }
+    if (!BootstrapContext.FILETREE_VERIFY_BACKGROUND.equals(verify)) {
+      throw new IllegalArgumentException("unknown file tree verification: " + verify);
+    }
+    final String rate = lookupContext(BootstrapContext.CONFIG_KEY_FILETREE_VERIFY_BYTES_PER_SECOND);
+    return rate == null ? BootstrapContext.DEFAULT_FILETREE_VERIFY_BYTES_PER_SECOND : Math.max(1L,
+        Long.parseLong(rate));
+  }
+
   private File determineWorkDirBase() {
     return new File(lookupContext(BootstrapContext.CONFIG_KEY_APP_DIR));
   }
@@ -122,22 +243,67 @@ public class FileTreePrepare extends AbstractPrepare {
     return lookupContext(BootstrapContext.CONFIG_KEY_BUNDLE_ID);
   }
 
-  private Future<URI> findBundle() {
+  private static Map<String, String> loadSplitManifest(final String resource) throws IOException {
+    final URL url = Operations.appResource(FileTreePrepare.class, resource);
+    if (url == null) {
+      throw new IOException("could not find split bundle manifest: " + resource);
+    }
+    final Properties p = new Properties();
+    final InputStream in = url.openStream();
+    try {
+      p.load(in);
+    } finally {
+      in.close();
+    }
+    final Map<String, String> manifest = new TreeMap<String, String>();
+    for (final String part : p.stringPropertyNames()) {
+      manifest.put(part, p.getProperty(part).trim());
+    }
+    return manifest;
+  }
+
+  private static Restore.BundleLocator splitBundleLocator() {
+    return new Restore.BundleLocator() {
+      @Override
+      public URI locate(final String contentId) throws IOException {
+        final String name = "/" + Snapshot.SPLIT_BUNDLE_DIR + "/" + Snapshot.splitBundleName(contentId);
+        final URL bundle = Operations.appResource(FileTreePrepare.class, name);
+        if (bundle == null) {
+          throw new IOException("could not find split bundle resource: " + name);
+        }
+        try {
+          return bundle.toURI();
+        } catch (final URISyntaxException e) {
+          throw new IOException("invalid split bundle location " + bundle, e);
+        }
+      }
+    };
+  }
+
+  private String determineDeltaBase() {
+    return lookupContext(BootstrapContext.CONFIG_KEY_BUNDLE_DELTA_BASE);
+  }
+
+  private Future<URI> findBundle(final String uriKey, final String defaultURI) {
     return submit(new Callable<URI>() {
       @Override
       public URI call() throws Exception {
-        final String given = lookupContext(BootstrapContext.CONFIG_KEY_BUNDLE_URI,
-            BootstrapContext.DEFAULT_BUNDLE_URI);
-        final URI bundleURI = URI.create(given);
-        if (bundleURI.isAbsolute()) {
-          return bundleURI;
-        }
+        final int span = StartupTrace.begin(StartupTrace.CATEGORY_FILETREE, "findBundle");
+        try {
+          final String given = lookupContext(uriKey, defaultURI);
+          final URI bundleURI = URI.create(given);
+          if (bundleURI.isAbsolute()) {
+            return bundleURI;
+          }
 
-        final URL bundle = FileTreePrepare.class.getResource(given);
-        if (bundle == null) {
-          throw new RuntimeException("could not find bundle resource: " + given);
+          final URL bundle = Operations.appResource(FileTreePrepare.class, given);
+          if (bundle == null) {
+            throw new RuntimeException("could not find bundle resource: " + given);
+          }
+          return bundle.toURI();
+        } finally {
+          StartupTrace.end(span);
         }
-        return bundle.toURI();
       }
     });
   }
@@ -153,7 +319,7 @@ public class FileTreePrepare extends AbstractPrepare {
 
   private Map<File, Map<String, URL>> findExtraCopyJobs() {
     final Map<File, Map<String, URL>> jobsByDest = new LinkedHashMap<File, Map<String, URL>>();
-    for (final String key : findMatchingContextKeys(COPY_SRC_PATTERN)) {
+    for (final String key : findMatchingContextKeys(COPY_PREFIX, COPY_SRC_PATTERN)) {
       final Matcher m = COPY_SRC_PATTERN.matcher(key);
       if (m.matches()) {
         final String jobLabel = m.group(1);
@@ -215,6 +381,7 @@ public class FileTreePrepare extends AbstractPrepare {
     for (final Entry<File, Map<String, URL>> destAndSrcByLabel : jobsByDest.entrySet()) {
       for (final Entry<String, URL> entry : destAndSrcByLabel.getValue().entrySet()) {
         final String jobLabel = entry.getKey();
+        final int span = StartupTrace.begin(StartupTrace.CATEGORY_FILETREE, "copyJob " + jobLabel);
         try {
           final URL src = entry.getValue();
           final File dest = destAndSrcByLabel.getKey();
@@ -230,6 +397,8 @@ public class FileTreePrepare extends AbstractPrepare {
           failExtraCopyJob(jobLabel, e);
         } catch (final RuntimeException e) {
           failExtraCopyJob(jobLabel, e);
+        } finally {
+          StartupTrace.end(span);
         }
       }
     }
@@ -1,12 +1,17 @@
 package ch.cmbntr.modulizer.filetree;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.GregorianCalendar;
 import java.util.regex.Pattern;
 
 import javax.xml.bind.DatatypeConverter;
 
+import org.eclipse.jgit.lib.ObjectLoader;
+
 public class FileTreeUtil {
 
   private static final Pattern DIR_PREFIX = Pattern.compile("\\d\\d\\d\\d-\\d\\d-\\d\\dT");
@@ -43,4 +48,53 @@ public class FileTreeUtil {
     }
   }
 
+  /**
+   * Writes the content to a temporary file and renames it onto the given file, so the file is either left as it was or
+   * replaced as a whole.
+   *
+   * @param tmpDir the directory of the temporary file, on the file system of the given file
+   */
+  static void writeAtomically(final ObjectLoader content, final File f, final File tmpDir) throws IOException {
+    final File tmp = File.createTempFile("write", ".tmp", tmpDir);
+    try {
+      final OutputStream out = new FileOutputStream(tmp);
+      try {
+        content.copyTo(out);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+        throw new IOException("failed to write " + f);
+      }
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Deletes the given file or directory including its contents, ignores missing files. Symbolic links are deleted
+   * themselves, their targets are left alone.
+   */
+  public static void deleteRecursively(final File f) throws IOException {
+    final File[] children = f.isDirectory() && !isSymbolicLink(f) ? f.listFiles() : null;
+    if (children != null) {
+      for (final File c : children) {
+        deleteRecursively(c);
+      }
+    }
+    if (!f.delete() && f.exists()) {
+      throw new IOException("could not delete " + f);
+    }
+  }
+
+  /**
+   * @return whether the file is a symbolic link, told by its canonical path differing from the canonical path of its
+   *         parent joined with its name
+   */
+  public static boolean isSymbolicLink(final File f) throws IOException {
+    final File parent = f.getAbsoluteFile().getParentFile();
+    final File resolvedParent = parent == null ? f.getAbsoluteFile() : new File(parent.getCanonicalFile(), f.getName());
+    return !resolvedParent.getCanonicalFile().equals(resolvedParent);
+  }
+
 }
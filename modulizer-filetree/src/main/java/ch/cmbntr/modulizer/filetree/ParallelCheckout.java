@@ -0,0 +1,218 @@
+package ch.cmbntr.modulizer.filetree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog;
+import ch.cmbntr.modulizer.bootstrap.util.Resources;
+
+/**
+ * Materializes the tree of a commit into a work tree, inflating and writing the blobs in parallel batches instead of
+ * one by one like a {@code git checkout}. The files of a previous checkout that are not part of the commit are deleted
+ * first, then the directories are created and each file is written to a temporary file and renamed into place. The
+ * index is written once all files are, the caller moves the branch to the commit afterwards, so a work tree is only
+ * taken as checked out after all writes succeeded. Symbolic links are checked out by jgit.
+ */
+final class ParallelCheckout {
+
+  private static final Logger LOG = ModulizerLog.getLogger();
+
+  private static final int MIN_BATCH = 256;
+
+  private final Repository repo;
+  private final List<String> paths = new ArrayList<String>();
+  private final List<ObjectId> blobs = new ArrayList<ObjectId>();
+  private final List<FileMode> modes = new ArrayList<FileMode>();
+
+  private ParallelCheckout(final Repository repo) {
+    this.repo = repo;
+  }
+
+  /**
+   * Writes the files of the commit and the matching index, replacing the files of the checkout recorded in the index.
+   * Untracked files are left alone.
+   */
+  static void checkout(final Repository repo, final ObjectId commit) throws IOException {
+    final ParallelCheckout c = new ParallelCheckout(repo);
+    c.readTree(commit);
+    c.removeStale();
+    c.createDirectories();
+    c.writeFiles();
+    c.writeIndex();
+  }
+
+  private static void log(final String msg, final Object... args) {
+    LOG.fine(String.format(msg, args));
+  }
+
+  private void readTree(final ObjectId commit) throws IOException {
+    final RevWalk walk = new RevWalk(this.repo);
+    final TreeWalk tw = new TreeWalk(this.repo);
+    try {
+      tw.addTree(walk.parseCommit(commit).getTree());
+      tw.setRecursive(true);
+      while (tw.next()) {
+        final FileMode mode = tw.getFileMode(0);
+        if (!FileMode.GITLINK.equals(mode)) {
+          this.paths.add(tw.getPathString());
+          this.blobs.add(tw.getObjectId(0));
+          this.modes.add(mode);
+        }
+      }
+    } finally {
+      tw.release();
+      walk.release();
+    }
+  }
+
+  /**
+   * Deletes the files of the index not in the commit, and the directories left empty, before a file of the commit may
+   * need their place.
+   */
+  private void removeStale() throws IOException {
+    final DirCache index = this.repo.readDirCache();
+    if (index.getEntryCount() == 0) {
+      return;
+    }
+    final Set<String> current = new HashSet<String>(this.paths);
+    final File worktree = this.repo.getWorkTree();
+    int removed = 0;
+    for (int i = 0; i < index.getEntryCount(); i++) {
+      final String path = index.getEntry(i).getPathString();
+      if (current.contains(path)) {
+        continue;
+      }
+      File f = new File(worktree, path);
+      if (!f.delete() && f.isFile()) {
+        throw new IOException("could not delete " + f);
+      }
+      removed++;
+      while (!(f = f.getParentFile()).equals(worktree) && f.delete()) {
+        // deleted an empty directory
+      }
+    }
+    log("removed %d stale files", removed);
+  }
+
+  private void createDirectories() throws IOException {
+    final Set<String> dirs = new LinkedHashSet<String>();
+    for (final String p : this.paths) {
+      final int idx = p.lastIndexOf('/');
+      if (idx > 0) {
+        dirs.add(p.substring(0, idx));
+      }
+    }
+    final File worktree = this.repo.getWorkTree();
+    for (final String d : dirs) {
+      final File dir = new File(worktree, d);
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("could not create " + dir);
+      }
+    }
+  }
+
+  /**
+   * Splits the files into contiguous batches, several per processor so the pool balances batches of unequal cost.
+   */
+  private void writeFiles() throws IOException {
+    final int count = this.paths.size();
+    final int batch = Math.max(MIN_BATCH, count / (4 * Runtime.getRuntime().availableProcessors()) + 1);
+    final List<Future<Void>> writes = new ArrayList<Future<Void>>();
+    for (int start = 0; start < count; start += batch) {
+      final int from = start;
+      final int to = Math.min(count, start + batch);
+      writes.add(Resources.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          writeFiles(from, to);
+          return null;
+        }
+      }));
+    }
+    // await all batches before failing, a retry must not race with pending writes
+    RuntimeException failure = null;
+    for (final Future<Void> w : writes) {
+      try {
+        Resources.get(w, "failed to check out work tree");
+      } catch (final RuntimeException e) {
+        failure = failure == null ? e : failure;
+      }
+    }
+    if (failure != null) {
+      throw new IOException("failed to check out " + this.repo.getWorkTree(), failure);
+    }
+  }
+
+  private void writeFiles(final int from, final int to) throws IOException {
+    final File worktree = this.repo.getWorkTree();
+    final File tmpDir = this.repo.getDirectory();
+    final ObjectReader reader = this.repo.newObjectReader();
+    try {
+      for (int i = from; i < to; i++) {
+        final File f = new File(worktree, this.paths.get(i));
+        final FileMode mode = this.modes.get(i);
+        if (FileMode.SYMLINK.equals(mode)) {
+          final DirCacheEntry e = new DirCacheEntry(this.paths.get(i));
+          e.setFileMode(mode);
+          e.setObjectId(this.blobs.get(i));
+          DirCacheCheckout.checkoutEntry(this.repo, f, e, reader);
+          continue;
+        }
+        if (f.isDirectory()) {
+          FileTreeUtil.deleteRecursively(f);
+        }
+        FileTreeUtil.writeAtomically(reader.open(this.blobs.get(i), Constants.OBJ_BLOB), f, tmpDir);
+        if (FileMode.EXECUTABLE_FILE.equals(mode)) {
+          f.setExecutable(true);
+        }
+      }
+    } finally {
+      reader.release();
+    }
+  }
+
+  private void writeIndex() throws IOException {
+    final File worktree = this.repo.getWorkTree();
+    final DirCache index = this.repo.lockDirCache();
+    try {
+      final DirCacheBuilder builder = index.builder();
+      for (int i = 0; i < this.paths.size(); i++) {
+        final File f = new File(worktree, this.paths.get(i));
+        final DirCacheEntry e = new DirCacheEntry(this.paths.get(i));
+        e.setFileMode(this.modes.get(i));
+        e.setObjectId(this.blobs.get(i));
+        e.setLength(f.length());
+        e.setLastModified(f.lastModified());
+        builder.add(e);
+      }
+      builder.finish();
+      index.write();
+      if (!index.commit()) {
+        throw new IOException("failed to write index of " + worktree);
+      }
+    } finally {
+      index.unlock();
+    }
+  }
+
+}
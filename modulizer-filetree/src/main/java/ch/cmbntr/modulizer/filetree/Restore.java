@@ -4,11 +4,23 @@ import static java.util.Collections.emptySet;
 import static java.util.Collections.singleton;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
@@ -16,24 +28,37 @@ import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.ResetCommand.ResetType;
 import org.eclipse.jgit.api.Status;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.errors.NoWorkTreeException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.FetchConnection;
 import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.TransportBundleStream;
 import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.TreeWalk;
 
 import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog;
 import ch.cmbntr.modulizer.bootstrap.util.Resources;
+import ch.cmbntr.modulizer.bootstrap.util.StartupTrace;
 
 public class Restore {
 
   private static final Logger LOG = ModulizerLog.getLogger();
 
+  private static final String SPLIT_STATE = "modulizer-split.properties";
+
   private Restore() {
     super();
   }
@@ -44,15 +69,40 @@ public class Restore {
 
   public static void restore(final File destination, final String branch, final String requiredRef,
       final Future<URI> bundle, final String bundleRef, final CleanupMode cleanup) throws IOException, GitAPIException {
+    restore(destination, branch, requiredRef, bundle, bundleRef, null, null, cleanup, 0L);
+  }
+
+  /**
+   * Restores the file tree from the full bundle, or advances an existing repository at {@code deltaBase} in place by
+   * fetching the thin delta bundle, which only contains the objects missing in it.
+   *
+   * @param deltaBase the commit the delta bundle requires, {@code null} if there is no delta bundle
+   * @param delta the delta bundle, {@code null} if there is none
+   * @param backgroundVerifyRate if positive, an existing work tree at {@code requiredRef} is launched without waiting
+   *          for its verification, which hashes every file in the background at this many bytes per second
+   */
+  public static void restore(final File destination, final String branch, final String requiredRef,
+      final Future<URI> bundle, final String bundleRef, final String deltaBase, final Future<URI> delta,
+      final CleanupMode cleanup, final long backgroundVerifyRate) throws IOException, GitAPIException {
     try {
+      final int openSpan = StartupTrace.begin(StartupTrace.CATEGORY_FILETREE, "openExisting");
       final Git git = exists(destination);
+      StartupTrace.end(openSpan);
       try {
-        if (git == null || !headAt(git, requiredRef)) {
+        if (git != null && headAt(git, requiredRef)) {
+          cancel(bundle, delta);
+          if (!verifyInBackground(git, cleanup, backgroundVerifyRate)) {
+            ensureClean(git, cleanup);
+          }
+        } else if (git != null && deltaBase != null && delta != null && headAt(git, deltaBase)
+            && applyDelta(git, branch, requiredRef, bundleRef, delta, cleanup)) {
+          cancel(bundle, null);
+        } else {
+          cancel(null, delta);
+          final int bundleSpan = StartupTrace.begin(StartupTrace.CATEGORY_FILETREE, "awaitBundle");
           final URI b = Resources.get(bundle, "failed to get bundle");
+          StartupTrace.end(bundleSpan);
           explodeBundle(destination, branch, bundleRef, b, cleanup);
-        } else {
-          bundle.cancel(true);
-          ensureClean(git, cleanup);
         }
       } finally {
         if (git != null) {
@@ -65,23 +115,367 @@ public class Restore {
     log("prepared");
   }
 
-  private static void ensureClean(final Git git, final CleanupMode cleanup) throws NoWorkTreeException, GitAPIException {
+  /**
+   * Restores a file tree shipped as split bundles, see {@link Snapshot#createSplitBundles}. Only the parts whose content
+   * id differs from the one restored before are fetched, in parallel, the others are kept as they are in the
+   * destination. The whole work tree is then verified like a checked out commit, see {@link #ensureClean}.
+   *
+   * @param manifest the content id by part, the empty part holding the files outside of the module directories
+   * @param bundles locates the bundle of a content id
+   */
+  public static void restoreSplit(final File destination, final Map<String, String> manifest,
+      final BundleLocator bundles, final String bundleRef, final CleanupMode cleanup) throws IOException,
+      GitAPIException {
+    final int span = StartupTrace.begin(StartupTrace.CATEGORY_FILETREE, "restoreSplit");
+    final Git git = Git.init().setDirectory(destination).call();
+    try {
+      final File stateFile = new File(git.getRepository().getDirectory(), SPLIT_STATE);
+      final Map<String, String> restored = loadSplitState(stateFile);
+
+      final Map<String, String> changed = new TreeMap<String, String>();
+      for (final Map.Entry<String, String> p : manifest.entrySet()) {
+        final String part = p.getKey();
+        if (!p.getValue().equals(restored.get(part)) || !new File(destination, part).isDirectory()) {
+          changed.put(part, p.getValue());
+        }
+      }
+      final Set<String> removed = new TreeSet<String>(restored.keySet());
+      removed.removeAll(manifest.keySet());
+      log("split bundles: %d parts, %d changed, %d removed", manifest.size(), changed.size(), removed.size());
+      if (!changed.isEmpty() || !removed.isEmpty()) {
+        restoreParts(git, destination, manifest, restored, changed, removed, bundles, bundleRef);
+      }
+      ensureCleanSplit(git.getRepository(), manifest, changed.keySet(), cleanup);
+
+    } finally {
+      git.getRepository().close();
+      RepositoryCache.clear();
+      StartupTrace.end(span);
+    }
+    log("prepared");
+  }
+
+  private static void restoreParts(final Git git, final File destination, final Map<String, String> manifest,
+      final Map<String, String> restored, final Map<String, String> changed, final Set<String> removed,
+      final BundleLocator bundles, final String bundleRef) throws IOException {
+    final File stateFile = new File(git.getRepository().getDirectory(), SPLIT_STATE);
+    final Map<String, String> remaining = new TreeMap<String, String>(restored);
+    remaining.keySet().removeAll(changed.keySet());
+    remaining.keySet().removeAll(removed);
+    storeSplitState(stateFile, remaining);
+
+    for (final String part : removed) {
+      if (part.length() > 0) {
+        File dir = new File(destination, part);
+        FileTreeUtil.deleteRecursively(dir);
+        while (!(dir = dir.getParentFile()).equals(destination) && dir.delete()) {
+          log("removed empty %s", dir);
+        }
+      }
+    }
+    final List<Future<String>> restores = new ArrayList<Future<String>>(changed.size());
+    for (final Map.Entry<String, String> p : changed.entrySet()) {
+      final String part = p.getKey();
+      final String id = p.getValue();
+      final String previous = restored.get(part);
+      restores.add(Resources.submit(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          restorePart(git, destination, part, id, previous, bundles, bundleRef);
+          return part;
+        }
+      }));
+    }
+    for (final Future<String> r : restores) {
+      Resources.get(r, "failed to restore split bundle");
+    }
+    storeSplitState(stateFile, manifest);
+  }
+
+  private static void restorePart(final Git git, final File destination, final String part, final String id,
+      final String previous, final BundleLocator bundles, final String bundleRef) throws IOException {
+    final int span = StartupTrace.begin(StartupTrace.CATEGORY_FILETREE, "restorePart " + part);
+    try {
+      final Repository repo = git.getRepository();
+      final Set<ObjectId> have = emptySet();
+      final String commit = fetchBundle(git, bundles.locate(id), bundleRef, have);
+      final RevWalk walk = new RevWalk(repo);
+      try {
+        final RevTree tree = walk.parseCommit(ObjectId.fromString(commit)).getTree();
+        if (!id.equals(tree.getName())) {
+          throw new IOException(String.format("split bundle of %s provides %s instead of %s", part, tree.getName(),
+              id));
+        }
+        final File dir = part.length() == 0 ? destination : new File(destination, part);
+        if (part.length() > 0) {
+          FileTreeUtil.deleteRecursively(dir);
+        } else if (previous != null && repo.hasObject(ObjectId.fromString(previous))) {
+          deleteFiles(repo, walk.parseTree(ObjectId.fromString(previous)), dir);
+        }
+        writeFiles(repo, tree, dir);
+      } finally {
+        walk.release();
+      }
+    } finally {
+      StartupTrace.end(span);
+    }
+  }
+
+  private static void deleteFiles(final Repository repo, final RevTree tree, final File dir) throws IOException {
+    final TreeWalk tw = new TreeWalk(repo);
+    try {
+      tw.addTree(tree);
+      tw.setRecursive(true);
+      while (tw.next()) {
+        new File(dir, tw.getPathString()).delete();
+      }
+    } finally {
+      tw.release();
+    }
+  }
+
+  private static void writeFiles(final Repository repo, final RevTree tree, final File dir) throws IOException {
+    final TreeWalk tw = new TreeWalk(repo);
+    try {
+      tw.addTree(tree);
+      tw.setRecursive(true);
+      while (tw.next()) {
+        final File f = new File(dir, tw.getPathString());
+        final File parent = f.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+          throw new IOException("could not create " + parent);
+        }
+        final OutputStream out = new FileOutputStream(f);
+        try {
+          repo.open(tw.getObjectId(0), Constants.OBJ_BLOB).copyTo(out);
+        } finally {
+          out.close();
+        }
+        if (FileMode.EXECUTABLE_FILE.equals(tw.getRawMode(0))) {
+          f.setExecutable(true);
+        }
+      }
+    } finally {
+      tw.release();
+    }
+  }
+
+  private static Map<String, String> loadSplitState(final File stateFile) throws IOException {
+    final Map<String, String> state = new TreeMap<String, String>();
+    if (stateFile.isFile()) {
+      final Properties p = new Properties();
+      final InputStream in = new FileInputStream(stateFile);
+      try {
+        p.load(in);
+      } finally {
+        in.close();
+      }
+      for (final String part : p.stringPropertyNames()) {
+        state.put(part, p.getProperty(part));
+      }
+    }
+    return state;
+  }
+
+  private static void storeSplitState(final File stateFile, final Map<String, String> state) throws IOException {
+    final Properties p = new Properties();
+    p.putAll(state);
+    final File tmp = new File(stateFile.getParentFile(), stateFile.getName() + ".tmp");
+    final OutputStream out = new FileOutputStream(tmp);
+    try {
+      p.store(out, null);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(stateFile) && !(stateFile.delete() && tmp.renameTo(stateFile))) {
+      throw new IOException("failed to write " + stateFile);
+    }
+  }
+
+  private static void cancel(final Future<URI> bundle, final Future<URI> delta) {
+    if (bundle != null) {
+      bundle.cancel(true);
+    }
+    if (delta != null) {
+      delta.cancel(true);
+    }
+  }
+
+  /**
+   * @return whether the repository has been advanced to the required ref, {@code false} to fall back to the full
+   *         bundle
+   */
+  private static boolean applyDelta(final Git git, final String branchName, final String requiredRef,
+      final String refName, final Future<URI> delta, final CleanupMode cleanup) {
+    int span = StartupTrace.begin(StartupTrace.CATEGORY_FILETREE, "fetchDelta");
+    try {
+      final URI d = Resources.get(delta, "failed to get delta bundle");
+      final Repository repo = git.getRepository();
+      final ObjectId head = repo.resolve(Constants.HEAD);
+      final String deltaRef = fetchBundle(git, d, refName, singleton(head));
+      final String ref = Snapshot.snapshotOf(repo, ObjectId.fromString(deltaRef)).getName();
+      if (requiredRef != null && !requiredRef.equals(ref)) {
+        ModulizerLog.warn("delta bundle provides %s instead of %s", ref, requiredRef);
+        return false;
+      }
+
+      span = StartupTrace.next(span, StartupTrace.CATEGORY_FILETREE, "advance");
+      git.checkout().setName(branchName).call();
+      git.reset().setMode(ResetType.HARD).setRef(ref).call();
+      StartupTrace.end(span);
+      log("advanced %s from %s to %s", branchName, head.getName(), ref);
+
+      ensureClean(git, cleanup);
+      return true;
+
+    } catch (final IOException e) {
+      ModulizerLog.warn("applying delta bundle failed: %s", e);
+    } catch (final GitAPIException e) {
+      ModulizerLog.warn("applying delta bundle failed: %s", e);
+    } catch (final RuntimeException e) {
+      ModulizerLog.warn("applying delta bundle failed: %s", e);
+    } finally {
+      StartupTrace.end(span);
+    }
+    return false;
+  }
+
+  /**
+   * Starts the background verification of a work tree at HEAD instead of blocking on {@link #ensureClean}, unless the
+   * work tree was never verified at HEAD or a repair is pending.
+   *
+   * @return whether the verification runs in the background
+   */
+  private static boolean verifyInBackground(final Git git, final CleanupMode cleanup, final long bytesPerSecond)
+      throws IOException {
+    if (bytesPerSecond <= 0L || CleanupMode.NONE.equals(cleanup)) {
+      return false;
+    }
+    final Repository repo = git.getRepository();
+    final TreeManifest manifest = TreeManifest.read(repo);
+    final ObjectId head = repo.resolve(Constants.HEAD);
+    if (manifest == null || head == null || !head.getName().equals(manifest.getCommit())
+        || BackgroundVerifier.hasRepairMarker(repo)) {
+      return false;
+    }
+    log("verify in background");
+    BackgroundVerifier.start(repo, bytesPerSecond);
+    return true;
+  }
+
+  /**
+   * Ensures the work tree matches the checked out commit. The check is stat-only against the {@link TreeManifest} of
+   * the commit, without a manifest the work tree is compared to the index by {@code git status} and reset if needed,
+   * and the manifest is recorded for the next start. Files a background verification found to differ are repaired
+   * first.
+   */
+  private static void ensureClean(final Git git, final CleanupMode cleanup) throws IOException, GitAPIException {
 
     if (CleanupMode.NONE.equals(cleanup)) {
       log("skip cleanup");
       return;
     }
-    //TODO handle all cleanup modes properly
-    final Status st = git.status().call();
-    if (st.isClean()) {
+    final int span = StartupTrace.begin(StartupTrace.CATEGORY_FILETREE, "ensureClean");
+    try {
+      final Repository repo = git.getRepository();
+      final ObjectId head = repo.resolve(Constants.HEAD);
+      TreeManifest manifest = TreeManifest.read(repo);
+      if (manifest == null || !head.getName().equals(manifest.getCommit())) {
+        resetIfDirty(git);
+        manifest = TreeManifest.create(repo, head);
+        manifest.write(repo);
+      } else if (manifest.repair(repo, BackgroundVerifier.readRepairMarker(repo)) > 0) {
+        log("repaired files found by the background verification");
+        manifest.write(repo);
+      }
+      if (manifest.verify(repo, cleanup) > 0) {
+        manifest.write(repo);
+      }
+      BackgroundVerifier.deleteRepairMarker(repo);
+      log("ready");
+    } finally {
+      StartupTrace.end(span);
+    }
+  }
+
+  /**
+   * Ensures a split work tree matches its parts, like {@link #ensureClean} for a checked out commit. The manifest is
+   * keyed by the tree combining all parts. When the parts changed, the files of the parts just restored are recorded
+   * as they are, the others keep their record of the previous manifest, or are hashed if they have none.
+   *
+   * @param restoredParts the parts written by this restore
+   */
+  private static void ensureCleanSplit(final Repository repo, final Map<String, String> parts,
+      final Collection<String> restoredParts, final CleanupMode cleanup) throws IOException {
+
+    if (CleanupMode.NONE.equals(cleanup)) {
+      log("skip cleanup");
+      return;
+    }
+    final int span = StartupTrace.begin(StartupTrace.CATEGORY_FILETREE, "ensureClean");
+    try {
+      final Set<String> fresh = new HashSet<String>();
+      final ObjectId tree = splitTree(repo, parts, restoredParts, fresh);
+      TreeManifest manifest = TreeManifest.read(repo);
+      if (manifest == null || !tree.getName().equals(manifest.getCommit())) {
+        final TreeManifest previous = manifest;
+        manifest = TreeManifest.create(repo, tree.getName(), tree);
+        manifest.inherit(previous, fresh);
+        manifest.write(repo);
+      }
+      if (manifest.verify(repo, cleanup) > 0) {
+        manifest.write(repo);
+      }
       log("ready");
-    } else {
+    } finally {
+      StartupTrace.end(span);
+    }
+  }
+
+  /**
+   * @param fresh collects the paths of the restored parts
+   * @return the tree combining the trees of all parts at their place in the work tree
+   */
+  private static ObjectId splitTree(final Repository repo, final Map<String, String> parts,
+      final Collection<String> restoredParts, final Set<String> fresh) throws IOException {
+    final DirCacheBuilder builder = DirCache.newInCore().builder();
+    for (final Map.Entry<String, String> p : parts.entrySet()) {
+      final String part = p.getKey();
+      final boolean restored = restoredParts.contains(part);
+      final TreeWalk tw = new TreeWalk(repo);
+      try {
+        tw.addTree(ObjectId.fromString(p.getValue()));
+        tw.setRecursive(true);
+        while (tw.next()) {
+          final String path = part.length() == 0 ? tw.getPathString() : part + '/' + tw.getPathString();
+          final DirCacheEntry e = new DirCacheEntry(path);
+          e.setFileMode(tw.getFileMode(0));
+          e.setObjectId(tw.getObjectId(0));
+          builder.add(e);
+          if (restored) {
+            fresh.add(path);
+          }
+        }
+      } finally {
+        tw.release();
+      }
+    }
+    builder.finish();
+    final ObjectInserter inserter = repo.newObjectInserter();
+    try {
+      final ObjectId tree = builder.getDirCache().writeTree(inserter);
+      inserter.flush();
+      return tree;
+    } finally {
+      inserter.release();
+    }
+  }
+
+  private static void resetIfDirty(final Git git) throws NoWorkTreeException, GitAPIException {
+    final Status st = git.status().call();
+    if (st.hasUncommittedChanges()) {
       log("not clean");
       git.reset().setMode(ResetType.HARD).call();
-      final Status st2 = git.status().call();
-      if (st2.isClean() || !st.getUntracked().isEmpty()) {
-        log("ready");
-      }
     }
   }
 
@@ -121,18 +515,30 @@ public class Restore {
     try {
 
       // fetch
-      final String ref = fetchBundle(git, bundle, refName);
-
-      // branch
-      git.branchCreate().setName(branchName).setForce(true).setStartPoint(ref).call();
+      int span = StartupTrace.begin(StartupTrace.CATEGORY_FILETREE, "fetchBundle");
+      final String ref = BundleImport.fetch(git.getRepository(), bundle, refName).getName();
 
       // checkout
-      final String head = git.checkout().setName(branchName).call().getObjectId().getName();
+      span = StartupTrace.next(span, StartupTrace.CATEGORY_FILETREE, "checkout");
+      final Repository repo = git.getRepository();
+      final ObjectId head = ObjectId.fromString(ref);
+      ParallelCheckout.checkout(repo, head);
+
+      // branch, only now the work tree counts as checked out
+      span = StartupTrace.next(span, StartupTrace.CATEGORY_FILETREE, "branch");
+      git.branchCreate().setName(branchName).setForce(true).setStartPoint(ref).call();
+      final RefUpdate.Result linked = repo.updateRef(Constants.HEAD).link(Constants.R_HEADS + branchName);
+      if (!RefUpdate.Result.NEW.equals(linked) && !RefUpdate.Result.FORCED.equals(linked)
+          && !RefUpdate.Result.NO_CHANGE.equals(linked)) {
+        throw new IOException("failed to check out " + branchName + ": " + linked);
+      }
+      TreeManifest.create(repo, head).write(repo);
+      StartupTrace.end(span);
 
       // clean workspace
       ensureClean(git, cleanup);
 
-      return head;
+      return ref;
 
     } finally {
       // close repository
@@ -141,7 +547,8 @@ public class Restore {
 
   }
 
-  private static String fetchBundle(final Git git, final URI bundle, final String refName) throws IOException {
+  private static String fetchBundle(final Git git, final URI bundle, final String refName, final Set<ObjectId> have)
+      throws IOException {
     final URL loc = bundle.toURL();
     final URIish uri = new URIish(loc);
 
@@ -151,7 +558,6 @@ public class Restore {
       final Ref target = src.getRef(refName);
 
       final Collection<Ref> want = singleton(target);
-      final Set<ObjectId> have = emptySet();
       src.fetch(NullProgressMonitor.INSTANCE, want, have);
 
       return target.getObjectId().getName();
@@ -161,6 +567,15 @@ public class Restore {
     }
   }
 
+  /**
+   * Locates the bundle of a content id of a split file tree.
+   */
+  public interface BundleLocator {
+
+    URI locate(String contentId) throws IOException;
+
+  }
+
   public enum CleanupMode {
     NONE, RESET_ONLY, FULL
   }
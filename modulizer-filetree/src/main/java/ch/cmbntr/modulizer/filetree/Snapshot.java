@@ -4,23 +4,35 @@ import java.io.Console;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import org.eclipse.jgit.api.AddCommand;
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.errors.ConcurrentRefUpdateException;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.NoFilepatternException;
-import org.eclipse.jgit.api.errors.NoHeadException;
-import org.eclipse.jgit.api.errors.NoMessageException;
-import org.eclipse.jgit.api.errors.UnmergedPathsException;
-import org.eclipse.jgit.api.errors.WrongRepositoryStateException;
 import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.TextProgressMonitor;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.BundleWriter;
+import org.eclipse.jgit.transport.RefSpec;
 
 import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog;
 
@@ -28,6 +40,18 @@ public class Snapshot {
 
   private static final Logger LOG = ModulizerLog.getLogger();
 
+  private static final String PREVIOUS_RELEASE_REFS = "refs/modulizer/previous/";
+
+  /**
+   * The resource directory of the split bundles.
+   */
+  public static final String SPLIT_BUNDLE_DIR = "filetree";
+
+  /**
+   * The fixed identity of the generated commits, a commit only depends on its tree and parents.
+   */
+  private static final PersonIdent SNAPSHOT_IDENT = new PersonIdent("modulizer", "modulizer", 0L, 0);
+
   private Snapshot() {
     super();
   }
@@ -49,51 +73,234 @@ public class Snapshot {
     System.exit(0);
   }
 
+  /**
+   * Creates a full bundle of the work tree. The snapshot commit has no parent, so the bundle only holds the current
+   * tree, and it is derived from the tree alone, so a client holding the tree can rebuild it, see
+   * {@link #snapshotOf(Repository, AnyObjectId)}.
+   *
+   * @return the bundle id, i.e. the snapshot commit
+   */
   public static String createBundle(final File bundle, final File worktree, final String bundleRef) {
 
     try {
       final File dir = worktree.getCanonicalFile().getAbsoluteFile();
 
       final Git git = Git.init().setDirectory(dir).call();
-
-      final AddCommand add = git.add();
-      for (final File f : dir.listFiles()) {
-        final String name = f.getName();
-        if (!".git".equals(name)) {
-          log("adding %s", name);
-          add.addFilepattern(name);
+      final Repository repo = git.getRepository();
+      try {
+        final DirCache index = addAll(git, dir);
+        final ObjectId head;
+        final ObjectInserter inserter = repo.newObjectInserter();
+        try {
+          head = snapshotCommit(inserter, index.writeTree(inserter));
+          inserter.flush();
+        } finally {
+          inserter.release();
+        }
+        final RefUpdate u = repo.updateRef(Constants.HEAD);
+        u.setNewObjectId(head);
+        u.setForceUpdate(true);
+        final RefUpdate.Result r = u.update();
+        if (r != RefUpdate.Result.NEW && r != RefUpdate.Result.FORCED && r != RefUpdate.Result.NO_CHANGE) {
+          throw new IOException("failed to update HEAD to the snapshot: " + r);
         }
-      }
-      final DirCache index = add.call();
-      final int cnt = index.getEntryCount();
-      log("%d entries added", cnt);
-      final String msg = "snapshot";
-      final RevCommit head = git.commit().setMessage(msg).call();
 
-      final BundleWriter bw = new BundleWriter(git.getRepository());
-      bw.include(sanitizeHeadRef(bundleRef), head);
+        final BundleWriter bw = new BundleWriter(repo);
+        bw.include(sanitizeHeadRef(bundleRef), head);
 
-      final FileOutputStream out = new FileOutputStream(bundle);
-      try {
-        bw.writeBundle(createProgressMonitor(), out);
+        final FileOutputStream out = new FileOutputStream(bundle);
+        try {
+          bw.writeBundle(createProgressMonitor(), out);
+        } finally {
+          out.close();
+        }
+
+        return head.getName();
       } finally {
-        out.close();
+        repo.close();
       }
 
-      return head.getId().getName();
-
     } catch (final NoFilepatternException e) {
       throw failCreateBundle(e);
-    } catch (final NoHeadException e) {
-      throw failCreateBundle(e);
-    } catch (final NoMessageException e) {
+    } catch (final IOException e) {
       throw failCreateBundle(e);
-    } catch (final UnmergedPathsException e) {
+    } catch (final GitAPIException e) {
       throw failCreateBundle(e);
-    } catch (final ConcurrentRefUpdateException e) {
+    }
+  }
+
+  /**
+   * Writes a thin bundle of the given snapshot on top of the previous release, holding only the objects not reachable
+   * from it. The bundled commit has the tree of the snapshot and the previous release as its parent, jgit only omits
+   * the shared objects when the walk reaches the prerequisite through the commit graph. Clients rebuild the snapshot
+   * commit from its tree, see {@link #snapshotOf(Repository, AnyObjectId)}.
+   *
+   * @param head the snapshot commit, as returned by {@link #createBundle(File, File, String)}
+   * @param base the bundle id of the previous release, the prerequisite of the delta bundle
+   * @param baseBundle the bundle of the previous release, may be {@code null} if the repository of the work tree still
+   *          has the previous release
+   */
+  public static void createDeltaBundle(final File delta, final File worktree, final String bundleRef,
+      final String head, final String base, final File baseBundle) {
+    try {
+      final Git git = Git.open(worktree.getCanonicalFile().getAbsoluteFile());
+      final Repository repo = git.getRepository();
+      final RevWalk walk = new RevWalk(repo);
+      try {
+        fetchBase(git, base, baseBundle);
+        final RevCommit baseCommit = walk.parseCommit(ObjectId.fromString(base));
+        final RevCommit snapshot = walk.parseCommit(ObjectId.fromString(head));
+
+        final CommitBuilder commit = snapshotCommit(snapshot.getTree());
+        commit.setParentId(baseCommit);
+        final ObjectId deltaCommit;
+        final ObjectInserter inserter = repo.newObjectInserter();
+        try {
+          deltaCommit = inserter.insert(commit);
+          inserter.flush();
+        } finally {
+          inserter.release();
+        }
+
+        final BundleWriter bw = new BundleWriter(repo);
+        bw.include(sanitizeHeadRef(bundleRef), deltaCommit);
+        bw.assume(baseCommit);
+
+        final FileOutputStream out = new FileOutputStream(delta);
+        try {
+          bw.writeBundle(createProgressMonitor(), out);
+        } finally {
+          out.close();
+        }
+      } finally {
+        walk.release();
+        repo.close();
+      }
+
+    } catch (final IOException e) {
       throw failCreateBundle(e);
-    } catch (final WrongRepositoryStateException e) {
+    } catch (final GitAPIException e) {
       throw failCreateBundle(e);
+    }
+  }
+
+  /**
+   * Inserts the snapshot commit of the tree of the given commit, as fetched from a delta bundle.
+   *
+   * @return the snapshot commit, the bundle id of the full bundle of the same tree
+   */
+  static ObjectId snapshotOf(final Repository repo, final AnyObjectId commit) throws IOException {
+    final RevWalk walk = new RevWalk(repo);
+    final ObjectInserter inserter = repo.newObjectInserter();
+    try {
+      final ObjectId snapshot = snapshotCommit(inserter, walk.parseCommit(commit).getTree());
+      inserter.flush();
+      return snapshot;
+    } finally {
+      inserter.release();
+      walk.release();
+    }
+  }
+
+  private static ObjectId snapshotCommit(final ObjectInserter inserter, final AnyObjectId tree) throws IOException {
+    return inserter.insert(snapshotCommit(tree));
+  }
+
+  private static CommitBuilder snapshotCommit(final AnyObjectId tree) {
+    final CommitBuilder commit = new CommitBuilder();
+    commit.setTreeId(tree);
+    commit.setAuthor(SNAPSHOT_IDENT);
+    commit.setCommitter(SNAPSHOT_IDENT);
+    commit.setMessage("snapshot");
+    return commit;
+  }
+
+  /**
+   * @return the name of the split bundle of the given content id
+   */
+  public static String splitBundleName(final String contentId) {
+    return contentId + ".dat";
+  }
+
+  /**
+   * Creates one bundle per module directory and one for the remaining files of the work tree. The content id of a part
+   * is the id of its tree, the bundles are named by their content id, so a part unchanged since the last build reuses
+   * its bundle.
+   *
+   * @param targetDir the directory of the split bundles
+   * @param modulePaths the module directories relative to the work tree, with {@code /} separators
+   * @return the content id by part, the empty part holding the files outside of the module directories
+   */
+  public static Map<String, String> createSplitBundles(final File targetDir, final File worktree,
+      final String bundleRef, final Collection<String> modulePaths) {
+    try {
+      final File dir = worktree.getCanonicalFile().getAbsoluteFile();
+      final Git git = Git.init().setDirectory(dir).call();
+      final Repository repo = git.getRepository();
+      try {
+        final DirCache index = addAll(git, dir);
+
+        final Map<String, DirCacheBuilder> parts = new TreeMap<String, DirCacheBuilder>();
+        for (int i = 0; i < index.getEntryCount(); i++) {
+          final DirCacheEntry e = index.getEntry(i);
+          final String path = e.getPathString();
+          final String part = partOf(path, modulePaths);
+          DirCacheBuilder builder = parts.get(part);
+          if (builder == null) {
+            builder = DirCache.newInCore().builder();
+            parts.put(part, builder);
+          }
+          final DirCacheEntry c = new DirCacheEntry(part.length() == 0 ? path : path.substring(part.length() + 1));
+          c.setFileMode(e.getFileMode());
+          c.setObjectId(e.getObjectId());
+          c.setLength(e.getLength());
+          builder.add(c);
+        }
+
+        final Map<String, String> ids = new LinkedHashMap<String, String>();
+        final Map<String, ObjectId> commits = new HashMap<String, ObjectId>();
+        final ObjectInserter inserter = repo.newObjectInserter();
+        try {
+          for (final Map.Entry<String, DirCacheBuilder> p : parts.entrySet()) {
+            final DirCacheBuilder builder = p.getValue();
+            builder.finish();
+            final ObjectId tree = builder.getDirCache().writeTree(inserter);
+            final CommitBuilder commit = new CommitBuilder();
+            commit.setTreeId(tree);
+            commit.setAuthor(SNAPSHOT_IDENT);
+            commit.setCommitter(SNAPSHOT_IDENT);
+            commit.setMessage(p.getKey());
+            ids.put(p.getKey(), tree.getName());
+            commits.put(p.getKey(), inserter.insert(commit));
+          }
+          inserter.flush();
+        } finally {
+          inserter.release();
+        }
+
+        if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+          throw new IOException("could not create " + targetDir);
+        }
+        for (final Map.Entry<String, String> p : ids.entrySet()) {
+          final File bundle = new File(targetDir, splitBundleName(p.getValue()));
+          if (bundle.isFile()) {
+            log("reuse bundle of %s", p.getKey());
+            continue;
+          }
+          final BundleWriter bw = new BundleWriter(repo);
+          bw.include(sanitizeHeadRef(bundleRef), commits.get(p.getKey()));
+          final FileOutputStream out = new FileOutputStream(bundle);
+          try {
+            bw.writeBundle(NullProgressMonitor.INSTANCE, out);
+          } finally {
+            out.close();
+          }
+        }
+        return ids;
+      } finally {
+        repo.close();
+      }
+
     } catch (final IOException e) {
       throw failCreateBundle(e);
     } catch (final GitAPIException e) {
@@ -101,6 +308,49 @@ public class Snapshot {
     }
   }
 
+  private static String partOf(final String path, final Collection<String> modulePaths) {
+    String part = "";
+    for (final String m : modulePaths) {
+      if (m.length() > part.length() && path.startsWith(m) && path.length() > m.length()
+          && path.charAt(m.length()) == '/') {
+        part = m;
+      }
+    }
+    return part;
+  }
+
+  private static DirCache addAll(final Git git, final File dir) throws GitAPIException {
+    final AddCommand add = git.add();
+    for (final File f : dir.listFiles()) {
+      final String name = f.getName();
+      if (!".git".equals(name)) {
+        log("adding %s", name);
+        add.addFilepattern(name);
+      }
+    }
+    final DirCache index = add.call();
+    log("%d entries added", index.getEntryCount());
+    return index;
+  }
+
+  private static void fetchBase(final Git git, final String base, final File baseBundle) throws IOException,
+      GitAPIException {
+    final Repository repo = git.getRepository();
+    final ObjectId baseId = ObjectId.fromString(base);
+    if (repo.hasObject(baseId)) {
+      return;
+    }
+    if (baseBundle == null) {
+      throw new IOException("unknown previous release " + base + ", its bundle is required");
+    }
+    log("fetching previous release from %s", baseBundle);
+    git.fetch().setRemote(baseBundle.getAbsolutePath())
+        .setRefSpecs(new RefSpec("+refs/heads/*:" + PREVIOUS_RELEASE_REFS + "*")).call();
+    if (!repo.hasObject(baseId)) {
+      throw new IOException("previous release " + base + " not found in " + baseBundle);
+    }
+  }
+
   private static ProgressMonitor createProgressMonitor() {
     final Console con = System.console();
     return con == null ? NullProgressMonitor.INSTANCE : new TextProgressMonitor(con.writer());
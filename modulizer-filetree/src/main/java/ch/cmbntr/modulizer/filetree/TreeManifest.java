@@ -0,0 +1,385 @@
+package ch.cmbntr.modulizer.filetree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog;
+import ch.cmbntr.modulizer.bootstrap.util.Resources;
+import ch.cmbntr.modulizer.filetree.Restore.CleanupMode;
+
+/**
+ * The files of a checked out commit with their size, modification time, mode and blob id, written next to the
+ * repository after a checkout. Verifying a work tree against it only stats the files, the content of a file is only
+ * hashed if its stat differs, and only the files that actually differ are rewritten from the repository.
+ */
+final class TreeManifest {
+
+  static final String FILE_NAME = "modulizer-manifest.bin";
+
+  private static final int MAGIC = 0x4d544d46;
+
+  private static final int VERSION = 1;
+
+  private static final int MIN_CHUNK = 512;
+
+  private final String commit;
+  private final String[] paths;
+  private final long[] sizes;
+  private final long[] mtimes;
+  private final int[] modes;
+  private final ObjectId[] blobs;
+
+  private TreeManifest(final String commit, final int count) {
+    this.commit = commit;
+    this.paths = new String[count];
+    this.sizes = new long[count];
+    this.mtimes = new long[count];
+    this.modes = new int[count];
+    this.blobs = new ObjectId[count];
+  }
+
+  /**
+   * Records the files of the given commit as currently found in the work tree, which has to be clean.
+   */
+  static TreeManifest create(final Repository repo, final ObjectId commit) throws IOException {
+    final RevWalk walk = new RevWalk(repo);
+    try {
+      return create(repo, commit.getName(), walk.parseCommit(commit).getTree());
+    } finally {
+      walk.release();
+    }
+  }
+
+  /**
+   * Records the files of the given tree as currently found in the work tree.
+   *
+   * @param key identifies the content of the work tree, see {@link #getCommit()}
+   */
+  static TreeManifest create(final Repository repo, final String key, final AnyObjectId tree) throws IOException {
+    final File worktree = repo.getWorkTree();
+    final List<String> paths = new ArrayList<String>();
+    final List<ObjectId> blobs = new ArrayList<ObjectId>();
+    final List<Integer> modes = new ArrayList<Integer>();
+    final TreeWalk tw = new TreeWalk(repo);
+    try {
+      tw.addTree(tree);
+      tw.setRecursive(true);
+      while (tw.next()) {
+        paths.add(tw.getPathString());
+        blobs.add(tw.getObjectId(0));
+        modes.add(Integer.valueOf(tw.getRawMode(0)));
+      }
+    } finally {
+      tw.release();
+    }
+    final TreeManifest m = new TreeManifest(key, paths.size());
+    for (int i = 0; i < m.paths.length; i++) {
+      final File f = new File(worktree, paths.get(i));
+      m.paths[i] = paths.get(i);
+      m.blobs[i] = blobs.get(i);
+      m.modes[i] = modes.get(i).intValue();
+      m.sizes[i] = f.length();
+      m.mtimes[i] = f.lastModified();
+    }
+    return m;
+  }
+
+  /**
+   * @return the manifest of the repository, {@code null} if there is none or it is unreadable
+   */
+  static TreeManifest read(final Repository repo) {
+    final File file = new File(repo.getDirectory(), FILE_NAME);
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          return null;
+        }
+        final TreeManifest m = new TreeManifest(in.readUTF(), in.readInt());
+        final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        for (int i = 0; i < m.paths.length; i++) {
+          m.paths[i] = in.readUTF();
+          m.sizes[i] = in.readLong();
+          m.mtimes[i] = in.readLong();
+          m.modes[i] = in.readInt();
+          in.readFully(raw);
+          m.blobs[i] = ObjectId.fromRaw(raw);
+        }
+        return m;
+      } finally {
+        in.close();
+      }
+    } catch (final IOException e) {
+      ModulizerLog.warn("ignoring manifest %s: %s", file, e);
+      return null;
+    }
+  }
+
+  void write(final Repository repo) throws IOException {
+    final File file = new File(repo.getDirectory(), FILE_NAME);
+    final File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(this.commit);
+      out.writeInt(this.paths.length);
+      final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+      for (int i = 0; i < this.paths.length; i++) {
+        out.writeUTF(this.paths[i]);
+        out.writeLong(this.sizes[i]);
+        out.writeLong(this.mtimes[i]);
+        out.writeInt(this.modes[i]);
+        this.blobs[i].copyRawTo(raw, 0);
+        out.write(raw);
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+      throw new IOException("failed to write " + file);
+    }
+  }
+
+  /**
+   * @return the checked out commit, or the tree combining the parts of a split work tree
+   */
+  String getCommit() {
+    return this.commit;
+  }
+
+  /**
+   * Takes the records of the previous manifest for the files whose blob is unchanged, the files neither recorded
+   * before nor given as fresh are hashed by the next {@link #verify(Repository, CleanupMode)}.
+   *
+   * @param previous the previous manifest, {@code null} if none
+   * @param fresh the paths just written from the repository, keeping their current record
+   */
+  void inherit(final TreeManifest previous, final Set<String> fresh) {
+    final Map<String, Integer> before = new HashMap<String, Integer>();
+    if (previous != null) {
+      for (int i = 0; i < previous.paths.length; i++) {
+        before.put(previous.paths[i], Integer.valueOf(i));
+      }
+    }
+    for (int i = 0; i < this.paths.length; i++) {
+      if (fresh.contains(this.paths[i])) {
+        continue;
+      }
+      final Integer j = before.get(this.paths[i]);
+      if (j != null && previous.blobs[j.intValue()].equals(this.blobs[i])) {
+        this.sizes[i] = previous.sizes[j.intValue()];
+        this.mtimes[i] = previous.mtimes[j.intValue()];
+      } else {
+        this.sizes[i] = -1L;
+      }
+    }
+  }
+
+  int size() {
+    return this.paths.length;
+  }
+
+  /**
+   * Verifies the work tree in parallel chunks. {@link CleanupMode#RESET_ONLY} rewrites the tracked files whose content
+   * or mode differs and restores missing ones, {@link CleanupMode#FULL} additionally deletes the untracked entries of
+   * the tracked directories below the top level, the top level itself holds runtime files like the standby port file
+   * and is left alone.
+   *
+   * @return the number of entries updated, i.e. the manifest has to be written again if positive
+   */
+  int verify(final Repository repo, final CleanupMode cleanup) throws IOException {
+    final File worktree = repo.getWorkTree();
+    final AtomicInteger updated = new AtomicInteger();
+    final int chunk = Math.max(MIN_CHUNK, this.paths.length / (4 * Runtime.getRuntime().availableProcessors()) + 1);
+    final List<Future<Integer>> checks = new ArrayList<Future<Integer>>();
+    for (int start = 0; start < this.paths.length; start += chunk) {
+      final int from = start;
+      final int to = Math.min(this.paths.length, start + chunk);
+      checks.add(Resources.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws IOException {
+          return Integer.valueOf(verify(repo, worktree, from, to, updated));
+        }
+      }));
+    }
+    final Future<Integer> clean = CleanupMode.FULL.equals(cleanup) ? Resources.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws IOException {
+        return Integer.valueOf(removeUntracked(worktree));
+      }
+    }) : null;
+
+    int repaired = 0;
+    for (final Future<Integer> c : checks) {
+      repaired += Resources.get(c, "failed to verify work tree").intValue();
+    }
+    final int removed = clean == null ? 0 : Resources.get(clean, "failed to clean work tree").intValue();
+    if (repaired > 0 || removed > 0) {
+      ModulizerLog.log("repaired %d and removed %d entries of %s", repaired, removed, worktree);
+    }
+    return updated.get();
+  }
+
+  /**
+   * Hashes every file of the work tree, unlike {@link #verify(Repository, CleanupMode)} this also finds content changes
+   * keeping size and modification time.
+   *
+   * @param bytesPerSecond the throughput cap of the hashing
+   * @return the paths of the files not matching their blob id
+   */
+  List<String> findMismatches(final File worktree, final long bytesPerSecond) throws InterruptedException {
+    final List<String> mismatches = new ArrayList<String>();
+    final ObjectInserter.Formatter hasher = new ObjectInserter.Formatter();
+    final long start = System.nanoTime();
+    long bytes = 0L;
+    for (int i = 0; i < this.paths.length; i++) {
+      final File f = new File(worktree, this.paths[i]);
+      final long size = f.length();
+      if (!f.isFile() || !this.blobs[i].equals(hash(hasher, f, size))) {
+        mismatches.add(this.paths[i]);
+      }
+      bytes += size;
+      final long dueMillis = bytes * 1000L / bytesPerSecond - (System.nanoTime() - start) / 1000000L;
+      if (dueMillis > 0L) {
+        Thread.sleep(dueMillis);
+      }
+    }
+    return mismatches;
+  }
+
+  /**
+   * Rewrites the given files from the repository.
+   *
+   * @return the number of files rewritten, i.e. the manifest has to be written again if positive
+   */
+  int repair(final Repository repo, final Collection<String> repairPaths) throws IOException {
+    final File worktree = repo.getWorkTree();
+    final Set<String> pending = new HashSet<String>(repairPaths);
+    int repaired = 0;
+    for (int i = 0; i < this.paths.length && !pending.isEmpty(); i++) {
+      if (pending.remove(this.paths[i])) {
+        final File f = new File(worktree, this.paths[i]);
+        write(repo, f, this.blobs[i]);
+        if (FileMode.EXECUTABLE_FILE.equals(this.modes[i])) {
+          f.setExecutable(true);
+        }
+        this.sizes[i] = f.length();
+        this.mtimes[i] = f.lastModified();
+        repaired++;
+      }
+    }
+    return repaired;
+  }
+
+  private int verify(final Repository repo, final File worktree, final int from, final int to,
+      final AtomicInteger updated) throws IOException {
+    int repaired = 0;
+    ObjectInserter.Formatter hasher = null;
+    for (int i = from; i < to; i++) {
+      final File f = new File(worktree, this.paths[i]);
+      final long size = f.length();
+      final long mtime = f.lastModified();
+      final boolean executable = FileMode.EXECUTABLE_FILE.equals(this.modes[i]);
+      if (size == this.sizes[i] && mtime == this.mtimes[i] && mtime != 0L && (!executable || f.canExecute())) {
+        continue;
+      }
+      if (hasher == null) {
+        hasher = new ObjectInserter.Formatter();
+      }
+      if (mtime == 0L || !this.blobs[i].equals(hash(hasher, f, size))) {
+        write(repo, f, this.blobs[i]);
+        repaired++;
+      }
+      if (executable) {
+        f.setExecutable(true);
+      }
+      this.sizes[i] = f.length();
+      this.mtimes[i] = f.lastModified();
+      updated.incrementAndGet();
+    }
+    return repaired;
+  }
+
+  private static ObjectId hash(final ObjectInserter.Formatter hasher, final File f, final long size) {
+    try {
+      final InputStream in = new FileInputStream(f);
+      try {
+        return hasher.idFor(Constants.OBJ_BLOB, size, in);
+      } finally {
+        in.close();
+      }
+    } catch (final IOException e) {
+      return null;
+    }
+  }
+
+  private static void write(final Repository repo, final File f, final ObjectId blob) throws IOException {
+    if (f.isDirectory()) {
+      FileTreeUtil.deleteRecursively(f);
+    }
+    final File parent = f.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("could not create " + parent);
+    }
+    // the temporary file lives in the repository directory, out of reach of the concurrent untracked file removal
+    FileTreeUtil.writeAtomically(repo.open(blob, Constants.OBJ_BLOB), f, repo.getDirectory());
+  }
+
+  private int removeUntracked(final File worktree) throws IOException {
+    final Set<String> tracked = new HashSet<String>(this.paths.length * 2);
+    final Set<String> dirs = new HashSet<String>();
+    for (final String p : this.paths) {
+      tracked.add(p);
+      for (int idx = p.lastIndexOf('/'); idx > 0 && dirs.add(p.substring(0, idx)); idx = p.lastIndexOf('/', idx - 1)) {
+        tracked.add(p.substring(0, idx));
+      }
+    }
+    int removed = 0;
+    for (final String dir : dirs) {
+      final File d = new File(worktree, dir);
+      // a linked directory is not ours to clean
+      final String[] names = FileTreeUtil.isSymbolicLink(d) ? null : d.list();
+      if (names == null) {
+        continue;
+      }
+      for (final String name : names) {
+        if (!tracked.contains(dir + '/' + name)) {
+          FileTreeUtil.deleteRecursively(new File(worktree, dir + '/' + name));
+          removed++;
+        }
+      }
+    }
+    return removed;
+  }
+
+}
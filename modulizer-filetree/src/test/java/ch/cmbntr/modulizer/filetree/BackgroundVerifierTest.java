@@ -0,0 +1,195 @@
+package ch.cmbntr.modulizer.filetree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
+import ch.cmbntr.modulizer.filetree.Restore.CleanupMode;
+
+public class BackgroundVerifierTest {
+
+  private static final String REF = "refs/heads/master";
+
+  private static final String VERIFIER = "modulizer filetree verifier";
+
+  private static final long FAST = 1L << 40;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File client;
+
+  private String id;
+
+  private Future<URI> bundle;
+
+  @Before
+  public void restoreOnce() throws Exception {
+    System.clearProperty(BootstrapContext.FILETREE_VERIFY_RESULT);
+    final File worktree = this.tmp.newFolder("worktree");
+    write(new File(worktree, "a.txt"), "release 1");
+    write(new File(worktree, "m/b.txt"), "module b");
+    final File full = this.tmp.newFile("full.dat");
+    this.id = Snapshot.createBundle(full, worktree, REF);
+    this.bundle = done(full.toURI());
+    this.client = new File(this.tmp.getRoot(), "client");
+    Restore.restore(this.client, "master", this.id, this.bundle, REF, null, null, CleanupMode.FULL, FAST);
+  }
+
+  @After
+  public void stopVerifier() throws InterruptedException {
+    final Thread t = verifier();
+    if (t != null) {
+      t.interrupt();
+      t.join(10000L);
+    }
+    System.clearProperty(BootstrapContext.FILETREE_VERIFY_RESULT);
+  }
+
+  @Test
+  public void testHeadMatchLaunchesWithoutBlocking() throws Exception {
+    Restore.restore(this.client, "master", this.id, this.bundle, REF, null, null, CleanupMode.FULL, 1L);
+
+    final Thread t = verifier();
+    assertNotNull(t);
+    assertTrue(t.isAlive());
+    assertNull(System.getProperty(BootstrapContext.FILETREE_VERIFY_RESULT));
+  }
+
+  @Test
+  public void testCleanTreeReportsOk() throws Exception {
+    Restore.restore(this.client, "master", this.id, this.bundle, REF, null, null, CleanupMode.FULL, FAST);
+
+    assertEquals("ok", awaitResult());
+    assertFalse(new File(this.client, ".git/" + BackgroundVerifier.REPAIR_MARKER).exists());
+  }
+
+  @Test
+  public void testSameStatChangeIsFound() throws Exception {
+    tamperKeepingStat(new File(this.client, "a.txt"));
+
+    final Repository repo = Git.open(this.client).getRepository();
+    try {
+      final TreeManifest manifest = TreeManifest.read(repo);
+      assertEquals(0, manifest.verify(repo, CleanupMode.FULL));
+      assertEquals(Collections.singletonList("a.txt"), manifest.findMismatches(this.client, FAST));
+    } finally {
+      repo.close();
+    }
+  }
+
+  @Test
+  public void testMismatchIsRepairedOnTheNextStart() throws Exception {
+    final File a = new File(this.client, "a.txt");
+    tamperKeepingStat(a);
+
+    Restore.restore(this.client, "master", this.id, this.bundle, REF, null, null, CleanupMode.FULL, FAST);
+
+    assertEquals("repair-pending:1", awaitResult());
+    final File marker = new File(this.client, ".git/" + BackgroundVerifier.REPAIR_MARKER);
+    assertEquals("a.txt\n", read(marker));
+    assertFalse(new File(marker.getPath() + ".tmp").exists());
+    assertEquals("release X", read(a));
+
+    System.clearProperty(BootstrapContext.FILETREE_VERIFY_RESULT);
+    Restore.restore(this.client, "master", this.id, this.bundle, REF, null, null, CleanupMode.FULL, FAST);
+
+    assertNull(verifier());
+    assertEquals("release 1", read(a));
+    assertEquals("module b", read(new File(this.client, "m/b.txt")));
+    assertFalse(marker.exists());
+    assertNull(System.getProperty(BootstrapContext.FILETREE_VERIFY_RESULT));
+  }
+
+  private static Thread verifier() {
+    for (final Thread t : Thread.getAllStackTraces().keySet()) {
+      if (VERIFIER.equals(t.getName())) {
+        return t;
+      }
+    }
+    return null;
+  }
+
+  private static String awaitResult() throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 10000L;
+    String result;
+    while ((result = System.getProperty(BootstrapContext.FILETREE_VERIFY_RESULT)) == null
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    final Thread t = verifier();
+    if (t != null) {
+      t.join(10000L);
+    }
+    return result;
+  }
+
+  /**
+   * Changes the content but neither the size nor the modification time, which a stat check can not tell.
+   */
+  private static void tamperKeepingStat(final File f) throws IOException {
+    final long modified = f.lastModified();
+    final String content = read(f);
+    write(f, content.substring(0, content.length() - 1) + "X");
+    assertTrue(f.setLastModified(modified));
+    assertEquals(modified, f.lastModified());
+  }
+
+  private static Future<URI> done(final URI uri) {
+    final FutureTask<URI> f = new FutureTask<URI>(new Callable<URI>() {
+      @Override
+      public URI call() {
+        return uri;
+      }
+    });
+    f.run();
+    return f;
+  }
+
+  private static void write(final File f, final String content) throws IOException {
+    f.getParentFile().mkdirs();
+    final FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String read(final File f) throws IOException {
+    final InputStream in = new FileInputStream(f);
+    try {
+      final byte[] buf = new byte[(int) f.length()];
+      int n = 0;
+      while (n < buf.length) {
+        n += in.read(buf, n, buf.length - n);
+      }
+      return new String(buf, "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+}
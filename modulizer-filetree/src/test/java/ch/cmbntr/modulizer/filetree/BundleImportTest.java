@@ -0,0 +1,358 @@
+package ch.cmbntr.modulizer.filetree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.BundleWriter;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BundleImportTest {
+
+  private static final String REF = "refs/heads/master";
+
+  private static final int SMALL_THRESHOLD = 1024;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testOffsetDeltas() throws Exception {
+    final File bundle = writtenBundle();
+    assertEquals(2, roundTrip(bundle, BundleImport.STREAM_THRESHOLD).count(Constants.OBJ_OFS_DELTA));
+  }
+
+  @Test
+  public void testOffsetDeltasStreamed() throws Exception {
+    final File bundle = writtenBundle();
+    assertEquals(2, roundTrip(bundle, SMALL_THRESHOLD).count(Constants.OBJ_OFS_DELTA));
+  }
+
+  @Test
+  public void testRefDeltas() throws Exception {
+    final File bundle = refDeltaBundle();
+    assertEquals(2, roundTrip(bundle, BundleImport.STREAM_THRESHOLD).count(Constants.OBJ_REF_DELTA));
+  }
+
+  @Test
+  public void testRefDeltasStreamed() throws Exception {
+    final File bundle = refDeltaBundle();
+    assertEquals(2, roundTrip(bundle, SMALL_THRESHOLD).count(Constants.OBJ_REF_DELTA));
+  }
+
+  @Test
+  public void testImportTwice() throws Exception {
+    final File bundle = writtenBundle();
+    final Repository repo = Git.init().setBare(true).setDirectory(this.tmp.newFolder("twice")).call()
+        .getRepository();
+    try {
+      final ObjectId tip = BundleImport.fetch(repo, bundle.toURI(), REF);
+      assertEquals(tip, BundleImport.fetch(repo, bundle.toURI(), REF));
+      assertTrue(repo.hasObject(tip));
+      final String[] names = new File(repo.getDirectory(), "objects/pack").list();
+      Arrays.sort(names);
+      assertEquals(2, names.length);
+      assertTrue(names[0], names[0].startsWith("pack-") && names[0].endsWith(".idx"));
+      assertTrue(names[1], names[1].startsWith("pack-") && names[1].endsWith(".pack"));
+    } finally {
+      repo.close();
+    }
+  }
+
+  /**
+   * Imports the bundle and fetches it with jgit, both must provide the same objects with the same content.
+   */
+  private BundleImport roundTrip(final File bundle, final int threshold) throws Exception {
+    final Repository imported = Git.init().setBare(true).setDirectory(this.tmp.newFolder("imported")).call()
+        .getRepository();
+    final Git fetched = Git.init().setBare(true).setDirectory(this.tmp.newFolder("fetched")).call();
+    try {
+      final BundleImport i = new BundleImport(imported, threshold);
+      final ObjectId tip = i.run(bundle.toURI(), REF);
+      fetched.fetch().setRemote(bundle.getAbsolutePath()).setRefSpecs(new RefSpec("+" + REF + ":" + REF)).call();
+      final Repository expected = fetched.getRepository();
+      assertEquals(expected.resolve(REF), tip);
+
+      final List<ObjectId> objects = objects(expected, tip);
+      int total = 0;
+      for (final int kind : new int[] { Constants.OBJ_COMMIT, Constants.OBJ_TREE, Constants.OBJ_BLOB,
+          Constants.OBJ_TAG, Constants.OBJ_OFS_DELTA, Constants.OBJ_REF_DELTA }) {
+        total += i.count(kind);
+      }
+      assertEquals(objects.size(), total);
+      for (final ObjectId id : objects) {
+        assertTrue(id.name(), imported.hasObject(id));
+        assertArrayEquals(id.name(), expected.open(id).getCachedBytes(Integer.MAX_VALUE), imported.open(id)
+            .getCachedBytes(Integer.MAX_VALUE));
+      }
+      assertEquals(tree(expected, tip), tree(imported, tip));
+      for (final String name : new File(imported.getDirectory(), "objects/pack").list()) {
+        assertFalse(name, name.endsWith(".tmp") || name.startsWith("incoming_"));
+      }
+      return i;
+    } finally {
+      imported.close();
+      fetched.getRepository().close();
+    }
+  }
+
+  private static List<ObjectId> objects(final Repository repo, final ObjectId tip) throws IOException {
+    final List<ObjectId> objects = new ArrayList<ObjectId>();
+    final ObjectWalk walk = new ObjectWalk(repo);
+    try {
+      walk.markStart(walk.parseAny(tip));
+      for (RevObject o = walk.next(); o != null; o = walk.next()) {
+        objects.add(o.copy());
+      }
+      for (RevObject o = walk.nextObject(); o != null; o = walk.nextObject()) {
+        objects.add(o.copy());
+      }
+    } finally {
+      walk.release();
+    }
+    return objects;
+  }
+
+  private static List<String> tree(final Repository repo, final ObjectId commit) throws IOException {
+    final List<String> entries = new ArrayList<String>();
+    final RevWalk revs = new RevWalk(repo);
+    final TreeWalk walk = new TreeWalk(repo);
+    try {
+      walk.addTree(revs.parseCommit(commit).getTree());
+      walk.setRecursive(true);
+      while (walk.next()) {
+        entries.add(walk.getPathString() + " " + walk.getFileMode(0) + " " + walk.getObjectId(0).name());
+      }
+    } finally {
+      walk.release();
+      revs.release();
+    }
+    return entries;
+  }
+
+  /**
+   * A bundle written by jgit on top of the hand made one. jgit does not search for deltas between loose objects here,
+   * but it reuses the deltas of the fetched pack and writes them as offset deltas.
+   */
+  private File writtenBundle() throws Exception {
+    final Git git = Git.init().setBare(true).setDirectory(this.tmp.newFolder("src")).call();
+    final Repository src = git.getRepository();
+    try {
+      git.fetch().setRemote(refDeltaBundle().getAbsolutePath()).setRefSpecs(new RefSpec("+" + REF + ":" + REF))
+          .call();
+      final ObjectInserter inserter = src.newObjectInserter();
+      final ObjectId tip;
+      try {
+        final DirCacheBuilder builder = DirCache.newInCore().builder();
+        builder.add(entry(inserter, "a.txt", "release 2".getBytes("UTF-8")));
+        builder.finish();
+        tip = commit(inserter, builder.getDirCache().writeTree(inserter), src.resolve(REF));
+        inserter.flush();
+      } finally {
+        inserter.release();
+      }
+
+      final File bundle = this.tmp.newFile("written.bundle");
+      final BundleWriter writer = new BundleWriter(src);
+      writer.include(REF, tip);
+      final OutputStream out = new FileOutputStream(bundle);
+      try {
+        writer.writeBundle(NullProgressMonitor.INSTANCE, out);
+      } finally {
+        out.close();
+      }
+      return bundle;
+    } finally {
+      src.close();
+    }
+  }
+
+  /**
+   * A bundle with a hand made pack, jgit only writes offset deltas into bundles. The first delta precedes its base,
+   * the second is based on the first.
+   */
+  private File refDeltaBundle() throws IOException {
+    final byte[] base = new byte[200 * 1024];
+    new Random(7L).nextBytes(base);
+    final ByteArrayOutputStream d1 = new ByteArrayOutputStream();
+    size(d1, base.length);
+    size(d1, 0x10000 + 5 + 1000 + 100);
+    copy(d1, 0, 0x10000);
+    insert(d1, "12345");
+    copy(d1, 150000, 1000);
+    copy(d1, 0, 100);
+    final byte[] v1 = new byte[0x10000 + 5 + 1000 + 100];
+    System.arraycopy(base, 0, v1, 0, 0x10000);
+    System.arraycopy("12345".getBytes("UTF-8"), 0, v1, 0x10000, 5);
+    System.arraycopy(base, 150000, v1, 0x10000 + 5, 1000);
+    System.arraycopy(base, 0, v1, 0x10000 + 5 + 1000, 100);
+    final ByteArrayOutputStream d2 = new ByteArrayOutputStream();
+    size(d2, v1.length);
+    size(d2, 60000);
+    copy(d2, 5, 60000);
+    final byte[] v2 = Arrays.copyOfRange(v1, 5, 60005);
+
+    final ObjectInserter.Formatter f = new ObjectInserter.Formatter();
+    final ObjectId baseId = f.idFor(Constants.OBJ_BLOB, base);
+    final ObjectId v1Id = f.idFor(Constants.OBJ_BLOB, v1);
+    final ObjectId v2Id = f.idFor(Constants.OBJ_BLOB, v2);
+    final ByteArrayOutputStream tree = new ByteArrayOutputStream();
+    treeEntry(tree, "a.bin", baseId);
+    treeEntry(tree, "b.bin", v1Id);
+    treeEntry(tree, "c.bin", v2Id);
+    final ObjectId treeId = f.idFor(Constants.OBJ_TREE, tree.toByteArray());
+    final byte[] commit = commit(treeId, null).build();
+    final ObjectId commitId = f.idFor(Constants.OBJ_COMMIT, commit);
+
+    final ByteArrayOutputStream pack = new ByteArrayOutputStream();
+    pack.write("PACK".getBytes("UTF-8"));
+    int32(pack, 2);
+    int32(pack, 5);
+    object(pack, Constants.OBJ_COMMIT, null, commit);
+    object(pack, Constants.OBJ_TREE, null, tree.toByteArray());
+    object(pack, Constants.OBJ_REF_DELTA, v1Id, d2.toByteArray());
+    object(pack, Constants.OBJ_REF_DELTA, baseId, d1.toByteArray());
+    object(pack, Constants.OBJ_BLOB, null, base);
+    final MessageDigest md = Constants.newMessageDigest();
+    pack.write(md.digest(pack.toByteArray()));
+
+    final File bundle = this.tmp.newFile();
+    final OutputStream out = new FileOutputStream(bundle);
+    try {
+      out.write(("# v2 git bundle\n" + commitId.name() + " " + REF + "\n\n").getBytes("UTF-8"));
+      pack.writeTo(out);
+    } finally {
+      out.close();
+    }
+    return bundle;
+  }
+
+  private static void object(final ByteArrayOutputStream pack, final int type, final ObjectId base, final byte[] data)
+      throws IOException {
+    long size = data.length;
+    int c = (type << 4) | (int) (size & 15);
+    size >>>= 4;
+    while (size != 0) {
+      pack.write(c | 0x80);
+      c = (int) (size & 0x7f);
+      size >>>= 7;
+    }
+    pack.write(c);
+    if (base != null) {
+      base.copyRawTo(pack);
+    }
+    final DeflaterOutputStream z = new DeflaterOutputStream(pack, new Deflater());
+    z.write(data);
+    z.finish();
+  }
+
+  private static void size(final ByteArrayOutputStream delta, final long size) {
+    long s = size;
+    while (s >= 0x80) {
+      delta.write((int) (s & 0x7f) | 0x80);
+      s >>>= 7;
+    }
+    delta.write((int) s);
+  }
+
+  private static void copy(final ByteArrayOutputStream delta, final int offset, final int len) {
+    final ByteArrayOutputStream args = new ByteArrayOutputStream();
+    int cmd = 0x80;
+    for (int i = 0; i < 4; i++) {
+      if (((offset >>> (8 * i)) & 0xff) != 0) {
+        cmd |= 1 << i;
+        args.write(offset >>> (8 * i));
+      }
+    }
+    if (len != 0x10000) {
+      for (int i = 0; i < 3; i++) {
+        if (((len >>> (8 * i)) & 0xff) != 0) {
+          cmd |= 0x10 << i;
+          args.write(len >>> (8 * i));
+        }
+      }
+    }
+    delta.write(cmd);
+    final byte[] a = args.toByteArray();
+    delta.write(a, 0, a.length);
+  }
+
+  private static void insert(final ByteArrayOutputStream delta, final String data) throws IOException {
+    delta.write(data.length());
+    delta.write(data.getBytes("UTF-8"));
+  }
+
+  private static void int32(final ByteArrayOutputStream out, final int v) {
+    out.write(v >>> 24);
+    out.write(v >>> 16);
+    out.write(v >>> 8);
+    out.write(v);
+  }
+
+  private static void treeEntry(final ByteArrayOutputStream tree, final String name, final ObjectId id)
+      throws IOException {
+    tree.write(("100644 " + name).getBytes("UTF-8"));
+    tree.write(0);
+    id.copyRawTo(tree);
+  }
+
+  private static DirCacheEntry entry(final ObjectInserter inserter, final String path, final byte[] content)
+      throws IOException {
+    final DirCacheEntry e = new DirCacheEntry(path);
+    e.setFileMode(FileMode.REGULAR_FILE);
+    e.setObjectId(inserter.insert(Constants.OBJ_BLOB, content));
+    return e;
+  }
+
+  private static ObjectId commit(final ObjectInserter inserter, final ObjectId tree, final ObjectId parent)
+      throws IOException {
+    return inserter.insert(commit(tree, parent));
+  }
+
+  private static CommitBuilder commit(final ObjectId tree, final ObjectId parent) {
+    final PersonIdent ident = new PersonIdent("test", "test", 0L, 0);
+    final CommitBuilder commit = new CommitBuilder();
+    commit.setTreeId(tree);
+    if (parent != null) {
+      commit.setParentId(parent);
+    }
+    commit.setAuthor(ident);
+    commit.setCommitter(ident);
+    commit.setMessage("test");
+    return commit;
+  }
+
+}
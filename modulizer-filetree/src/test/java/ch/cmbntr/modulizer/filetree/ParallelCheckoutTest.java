@@ -0,0 +1,152 @@
+package ch.cmbntr.modulizer.filetree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.util.FS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelCheckoutTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Repository repo;
+
+  private File worktree;
+
+  @Before
+  public void createRepo() throws Exception {
+    this.worktree = this.tmp.newFolder("worktree");
+    this.repo = Git.init().setDirectory(this.worktree).call().getRepository();
+  }
+
+  @After
+  public void closeRepo() {
+    this.repo.close();
+  }
+
+  @Test
+  public void testCheckoutOverPreviousCheckout() throws Exception {
+    ParallelCheckout.checkout(this.repo, commit("a.txt", "release 1", "gone/deep/x.txt", "x", "keep/y.txt", "y",
+        "swap", "file"));
+    write(new File(this.worktree, "keep/untracked.txt"), "untracked");
+
+    ParallelCheckout.checkout(this.repo, commit("a.txt", "release 2", "keep/y.txt", "y", "swap/z.txt", "z"));
+
+    assertEquals("release 2", read(new File(this.worktree, "a.txt")));
+    assertEquals("z", read(new File(this.worktree, "swap/z.txt")));
+    assertFalse(new File(this.worktree, "gone").exists());
+    assertTrue(new File(this.worktree, "keep/untracked.txt").exists());
+    assertEquals(3, this.repo.readDirCache().getEntryCount());
+    for (final String name : this.repo.getDirectory().list()) {
+      assertFalse(name, name.endsWith(".tmp"));
+    }
+  }
+
+  @Test
+  public void testSymbolicLink() throws Exception {
+    final ObjectInserter inserter = this.repo.newObjectInserter();
+    final ObjectId commit;
+    try {
+      final DirCacheBuilder builder = DirCache.newInCore().builder();
+      builder.add(entry(inserter, "target.txt", "target", FileMode.REGULAR_FILE));
+      builder.add(entry(inserter, "link", "target.txt", FileMode.SYMLINK));
+      builder.finish();
+      commit = commit(inserter, builder.getDirCache().writeTree(inserter));
+      inserter.flush();
+    } finally {
+      inserter.release();
+    }
+
+    ParallelCheckout.checkout(this.repo, commit);
+
+    final File link = new File(this.worktree, "link");
+    if (FS.DETECTED.supportsSymlinks()) {
+      assertTrue(FS.DETECTED.isSymLink(link));
+      assertEquals("target.txt", FS.DETECTED.readSymLink(link));
+    } else {
+      assertEquals("target.txt", read(link));
+    }
+  }
+
+  private ObjectId commit(final String... pathsAndContents) throws IOException {
+    final ObjectInserter inserter = this.repo.newObjectInserter();
+    try {
+      final DirCacheBuilder builder = DirCache.newInCore().builder();
+      for (int i = 0; i < pathsAndContents.length; i += 2) {
+        builder.add(entry(inserter, pathsAndContents[i], pathsAndContents[i + 1], FileMode.REGULAR_FILE));
+      }
+      builder.finish();
+      final ObjectId commit = commit(inserter, builder.getDirCache().writeTree(inserter));
+      inserter.flush();
+      return commit;
+    } finally {
+      inserter.release();
+    }
+  }
+
+  private static ObjectId commit(final ObjectInserter inserter, final ObjectId tree) throws IOException {
+    final PersonIdent ident = new PersonIdent("test", "test");
+    final CommitBuilder commit = new CommitBuilder();
+    commit.setTreeId(tree);
+    commit.setAuthor(ident);
+    commit.setCommitter(ident);
+    commit.setMessage("test");
+    return inserter.insert(commit);
+  }
+
+  private static DirCacheEntry entry(final ObjectInserter inserter, final String path, final String content,
+      final FileMode mode) throws IOException {
+    final DirCacheEntry e = new DirCacheEntry(path);
+    e.setFileMode(mode);
+    e.setObjectId(inserter.insert(Constants.OBJ_BLOB, content.getBytes("UTF-8")));
+    return e;
+  }
+
+  private static void write(final File f, final String content) throws IOException {
+    final FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String read(final File f) throws IOException {
+    final InputStream in = new FileInputStream(f);
+    try {
+      final byte[] buf = new byte[(int) f.length()];
+      int n = 0;
+      while (n < buf.length) {
+        n += in.read(buf, n, buf.length - n);
+      }
+      return new String(buf, "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+}
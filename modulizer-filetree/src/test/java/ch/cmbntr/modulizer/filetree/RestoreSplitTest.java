@@ -0,0 +1,140 @@
+package ch.cmbntr.modulizer.filetree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.cmbntr.modulizer.filetree.Restore.BundleLocator;
+import ch.cmbntr.modulizer.filetree.Restore.CleanupMode;
+
+public class RestoreSplitTest {
+
+  private static final String REF = "refs/heads/master";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File bundleDir;
+
+  private File client;
+
+  private Map<String, String> manifest;
+
+  @Before
+  public void restoreOnce() throws Exception {
+    final File worktree = this.tmp.newFolder("worktree");
+    write(new File(worktree, "top.txt"), "top");
+    write(new File(worktree, "org/a/main/a.txt"), "a");
+    write(new File(worktree, "org/b/main/b.txt"), "b");
+    this.bundleDir = this.tmp.newFolder("bundles");
+    this.manifest = Snapshot.createSplitBundles(this.bundleDir, worktree, REF, Arrays.asList("org/a/main",
+        "org/b/main"));
+    this.client = new File(this.tmp.getRoot(), "client");
+    restore(CleanupMode.FULL);
+  }
+
+  @Test
+  public void testUnchangedPartsAreVerified() throws Exception {
+    write(new File(this.client, "org/a/main/a.txt"), "tampered");
+    new File(this.client, "org/b/main/b.txt").delete();
+    write(new File(this.client, "org/b/main/stray.txt"), "stray");
+
+    restore(CleanupMode.FULL);
+
+    assertEquals("a", read(new File(this.client, "org/a/main/a.txt")));
+    assertEquals("b", read(new File(this.client, "org/b/main/b.txt")));
+    assertFalse(new File(this.client, "org/b/main/stray.txt").exists());
+    for (final String name : new File(this.client, ".git").list()) {
+      assertFalse(name, name.endsWith(".tmp"));
+    }
+  }
+
+  @Test
+  public void testUntrackedLinkedDirectoryKeepsItsTarget() throws Exception {
+    final File outside = this.tmp.newFolder("outside");
+    write(new File(outside, "precious.txt"), "precious");
+    final File link = new File(this.client, "org/b/main/link");
+    assumeTrue(symlink(outside, link));
+    assertTrue(FileTreeUtil.isSymbolicLink(link));
+
+    restore(CleanupMode.FULL);
+
+    assertFalse(Arrays.asList(link.getParentFile().list()).contains("link"));
+    assertEquals("precious", read(new File(outside, "precious.txt")));
+    assertEquals("b", read(new File(this.client, "org/b/main/b.txt")));
+  }
+
+  @Test
+  public void testResetOnlyKeepsUntracked() throws Exception {
+    write(new File(this.client, "org/a/main/a.txt"), "tampered");
+    write(new File(this.client, "org/b/main/stray.txt"), "stray");
+
+    restore(CleanupMode.RESET_ONLY);
+
+    assertEquals("a", read(new File(this.client, "org/a/main/a.txt")));
+    assertTrue(new File(this.client, "org/b/main/stray.txt").exists());
+  }
+
+  @Test
+  public void testNoCleanup() throws Exception {
+    write(new File(this.client, "org/a/main/a.txt"), "tampered");
+
+    restore(CleanupMode.NONE);
+
+    assertEquals("tampered", read(new File(this.client, "org/a/main/a.txt")));
+  }
+
+  private void restore(final CleanupMode cleanup) throws Exception {
+    Restore.restoreSplit(this.client, this.manifest, new BundleLocator() {
+      @Override
+      public URI locate(final String contentId) {
+        return new File(RestoreSplitTest.this.bundleDir, Snapshot.splitBundleName(contentId)).toURI();
+      }
+    }, REF, cleanup);
+  }
+
+  private static void write(final File f, final String content) throws IOException {
+    f.getParentFile().mkdirs();
+    final FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String read(final File f) throws IOException {
+    final InputStream in = new FileInputStream(f);
+    try {
+      final byte[] buf = new byte[(int) f.length()];
+      int n = 0;
+      while (n < buf.length) {
+        n += in.read(buf, n, buf.length - n);
+      }
+      return new String(buf, "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+
+  private static boolean symlink(final File target, final File link) throws Exception {
+    final Process p = new ProcessBuilder("ln", "-s", target.getAbsolutePath(), link.getAbsolutePath()).start();
+    return p.waitFor() == 0;
+  }
+}
@@ -0,0 +1,154 @@
+package ch.cmbntr.modulizer.filetree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.RefSpec;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.cmbntr.modulizer.filetree.Restore.CleanupMode;
+
+public class SnapshotTest {
+
+  private static final String REF = "refs/heads/master";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File worktree;
+
+  @Before
+  public void createWorktree() throws IOException {
+    this.worktree = this.tmp.newFolder("worktree");
+    write(new File(this.worktree, "a.txt"), "release 1");
+    final byte[] unchanged = new byte[64 * 1024];
+    new Random(42L).nextBytes(unchanged);
+    write(new File(this.worktree, "m/b.bin"), unchanged);
+  }
+
+  @Test
+  public void testFullBundleHoldsOnlyTheCurrentTree() throws Exception {
+    final String id1 = Snapshot.createBundle(this.tmp.newFile("full1.dat"), this.worktree, REF);
+    write(new File(this.worktree, "a.txt"), "release 2");
+    final File full2 = this.tmp.newFile("full2.dat");
+    final String id2 = Snapshot.createBundle(full2, this.worktree, REF);
+    Snapshot.createDeltaBundle(this.tmp.newFile("delta.dat"), this.worktree, REF, id2, id1, null);
+
+    final Git client = Git.init().setBare(true).setDirectory(this.tmp.newFolder("client")).call();
+    final Repository repo = client.getRepository();
+    try {
+      client.fetch().setRemote(full2.getAbsolutePath()).setRefSpecs(new RefSpec("+" + REF + ":" + REF)).call();
+      final RevWalk walk = new RevWalk(repo);
+      try {
+        assertEquals(0, walk.parseCommit(ObjectId.fromString(id2)).getParentCount());
+      } finally {
+        walk.release();
+      }
+      assertFalse(repo.hasObject(ObjectId.fromString(id1)));
+      assertFalse(repo.hasObject(blob("release 1")));
+      assertTrue(repo.hasObject(blob("release 2")));
+    } finally {
+      repo.close();
+    }
+  }
+
+  @Test
+  public void testSameTreeSameBundleId() throws Exception {
+    final String id1 = Snapshot.createBundle(this.tmp.newFile("full1.dat"), this.worktree, REF);
+    assertEquals(id1, Snapshot.createBundle(this.tmp.newFile("full2.dat"), this.worktree, REF));
+  }
+
+  @Test
+  public void testDeltaAdvancesToTheFullBundleId() throws Exception {
+    final File full1 = this.tmp.newFile("full1.dat");
+    final String id1 = Snapshot.createBundle(full1, this.worktree, REF);
+    final File client = new File(this.tmp.getRoot(), "client");
+    Restore.restore(client, "master", id1, done(full1.toURI()), REF, CleanupMode.FULL);
+
+    write(new File(this.worktree, "a.txt"), "release 2");
+    write(new File(this.worktree, "c.txt"), "added");
+    final File full2 = this.tmp.newFile("full2.dat");
+    final String id2 = Snapshot.createBundle(full2, this.worktree, REF);
+    final File delta = this.tmp.newFile("delta.dat");
+    Snapshot.createDeltaBundle(delta, this.worktree, REF, id2, id1, null);
+    assertTrue(delta.length() < full2.length());
+
+    final File missing = new File(this.tmp.getRoot(), "missing.dat");
+    Restore.restore(client, "master", id2, done(missing.toURI()), REF, id1, done(delta.toURI()), CleanupMode.FULL,
+        0L);
+
+    assertEquals("release 2", read(new File(client, "a.txt")));
+    assertEquals("added", read(new File(client, "c.txt")));
+    final Git git = Git.open(client);
+    try {
+      assertEquals(id2, git.getRepository().resolve(Constants.HEAD).getName());
+    } finally {
+      git.getRepository().close();
+    }
+  }
+
+  private static ObjectId blob(final String content) throws IOException {
+    return new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, content.getBytes("UTF-8"));
+  }
+
+  private static Future<URI> done(final URI uri) {
+    final FutureTask<URI> f = new FutureTask<URI>(new Callable<URI>() {
+      @Override
+      public URI call() {
+        return uri;
+      }
+    });
+    f.run();
+    return f;
+  }
+
+  private static void write(final File f, final String content) throws IOException {
+    write(f, content.getBytes("UTF-8"));
+  }
+
+  private static void write(final File f, final byte[] content) throws IOException {
+    f.getParentFile().mkdirs();
+    final FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String read(final File f) throws IOException {
+    final InputStream in = new FileInputStream(f);
+    try {
+      final byte[] buf = new byte[(int) f.length()];
+      int n = 0;
+      while (n < buf.length) {
+        n += in.read(buf, n, buf.length - n);
+      }
+      return new String(buf, "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,45 @@
+package ch.cmbntr.modulizer.modules;
+
+import java.io.File;
+
+import org.jboss.modules.Module;
+import org.jboss.modules.ModuleFinder;
+import org.jboss.modules.ModuleIdentifier;
+import org.jboss.modules.ModuleLoadException;
+import org.jboss.modules.ModuleLoader;
+
+/**
+ * Loads the modules of one hosted app from its repository, except the selected ones which come from the
+ * {@link SharedModuleLayer}. Dependencies are resolved through the loader of the depending module, so the modules of
+ * the app link to the shared ones, while shared modules only see each other.
+ */
+final class AppModuleLoader extends ModuleLoader {
+
+  private final File modulesRepo;
+  private final SharedModuleLayer shared;
+  private final SharedModuleLayer.Selection selection;
+
+  AppModuleLoader(final File modulesRepo, final SharedModuleLayer shared, final SharedModuleLayer.Selection selection) {
+    super(new ModuleFinder[] { IndexedModuleFinder.create(modulesRepo) });
+    this.modulesRepo = modulesRepo;
+    this.shared = shared;
+    this.selection = selection;
+    if (!selection.isEmpty()) {
+      shared.addRepository(modulesRepo);
+    }
+  }
+
+  @Override
+  protected Module preloadModule(final ModuleIdentifier id) throws ModuleLoadException {
+    if (this.selection.isShared(id)) {
+      return preloadModule(id, this.shared);
+    }
+    return super.preloadModule(id);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("app module loader %s", this.modulesRepo);
+  }
+
+}
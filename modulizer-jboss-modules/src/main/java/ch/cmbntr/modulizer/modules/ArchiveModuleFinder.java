@@ -0,0 +1,83 @@
+package ch.cmbntr.modulizer.modules;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.jboss.modules.DependencySpec;
+import org.jboss.modules.ModuleFinder;
+import org.jboss.modules.ModuleIdentifier;
+import org.jboss.modules.ModuleLoadException;
+import org.jboss.modules.ModuleLoader;
+import org.jboss.modules.ModuleSpec;
+import org.jboss.modules.ResourceLoader;
+import org.jboss.modules.ResourceLoaderSpec;
+import org.jboss.modules.filter.PathFilters;
+
+/**
+ * Finds the modules of a {@link ModulesArchive} through the {@link ModuleIndex} it contains, every module of the
+ * archive has to be indexed. The module specs are the ones of the {@link IndexedModuleFinder}, except that native
+ * libraries are not available.
+ */
+final class ArchiveModuleFinder implements ModuleFinder {
+
+  private final ModulesArchive archive;
+  private final Map<String, ModuleIndex.Entry> index;
+
+  private ArchiveModuleFinder(final ModulesArchive archive, final Map<String, ModuleIndex.Entry> index) {
+    this.archive = archive;
+    this.index = index;
+  }
+
+  static ArchiveModuleFinder create(final File archiveFile) throws IOException {
+    final ModulesArchive archive = ModulesArchive.open(archiveFile);
+    final ByteBuffer index = archive.file(ModuleIndex.FILE_NAME);
+    if (index == null) {
+      throw new IOException("missing module index in " + archive);
+    }
+    return new ArchiveModuleFinder(archive, ModuleIndex.read(index, archive));
+  }
+
+  @Override
+  public ModuleSpec findModule(final ModuleIdentifier id, final ModuleLoader delegateLoader)
+      throws ModuleLoadException {
+    final ModuleIndex.Entry entry = this.index.get(id.toString());
+    if (entry == null) {
+      return null;
+    }
+    final String moduleDir = entry.getPath().replace(File.separatorChar, '/') + '/';
+    final ModuleSpec.Builder spec = ModuleSpec.build(id);
+    if (entry.getMainClass() != null) {
+      spec.setMainClass(entry.getMainClass());
+    }
+    for (final String path : entry.getResourceRoots()) {
+      spec.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(createResourceLoader(moduleDir, path)));
+    }
+    for (final ModuleIndex.Dependency d : entry.getDependencies()) {
+      spec.addDependency(IndexedModuleFinder.createDependency(d));
+    }
+    spec.addDependency(DependencySpec.createLocalDependencySpec(PathFilters.acceptAll(), PathFilters.acceptAll()));
+    spec.setPermissionCollection(IndexedModuleFinder.allPermissions());
+    return spec.create();
+  }
+
+  private ResourceLoader createResourceLoader(final String moduleDir, final String path) throws ModuleLoadException {
+    final String jarPath = moduleDir + path.replace(File.separatorChar, '/');
+    try {
+      final ResourceLoader loader = ArchiveResourceLoader.create(path, this.archive, jarPath);
+      if (loader == null) {
+        throw new ModuleLoadException("missing resource root " + jarPath + " in " + this.archive);
+      }
+      return loader;
+    } catch (final IOException e) {
+      throw new ModuleLoadException("failed to add resource root " + jarPath, e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("archive module finder of %s (%d modules)", this.archive, this.index.size());
+  }
+
+}
@@ -0,0 +1,250 @@
+package ch.cmbntr.modulizer.modules;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.Manifest;
+
+import org.jboss.modules.AbstractResourceLoader;
+import org.jboss.modules.ClassSpec;
+import org.jboss.modules.IterableResourceLoader;
+import org.jboss.modules.PackageSpec;
+import org.jboss.modules.Resource;
+
+/**
+ * A jar resource root served from a {@link ModulesArchive}, a class is copied straight out of the mapped archive.
+ * Resource URLs use the {@code modulizer-archive} protocol, only resolvable through the handler they are created with.
+ * Jar signatures are not verified.
+ */
+final class ArchiveResourceLoader extends AbstractResourceLoader implements IterableResourceLoader {
+
+  private static final String PROTOCOL = "modulizer-archive";
+
+  private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+  private final String rootName;
+  private final ModulesArchive archive;
+  private final Map<String, ModulesArchive.Slice> entries;
+  private final URL rootUrl;
+  private final CodeSource codeSource;
+  private final Manifest manifest;
+  private final Collection<String> paths;
+  private final URLStreamHandler handler;
+
+  private ArchiveResourceLoader(final String rootName, final ModulesArchive archive, final String jarPath,
+      final Map<String, ModulesArchive.Slice> entries) throws IOException {
+    this.rootName = rootName;
+    this.archive = archive;
+    this.entries = entries;
+    this.handler = new Handler();
+    this.rootUrl = new URL(PROTOCOL, null, -1, archive.getFile().getAbsolutePath() + "!/" + jarPath + "!/",
+        this.handler);
+    this.codeSource = new CodeSource(this.rootUrl, (CodeSigner[]) null);
+    final ModulesArchive.Slice mf = entries.get(MANIFEST);
+    this.manifest = mf == null ? null : new Manifest(new ByteBufferInputStream(archive.slice(mf)));
+    this.paths = Collections.unmodifiableSet(collectPaths(entries.keySet()));
+  }
+
+  /**
+   * @param jarPath the path of the jar in the archive
+   * @return the loader, {@code null} if the archive does not contain the jar
+   */
+  static ArchiveResourceLoader create(final String rootName, final ModulesArchive archive, final String jarPath)
+      throws IOException {
+    final Map<String, ModulesArchive.Slice> entries = archive.jarEntries(jarPath);
+    return entries == null ? null : new ArchiveResourceLoader(rootName, archive, jarPath, entries);
+  }
+
+  private static Set<String> collectPaths(final Collection<String> names) {
+    final Set<String> paths = new TreeSet<String>();
+    paths.add("");
+    for (final String name : names) {
+      final int idx = name.lastIndexOf('/');
+      if (idx > 0) {
+        paths.add(name.substring(0, idx));
+      }
+    }
+    return paths;
+  }
+
+  @Override
+  public String getRootName() {
+    return this.rootName;
+  }
+
+  @Override
+  public Collection<String> getPaths() {
+    return this.paths;
+  }
+
+  @Override
+  public ClassSpec getClassSpec(final String fileName) throws IOException {
+    final ModulesArchive.Slice s = this.entries.get(fileName);
+    if (s == null) {
+      return null;
+    }
+    final byte[] bytes = new byte[s.getLength()];
+    this.archive.slice(s).get(bytes);
+    final ClassSpec spec = new ClassSpec();
+    spec.setBytes(bytes);
+    spec.setCodeSource(this.codeSource);
+    return spec;
+  }
+
+  @Override
+  public PackageSpec getPackageSpec(final String name) throws IOException {
+    return getPackageSpec(name, this.manifest, this.rootUrl);
+  }
+
+  @Override
+  public Resource getResource(final String name) {
+    final String canonical = name.startsWith("/") ? name.substring(1) : name;
+    final ModulesArchive.Slice s = this.entries.get(canonical);
+    return s == null ? null : new ArchiveResource(canonical, s);
+  }
+
+  @Override
+  public Iterator<Resource> iterateResources(final String startPath, final boolean recursive) {
+    String prefix = startPath.startsWith("/") ? startPath.substring(1) : startPath;
+    if (prefix.endsWith("/")) {
+      prefix = prefix.substring(0, prefix.length() - 1);
+    }
+    final List<Resource> found = new ArrayList<Resource>();
+    for (final Map.Entry<String, ModulesArchive.Slice> e : this.entries.entrySet()) {
+      final String name = e.getKey();
+      final int idx = name.lastIndexOf('/');
+      final String dir = idx < 0 ? "" : name.substring(0, idx);
+      if (dir.equals(prefix) || recursive && (prefix.length() == 0 || dir.startsWith(prefix + "/"))) {
+        found.add(new ArchiveResource(name, e.getValue()));
+      }
+    }
+    return found.iterator();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("archive root %s of %s", this.rootName, this.archive.getFile());
+  }
+
+  private final class ArchiveResource implements Resource {
+
+    private final String name;
+    private final ModulesArchive.Slice slice;
+
+    ArchiveResource(final String name, final ModulesArchive.Slice slice) {
+      this.name = name;
+      this.slice = slice;
+    }
+
+    @Override
+    public String getName() {
+      return this.name;
+    }
+
+    @Override
+    public URL getURL() {
+      try {
+        return new URL(ArchiveResourceLoader.this.rootUrl, this.name, ArchiveResourceLoader.this.handler);
+      } catch (final MalformedURLException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public InputStream openStream() {
+      return new ByteBufferInputStream(ArchiveResourceLoader.this.archive.slice(this.slice));
+    }
+
+    @Override
+    public long getSize() {
+      return this.slice.getLength();
+    }
+  }
+
+  /**
+   * Resolves the URLs of the resources of this root, relative to the root URL.
+   */
+  private final class Handler extends URLStreamHandler {
+
+    @Override
+    protected URLConnection openConnection(final URL u) throws IOException {
+      final String root = ArchiveResourceLoader.this.rootUrl.getPath();
+      final String path = u.getPath();
+      final ModulesArchive.Slice s = path.startsWith(root) ? ArchiveResourceLoader.this.entries.get(path
+          .substring(root.length())) : null;
+      if (s == null) {
+        throw new IOException("not found: " + u);
+      }
+      return new URLConnection(u) {
+        @Override
+        public void connect() {
+          this.connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+          return new ByteBufferInputStream(ArchiveResourceLoader.this.archive.slice(s));
+        }
+
+        @Override
+        public int getContentLength() {
+          return s.getLength();
+        }
+      };
+    }
+  }
+
+  private static final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buf;
+
+    ByteBufferInputStream(final ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public int read() {
+      return this.buf.hasRemaining() ? this.buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!this.buf.hasRemaining()) {
+        return -1;
+      }
+      final int n = Math.min(len, this.buf.remaining());
+      this.buf.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) {
+      final int s = (int) Math.min(Math.max(n, 0), this.buf.remaining());
+      this.buf.position(this.buf.position() + s);
+      return s;
+    }
+
+    @Override
+    public int available() {
+      return this.buf.remaining();
+    }
+  }
+
+}
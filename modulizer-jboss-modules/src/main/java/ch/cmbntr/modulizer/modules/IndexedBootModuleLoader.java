@@ -0,0 +1,45 @@
+package ch.cmbntr.modulizer.modules;
+
+import java.io.File;
+
+import org.jboss.modules.LocalModuleLoader;
+import org.jboss.modules.ModuleLoader;
+
+/**
+ * Boot module loader of jboss-modules finding the modules through the {@link IndexedModuleFinder}, i.e. the
+ * {@link LocalModuleLoader} without parsing the {@code module.xml} of each indexed module. jboss-modules instantiates it
+ * when named by the {@value #BOOT_MODULE_LOADER} system property, reading the repositories from {@value #MODULE_PATH}
+ * like the {@link LocalModuleLoader} does.
+ */
+public final class IndexedBootModuleLoader extends ModuleLoader {
+
+  static final String BOOT_MODULE_LOADER = "boot.module.loader";
+
+  static final String MODULE_PATH = "module.path";
+
+  private final String modulePath;
+
+  public IndexedBootModuleLoader() {
+    this(System.getProperty(MODULE_PATH, ""));
+  }
+
+  private IndexedBootModuleLoader(final String modulePath) {
+    super(IndexedModuleFinder.create(repoRoots(modulePath)));
+    this.modulePath = modulePath;
+  }
+
+  private static File[] repoRoots(final String modulePath) {
+    final String[] paths = modulePath.length() == 0 ? new String[0] : modulePath.split(File.pathSeparator);
+    final File[] roots = new File[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      roots[i] = new File(paths[i]);
+    }
+    return roots;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("indexed boot module loader %s", this.modulePath);
+  }
+
+}
@@ -0,0 +1,159 @@
+package ch.cmbntr.modulizer.modules;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.AllPermission;
+import java.security.PermissionCollection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.jar.JarFile;
+
+import org.jboss.modules.DependencySpec;
+import org.jboss.modules.LocalModuleFinder;
+import org.jboss.modules.ModuleFinder;
+import org.jboss.modules.ModuleIdentifier;
+import org.jboss.modules.ModuleLoadException;
+import org.jboss.modules.ModuleLoader;
+import org.jboss.modules.ModuleSpec;
+import org.jboss.modules.NativeLibraryResourceLoader;
+import org.jboss.modules.ResourceLoader;
+import org.jboss.modules.ResourceLoaderSpec;
+import org.jboss.modules.ResourceLoaders;
+import org.jboss.modules.filter.MultiplePathFilterBuilder;
+import org.jboss.modules.filter.PathFilter;
+import org.jboss.modules.filter.PathFilters;
+
+import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog;
+
+/**
+ * Finds the modules of a repository through its {@link ModuleIndex}, building the module specs the way the
+ * {@code module.xml} parser of jboss-modules does. Modules missing in the index or with a changed descriptor are
+ * found by a {@link LocalModuleFinder}. Jar resource roots listed in the {@link ResourceRootIndex} of a module are
+ * opened lazily.
+ */
+final class IndexedModuleFinder implements ModuleFinder {
+
+  private final File repoRoot;
+  private final Map<String, ModuleIndex.Entry> index;
+  private final ModuleFinder fallback;
+
+  private IndexedModuleFinder(final File repoRoot, final Map<String, ModuleIndex.Entry> index) {
+    this.repoRoot = repoRoot;
+    this.index = index;
+    this.fallback = new LocalModuleFinder(new File[] { repoRoot });
+  }
+
+  static IndexedModuleFinder create(final File repoRoot) {
+    return new IndexedModuleFinder(repoRoot, readIndex(repoRoot));
+  }
+
+  static ModuleFinder[] create(final File... repoRoots) {
+    final ModuleFinder[] finders = new ModuleFinder[repoRoots.length];
+    for (int i = 0; i < repoRoots.length; i++) {
+      finders[i] = create(repoRoots[i]);
+    }
+    return finders;
+  }
+
+  private static Map<String, ModuleIndex.Entry> readIndex(final File repoRoot) {
+    final File file = new File(repoRoot, ModuleIndex.FILE_NAME);
+    try {
+      return ModuleIndex.read(file);
+    } catch (final IOException e) {
+      ModulizerLog.warn("ignoring module index %s: %s", file, e);
+      return Collections.emptyMap();
+    } catch (final RuntimeException e) {
+      ModulizerLog.warn("ignoring module index %s: %s", file, e);
+      return Collections.emptyMap();
+    }
+  }
+
+  @Override
+  public ModuleSpec findModule(final ModuleIdentifier id, final ModuleLoader delegateLoader)
+      throws ModuleLoadException {
+    final ModuleIndex.Entry entry = this.index.get(id.toString());
+    if (entry != null) {
+      final File moduleDir = new File(this.repoRoot, entry.getPath());
+      if (entry.isCurrent(new File(moduleDir, "module.xml"))) {
+        return createSpec(id, moduleDir, entry);
+      }
+      ModulizerLog.log("stale index entry of %s", id);
+    }
+    return this.fallback.findModule(id, delegateLoader);
+  }
+
+  private static ModuleSpec createSpec(final ModuleIdentifier id, final File moduleDir, final ModuleIndex.Entry entry)
+      throws ModuleLoadException {
+    final ModuleSpec.Builder spec = ModuleSpec.build(id);
+    if (entry.getMainClass() != null) {
+      spec.setMainClass(entry.getMainClass());
+    }
+    final Map<String, Collection<String>> rootPaths = readResourceRootIndex(moduleDir);
+    for (final String path : entry.getResourceRoots()) {
+      spec.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(createResourceLoader(moduleDir, path,
+          rootPaths.get(path))));
+    }
+    spec.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(
+        new NativeLibraryResourceLoader(new File(moduleDir, "lib")), PathFilters.rejectAll()));
+    for (final ModuleIndex.Dependency d : entry.getDependencies()) {
+      spec.addDependency(createDependency(d));
+    }
+    spec.addDependency(DependencySpec.createLocalDependencySpec(PathFilters.acceptAll(), PathFilters.acceptAll()));
+    spec.setPermissionCollection(allPermissions());
+    return spec.create();
+  }
+
+  private static Map<String, Collection<String>> readResourceRootIndex(final File moduleDir) {
+    try {
+      return ResourceRootIndex.read(moduleDir);
+    } catch (final IOException e) {
+      ModulizerLog.warn("ignoring resource root index of %s: %s", moduleDir, e);
+      return Collections.emptyMap();
+    }
+  }
+
+  private static ResourceLoader createResourceLoader(final File moduleDir, final String path,
+      final Collection<String> indexedPaths) throws ModuleLoadException {
+    final File root = new File(moduleDir, path);
+    if (root.isDirectory()) {
+      return ResourceLoaders.createFileResourceLoader(path, root);
+    }
+    if (indexedPaths != null) {
+      return new LazyJarResourceLoader(path, root, indexedPaths);
+    }
+    try {
+      return ResourceLoaders.createJarResourceLoader(path, new JarFile(root, true));
+    } catch (final IOException e) {
+      throw new ModuleLoadException("failed to add resource root " + root, e);
+    }
+  }
+
+  static DependencySpec createDependency(final ModuleIndex.Dependency d) {
+    final PathFilter importFilter = d.isServicesImport() ? PathFilters.getDefaultImportFilterWithServices()
+        : PathFilters.getDefaultImportFilter();
+    final MultiplePathFilterBuilder exportFilter = PathFilters.multiplePathFilterBuilder(d.isExport());
+    if (d.isServicesExport()) {
+      exportFilter.addFilter(PathFilters.getMetaInfServicesFilter(), true);
+    }
+    if (d.isExport()) {
+      exportFilter.addFilter(PathFilters.getMetaInfSubdirectoriesFilter(), false);
+      exportFilter.addFilter(PathFilters.getMetaInfFilter(), false);
+    }
+    return DependencySpec.createModuleDependencySpec(importFilter, exportFilter.create(), null,
+        ModuleIdentifier.create(d.getName(), d.getSlot()), d.isOptional());
+  }
+
+  static PermissionCollection allPermissions() {
+    final PermissionCollection permissions = new AllPermission().newPermissionCollection();
+    permissions.add(new AllPermission());
+    permissions.setReadOnly();
+    return permissions;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("indexed module finder %s (%d modules)", this.repoRoot, this.index.size());
+  }
+
+}
@@ -1,12 +1,17 @@
 package ch.cmbntr.modulizer.modules;
 
+import static ch.cmbntr.modulizer.modules.ModulizerModulesUtil.invokeArchiveMain;
+import static ch.cmbntr.modulizer.modules.ModulizerModulesUtil.invokeHostedMain;
 import static ch.cmbntr.modulizer.modules.ModulizerModulesUtil.invokeModulesMain;
+import static ch.cmbntr.modulizer.modules.ModulizerModulesUtil.preloadProfile;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 
 import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
 import ch.cmbntr.modulizer.bootstrap.impl.AbstractLaunch;
+import ch.cmbntr.modulizer.bootstrap.util.StandbyProtocol;
 
 public class JBossModulesLaunch extends AbstractLaunch {
 
@@ -22,9 +27,41 @@ public class JBossModulesLaunch extends AbstractLaunch {
     final String[] args = determineArguments();
     log("starting module '%s' (repo=%s, module=%s, args=%s)", appName, modulesRepo, mainModule, Arrays.toString(args));
 
+    final File archive = determineModulesArchive();
+    if (archive != null) {
+      log("serving modules from %s", archive);
+      invokeArchiveMain(appName, archive, mainModule, args);
+      return;
+    }
+    if (Boolean.parseBoolean(lookupContext(BootstrapContext.CONFIG_KEY_HOST))) {
+      invokeHostedMain(appName, modulesRepo, mainModule, lookupContext(BootstrapContext.CONFIG_KEY_SHARED_MODULES),
+          args);
+      return;
+    }
+    final File portFile = determineStandbyPortFile(modulesRepo);
+    if (portFile != null) {
+      startStandby(appName, modulesRepo, mainModule, portFile);
+      return;
+    }
+    preloadProfile(modulesRepo);
     invokeModulesMain(appName, modulesRepo, mainModule, args);
   }
 
+  private void startStandby(final String appName, final File modulesRepo, final String mainModule,
+      final File portFile) {
+    final String idle = lookupContext(BootstrapContext.CONFIG_KEY_STANDBY_IDLE_MILLIS);
+    final long idleMillis = idle == null ? BootstrapContext.DEFAULT_STANDBY_IDLE_MS : Long.parseLong(idle.trim());
+    final String heap = lookupContext(BootstrapContext.CONFIG_KEY_STANDBY_MAX_HEAP_PERCENT);
+    final int maxHeapPercent = heap == null ? BootstrapContext.DEFAULT_STANDBY_MAX_HEAP_PERCENT : Integer
+        .parseInt(heap.trim());
+    try {
+      final boolean trapExit = Boolean.parseBoolean(lookupContext(BootstrapContext.CONFIG_KEY_STANDBY_EXIT_TRAP));
+      StandbyServer.start(appName, modulesRepo, mainModule, portFile, idleMillis, maxHeapPercent, trapExit);
+    } catch (final IOException e) {
+      throw new RuntimeException("failed to start standby", e);
+    }
+  }
+
   private void preloading() {
     preload(false, PRELOAD);
   }
@@ -41,6 +78,23 @@ public class JBossModulesLaunch extends AbstractLaunch {
     return new File(lookupContext(BootstrapContext.CONFIG_KEY_APP_DIR));
   }
 
+  private File determineModulesArchive() {
+    final String archive = lookupContext(BootstrapContext.CONFIG_KEY_MODULES_ARCHIVE);
+    if (archive == null) {
+      return null;
+    }
+    final File f = new File(archive);
+    return f.isFile() ? f : null;
+  }
+
+  private File determineStandbyPortFile(final File modulesRepo) {
+    final String target = lookupContext(BootstrapContext.CONFIG_KEY_STANDBY);
+    if (target == null || BootstrapContext.DEFAULT_STANDBY.equals(target)) {
+      return null;
+    }
+    return "app.dir".equals(target) ? new File(modulesRepo, StandbyProtocol.PORT_FILE) : new File(target);
+  }
+
   private String[] determineArguments() {
     return BootstrapContext.ARGS.get();
   }
@@ -0,0 +1,105 @@
+package ch.cmbntr.modulizer.modules;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.jar.JarFile;
+
+import org.jboss.modules.ClassSpec;
+import org.jboss.modules.IterableResourceLoader;
+import org.jboss.modules.PackageSpec;
+import org.jboss.modules.Resource;
+import org.jboss.modules.ResourceLoaders;
+
+import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog;
+
+/**
+ * A jar resource root answering {@link #getPaths()} from the {@link ResourceRootIndex}, the jar is only opened on the
+ * first class or resource lookup actually routed to it.
+ */
+final class LazyJarResourceLoader implements IterableResourceLoader {
+
+  private final String rootName;
+  private final File jar;
+  private final Collection<String> paths;
+
+  private volatile IterableResourceLoader delegate;
+
+  LazyJarResourceLoader(final String rootName, final File jar, final Collection<String> paths) {
+    this.rootName = rootName;
+    this.jar = jar;
+    this.paths = paths;
+  }
+
+  private IterableResourceLoader delegate() throws IOException {
+    IterableResourceLoader d = this.delegate;
+    if (d == null) {
+      synchronized (this) {
+        d = this.delegate;
+        if (d == null) {
+          d = ResourceLoaders.createIterableJarResourceLoader(this.rootName, new JarFile(this.jar, true));
+          this.delegate = d;
+        }
+      }
+    }
+    return d;
+  }
+
+  @Override
+  public String getRootName() {
+    return this.rootName;
+  }
+
+  @Override
+  public Collection<String> getPaths() {
+    return this.paths;
+  }
+
+  @Override
+  public ClassSpec getClassSpec(final String fileName) throws IOException {
+    return delegate().getClassSpec(fileName);
+  }
+
+  @Override
+  public PackageSpec getPackageSpec(final String name) throws IOException {
+    return delegate().getPackageSpec(name);
+  }
+
+  @Override
+  public Resource getResource(final String name) {
+    try {
+      return delegate().getResource(name);
+    } catch (final IOException e) {
+      ModulizerLog.warn("failed to open %s: %s", this.jar, e);
+      return null;
+    }
+  }
+
+  @Override
+  public String getLibrary(final String name) {
+    try {
+      return delegate().getLibrary(name);
+    } catch (final IOException e) {
+      ModulizerLog.warn("failed to open %s: %s", this.jar, e);
+      return null;
+    }
+  }
+
+  @Override
+  public Iterator<Resource> iterateResources(final String startPath, final boolean recursive) {
+    try {
+      return delegate().iterateResources(startPath, recursive);
+    } catch (final IOException e) {
+      ModulizerLog.warn("failed to open %s: %s", this.jar, e);
+      return Collections.<Resource> emptyList().iterator();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("lazy jar %s (%s)", this.jar, this.delegate == null ? "closed" : "open");
+  }
+
+}
@@ -0,0 +1,285 @@
+package ch.cmbntr.modulizer.modules;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary form of the {@code module.xml} descriptors of a modules repository, written by the modulize mojo
+ * next to the modules and read by the {@link IndexedModuleFinder} instead of parsing each descriptor. Only the plain
+ * descriptors the mojo generates are indexed (main class, resource roots, module dependencies), a module using any
+ * other descriptor feature is left to {@code module.xml}. Each entry records the size and CRC-32 of the descriptor it was
+ * built from, a module whose descriptor changed afterwards is considered stale and read from {@code module.xml} as
+ * well. The modification time is not compared, a restored file tree gets new ones.
+ */
+public final class ModuleIndex {
+
+  public static final String FILE_NAME = "module-index.bin";
+
+  private static final int MAGIC = 0x4d4f4458;
+
+  private static final int VERSION = 2;
+
+  private static final String UTF8 = "UTF-8";
+
+  private static final int OPTIONAL = 1;
+  private static final int EXPORT = 2;
+  private static final int SERVICES_IMPORT = 4;
+  private static final int SERVICES_EXPORT = 8;
+
+  private ModuleIndex() {
+    super();
+  }
+
+  public static void write(final File target, final Collection<Entry> entries) throws IOException {
+    final File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(entries.size());
+      for (final Entry e : entries) {
+        writeString(out, e.name);
+        writeString(out, e.slot);
+        out.writeLong(e.descriptorLength);
+        out.writeLong(e.descriptorChecksum);
+        writeString(out, e.mainClass);
+        out.writeInt(e.resourceRoots.size());
+        for (final String root : e.resourceRoots) {
+          writeString(out, root);
+        }
+        out.writeInt(e.dependencies.size());
+        for (final Dependency d : e.dependencies) {
+          writeString(out, d.name);
+          writeString(out, d.slot);
+          out.writeByte(d.flags);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(target) && !(target.delete() && tmp.renameTo(target))) {
+      throw new IOException("failed to write " + target);
+    }
+  }
+
+  /**
+   * @return the entries by module identifier, empty if there is no index
+   */
+  static Map<String, Entry> read(final File index) throws IOException {
+    if (!index.isFile()) {
+      return Collections.emptyMap();
+    }
+    final FileInputStream in = new FileInputStream(index);
+    try {
+      final FileChannel channel = in.getChannel();
+      return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), index);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @param buf the index content, e.g. from a {@link ModulesArchive}
+   * @param source the origin of the content, for error reporting
+   * @return the entries by module identifier
+   */
+  static Map<String, Entry> read(final ByteBuffer buf, final Object source) throws IOException {
+    if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+      throw new IOException("unsupported module index " + source);
+    }
+    final int count = buf.getInt();
+    final Map<String, Entry> entries = new HashMap<String, Entry>(count * 2);
+    for (int i = 0; i < count; i++) {
+      final Entry e = new Entry(readString(buf), readString(buf), buf.getLong(), buf.getLong());
+      e.mainClass(readString(buf));
+      for (int r = buf.getInt(); r > 0; r--) {
+        e.resourceRoot(readString(buf));
+      }
+      for (int d = buf.getInt(); d > 0; d--) {
+        e.dependencies.add(new Dependency(readString(buf), readString(buf), buf.get()));
+      }
+      entries.put(e.getIdentifier(), e);
+    }
+    return entries;
+  }
+
+  /**
+   * @return the CRC-32 of the descriptor content
+   */
+  public static long checksum(final File descriptor) throws IOException {
+    final CRC32 crc = new CRC32();
+    final FileInputStream in = new FileInputStream(descriptor);
+    try {
+      final byte[] buf = new byte[4096];
+      for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+        crc.update(buf, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return crc.getValue();
+  }
+
+  private static void writeString(final DataOutputStream out, final String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      final byte[] bytes = s.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(final ByteBuffer buf) throws UnsupportedEncodingException {
+    final int len = buf.getInt();
+    if (len < 0) {
+      return null;
+    }
+    final byte[] bytes = new byte[len];
+    buf.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * The indexed content of one {@code module.xml}.
+   */
+  public static final class Entry {
+
+    private final String name;
+    private final String slot;
+    private final long descriptorLength;
+    private final long descriptorChecksum;
+    private String mainClass;
+    private final List<String> resourceRoots = new ArrayList<String>();
+    private final List<Dependency> dependencies = new ArrayList<Dependency>();
+
+    /**
+     * @param slot the slot, {@code null} for the main slot
+     * @param descriptorLength the size of the {@code module.xml} the entry is built from
+     * @param descriptorChecksum the {@link ModuleIndex#checksum(File)} of that {@code module.xml}
+     */
+    public Entry(final String name, final String slot, final long descriptorLength, final long descriptorChecksum) {
+      this.name = name;
+      this.slot = slot == null ? "main" : slot;
+      this.descriptorLength = descriptorLength;
+      this.descriptorChecksum = descriptorChecksum;
+    }
+
+    public Entry mainClass(final String mainClass) {
+      this.mainClass = mainClass;
+      return this;
+    }
+
+    public Entry resourceRoot(final String path) {
+      this.resourceRoots.add(path);
+      return this;
+    }
+
+    /**
+     * @param slot the slot, {@code null} for the main slot
+     * @param services the services disposition, one of {@code none}, {@code import} or {@code export}
+     */
+    public Entry dependency(final String name, final String slot, final boolean optional, final boolean export,
+        final String services) {
+      int flags = 0;
+      flags |= optional ? OPTIONAL : 0;
+      flags |= export ? EXPORT : 0;
+      flags |= "import".equals(services) ? SERVICES_IMPORT : 0;
+      flags |= "export".equals(services) ? SERVICES_EXPORT : 0;
+      this.dependencies.add(new Dependency(name, slot == null ? "main" : slot, flags));
+      return this;
+    }
+
+    public String getIdentifier() {
+      return this.name + ":" + this.slot;
+    }
+
+    /**
+     * @return the path of the module directory below the repository root, as searched by the module finders of
+     *         jboss-modules
+     */
+    public String getPath() {
+      return this.name.replace('.', File.separatorChar) + File.separatorChar + this.slot;
+    }
+
+    /**
+     * @return whether the entry is built from the given descriptor as it is now
+     */
+    boolean isCurrent(final File descriptor) {
+      try {
+        return descriptor.length() == this.descriptorLength && checksum(descriptor) == this.descriptorChecksum;
+      } catch (final IOException e) {
+        return false;
+      }
+    }
+
+    String getMainClass() {
+      return this.mainClass;
+    }
+
+    List<String> getResourceRoots() {
+      return this.resourceRoots;
+    }
+
+    List<Dependency> getDependencies() {
+      return this.dependencies;
+    }
+
+    @Override
+    public String toString() {
+      return getIdentifier();
+    }
+  }
+
+  static final class Dependency {
+
+    private final String name;
+    private final String slot;
+    private final int flags;
+
+    Dependency(final String name, final String slot, final int flags) {
+      this.name = name;
+      this.slot = slot;
+      this.flags = flags;
+    }
+
+    String getName() {
+      return this.name;
+    }
+
+    String getSlot() {
+      return this.slot;
+    }
+
+    boolean isOptional() {
+      return (this.flags & OPTIONAL) != 0;
+    }
+
+    boolean isExport() {
+      return (this.flags & EXPORT) != 0;
+    }
+
+    boolean isServicesImport() {
+      return (this.flags & (SERVICES_IMPORT | SERVICES_EXPORT)) != 0;
+    }
+
+    boolean isServicesExport() {
+      return (this.flags & SERVICES_EXPORT) != 0;
+    }
+  }
+
+}
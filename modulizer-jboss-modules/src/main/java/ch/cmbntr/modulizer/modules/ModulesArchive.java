@@ -0,0 +1,339 @@
+package ch.cmbntr.modulizer.modules;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * A whole modules repository in one file, served from a memory-mapped view without exploding it to disk. The plain
+ * files of the repository ({@code module.xml}, the {@link ModuleIndex}...) are stored as they are, while each jar is
+ * stored as its entries, uncompressed, so a class is a slice of the mapped file. An entry index at the end of the file
+ * locates the files, the jars and, per jar, its entries; the entry table of a jar is only read once the jar is used.
+ * <p>
+ * Layout: magic, version, the data of all files and jar entries, the index, the index offset and magic again.
+ */
+public final class ModulesArchive {
+
+  private static final int MAGIC = 0x4d4f4441;
+
+  private static final int VERSION = 1;
+
+  private static final int TRAILER_SIZE = 12;
+
+  private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+  private static final String UTF8 = "UTF-8";
+
+  private final File file;
+  private final ByteBuffer data;
+  private final Map<String, Slice> files;
+  private final Map<String, Integer> jarTables;
+
+  private ModulesArchive(final File file, final ByteBuffer data, final Map<String, Slice> files,
+      final Map<String, Integer> jarTables) {
+    this.file = file;
+    this.data = data;
+    this.files = files;
+    this.jarTables = jarTables;
+  }
+
+  static ModulesArchive open(final File archive) throws IOException {
+    final FileInputStream in = new FileInputStream(archive);
+    try {
+      final FileChannel channel = in.getChannel();
+      final long size = channel.size();
+      if (size > MAX_SIZE || size < 8 + TRAILER_SIZE) {
+        throw new IOException("unsupported modules archive size " + size + ": " + archive);
+      }
+      final ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getInt((int) size - 4) != MAGIC) {
+        throw new IOException("not a modules archive: " + archive);
+      }
+      final ByteBuffer index = data.duplicate();
+      index.position((int) data.getLong((int) size - TRAILER_SIZE));
+
+      final int fileCount = index.getInt();
+      final Map<String, Slice> files = new HashMap<String, Slice>(fileCount * 2);
+      for (int i = 0; i < fileCount; i++) {
+        files.put(readString(index), new Slice(index.getInt(), index.getInt()));
+      }
+      final int jarCount = index.getInt();
+      final Map<String, Integer> jarTables = new HashMap<String, Integer>(jarCount * 2);
+      for (int i = 0; i < jarCount; i++) {
+        jarTables.put(readString(index), index.getInt());
+      }
+      return new ModulesArchive(archive, data, files, jarTables);
+    } finally {
+      in.close();
+    }
+  }
+
+  File getFile() {
+    return this.file;
+  }
+
+  /**
+   * @param path the path of a plain file, relative to the repository root with {@code /} separators
+   * @return the content, {@code null} if absent
+   */
+  ByteBuffer file(final String path) {
+    final Slice s = this.files.get(path);
+    return s == null ? null : s.of(this.data);
+  }
+
+  boolean isJar(final String path) {
+    return this.jarTables.containsKey(path);
+  }
+
+  /**
+   * @param path the path of a jar, relative to the repository root with {@code /} separators
+   * @return the entries of the jar by name, {@code null} if absent
+   */
+  Map<String, Slice> jarEntries(final String path) throws UnsupportedEncodingException {
+    final Integer table = this.jarTables.get(path);
+    if (table == null) {
+      return null;
+    }
+    final ByteBuffer index = this.data.duplicate();
+    index.position(table.intValue());
+    final int count = index.getInt();
+    final Map<String, Slice> entries = new LinkedHashMap<String, Slice>(count * 2);
+    for (int i = 0; i < count; i++) {
+      entries.put(readString(index), new Slice(index.getInt(), index.getInt()));
+    }
+    return entries;
+  }
+
+  ByteBuffer slice(final Slice s) {
+    return s.of(this.data);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("modules archive %s (%d files, %d jars)", this.file, this.files.size(),
+        this.jarTables.size());
+  }
+
+  /**
+   * Archives a modules repository, the files below {@code .git} are skipped.
+   */
+  public static void write(final File modulesRepo, final File target) throws IOException {
+    write(modulesRepo, target, MAX_SIZE);
+  }
+
+  static void write(final File modulesRepo, final File target, final long maxSize) throws IOException {
+    final List<String> paths = new ArrayList<String>();
+    collect(modulesRepo, "", paths);
+    Collections.sort(paths);
+
+    final File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+    try {
+      writeArchive(modulesRepo, paths, tmp, maxSize);
+      if (!tmp.renameTo(target) && !(target.delete() && tmp.renameTo(target))) {
+        throw new IOException("failed to write " + target);
+      }
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  private static void writeArchive(final File modulesRepo, final List<String> paths, final File target,
+      final long maxSize) throws IOException {
+    final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(
+        target)), maxSize);
+    final DataOutputStream out = new DataOutputStream(counter);
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+
+      final Map<String, Slice> files = new LinkedHashMap<String, Slice>();
+      final Map<String, Map<String, Slice>> jars = new LinkedHashMap<String, Map<String, Slice>>();
+      final byte[] buf = new byte[8192];
+      for (final String path : paths) {
+        final File f = new File(modulesRepo, path);
+        if (path.endsWith(".jar")) {
+          jars.put(path, writeJar(f, counter, buf));
+        } else {
+          final int offset = counter.position();
+          copy(new FileInputStream(f), counter, buf);
+          files.put(path, new Slice(offset, counter.position() - offset));
+        }
+      }
+
+      final Map<String, Integer> jarTables = new LinkedHashMap<String, Integer>();
+      for (final Map.Entry<String, Map<String, Slice>> jar : jars.entrySet()) {
+        jarTables.put(jar.getKey(), Integer.valueOf(counter.position()));
+        writeSlices(out, jar.getValue());
+      }
+      final long indexOffset = counter.position();
+      writeSlices(out, files);
+      out.writeInt(jarTables.size());
+      for (final Map.Entry<String, Integer> t : jarTables.entrySet()) {
+        writeString(out, t.getKey());
+        out.writeInt(t.getValue().intValue());
+      }
+      out.writeLong(indexOffset);
+      out.writeInt(MAGIC);
+      counter.position();
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void collect(final File dir, final String prefix, final List<String> paths) {
+    final String[] names = dir.list();
+    if (names == null) {
+      return;
+    }
+    Arrays.sort(names);
+    for (final String name : names) {
+      final File f = new File(dir, name);
+      if (f.isDirectory()) {
+        if (!".git".equals(name)) {
+          collect(f, prefix + name + "/", paths);
+        }
+      } else if (f.isFile()) {
+        paths.add(prefix + name);
+      }
+    }
+  }
+
+  private static Map<String, Slice> writeJar(final File jar, final CountingOutputStream out, final byte[] buf)
+      throws IOException {
+    final Map<String, Slice> entries = new LinkedHashMap<String, Slice>();
+    final JarFile jarFile = new JarFile(jar, false);
+    try {
+      final Enumeration<JarEntry> e = jarFile.entries();
+      while (e.hasMoreElements()) {
+        final JarEntry entry = e.nextElement();
+        if (!entry.isDirectory() && !entries.containsKey(entry.getName())) {
+          final int offset = out.position();
+          copy(jarFile.getInputStream(entry), out, buf);
+          entries.put(entry.getName(), new Slice(offset, out.position() - offset));
+        }
+      }
+    } finally {
+      jarFile.close();
+    }
+    return entries;
+  }
+
+  private static void writeSlices(final DataOutputStream out, final Map<String, Slice> slices) throws IOException {
+    out.writeInt(slices.size());
+    for (final Map.Entry<String, Slice> s : slices.entrySet()) {
+      writeString(out, s.getKey());
+      out.writeInt(s.getValue().offset);
+      out.writeInt(s.getValue().length);
+    }
+  }
+
+  private static void copy(final InputStream in, final OutputStream out, final byte[] buf) throws IOException {
+    try {
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        out.write(buf, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeString(final DataOutputStream out, final String s) throws IOException {
+    final byte[] bytes = s.getBytes(UTF8);
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(final ByteBuffer buf) throws UnsupportedEncodingException {
+    final byte[] bytes = new byte[buf.getShort() & 0xffff];
+    buf.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * A range of the archive.
+   */
+  static final class Slice {
+
+    private final int offset;
+    private final int length;
+
+    Slice(final int offset, final int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+
+    int getLength() {
+      return this.length;
+    }
+
+    ByteBuffer of(final ByteBuffer data) {
+      final ByteBuffer b = data.duplicate();
+      b.limit(this.offset + this.length).position(this.offset);
+      return b.slice();
+    }
+  }
+
+  private static final class CountingOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final long maxSize;
+    private long count;
+
+    CountingOutputStream(final OutputStream out, final long maxSize) {
+      this.out = out;
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the current offset, the archive can only be mapped as a whole, so its size is limited to 2GB
+     */
+    int position() throws IOException {
+      if (this.count > this.maxSize) {
+        throw new IOException("modules archive exceeds " + this.maxSize + " bytes");
+      }
+      return (int) this.count;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      this.out.write(b);
+      this.count++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      this.out.write(b, off, len);
+      this.count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.out.close();
+    }
+  }
+
+}
@@ -6,6 +6,7 @@ import static ch.cmbntr.modulizer.bootstrap.util.SystemPropertyHelper.snapshotPr
 import java.io.File;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -13,15 +14,19 @@ import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 
-import org.jboss.modules.LocalModuleLoader;
 import org.jboss.modules.Main;
 import org.jboss.modules.Module;
+import org.jboss.modules.ModuleFinder;
 import org.jboss.modules.ModuleIdentifier;
+import org.jboss.modules.ModuleLoadException;
+import org.jboss.modules.ModuleLoader;
 
+import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog;
 import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog.ExceptionLogger;
+import ch.cmbntr.modulizer.bootstrap.util.PreloadProfile;
 import ch.cmbntr.modulizer.bootstrap.util.Resources;
 import ch.cmbntr.modulizer.bootstrap.util.Resources.Pool;
 
@@ -36,10 +41,10 @@ public class ModulizerModulesUtil {
   public static List<Module> tryLoadModules(final boolean mandatory, final Iterable<String> moduleIdentifiers,
       final File... repoRoots) {
     final Pool pool = Resources.getPoolHandle();
-    final ExecutorService exec = pool.aquireExec();
+    final ScheduledExecutorService exec = pool.aquireBlockableExec();
     final Properties origProps = snapshotProps();
     try {
-      final LocalModuleLoader loader = new LocalModuleLoader(repoRoots);
+      final ModuleLoader loader = new ModuleLoader(IndexedModuleFinder.create(repoRoots));
       final List<Future<Module>> asyncModules = new LinkedList<Future<Module>>();
       for (final String moduleIdentifier : moduleIdentifiers) {
         asyncModules.add(exec.submit(new Callable<Module>() {
@@ -63,7 +68,7 @@ public class ModulizerModulesUtil {
       return modules;
     } finally {
       restoreProps(origProps);
-      pool.releaseExec(exec);
+      pool.releaseBlockableExec(exec);
     }
   }
 
@@ -108,6 +113,7 @@ public class ModulizerModulesUtil {
 
   public static void invokeModulesMainAndWait(final File modulesRepo, final String mainModule, final String... args) {
     try {
+      ModulizerLog.log("boot module loader: %s", bootModuleLoader(modulesRepo));
       Main.main(assembleRunArguments(modulesRepo, mainModule, args));
     } catch (final Throwable e) {
       if (e instanceof RuntimeException) {
@@ -117,6 +123,143 @@ public class ModulizerModulesUtil {
     }
   }
 
+  /**
+   * Preloads the module classes of the installed {@link PreloadProfile} through the boot module loader, which is the
+   * loader {@link Main} is about to use for the same repository.
+   */
+  public static void preloadProfile(final File modulesRepo) {
+    final PreloadProfile profile = PreloadProfile.current();
+    if (profile == null) {
+      return;
+    }
+    final ModuleLoader bootLoader;
+    try {
+      bootLoader = bootModuleLoader(modulesRepo);
+    } catch (final IOException e) {
+      ModulizerLog.warn("skip module preloading: %s", e);
+      return;
+    }
+    profile.preload(PreloadProfile.LOADER_MODULE_PREFIX, moduleResolver(bootLoader));
+  }
+
+  /**
+   * Creates the boot module loader of jboss-modules for the repository, unless it exists already. It is the
+   * {@link IndexedBootModuleLoader} if no other one is configured, so {@link Main} finds the indexed modules without
+   * parsing their {@code module.xml}. The system properties read by jboss-modules are only set while the loader is
+   * created, {@link Main} sets the module path again from its arguments.
+   */
+  static ModuleLoader bootModuleLoader(final File modulesRepo) throws IOException {
+    final String repoPath = modulesRepo.getCanonicalFile().getAbsolutePath();
+    final String origPath = System.getProperty(IndexedBootModuleLoader.MODULE_PATH);
+    final String origLoader = System.getProperty(IndexedBootModuleLoader.BOOT_MODULE_LOADER);
+    try {
+      System.setProperty(IndexedBootModuleLoader.MODULE_PATH, repoPath);
+      if (origLoader == null && isVisibleToJBossModules(IndexedBootModuleLoader.class)) {
+        System.setProperty(IndexedBootModuleLoader.BOOT_MODULE_LOADER, IndexedBootModuleLoader.class.getName());
+      }
+      return Module.getBootModuleLoader();
+    } finally {
+      restoreProperty(IndexedBootModuleLoader.MODULE_PATH, origPath);
+      restoreProperty(IndexedBootModuleLoader.BOOT_MODULE_LOADER, origLoader);
+    }
+  }
+
+  /**
+   * jboss-modules instantiates a configured boot module loader through its own class loader, failing for good if the
+   * class is not found there.
+   */
+  private static boolean isVisibleToJBossModules(final Class<?> c) {
+    try {
+      return Class.forName(c.getName(), false, Module.class.getClassLoader()) == c;
+    } catch (final ClassNotFoundException e) {
+      return false;
+    } catch (final LinkageError e) {
+      return false;
+    }
+  }
+
+  private static void restoreProperty(final String key, final String value) {
+    if (value == null) {
+      System.clearProperty(key);
+    } else {
+      System.setProperty(key, value);
+    }
+  }
+
+  static PreloadProfile.LoaderResolver moduleResolver(final ModuleLoader loader) {
+    return new PreloadProfile.LoaderResolver() {
+      @Override
+      public ClassLoader resolve(final String loaderKey) throws Exception {
+        final String id = loaderKey.substring(PreloadProfile.LOADER_MODULE_PREFIX.length());
+        return loader.loadModule(ModuleIdentifier.fromString(id)).getClassLoader();
+      }
+    };
+  }
+
+  /**
+   * Runs the main module of a hosted app on its own thread. Unlike {@link #invokeModulesMain(File, String, String...)}
+   * it does not use the boot module loader of jboss-modules, which exists once per JVM, but an own loader of the
+   * repository taking the shared modules from the {@link SharedModuleLayer}.
+   *
+   * @param sharedModules comma separated names of the shared modules, see
+   *          {@link ch.cmbntr.modulizer.bootstrap.BootstrapContext#CONFIG_KEY_SHARED_MODULES}
+   */
+  public static CountDownLatch invokeHostedMain(final String appName, final File modulesRepo, final String mainModule,
+      final String sharedModules, final String... args) {
+    final ModuleLoader loader = new AppModuleLoader(modulesRepo, SharedModuleLayer.get(),
+        SharedModuleLayer.Selection.parse(sharedModules));
+    return invokeLoaderMain(appName, loader, mainModule, args);
+  }
+
+  /**
+   * Runs the main module of a {@link ModulesArchive} on its own thread, the classes are served from the mapped archive
+   * rather than from an exploded modules repository.
+   *
+   * @param archiveFile the modules archive created by the modulize goal
+   */
+  public static CountDownLatch invokeArchiveMain(final String appName, final File archiveFile,
+      final String mainModule, final String... args) {
+    final ModuleLoader loader;
+    try {
+      loader = new ModuleLoader(new ModuleFinder[] { ArchiveModuleFinder.create(archiveFile) });
+    } catch (final IOException e) {
+      throw new RuntimeException("failed to open modules archive " + archiveFile, e);
+    }
+    return invokeLoaderMain(appName, loader, mainModule, args);
+  }
+
+  private static CountDownLatch invokeLoaderMain(final String appName, final ModuleLoader loader,
+      final String mainModule, final String... args) {
+    final Module module;
+    try {
+      module = loader.loadModule(ModuleIdentifier.fromString(mainModule));
+    } catch (final ModuleLoadException e) {
+      throw new RuntimeException("failed to load " + mainModule, e);
+    }
+    final PreloadProfile profile = PreloadProfile.current();
+    if (profile != null) {
+      profile.preload(PreloadProfile.LOADER_MODULE_PREFIX, moduleResolver(loader));
+    }
+    final CountDownLatch done = new CountDownLatch(1);
+    final Thread t = Resources.newThread(String.format("main[%s]", appName), new Runnable() {
+      @Override
+      public void run() {
+        try {
+          module.run(args == null ? new String[0] : args);
+        } catch (final InvocationTargetException e) {
+          throw new RuntimeException(e.getCause());
+        } catch (final Exception e) {
+          throw new RuntimeException(e);
+        } finally {
+          done.countDown();
+        }
+      }
+    });
+    t.setUncaughtExceptionHandler(ExceptionLogger.create());
+    t.start();
+    return done;
+  }
+
   private static String[] assembleRunArguments(final File modulesRepo, final String mainModule, final String... args)
       throws IOException {
     final String repoPath = modulesRepo.getCanonicalFile().getAbsolutePath();
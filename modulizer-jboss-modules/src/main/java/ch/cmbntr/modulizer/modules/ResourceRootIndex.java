@@ -0,0 +1,144 @@
+package ch.cmbntr.modulizer.modules;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * The paths of the jar resource roots of a module, written by the modulize mojo next to the {@code module.xml} of the
+ * modules it creates. A path is the directory of an entry in the jar, or a directory entry itself, the same listing
+ * jboss-modules collects by scanning the jar when asked for its paths, which lets the {@link LazyJarResourceLoader}
+ * answer without opening the jar. The size of each jar is recorded, a jar replaced afterwards is not served from the
+ * index.
+ */
+public final class ResourceRootIndex {
+
+  public static final String FILE_NAME = "resource-roots.idx";
+
+  private static final int MAGIC = 0x4d4f5252;
+
+  private static final int VERSION = 2;
+
+  private ResourceRootIndex() {
+    super();
+  }
+
+  /**
+   * Indexes the given jar resource roots of a module.
+   *
+   * @param moduleDir the module directory, containing the resource roots
+   * @param resourceRoots the resource root paths relative to the module directory, roots not being jar files are
+   *          skipped
+   */
+  public static void write(final File moduleDir, final Iterable<String> resourceRoots) throws IOException {
+    final Map<String, File> jars = new HashMap<String, File>();
+    for (final String root : resourceRoots) {
+      final File jar = new File(moduleDir, root);
+      if (jar.isFile() && root.endsWith(".jar")) {
+        jars.put(root, jar);
+      }
+    }
+    final File target = new File(moduleDir, FILE_NAME);
+    if (jars.isEmpty()) {
+      target.delete();
+      return;
+    }
+    final File tmp = new File(moduleDir, FILE_NAME + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(jars.size());
+      for (final Map.Entry<String, File> e : jars.entrySet()) {
+        final File jar = e.getValue();
+        final Collection<String> paths = scan(jar);
+        out.writeUTF(e.getKey());
+        out.writeLong(jar.length());
+        out.writeInt(paths.size());
+        for (final String p : paths) {
+          out.writeUTF(p);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(target) && !(target.delete() && tmp.renameTo(target))) {
+      throw new IOException("failed to write " + target);
+    }
+  }
+
+  /**
+   * @return the paths by resource root of the given module directory, only for the roots whose jar is unchanged since
+   *         indexing
+   */
+  static Map<String, Collection<String>> read(final File moduleDir) throws IOException {
+    final File index = new File(moduleDir, FILE_NAME);
+    if (!index.isFile()) {
+      return Collections.emptyMap();
+    }
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("unsupported resource root index " + index);
+      }
+      final int count = in.readInt();
+      final Map<String, Collection<String>> roots = new HashMap<String, Collection<String>>(count * 2);
+      for (int i = 0; i < count; i++) {
+        final String root = in.readUTF();
+        final long length = in.readLong();
+        final int pathCount = in.readInt();
+        final Set<String> paths = new TreeSet<String>();
+        for (int p = 0; p < pathCount; p++) {
+          paths.add(in.readUTF());
+        }
+        if (new File(moduleDir, root).length() == length) {
+          roots.put(root, Collections.unmodifiableSet(paths));
+        }
+      }
+      return roots;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return the root path and the parent directory of every entry, directory entries included, like the jar resource
+   *         loader of jboss-modules extracts them
+   */
+  static Collection<String> scan(final File jar) throws IOException {
+    final Set<String> paths = new TreeSet<String>();
+    paths.add("");
+    final JarFile jarFile = new JarFile(jar);
+    try {
+      final Enumeration<JarEntry> entries = jarFile.entries();
+      while (entries.hasMoreElements()) {
+        final String name = entries.nextElement().getName();
+        final int idx = name.lastIndexOf('/');
+        if (idx > 0) {
+          final String path = name.substring(0, idx);
+          if (!path.endsWith("/")) {
+            paths.add(path);
+          }
+        }
+      }
+    } finally {
+      jarFile.close();
+    }
+    return paths;
+  }
+
+}
@@ -0,0 +1,118 @@
+package ch.cmbntr.modulizer.modules;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jboss.modules.ModuleFinder;
+import org.jboss.modules.ModuleIdentifier;
+import org.jboss.modules.ModuleLoader;
+import org.jboss.modules.ModuleLoadException;
+import org.jboss.modules.ModuleSpec;
+
+import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog;
+
+/**
+ * The modules shared by the apps hosted in one JVM, see {@link ch.cmbntr.modulizer.bootstrap.Host}. Each app adds its
+ * repository, a shared module is defined once from the first repository containing it, so a shared module must be
+ * the same in all hosted apps (a versioned slot keeps different versions apart).
+ */
+public final class SharedModuleLayer extends ModuleLoader {
+
+  private static final SharedModuleLayer INSTANCE = new SharedModuleLayer(new RepositoryFinder());
+
+  private final RepositoryFinder finder;
+
+  private SharedModuleLayer(final RepositoryFinder finder) {
+    super(new ModuleFinder[] { finder });
+    this.finder = finder;
+  }
+
+  public static SharedModuleLayer get() {
+    return INSTANCE;
+  }
+
+  public void addRepository(final File modulesRepo) {
+    try {
+      this.finder.add(modulesRepo.getCanonicalFile());
+    } catch (final IOException e) {
+      ModulizerLog.warn("not sharing modules of %s: %s", modulesRepo, e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("shared module layer %s", this.finder.roots);
+  }
+
+  /**
+   * Decides which modules of an app come from the shared layer.
+   */
+  static final class Selection {
+
+    private final String[] names;
+
+    private Selection(final String[] names) {
+      this.names = names;
+    }
+
+    /**
+     * @param spec comma separated module names, each also selecting the modules below it, e.g. {@code org.slf4j}
+     *          selects {@code org.slf4j.ext} as well
+     */
+    static Selection parse(final String spec) {
+      if (spec == null || spec.trim().length() == 0) {
+        return new Selection(new String[0]);
+      }
+      final List<String> names = new ArrayList<String>();
+      for (final String n : spec.split(",")) {
+        if (n.trim().length() > 0) {
+          names.add(n.trim());
+        }
+      }
+      return new Selection(names.toArray(new String[names.size()]));
+    }
+
+    boolean isEmpty() {
+      return this.names.length == 0;
+    }
+
+    boolean isShared(final ModuleIdentifier id) {
+      final String name = id.getName();
+      for (final String n : this.names) {
+        if (name.startsWith(n) && (name.length() == n.length() || name.charAt(n.length()) == '.')) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static final class RepositoryFinder implements ModuleFinder {
+
+    private final List<File> roots = new CopyOnWriteArrayList<File>();
+    private final List<ModuleFinder> finders = new CopyOnWriteArrayList<ModuleFinder>();
+
+    synchronized void add(final File root) {
+      if (!this.roots.contains(root)) {
+        this.roots.add(root);
+        this.finders.add(IndexedModuleFinder.create(root));
+      }
+    }
+
+    @Override
+    public ModuleSpec findModule(final ModuleIdentifier id, final ModuleLoader delegateLoader)
+        throws ModuleLoadException {
+      for (final ModuleFinder f : this.finders) {
+        final ModuleSpec spec = f.findModule(id, delegateLoader);
+        if (spec != null) {
+          return spec;
+        }
+      }
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,596 @@
+package ch.cmbntr.modulizer.modules;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.Permission;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.modules.Module;
+import org.jboss.modules.ModuleFinder;
+import org.jboss.modules.ModuleIdentifier;
+import org.jboss.modules.ModuleLoader;
+
+import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog;
+import ch.cmbntr.modulizer.bootstrap.util.ModulizerLog.ExceptionLogger;
+import ch.cmbntr.modulizer.bootstrap.util.PreloadProfile;
+import ch.cmbntr.modulizer.bootstrap.util.StandbyProtocol;
+import ch.cmbntr.modulizer.bootstrap.util.StandbyProtocol.Endpoint;
+import ch.cmbntr.modulizer.bootstrap.util.StandbyProtocol.Request;
+
+/**
+ * Warm standby for repeated launches of the same app. The bootstrap runs once, then instead of starting the main module
+ * the JVM listens on a loopback port, published together with a random secret in a port file readable by its owner
+ * only. Every hand-off of a {@link ch.cmbntr.modulizer.bootstrap.StandbyClient} runs the main module in a fresh
+ * module loader, while the loader of the next hand-off is loaded and preloaded in the background.
+ * <p>
+ * The standard streams are routed per hand-off through an inheritable thread local, so threads started by the app
+ * write to its client as well. A hand-off ends when all non-daemon threads it started are done. {@code System.exit}
+ * ends the whole standby with all its hand-offs, unless the exit trap is enabled, see
+ * {@link ch.cmbntr.modulizer.bootstrap.BootstrapContext#CONFIG_KEY_STANDBY_EXIT_TRAP}, and a security manager can
+ * still be installed; then it ends only the calling hand-off. The working directory and the
+ * environment of a JVM can not be changed, the ones of the client are available through {@link #workingDirectory()}
+ * and {@link #environment()}.
+ * <p>
+ * The standby retires, i.e. stops accepting and removes its port file, when it was idle for the configured time or
+ * when the live heap exceeds the configured share of the maximum heap. The JVM ends with the last running hand-off.
+ */
+public final class StandbyServer implements Runnable {
+
+  private static final int ACCEPT_MILLIS = 1000;
+
+  private static final int HANDSHAKE_MILLIS = 5000;
+
+  private static final InheritableThreadLocal<Handoff> CURRENT = new InheritableThreadLocal<Handoff>();
+
+  private static final AtomicBoolean STREAMS_ROUTED = new AtomicBoolean();
+
+  private final String appName;
+  private final File modulesRepo;
+  private final ModuleIdentifier mainModule;
+  private final File portFile;
+  private final long idleMillis;
+  private final int maxHeapPercent;
+  private final PreloadProfile profile;
+  private final ThreadGroup group = Thread.currentThread().getThreadGroup();
+  private final String secret = UUID.randomUUID().toString();
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicInteger launches = new AtomicInteger();
+  private final ServerSocket server;
+
+  private volatile long lastActivity = System.currentTimeMillis();
+  private volatile boolean retired;
+  private FutureTask<Module> spare;
+
+  private StandbyServer(final String appName, final File modulesRepo, final String mainModule, final File portFile,
+      final long idleMillis, final int maxHeapPercent) throws IOException {
+    this.appName = appName;
+    this.modulesRepo = modulesRepo;
+    this.mainModule = ModuleIdentifier.fromString(mainModule);
+    this.portFile = portFile;
+    this.idleMillis = idleMillis;
+    this.maxHeapPercent = maxHeapPercent;
+    this.profile = PreloadProfile.current();
+    this.server = new ServerSocket(0, 50, InetAddress.getByName(null));
+    this.server.setSoTimeout(ACCEPT_MILLIS);
+  }
+
+  /**
+   * Warms the first module loader, publishes the port file and starts accepting hand-offs.
+   */
+  public static StandbyServer start(final String appName, final File modulesRepo, final String mainModule,
+      final File portFile, final long idleMillis, final int maxHeapPercent, final boolean trapExit) throws IOException {
+    final StandbyServer s = new StandbyServer(appName, modulesRepo, mainModule, portFile, idleMillis, maxHeapPercent);
+    routeStandardStreams();
+    if (trapExit) {
+      trapExit();
+    }
+    s.warmSpare();
+    StandbyProtocol.writePortFile(portFile, new Endpoint(s.server.getLocalPort(), s.secret));
+    new Thread(s.group, s, String.format("standby[%s]", appName)).start();
+    ModulizerLog.log("standby for '%s' listening on port %d, published in %s", appName, s.server.getLocalPort(),
+        portFile);
+    return s;
+  }
+
+  /**
+   * @return the working directory of the client of the calling hand-off, {@code null} outside of hand-offs
+   */
+  public static File workingDirectory() {
+    final Handoff h = CURRENT.get();
+    return h == null ? null : new File(h.request.workingDir);
+  }
+
+  /**
+   * @return the environment of the client of the calling hand-off, {@code null} outside of hand-offs
+   */
+  public static Map<String, String> environment() {
+    final Handoff h = CURRENT.get();
+    return h == null ? null : Collections.unmodifiableMap(h.request.env);
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (!this.retired) {
+        final Socket client;
+        try {
+          client = this.server.accept();
+        } catch (final SocketTimeoutException e) {
+          checkRetirement();
+          continue;
+        }
+        handOff(client);
+      }
+    } catch (final IOException e) {
+      if (!this.retired) {
+        ModulizerLog.warn("standby stopped accepting: %s", e);
+      }
+    } finally {
+      retire("stopped");
+    }
+  }
+
+  private void checkRetirement() {
+    final long idle = System.currentTimeMillis() - this.lastActivity;
+    if (this.active.get() == 0 && idle > this.idleMillis) {
+      retire(String.format("idle for %dms", idle));
+      return;
+    }
+    final int live = liveHeapPercent();
+    if (live > this.maxHeapPercent) {
+      retire(String.format("live heap at %d%%", live));
+    }
+  }
+
+  private synchronized void retire(final String reason) {
+    if (this.retired) {
+      return;
+    }
+    this.retired = true;
+    this.spare = null;
+    try {
+      this.server.close();
+    } catch (final IOException e) {
+      // ignore
+    }
+    if (!this.portFile.delete() && this.portFile.exists()) {
+      ModulizerLog.warn("could not delete %s", this.portFile);
+    }
+    ModulizerLog.log("standby for '%s' retired after %d hand-offs: %s", this.appName, this.launches.get(), reason);
+  }
+
+  /**
+   * @return the heap in use after the last collection of each pool, in percent of the maximum heap
+   */
+  static int liveHeapPercent() {
+    final long max = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+    if (max <= 0L) {
+      return 0;
+    }
+    long live = 0L;
+    for (final MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+      final MemoryUsage u = p.getType() == MemoryType.HEAP ? p.getCollectionUsage() : null;
+      if (u != null) {
+        live += u.getUsed();
+      }
+    }
+    return (int) (live * 100L / max);
+  }
+
+  private void handOff(final Socket client) {
+    this.active.incrementAndGet();
+    this.lastActivity = System.currentTimeMillis();
+    final String name = String.format("main[%s#%d]", this.appName, this.launches.incrementAndGet());
+    final Thread t = new Thread(new ThreadGroup(this.group, name), new Runnable() {
+      @Override
+      public void run() {
+        try {
+          serve(client);
+        } finally {
+          StandbyServer.this.lastActivity = System.currentTimeMillis();
+          StandbyServer.this.active.decrementAndGet();
+        }
+      }
+    }, name);
+    t.setUncaughtExceptionHandler(ExceptionLogger.create());
+    t.start();
+  }
+
+  private void serve(final Socket client) {
+    try {
+      client.setTcpNoDelay(true);
+      client.setSoTimeout(HANDSHAKE_MILLIS);
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+      final Request request = StandbyProtocol.readRequest(in, this.secret);
+      client.setSoTimeout(0);
+      // taken before the hand-off is bound, the next warm-up thread must not inherit it
+      final Module module = takeSpare();
+      final Handoff h = new Handoff(request, in, out);
+      CURRENT.set(h);
+      ModulizerLog.log("hand-off %s: %s", Thread.currentThread().getName(), request);
+      final int status = runMain(module, request.args);
+      if (!h.exited.get()) {
+        awaitNonDaemonThreads(Thread.currentThread().getThreadGroup());
+      }
+      h.exit(status);
+    } catch (final IOException e) {
+      ModulizerLog.warn("standby hand-off failed: %s", e);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      CURRENT.remove();
+      try {
+        client.close();
+      } catch (final IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private static int runMain(final Module module, final String[] args) {
+    try {
+      module.run(args);
+      return 0;
+    } catch (final InvocationTargetException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof HandoffExit) {
+        return ((HandoffExit) cause).status;
+      }
+      System.err.print("Exception in thread \"main\" ");
+      cause.printStackTrace();
+      return 1;
+    } catch (final Exception e) {
+      System.err.println("failed to run main module: " + e);
+      return 1;
+    }
+  }
+
+  private static void awaitNonDaemonThreads(final ThreadGroup group) throws InterruptedException {
+    final Thread self = Thread.currentThread();
+    for (;;) {
+      final Thread[] threads = new Thread[group.activeCount() + 8];
+      final int count = group.enumerate(threads, true);
+      Thread pending = null;
+      for (int i = 0; i < count && pending == null; i++) {
+        final Thread t = threads[i];
+        if (t != self && !t.isDaemon() && t.isAlive()) {
+          pending = t;
+        }
+      }
+      if (pending == null) {
+        return;
+      }
+      pending.join();
+    }
+  }
+
+  private synchronized void warmSpare() {
+    final FutureTask<Module> task = new FutureTask<Module>(new Callable<Module>() {
+      @Override
+      public Module call() throws Exception {
+        return loadFresh();
+      }
+    });
+    this.spare = task;
+    final Thread t = new Thread(this.group, task, String.format("standby warm-up[%s]", this.appName));
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private Module takeSpare() throws IOException, InterruptedException {
+    final FutureTask<Module> task;
+    synchronized (this) {
+      task = this.spare;
+      if (task == null) {
+        throw new IOException("standby retired");
+      }
+      warmSpare();
+    }
+    try {
+      return task.get();
+    } catch (final ExecutionException e) {
+      throw new IOException("failed to load module " + this.mainModule, e.getCause());
+    }
+  }
+
+  private Module loadFresh() throws Exception {
+    final long start = System.nanoTime();
+    final ModuleLoader loader = new ModuleLoader(new ModuleFinder[] { IndexedModuleFinder.create(this.modulesRepo) });
+    final Module module = loader.loadModule(this.mainModule);
+    if (this.profile != null) {
+      this.profile.preloadInline(PreloadProfile.LOADER_MODULE_PREFIX, ModulizerModulesUtil.moduleResolver(loader));
+    }
+    ModulizerLog.log("standby module loader warmed in %dms", (System.nanoTime() - start) / 1000000L);
+    return module;
+  }
+
+  private static void routeStandardStreams() {
+    if (STREAMS_ROUTED.compareAndSet(false, true)) {
+      System.setOut(new RoutedPrintStream(System.out, false));
+      System.setErr(new RoutedPrintStream(System.err, true));
+      System.setIn(new RoutedInputStream(System.in));
+    }
+  }
+
+  private static void trapExit() {
+    if (System.getSecurityManager() instanceof ExitTrap) {
+      return;
+    }
+    try {
+      System.setSecurityManager(new ExitTrap());
+    } catch (final RuntimeException e) {
+      // UnsupportedOperationException from JDK 18 on, SecurityException under an existing security manager
+      ModulizerLog.warn("System.exit of a hand-off will end the standby: %s", e);
+    }
+  }
+
+  /**
+   * The client side of one hand-off.
+   */
+  private static final class Handoff {
+
+    final Request request;
+    final DataOutputStream out;
+    final OutputStream stdout;
+    final OutputStream stderr;
+    final InputStream stdin;
+    final AtomicBoolean exited = new AtomicBoolean();
+
+    Handoff(final Request request, final DataInputStream in, final DataOutputStream out) {
+      this.request = request;
+      this.out = out;
+      this.stdout = new FrameOutputStream(this, StandbyProtocol.STDOUT);
+      this.stderr = new FrameOutputStream(this, StandbyProtocol.STDERR);
+      this.stdin = new FrameInputStream(in);
+    }
+
+    void exit(final int status) {
+      if (this.exited.compareAndSet(false, true)) {
+        try {
+          StandbyProtocol.writeExit(this.out, status);
+        } catch (final IOException e) {
+          ModulizerLog.log("could not report exit status %d: %s", status, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes each chunk as one frame, once the hand-off is over the output is dropped.
+   */
+  private static final class FrameOutputStream extends OutputStream {
+
+    private final Handoff handoff;
+    private final int type;
+    private volatile boolean broken;
+
+    FrameOutputStream(final Handoff handoff, final int type) {
+      this.handoff = handoff;
+      this.type = type;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      if (this.broken || this.handoff.exited.get() || len == 0) {
+        return;
+      }
+      try {
+        StandbyProtocol.writeFrame(this.handoff.out, this.type, b, off, len);
+      } catch (final IOException e) {
+        this.broken = true;
+      }
+    }
+  }
+
+  /**
+   * Reads the payload of the stdin frames, an empty frame ends the input.
+   */
+  private static final class FrameInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private int remaining;
+    private boolean eof;
+
+    FrameInputStream(final DataInputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(final byte[] b, final int off, final int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (this.remaining == 0) {
+        if (this.eof) {
+          return -1;
+        }
+        nextFrame();
+      }
+      final int n = this.in.read(b, off, Math.min(len, this.remaining));
+      if (n < 0) {
+        this.eof = true;
+        this.remaining = 0;
+        return -1;
+      }
+      this.remaining -= n;
+      return n;
+    }
+
+    private void nextFrame() throws IOException {
+      final int type = this.in.read();
+      if (type < 0) {
+        this.eof = true;
+        return;
+      }
+      if (type != StandbyProtocol.STDIN) {
+        throw new IOException("unexpected frame type " + type);
+      }
+      final int len = this.in.readInt();
+      if (len <= 0) {
+        this.eof = true;
+      } else {
+        this.remaining = len;
+      }
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+      return this.remaining == 0 ? 0 : Math.min(this.remaining, this.in.available());
+    }
+  }
+
+  /**
+   * {@code System.out}/{@code System.err} writing to the stream of the current hand-off, the original one outside.
+   */
+  private static final class RoutedPrintStream extends PrintStream {
+
+    private final PrintStream original;
+    private final boolean err;
+
+    RoutedPrintStream(final PrintStream original, final boolean err) {
+      super(original, true);
+      this.original = original;
+      this.err = err;
+    }
+
+    private OutputStream target() {
+      final Handoff h = CURRENT.get();
+      if (h == null) {
+        return this.original;
+      }
+      return this.err ? h.stderr : h.stdout;
+    }
+
+    @Override
+    public void write(final int b) {
+      try {
+        target().write(b);
+      } catch (final IOException e) {
+        setError();
+      }
+    }
+
+    @Override
+    public void write(final byte[] buf, final int off, final int len) {
+      try {
+        target().write(buf, off, len);
+      } catch (final IOException e) {
+        setError();
+      }
+    }
+
+    @Override
+    public void flush() {
+      try {
+        target().flush();
+      } catch (final IOException e) {
+        setError();
+      }
+    }
+  }
+
+  /**
+   * {@code System.in} reading from the stdin frames of the current hand-off, the original one outside.
+   */
+  private static final class RoutedInputStream extends InputStream {
+
+    private final InputStream original;
+
+    RoutedInputStream(final InputStream original) {
+      this.original = original;
+    }
+
+    private InputStream target() {
+      final Handoff h = CURRENT.get();
+      return h == null ? this.original : h.stdin;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return target().read();
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      return target().read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return target().available();
+    }
+  }
+
+  /**
+   * Permits everything, but turns {@code System.exit} of a hand-off into the exit status of its client.
+   */
+  private static final class ExitTrap extends SecurityManager {
+
+    @Override
+    public void checkPermission(final Permission perm) {
+      // permitted
+    }
+
+    @Override
+    public void checkPermission(final Permission perm, final Object context) {
+      // permitted
+    }
+
+    @Override
+    public void checkExit(final int status) {
+      final Handoff h = CURRENT.get();
+      if (h != null) {
+        h.exit(status);
+        throw new HandoffExit(status);
+      }
+    }
+  }
+
+  private static final class HandoffExit extends SecurityException {
+
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    HandoffExit(final int status) {
+      super("exit of standby hand-off with status " + status);
+      this.status = status;
+    }
+  }
+
+}
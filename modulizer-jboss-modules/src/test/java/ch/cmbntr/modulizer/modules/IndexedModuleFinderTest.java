@@ -0,0 +1,103 @@
+package ch.cmbntr.modulizer.modules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.jboss.modules.Module;
+import org.jboss.modules.ModuleFinder;
+import org.jboss.modules.ModuleIdentifier;
+import org.jboss.modules.ModuleLoader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexedModuleFinderTest {
+
+  private static final ModuleIdentifier APP = ModuleIdentifier.create("org.example.app");
+
+  private static final String DESCRIPTOR = "<module xmlns=\"urn:jboss:module:1.1\" name=\"org.example.app\">"
+      + "<resources><resource-root path=\"%s\"/></resources></module>";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File repo;
+
+  private File moduleDir;
+
+  @Before
+  public void createRepo() throws IOException {
+    this.repo = this.tmp.newFolder("repo");
+    this.moduleDir = new File(this.repo, "org/example/app/main");
+    write(new File(this.moduleDir, "xml-root/from-xml.txt"), "xml");
+    write(new File(this.moduleDir, "xml-toor/from-edit.txt"), "edit");
+    write(new File(this.moduleDir, "index-root/from-index.txt"), "index");
+
+    final File descriptor = new File(this.moduleDir, "module.xml");
+    write(descriptor, String.format(DESCRIPTOR, "xml-root"));
+    final ModuleIndex.Entry entry = new ModuleIndex.Entry("org.example.app", null, descriptor.length(),
+        ModuleIndex.checksum(descriptor)).resourceRoot("index-root");
+    ModuleIndex.write(new File(this.repo, ModuleIndex.FILE_NAME), Collections.singleton(entry));
+  }
+
+  @Test
+  public void testIndexedModule() throws Exception {
+    final ClassLoader cl = load(APP).getClassLoader();
+    assertNotNull(cl.getResource("from-index.txt"));
+    assertNull(cl.getResource("from-xml.txt"));
+  }
+
+  @Test
+  public void testSameLengthEditIsStale() throws Exception {
+    final File descriptor = new File(this.moduleDir, "module.xml");
+    final long length = descriptor.length();
+    write(descriptor, String.format(DESCRIPTOR, "xml-toor"));
+    assertEquals(length, descriptor.length());
+
+    final ClassLoader cl = load(APP).getClassLoader();
+    assertNotNull(cl.getResource("from-edit.txt"));
+    assertNull(cl.getResource("from-index.txt"));
+  }
+
+  @Test
+  public void testUnindexedModuleFromDescriptor() throws Exception {
+    final File other = new File(this.repo, "org/example/other/main");
+    write(new File(other, "root/from-other.txt"), "other");
+    write(new File(other, "module.xml"), "<module xmlns=\"urn:jboss:module:1.1\" name=\"org.example.other\">"
+        + "<resources><resource-root path=\"root\"/></resources></module>");
+
+    assertNotNull(load(ModuleIdentifier.create("org.example.other")).getClassLoader().getResource("from-other.txt"));
+  }
+
+  @Test
+  public void testBootModuleLoader() throws Exception {
+    final ModuleLoader boot = ModulizerModulesUtil.bootModuleLoader(this.repo);
+    assertTrue(boot instanceof IndexedBootModuleLoader);
+    assertNull(System.getProperty(IndexedBootModuleLoader.BOOT_MODULE_LOADER));
+    assertNull(System.getProperty(IndexedBootModuleLoader.MODULE_PATH));
+    assertNotNull(boot.loadModule(APP).getClassLoader().getResource("from-index.txt"));
+  }
+
+  private Module load(final ModuleIdentifier id) throws Exception {
+    return new ModuleLoader(new ModuleFinder[] { IndexedModuleFinder.create(this.repo) }).loadModule(id);
+  }
+
+  private static void write(final File f, final String content) throws IOException {
+    f.getParentFile().mkdirs();
+    final FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+}
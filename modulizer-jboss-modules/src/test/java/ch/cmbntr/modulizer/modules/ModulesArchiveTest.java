@@ -0,0 +1,185 @@
+package ch.cmbntr.modulizer.modules;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.jboss.modules.ModuleFinder;
+import org.jboss.modules.ModuleIdentifier;
+import org.jboss.modules.ModuleLoader;
+import org.jboss.modules.Resource;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ModulesArchiveTest {
+
+  private static final String JAR = "org/example/app/main/app.jar";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File repo;
+
+  @Before
+  public void createRepo() throws IOException {
+    this.repo = this.tmp.newFolder("repo");
+    final File moduleDir = new File(this.repo, "org/example/app/main");
+    write(new File(moduleDir, "module.xml"), "<module/>");
+    write(new File(this.repo, ".git/HEAD"), "ref: refs/heads/master");
+    jar(new File(moduleDir, "app.jar"), "root.txt", "org/example/App.class", "org/example/res/a.txt",
+        "org/example/res/deep/b.txt");
+    final ModuleIndex.Entry entry = new ModuleIndex.Entry("org.example.app", null, 9L, 0L).resourceRoot("app.jar");
+    ModuleIndex.write(new File(this.repo, ModuleIndex.FILE_NAME), Collections.singleton(entry));
+  }
+
+  @Test
+  public void testFiles() throws Exception {
+    final ModulesArchive archive = ModulesArchive.open(archive());
+    assertEquals("<module/>", string(archive.file("org/example/app/main/module.xml")));
+    assertNull(archive.file(".git/HEAD"));
+    assertNull(archive.file(JAR));
+    assertTrue(archive.isJar(JAR));
+    assertFalse(archive.isJar("org/example/app/main/module.xml"));
+    assertNull(archive.jarEntries("missing.jar"));
+  }
+
+  @Test
+  public void testResourceLoader() throws Exception {
+    final ModulesArchive archive = ModulesArchive.open(archive());
+    assertNull(ArchiveResourceLoader.create("missing", archive, "missing.jar"));
+    final ArchiveResourceLoader loader = ArchiveResourceLoader.create("app.jar", archive, JAR);
+
+    assertEquals(new HashSet<String>(Arrays.asList("", "org/example", "org/example/res", "org/example/res/deep")),
+        new HashSet<String>(loader.getPaths()));
+    assertArrayEquals("org/example/App.class".getBytes("UTF-8"), loader.getClassSpec("org/example/App.class")
+        .getBytes());
+    assertNull(loader.getClassSpec("org/example/Missing.class"));
+
+    final Resource r = loader.getResource("/org/example/res/a.txt");
+    assertEquals("org/example/res/a.txt", r.getName());
+    assertEquals(21L, r.getSize());
+    assertEquals("org/example/res/a.txt", string(r.openStream()));
+    assertEquals("org/example/res/a.txt", string(r.getURL().openStream()));
+    assertNull(loader.getResource("org/example/res/missing.txt"));
+
+    assertEquals(names("org/example/res/a.txt"), names(loader.iterateResources("org/example/res", false)));
+    assertEquals(names("org/example/res/a.txt", "org/example/res/deep/b.txt"),
+        names(loader.iterateResources("/org/example/res/", true)));
+  }
+
+  @Test
+  public void testModuleFinder() throws Exception {
+    final ModuleLoader loader = new ModuleLoader(new ModuleFinder[] { ArchiveModuleFinder.create(archive()) });
+    final ClassLoader cl = loader.loadModule(ModuleIdentifier.create("org.example.app")).getClassLoader();
+    assertEquals("root.txt", string(cl.getResourceAsStream("root.txt")));
+    assertNull(cl.getResource("module.xml"));
+  }
+
+  @Test
+  public void testSizeLimit() throws Exception {
+    final File target = new File(this.tmp.getRoot(), "modules.archive");
+    try {
+      ModulesArchive.write(this.repo, target, 64L);
+      fail("expected the size limit to be exceeded");
+    } catch (final IOException e) {
+      assertTrue(e.getMessage().contains("exceeds"));
+    }
+    assertFalse(target.exists());
+    assertFalse(new File(this.tmp.getRoot(), "modules.archive.tmp").exists());
+  }
+
+  @Test(expected = IOException.class)
+  public void testOversizedArchiveIsNotMapped() throws Exception {
+    final File archive = archive();
+    final RandomAccessFile f = new RandomAccessFile(archive, "rw");
+    try {
+      f.setLength(Integer.MAX_VALUE + 1L);
+    } finally {
+      f.close();
+    }
+    ModulesArchive.open(archive);
+  }
+
+  private File archive() throws IOException {
+    final File target = new File(this.tmp.getRoot(), "modules.archive");
+    ModulesArchive.write(this.repo, target);
+    assertFalse(new File(this.tmp.getRoot(), "modules.archive.tmp").exists());
+    return target;
+  }
+
+  private static Set<String> names(final String... names) {
+    return new HashSet<String>(Arrays.asList(names));
+  }
+
+  private static Set<String> names(final Iterator<Resource> resources) {
+    final Set<String> names = new HashSet<String>();
+    while (resources.hasNext()) {
+      names.add(resources.next().getName());
+    }
+    return names;
+  }
+
+  private static String string(final ByteBuffer buf) throws IOException {
+    final byte[] bytes = new byte[buf.remaining()];
+    buf.get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static String string(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      final byte[] buf = new byte[256];
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        out.write(buf, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toString("UTF-8");
+  }
+
+  private static void jar(final File jar, final String... names) throws IOException {
+    final JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      for (final String name : names) {
+        out.putNextEntry(new JarEntry(name));
+        out.write(name.getBytes("UTF-8"));
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void write(final File f, final String content) throws IOException {
+    f.getParentFile().mkdirs();
+    final FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+}
@@ -0,0 +1,84 @@
+package ch.cmbntr.modulizer.modules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.jboss.modules.ResourceLoader;
+import org.jboss.modules.ResourceLoaders;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResourceRootIndexTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testScanMatchesJarResourceLoader() throws Exception {
+    final File jar = jar(this.tmp.newFile("test.jar"), "root.txt", "META-INF/", "foo/", "foo/bar/", "foo/bar/x.txt",
+        "empty/dir/", "only/file.txt", "odd//y.txt");
+
+    final JarFile jarFile = new JarFile(jar);
+    try {
+      final ResourceLoader loader = ResourceLoaders.createJarResourceLoader("test", jarFile);
+      assertEquals(new HashSet<String>(loader.getPaths()), new HashSet<String>(ResourceRootIndex.scan(jar)));
+    } finally {
+      jarFile.close();
+    }
+    assertTrue(ResourceRootIndex.scan(jar).contains("empty/dir"));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    final File moduleDir = this.tmp.newFolder("module");
+    jar(new File(moduleDir, "a.jar"), "a/", "a/b/c.txt");
+    new File(moduleDir, "classes").mkdir();
+
+    ResourceRootIndex.write(moduleDir, Arrays.asList("a.jar", "classes"));
+    assertFalse(new File(moduleDir, ResourceRootIndex.FILE_NAME + ".tmp").exists());
+
+    final Map<String, Collection<String>> roots = ResourceRootIndex.read(moduleDir);
+    assertEquals(1, roots.size());
+    assertEquals(new HashSet<String>(Arrays.asList("", "a", "a/b")), roots.get("a.jar"));
+  }
+
+  @Test
+  public void testReplacedJarIsNotServed() throws Exception {
+    final File moduleDir = this.tmp.newFolder("module");
+    final File jar = jar(new File(moduleDir, "a.jar"), "a/b/c.txt");
+    ResourceRootIndex.write(moduleDir, Arrays.asList("a.jar"));
+
+    jar(jar, "a/b/c.txt", "d/e.txt");
+    assertTrue(ResourceRootIndex.read(moduleDir).isEmpty());
+  }
+
+  private static File jar(final File jar, final String... names) throws IOException {
+    final JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      for (final String name : names) {
+        out.putNextEntry(new JarEntry(name));
+        if (!name.endsWith("/")) {
+          out.write(name.getBytes("UTF-8"));
+        }
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+    return jar;
+  }
+
+}
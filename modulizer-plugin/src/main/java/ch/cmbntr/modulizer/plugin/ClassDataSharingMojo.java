@@ -0,0 +1,190 @@
+package ch.cmbntr.modulizer.plugin;
+
+import static ch.cmbntr.modulizer.plugin.util.ModulizerUtil.mkdir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.codehaus.plexus.util.WriterFactory;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
+import ch.cmbntr.modulizer.bootstrap.util.ModulizerIO;
+
+/**
+ * Trains a dynamic AppCDS archive for the launcher: the launcher is started once with {@code -XX:ArchiveClassesAtExit}
+ * and stopped after {@link #trainingMillis} (or when the application exits earlier), then a launch script using the
+ * archive is generated. Dynamic archives need JDK 13 or later for training and at runtime. Only classes of the built-in
+ * loaders are archived, i.e. the bootstrap and jboss-modules merged into the launcher, not the module contents.
+ */
+@Mojo(name = "cds", defaultPhase = LifecyclePhase.PACKAGE)
+public class ClassDataSharingMojo extends AbstractMojo {
+
+  @Parameter(property = "modulizer.cds.skip", defaultValue = "false")
+  private boolean skip;
+
+  @Parameter(defaultValue = "${project.build.directory}/${project.artifactId}-${project.version}-launcher.jar", required = true)
+  private File launcher;
+
+  @Parameter(defaultValue = "${project.build.directory}/${project.artifactId}-${project.version}-launcher.jsa", required = true)
+  private File archive;
+
+  @Parameter(defaultValue = "${project.build.directory}/launch-cds.sh")
+  private File launchScript;
+
+  @Parameter(property = "modulizer.cds.java", defaultValue = "${java.home}/bin/java", required = true)
+  private String javaExecutable;
+
+  @Parameter(defaultValue = "${project.build.directory}/cds-training")
+  private File trainingDirectory;
+
+  @Parameter(property = "modulizer.cds.trainingMillis", defaultValue = "20000")
+  private long trainingMillis;
+
+  @Parameter(defaultValue = "300")
+  private int timeoutSeconds;
+
+  @Parameter
+  private String jvmArgs;
+
+  @Parameter(property = "args")
+  private String commandlineArgs;
+
+  @Override
+  public void execute() throws MojoExecutionException, MojoFailureException {
+    if (this.skip) {
+      getLog().info("class data sharing training skipped");
+      return;
+    }
+    if (!this.launcher.isFile()) {
+      throw new MojoExecutionException("launcher not found: " + this.launcher);
+    }
+    mkdir(this.trainingDirectory);
+    deleteStale(this.archive);
+    train();
+    if (!this.archive.isFile()) {
+      throw new MojoExecutionException(String.format(
+          "no archive written to %s, dynamic class data sharing needs JDK 13 or later (java=%s)", this.archive,
+          this.javaExecutable));
+    }
+    getLog().info(String.format("class data sharing archive: %s (%d bytes)", this.archive, this.archive.length()));
+    writeLaunchScript();
+  }
+
+  private static void deleteStale(final File f) throws MojoExecutionException {
+    if (f.exists() && !f.delete()) {
+      throw new MojoExecutionException("could not delete " + f);
+    }
+  }
+
+  private void train() throws MojoExecutionException {
+    final Commandline cl = new Commandline();
+    cl.setExecutable(this.javaExecutable);
+    cl.setWorkingDirectory(this.trainingDirectory);
+    cl.createArg().setValue("-XX:ArchiveClassesAtExit=" + this.archive.getAbsolutePath());
+    cl.createArg().setValue("-XX:DumpLoadedClassList=" + classList().getAbsolutePath());
+    cl.createArg().setValue(sysProp(BootstrapContext.CONFIG_KEY_CDS_TRAINING_MILLIS, this.trainingMillis));
+    cl.createArg().setValue(sysProp(BootstrapContext.CONFIG_KEY_BASE_DIR, this.trainingDirectory.getAbsolutePath()));
+    addArgs(cl, this.jvmArgs);
+    cl.createArg().setValue("-jar");
+    cl.createArg().setValue(this.launcher.getAbsolutePath());
+    addArgs(cl, this.commandlineArgs);
+
+    final Log log = getLog();
+    log.info("class data sharing training: " + CommandLineUtils.toString(cl.getCommandline()));
+    final StreamConsumer out = new StreamConsumer() {
+      @Override
+      public void consumeLine(final String line) {
+        log.debug(line);
+      }
+    };
+    final StreamConsumer err = new StreamConsumer() {
+      @Override
+      public void consumeLine(final String line) {
+        log.warn(line);
+      }
+    };
+    try {
+      final int exitCode = CommandLineUtils.executeCommandLine(cl, out, err, this.timeoutSeconds);
+      if (exitCode != 0) {
+        throw new MojoExecutionException("class data sharing training returned with exit code: " + exitCode);
+      }
+    } catch (final CommandLineException e) {
+      throw new MojoExecutionException("class data sharing training failed", e);
+    }
+  }
+
+  private File classList() {
+    return new File(this.archive.getPath() + ".classlist");
+  }
+
+  private static String sysProp(final String key, final Object value) {
+    return "-D" + key + "=" + value;
+  }
+
+  private static void addArgs(final Commandline cl, final String args) throws MojoExecutionException {
+    if (args == null) {
+      return;
+    }
+    try {
+      for (final String a : CommandLineUtils.translateCommandline(args)) {
+        cl.createArg().setValue(a);
+      }
+    } catch (final Exception e) {
+      throw new MojoExecutionException(e.getMessage());
+    }
+  }
+
+  private void writeLaunchScript() throws MojoExecutionException {
+    if (this.launchScript == null) {
+      return;
+    }
+    final String launcherPath = relativize(this.launcher);
+    final String archivePath = relativize(this.archive);
+    final StringBuilder sh = new StringBuilder();
+    sh.append("#!/bin/sh\n");
+    sh.append("# generated by modulizer:cds, the archive only matches the JDK build it was trained with\n");
+    sh.append("DIR=\"$(cd \"$(dirname \"$0\")\" && pwd)\"\n");
+    sh.append("CDS=\"").append(archivePath).append("\"\n");
+    sh.append("if [ -f \"$CDS\" ]; then\n");
+    sh.append("  JAVA_OPTS=\"-XX:SharedArchiveFile=$CDS -Xshare:auto $JAVA_OPTS\"\n");
+    sh.append("fi\n");
+    sh.append("exec \"${JAVA:-java}\" $JAVA_OPTS -jar \"").append(launcherPath).append("\" \"$@\"\n");
+    try {
+      final Writer w = WriterFactory.newWriter(this.launchScript, WriterFactory.UTF_8);
+      try {
+        w.write(sh.toString());
+      } finally {
+        ModulizerIO.closeQuietly(w);
+      }
+      if (!this.launchScript.setExecutable(true)) {
+        getLog().warn("could not make executable: " + this.launchScript);
+      }
+      getLog().info("launch script: " + this.launchScript);
+    } catch (final IOException e) {
+      throw new MojoExecutionException("failed to write launch script " + this.launchScript, e);
+    }
+  }
+
+  /**
+   * @return the path as seen from the launch script, relative to its location if possible
+   */
+  private String relativize(final File f) {
+    final File base = this.launchScript.getAbsoluteFile().getParentFile();
+    final String path = f.getAbsolutePath();
+    final String prefix = base.getAbsolutePath() + File.separator;
+    return path.startsWith(prefix) ? "$DIR/" + path.substring(prefix.length()) : path;
+  }
+
+}
@@ -1,14 +1,21 @@
 package ch.cmbntr.modulizer.plugin;
 
 import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.CONFIG_KEY_APP_ID;
+import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.CONFIG_KEY_BUNDLE_DELTA_BASE;
+import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.CONFIG_KEY_BUNDLE_DELTA_URI;
 import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.CONFIG_KEY_BUNDLE_ID;
 import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.CONFIG_KEY_BUNDLE_REF;
+import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.CONFIG_KEY_BUNDLE_SPLIT;
 import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.CONFIG_KEY_BUNDLE_URI;
 import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.CONFIG_KEY_LAUNCH_PLUGINS;
 import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.CONFIG_KEY_MAIN_MODULE;
+import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.CONFIG_KEY_MODULES_ARCHIVE;
+import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.CONFIG_KEY_PRELOAD_PROFILE;
 import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.CONFIG_KEY_PREPARE_PLUGINS;
+import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.DEFAULT_BUNDLE_DELTA_URI;
 import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.DEFAULT_BUNDLE_REF;
 import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.DEFAULT_BUNDLE_URI;
+import static ch.cmbntr.modulizer.bootstrap.BootstrapContext.DEFAULT_PRELOAD_PROFILE;
 import static ch.cmbntr.modulizer.bootstrap.util.ModulizerIO.sha1async;
 import static ch.cmbntr.modulizer.plugin.util.ModulizerUtil.collect;
 import static ch.cmbntr.modulizer.plugin.util.ModulizerUtil.compute;
@@ -59,18 +66,25 @@ import org.codehaus.plexus.util.StringUtils;
 import org.codehaus.plexus.util.WriterFactory;
 import org.jboss.modules.Module;
 
+import ch.cmbntr.modulizer.bootstrap.BootstrapContext;
 import ch.cmbntr.modulizer.bootstrap.Main;
+import ch.cmbntr.modulizer.bootstrap.util.ClassLoadAgent;
+import ch.cmbntr.modulizer.bootstrap.util.HashCache;
 import ch.cmbntr.modulizer.bootstrap.util.ModulizerIO;
 import ch.cmbntr.modulizer.bootstrap.util.Resources;
 import ch.cmbntr.modulizer.bootstrap.util.Resources.Pool;
 import ch.cmbntr.modulizer.filetree.Snapshot;
 import ch.cmbntr.modulizer.filetree.Snapshot.FileTreeSnapshotException;
+import ch.cmbntr.modulizer.modules.ModuleIndex;
+import ch.cmbntr.modulizer.modules.ModulesArchive;
 import ch.cmbntr.modulizer.modules.ModulizerModulesUtil;
+import ch.cmbntr.modulizer.modules.ResourceRootIndex;
 import ch.cmbntr.modulizer.plugin.archiver.ArchiverCallback;
 import ch.cmbntr.modulizer.plugin.archiver.ArchiverHelper;
 import ch.cmbntr.modulizer.plugin.config.ModuleSpec;
 import ch.cmbntr.modulizer.plugin.config.SigningInfo;
 import ch.cmbntr.modulizer.plugin.config.Webstart;
+import ch.cmbntr.modulizer.plugin.util.ModuleDescriptors;
 
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
@@ -103,6 +117,8 @@ public class ModulizeMojo extends AbstractModulizeMojo {
 
   private static final String WEBSTART_RESOURCE_FRAGMENT = "WEB-INF/jspf/jnlp/resource.jspf";
 
+  private static final String SPLIT_MANIFEST = "filetree-split.properties";
+
   private static final List<String> WEBSTART_DEFAULT_FILES = ImmutableList.of(WEBSTART_WEB_XML, WEBSTART_JNLP_BODY,
       WEBSTART_JNLP_PROPS, WEBSTART_RESOURCES_FRAGMENT, WEBSTART_RESOURCE_FRAGMENT, WEBSTART_RESOURCES_DEF_FRAGMENT);
 
@@ -145,6 +161,12 @@ public class ModulizeMojo extends AbstractModulizeMojo {
   @Parameter(defaultValue = "false")
   private boolean includeModulesInLauncher = false;
 
+  /**
+   * The classifier of the delta artifact, holding the delta bundle, see {@link #previousBundleId}.
+   */
+  @Parameter(defaultValue = "modules-delta")
+  private String deltaClassifierName;
+
   @Parameter(defaultValue = "${basedir}/src/main/modules")
   private File overlayDirectory;
 
@@ -157,6 +179,23 @@ public class ModulizeMojo extends AbstractModulizeMojo {
   @Parameter
   private List<ModuleSpec> modules = ImmutableList.of();
 
+  @Parameter(defaultValue = "true")
+  private boolean moduleIndex = true;
+
+  /**
+   * Ship the modules as a modules archive the launcher serves classes from, instead of a file tree bundle exploded on
+   * the client. Requires the module index to cover every module.
+   */
+  @Parameter(defaultValue = "false")
+  private boolean modulesArchive = false;
+
+  /**
+   * Ship one bundle per module directory plus a manifest of their content ids instead of a single bundle, the client
+   * only restores the modules that changed.
+   */
+  @Parameter(defaultValue = "false")
+  private boolean splitBundles = false;
+
   @Parameter(defaultValue = "true")
   private boolean warmupModules = true;
 
@@ -166,6 +205,33 @@ public class ModulizeMojo extends AbstractModulizeMojo {
   @Parameter(defaultValue = "true")
   private boolean stripVersion = true;
 
+  @Parameter(defaultValue = "${project.build.directory}/modulizer-hash-cache.dat")
+  private File hashCache;
+
+  /**
+   * The digests of this execution, kept off the JVM wide default so executions sharing a Maven JVM stay apart.
+   */
+  private HashCache hashes;
+
+  /**
+   * The bundle id of the previous release, see {@link BootstrapContext#CONFIG_KEY_BUNDLE_ID}. If given, a thin delta
+   * bundle on top of it is shipped as an artifact of its own, on the class path of the launcher, clients still at the
+   * previous release only fetch the delta.
+   */
+  @Parameter(property = "modulizer.previousBundleId")
+  private String previousBundleId;
+
+  /**
+   * The bundle of the previous release, needed unless the modules directory still contains the previous release.
+   */
+  @Parameter(property = "modulizer.previousBundle")
+  private File previousBundle;
+
+  /**
+   * The delta bundle of this execution, {@code null} if none.
+   */
+  private File deltaBundle;
+
   private String conf(final String key, final String defaultValue) {
     return this.bootstrapContext.getProperty(key, defaultValue);
   }
@@ -199,6 +265,14 @@ public class ModulizeMojo extends AbstractModulizeMojo {
     return buildArtifactName(this.modulesClassifierName, "jar");
   }
 
+  private String determineDeltaArtifactName() {
+    return buildArtifactName(this.deltaClassifierName, "jar");
+  }
+
+  private boolean hasDeltaBundle() {
+    return isNotBlank(this.previousBundleId) && !this.splitBundles && !this.modulesArchive;
+  }
+
   private String determineWebstartArtifactName() {
     return buildArtifactName(this.webstart.getClassifierName(), "war");
   }
@@ -230,6 +304,10 @@ public class ModulizeMojo extends AbstractModulizeMojo {
   protected void checkParams() {
     super.checkParams();
     checkState(isNotBlank(this.modulesClassifierName), "invalid classifier");
+    checkState(!hasDeltaBundle() || isNotBlank(this.deltaClassifierName), "invalid delta classifier");
+    checkState(this.moduleIndex || !this.modulesArchive, "the modules archive requires the module index");
+    checkState(!(this.splitBundles && this.modulesArchive), "split bundles and the modules archive are exclusive");
+    checkState(!(this.splitBundles && isNotBlank(this.previousBundleId)), "split bundles do not support delta bundles");
     final Set<String> moduleIdentifiers = Sets.newHashSet();
     for (final ModuleSpec module : this.modules) {
       final String id = module.getModuleIdentifier();
@@ -250,14 +328,39 @@ public class ModulizeMojo extends AbstractModulizeMojo {
 
   @Override
   protected void safeExecute() throws MojoExecutionException {
-    createModulesDirectory();
-    createModules();
-    copyModulesOverlay();
-    warmupModules();
+    openHashCache();
+    try {
+      createModulesDirectory();
+      createModules();
+      copyModulesOverlay();
+      createModuleIndex();
+      warmupModules();
+
+      final List<File> artifacts = createArtifacts();
+      sign(artifacts);
+      webstart(artifacts);
+    } finally {
+      saveHashCache();
+    }
+  }
 
-    final List<File> artifacts = createArtifacts();
-    sign(artifacts);
-    webstart(artifacts);
+  private void openHashCache() {
+    if (this.hashCache != null) {
+      this.hashes = HashCache.open(this.hashCache);
+      log("hash cache: " + this.hashCache);
+    }
+  }
+
+  private void saveHashCache() {
+    final HashCache cache = this.hashes;
+    this.hashes = null;
+    if (cache != null) {
+      try {
+        cache.save();
+      } catch (final IOException e) {
+        getLog().warn("failed to save hash cache " + this.hashCache + ": " + e);
+      }
+    }
   }
 
   private void createModulesDirectory() throws MojoExecutionException {
@@ -317,12 +420,12 @@ public class ModulizeMojo extends AbstractModulizeMojo {
       throws MojoExecutionException {
 
     final Map<Artifact, File> fromTo = compute(artifacts, resourceTargetFile(moduleDirectory));
-    final Map<File, Future<String>> targetHashes = sha1async(fromTo.values());
+    final Map<File, Future<String>> targetHashes = sha1async(fromTo.values(), this.hashes);
 
     final Pool pool = Resources.getPoolHandle();
     final ExecutorService executor = pool.aquireExec();
     try {
-      return collect(ImmutableList.copyOf(transform(fromTo.entrySet(),
+      return indexResourceRoots(moduleDirectory, collect(ImmutableList.copyOf(transform(fromTo.entrySet(),
           new Function<Entry<Artifact, File>, Future<String>>() {
             @Override
             public Future<String> apply(final Entry<Artifact, File> e) {
@@ -333,7 +436,7 @@ public class ModulizeMojo extends AbstractModulizeMojo {
               checkState(src != null, "missing file for %s", a);
               return executor.submit(conditionalCopy(src, target, targetHash));
             }
-          })));
+          }))));
     } catch (final ComputationException e) {
       throw new MojoExecutionException("failed to copy artifacts", e.getCause());
     } finally {
@@ -342,6 +445,16 @@ public class ModulizeMojo extends AbstractModulizeMojo {
 
   }
 
+  private Iterable<String> indexResourceRoots(final File moduleDirectory, final Iterable<String> resources)
+      throws MojoExecutionException {
+    try {
+      ResourceRootIndex.write(moduleDirectory, resources);
+      return resources;
+    } catch (final IOException e) {
+      throw new MojoExecutionException("failed to index resource roots of " + moduleDirectory, e);
+    }
+  }
+
   private Function<Artifact, File> resourceTargetFile(final File moduleDirectory) {
     final boolean removeVersion = this.stripVersion;
     return new Function<Artifact, File>() {
@@ -372,6 +485,37 @@ public class ModulizeMojo extends AbstractModulizeMojo {
     copyOverlay("modules", this.overlayDirectory, this.modulesDirectory);
   }
 
+  private void createModuleIndex() throws MojoExecutionException {
+    final File index = new File(this.modulesDirectory, ModuleIndex.FILE_NAME);
+    if (!this.moduleIndex) {
+      FileUtils.fileDelete(index.getAbsolutePath());
+      return;
+    }
+    final DirectoryScanner ds = new DirectoryScanner();
+    ds.setBasedir(this.modulesDirectory);
+    ds.setIncludes(new String[] { "**/module.xml" });
+    ds.scan();
+    final String[] descriptors = ds.getIncludedFiles();
+    final List<ModuleIndex.Entry> entries = Lists.newArrayListWithCapacity(descriptors.length);
+    try {
+      for (final String path : descriptors) {
+        final ModuleIndex.Entry entry = ModuleDescriptors.indexEntry(new File(this.modulesDirectory, path));
+        if (entry != null && path.equals(entry.getPath() + File.separator + "module.xml")) {
+          entries.add(entry);
+        } else {
+          log("not indexed: " + path);
+        }
+      }
+      ModuleIndex.write(index, entries);
+      log(format("module index: %d of %d modules", entries.size(), descriptors.length));
+      if (this.modulesArchive && entries.size() != descriptors.length) {
+        throw new MojoExecutionException("the modules archive requires all modules to be indexed");
+      }
+    } catch (final IOException e) {
+      throw new MojoExecutionException("failed to create module index", e);
+    }
+  }
+
   private void warmupModules() {
     if (this.warmupModules) {
       final List<String> ids = getSpecifiedModuleIdentifiers();
@@ -381,6 +525,56 @@ public class ModulizeMojo extends AbstractModulizeMojo {
     }
   }
 
+  private Map<File, String> createSplitBundles() throws MojoExecutionException {
+    log("create split filetree");
+    final DirectoryScanner ds = new DirectoryScanner();
+    ds.setBasedir(this.modulesDirectory);
+    ds.setIncludes(new String[] { "**/module.xml" });
+    ds.setExcludes(new String[] { ".git/**" });
+    ds.scan();
+    final List<String> modulePaths = Lists.newArrayList();
+    for (final String descriptor : ds.getIncludedFiles()) {
+      modulePaths.add(new File(descriptor).getParent().replace(File.separatorChar, '/'));
+    }
+
+    final File splitDir = new File(this.outputDirectory, Snapshot.SPLIT_BUNDLE_DIR);
+    final Map<String, String> ids;
+    try {
+      ids = Snapshot.createSplitBundles(splitDir, this.modulesDirectory, determineBundleRef(), modulePaths);
+    } catch (final FileTreeSnapshotException e) {
+      throw new MojoExecutionException("failed to create split bundles", e);
+    }
+
+    final String manifestName = SPLIT_MANIFEST;
+    final File manifest = new File(this.outputDirectory, manifestName);
+    final Properties p = new Properties();
+    p.putAll(ids);
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(manifest);
+      p.store(out, "split bundle content ids");
+    } catch (final IOException e) {
+      throw new MojoExecutionException("failed to write split bundle manifest", e);
+    } finally {
+      try {
+        Closeables.close(out, true);
+      } catch (final IOException e) {
+        // Closables swallows the exception
+      }
+    }
+    augmentContext("filetree split bootstrap properties: ",
+        ImmutableMap.of(CONFIG_KEY_BUNDLE_SPLIT, "/" + manifestName, CONFIG_KEY_BUNDLE_REF, determineBundleRef()));
+
+    final Map<File, String> bundles = Maps.newLinkedHashMap();
+    bundles.put(manifest, manifestName);
+    for (final String id : ImmutableSet.copyOf(ids.values())) {
+      final String name = Snapshot.splitBundleName(id);
+      bundles.put(new File(splitDir, name), Snapshot.SPLIT_BUNDLE_DIR + "/" + name);
+    }
+    log(format("split filetree: %d parts", ids.size()));
+    return bundles;
+  }
+
   private File createBundle() throws MojoExecutionException {
     try {
       log("create filetree");
@@ -391,12 +585,41 @@ public class ModulizeMojo extends AbstractModulizeMojo {
       final String id = Snapshot.createBundle(bundle, this.modulesDirectory, ref);
       augmentContext("filetree bootstrap properties: ",
           ImmutableMap.of(CONFIG_KEY_BUNDLE_ID, id, CONFIG_KEY_BUNDLE_REF, ref, CONFIG_KEY_BUNDLE_URI, bundleURI));
+      if (hasDeltaBundle()) {
+        this.deltaBundle = createDeltaBundle(ref, id, this.previousBundleId.trim());
+      }
       return bundle;
     } catch (final FileTreeSnapshotException e) {
       throw new MojoExecutionException("failed to create bundle", e);
     }
   }
 
+  private File createDeltaBundle(final String ref, final String id, final String base) {
+    log("create filetree delta on " + base);
+    final String deltaName = new File(conf(CONFIG_KEY_BUNDLE_DELTA_URI, DEFAULT_BUNDLE_DELTA_URI)).getName().trim();
+    final File delta = new File(this.outputDirectory, deltaName);
+    Snapshot.createDeltaBundle(delta, this.modulesDirectory, ref, id, base, this.previousBundle);
+    augmentContext("filetree delta bootstrap properties: ",
+        ImmutableMap.of(CONFIG_KEY_BUNDLE_DELTA_BASE, base, CONFIG_KEY_BUNDLE_DELTA_URI, "/" + deltaName));
+    return delta;
+  }
+
+  private File createModulesArchive() throws MojoExecutionException {
+    log("create modules archive");
+    final File tmp = new File(this.outputDirectory, "modules.mar");
+    try {
+      ModulesArchive.write(this.modulesDirectory, tmp);
+      final String archiveName = sha1Name(tmp, this.hashes);
+      final File archive = new File(this.outputDirectory, archiveName);
+      FileUtils.rename(tmp, archive);
+      augmentContext("modules archive bootstrap properties: ",
+          ImmutableMap.of(CONFIG_KEY_MODULES_ARCHIVE, "/" + archiveName));
+      return archive;
+    } catch (final IOException e) {
+      throw new MojoExecutionException("failed to create modules archive", e);
+    }
+  }
+
   private String determineBundleName() {
     return new File(conf(CONFIG_KEY_BUNDLE_URI, DEFAULT_BUNDLE_URI)).getName().trim();
   }
@@ -406,15 +629,30 @@ public class ModulizeMojo extends AbstractModulizeMojo {
   }
 
   private File createBootstrapConfig() throws MojoExecutionException {
-    final File config = new File(this.outputDirectory, "bootstrap-config.xml");
+    return writeBootstrapConfig(BootstrapContext.CONFIG_NAME, true);
+  }
+
+  /**
+   * The plain properties form is preferred by the bootstrap, as reading it does not load the XML stack.
+   */
+  private File createCompactBootstrapConfig() throws MojoExecutionException {
+    return writeBootstrapConfig(BootstrapContext.CONFIG_NAME_COMPACT, false);
+  }
+
+  private File writeBootstrapConfig(final String resourceName, final boolean xml) throws MojoExecutionException {
+    final File config = new File(this.outputDirectory, resourceName.substring(1));
     FileOutputStream out = null;
     try {
       out = new FileOutputStream(config);
-      this.bootstrapContext.storeToXML(out, null);
+      if (xml) {
+        this.bootstrapContext.storeToXML(out, null);
+      } else {
+        this.bootstrapContext.store(out, null);
+      }
       return config;
 
     } catch (final IOException e) {
-      throw new MojoExecutionException("failed to write boostrap-config.xml", e);
+      throw new MojoExecutionException("failed to write " + config.getName(), e);
     } finally {
       try {
         Closeables.close(out, true);
@@ -439,6 +677,10 @@ public class ModulizeMojo extends AbstractModulizeMojo {
       artifacts.add(createArtifact(determineModulesArtifactName(), "jar", this.modulesClassifierName,
           modulesArtifactContents));
     }
+    if (this.deltaBundle != null) {
+      artifacts.add(createArtifact(determineDeltaArtifactName(), "jar", this.deltaClassifierName,
+          ImmutableList.of(this.archiver.fileAdder(this.deltaBundle))));
+    }
     return artifacts;
   }
 
@@ -486,10 +728,10 @@ public class ModulizeMojo extends AbstractModulizeMojo {
 
   private Map<File, String> determineLauncherPlugins() throws MojoExecutionException {
     final File prepare = findPreparePlugin().getFile();
-    final String prepareName = sha1Name(prepare);
+    final String prepareName = sha1Name(prepare, this.hashes);
 
     final File launcher = findLauncherPlugin().getFile();
-    final String launcherName = sha1Name(launcher);
+    final String launcherName = sha1Name(launcher, this.hashes);
 
     augmentContext("bootstrap plugins: ",
         ImmutableMap.of(CONFIG_KEY_PREPARE_PLUGINS, prepareName, CONFIG_KEY_LAUNCH_PLUGINS, launcherName));
@@ -504,8 +746,21 @@ public class ModulizeMojo extends AbstractModulizeMojo {
     entries.put("Permissions", "all-permissions");
     entries.put("Trusted-Library", "true");
     entries.put("Codebase", "*");
+    final List<String> classPath = Lists.newArrayList();
     if (!this.includeModulesInLauncher) {
-      entries.put("Class-Path", determineModulesArtifactName());
+      classPath.add(determineModulesArtifactName());
+    }
+    if (hasDeltaBundle()) {
+      // a missing delta artifact falls back to the full bundle
+      classPath.add(determineDeltaArtifactName());
+    }
+    if (!classPath.isEmpty()) {
+      entries.put("Class-Path", Joiner.on(' ').join(classPath));
+    }
+    if (!"none".equals(conf(CONFIG_KEY_PRELOAD_PROFILE, DEFAULT_PRELOAD_PROFILE).trim())) {
+      // recording the preload profile needs the loaded classes, Java 8 requires -javaagent instead
+      entries.put("Launcher-Agent-Class", ClassLoadAgent.class.getName());
+      entries.put("Premain-Class", ClassLoadAgent.class.getName());
     }
     for (final Entry<Object, Object> e : this.launcherManifest.entrySet()) {
       entries.put(e.getKey().toString(), e.getValue().toString());
@@ -514,9 +769,17 @@ public class ModulizeMojo extends AbstractModulizeMojo {
   }
 
   private List<ArchiverCallback> modulesContents() throws MojoExecutionException {
-    final File bundle = createBundle();
+    if (this.splitBundles) {
+      final Map<File, String> bundles = createSplitBundles();
+      final File bootstrapConfig = createBootstrapConfig();
+      final File compactBootstrapConfig = createCompactBootstrapConfig();
+      return ImmutableList.of(this.archiver.fileAdder(bundles),
+          this.archiver.fileAdder(bootstrapConfig, compactBootstrapConfig));
+    }
+    final File bundle = this.modulesArchive ? createModulesArchive() : createBundle();
     final File bootstrapConfig = createBootstrapConfig();
-    return ImmutableList.of(this.archiver.fileAdder(bundle, bootstrapConfig));
+    final File compactBootstrapConfig = createCompactBootstrapConfig();
+    return ImmutableList.of(this.archiver.fileAdder(bundle, bootstrapConfig, compactBootstrapConfig));
   }
 
   private void sign(final Iterable<File> artifacts) throws MojoExecutionException {
@@ -635,7 +898,7 @@ public class ModulizeMojo extends AbstractModulizeMojo {
         if (th == null) {
           copyFile(src, target);
         } else {
-          final StringBuilder sourceHash = ModulizerIO.sha1(src);
+          final StringBuilder sourceHash = ModulizerIO.sha1(src, ModulizeMojo.this.hashes);
           if (sourceHash == null) {
             throw new IllegalArgumentException("source not available " + src);
           }
@@ -9,12 +9,16 @@ import java.util.Set;
 import java.util.regex.Pattern;
 
 import org.jdom2.DefaultJDOMFactory;
+import org.jdom2.Attribute;
 import org.jdom2.Document;
 import org.jdom2.Element;
+import org.jdom2.JDOMException;
 import org.jdom2.JDOMFactory;
+import org.jdom2.input.SAXBuilder;
 import org.jdom2.output.Format;
 import org.jdom2.output.XMLOutputter;
 
+import ch.cmbntr.modulizer.modules.ModuleIndex;
 import ch.cmbntr.modulizer.plugin.config.ModuleDependency;
 
 import com.google.common.collect.ImmutableList;
@@ -118,6 +122,62 @@ public class ModuleDescriptors extends ModuleDependency {
 
   }
 
+  /**
+   * Reads a {@code module.xml} into a {@link ModuleIndex} entry.
+   *
+   * @return the entry, {@code null} if the descriptor uses features not covered by the index (e.g. filters, system
+   *         dependencies, properties or permissions)
+   */
+  public static ModuleIndex.Entry indexEntry(final File descriptor) throws IOException {
+    final Element root;
+    try {
+      root = new SAXBuilder().build(descriptor).getRootElement();
+    } catch (final JDOMException e) {
+      throw new IOException("invalid module descriptor " + descriptor, e);
+    }
+    if (!"module".equals(root.getName()) || !hasOnly(root, "name", "slot")) {
+      return null;
+    }
+    final ModuleIndex.Entry entry = new ModuleIndex.Entry(root.getAttributeValue("name"),
+        root.getAttributeValue("slot"), descriptor.length(), ModuleIndex.checksum(descriptor));
+    for (final Element e : root.getChildren()) {
+      if ("main-class".equals(e.getName()) && hasOnly(e, "name") && e.getChildren().isEmpty()) {
+        entry.mainClass(e.getAttributeValue("name"));
+      } else if ("resources".equals(e.getName()) && hasOnly(e)) {
+        for (final Element r : e.getChildren()) {
+          if (!"resource-root".equals(r.getName()) || !hasOnly(r, "path") || !r.getChildren().isEmpty()) {
+            return null;
+          }
+          entry.resourceRoot(r.getAttributeValue("path"));
+        }
+      } else if ("dependencies".equals(e.getName()) && hasOnly(e)) {
+        for (final Element d : e.getChildren()) {
+          if (!"module".equals(d.getName()) || !hasOnly(d, "name", "slot", "optional", "export", "services")
+              || !d.getChildren().isEmpty()) {
+            return null;
+          }
+          final boolean optional = Boolean.parseBoolean(d.getAttributeValue("optional"));
+          final boolean export = Boolean.parseBoolean(d.getAttributeValue("export"));
+          entry.dependency(d.getAttributeValue("name"), d.getAttributeValue("slot"), optional, export,
+              d.getAttributeValue("services", "none"));
+        }
+      } else {
+        return null;
+      }
+    }
+    return entry;
+  }
+
+  private static boolean hasOnly(final Element e, final String... attributes) {
+    final Set<String> allowed = ImmutableSet.copyOf(attributes);
+    for (final Attribute a : e.getAttributes()) {
+      if (!allowed.contains(a.getName())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public static boolean isValidModuleName(final String name) {
     return MODULE_NAME_PATTERN.matcher(name).matches();
   }
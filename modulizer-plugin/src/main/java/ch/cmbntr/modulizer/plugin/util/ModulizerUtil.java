@@ -15,6 +15,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.codehaus.plexus.util.FileUtils;
 
+import ch.cmbntr.modulizer.bootstrap.util.HashCache;
 import ch.cmbntr.modulizer.bootstrap.util.ModulizerIO;
 import ch.cmbntr.modulizer.bootstrap.util.Resources;
 import ch.cmbntr.modulizer.bootstrap.util.Resources.Pool;
@@ -95,9 +96,9 @@ public class ModulizerUtil {
     }
   }
 
-  public static String sha1Name(final File f) throws MojoExecutionException {
+  public static String sha1Name(final File f, final HashCache cache) throws MojoExecutionException {
     try {
-      return ModulizerIO.sha1Name(f);
+      return ModulizerIO.sha1Name(f, cache);
     } catch (final IOException e) {
       throw new MojoExecutionException("could not sha1 hash the file " + f);
     }
@@ -0,0 +1,52 @@
+package ch.cmbntr.modulizer.plugin.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.cmbntr.modulizer.modules.ModuleIndex;
+import ch.cmbntr.modulizer.plugin.config.ModuleDependency;
+
+import com.google.common.collect.ImmutableList;
+
+public class ModuleDescriptorsTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testIndexGeneratedDescriptor() throws IOException {
+    final File descriptor = this.tmp.newFile("module.xml");
+    ModuleDescriptors.xmlDescriptor("org.example.app", "1.0").mainClass("org.example.Main")
+        .resourceRoots(ImmutableList.of("app.jar"))
+        .dependencies(ImmutableList.of(ModuleDependency.to("org.slf4j", null, true, true, "export")))
+        .writeTo(descriptor);
+
+    final ModuleIndex.Entry entry = ModuleDescriptors.indexEntry(descriptor);
+    assertNotNull(entry);
+    assertEquals("org.example.app:1.0", entry.getIdentifier());
+    assertEquals("org" + File.separator + "example" + File.separator + "app" + File.separator + "1.0",
+        entry.getPath());
+  }
+
+  @Test
+  public void testSkipUnsupportedDescriptor() throws IOException {
+    final File descriptor = this.tmp.newFile("module.xml");
+    final FileOutputStream out = new FileOutputStream(descriptor);
+    out.write(("<module xmlns=\"urn:jboss:module:1.1\" name=\"org.example.app\"><dependencies>"
+        + "<system export=\"true\"><paths><path name=\"sun/misc\"/></paths></system>"
+        + "</dependencies></module>").getBytes("UTF-8"));
+    out.close();
+
+    assertNull(ModuleDescriptors.indexEntry(descriptor));
+  }
+
+}